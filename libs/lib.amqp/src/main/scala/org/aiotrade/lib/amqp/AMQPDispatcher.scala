@@ -32,6 +32,7 @@ package org.aiotrade.lib.amqp
 
 import com.rabbitmq.client.AMQP
 import com.rabbitmq.client.Channel
+import com.rabbitmq.client.ConfirmListener
 import com.rabbitmq.client.Connection
 import com.rabbitmq.client.ConnectionFactory
 import com.rabbitmq.client.Consumer
@@ -43,6 +44,13 @@ import java.io.IOException
 import java.io.InvalidClassException
 import java.util.Timer
 import java.util.TimerTask
+import java.util.concurrent.ConcurrentSkipListMap
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.Semaphore
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 import java.util.logging.Logger
 import java.util.logging.Level
 
@@ -123,6 +131,51 @@ object AMQPDispatcher {
   private val defaultReconnectDelay = 5000
   private val maxReconnectDelay = 1800000 // = 30 * 60 * 1000  half an hour.
   private lazy val timer = new Timer("AMQPReconnectTimer")
+
+  private val config = org.aiotrade.lib.util.config.Config()
+  /** 
+   * Window in ms to coalesce messages of same exchange, routing key and content 
+   * type into one body, 0 means no batching.
+   */
+  val batchWindow = config.getInt("amqp.batch.window", 0)
+  val batchMaxBytes = config.getInt("amqp.batch.maxbytes", 64 * 1024)
+  val batchMaxMessages = config.getInt("amqp.batch.maxmessages", 1000)
+  /** pipelined publisher confirms, at most maxUnconfirmed messages are in flight */
+  val isConfirmEnabled = config.getBool("amqp.confirm", false)
+  val maxUnconfirmed = config.getInt("amqp.confirm.maxinflight", 1000)
+  /** ms that a publishing waits for a permit when maxUnconfirmed ones are in flight */
+  val confirmTimeout = config.getInt("amqp.confirm.timeout", 10000)
+  /** consumers created with ackBatchSize > 1 ack by multiple, at latest after ackWindow ms */
+  val ackBatchSize = config.getInt("amqp.ack.batch", 1)
+  val ackWindow = config.getInt("amqp.ack.window", 50)
+  /** number of decode workers of consumers, -1 means number of processors */
+  val decodeWorkers = config.getInt("amqp.decode.workers", 0) match {
+    case -1 => Runtime.getRuntime.availableProcessors
+    case n => n
+  }
+  val decodeQueueSize = config.getInt("amqp.decode.queuesize", 10000)
+
+  private lazy val flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+      def newThread(r: Runnable) = {
+        val t = new Thread(r, "AMQPBatchFlusher")
+        t.setDaemon(true)
+        t
+      }
+    })
+  
+  /** 
+   * Unpacked messages of a batch delivery share the delivery tag, only the last 
+   * one, whose header BATCH_REMAINING is absent or 0, should be acked explicitly.
+   */
+  def isLastOfDelivery(props: AMQP.BasicProperties): Boolean = {
+    props.getHeaders match {
+      case null => true
+      case headers => headers.get(BATCH_REMAINING) match {
+          case n: java.lang.Integer => n.intValue == 0
+          case _ => true
+        }
+    }
+  }
 }
 
 /**
@@ -136,12 +189,58 @@ abstract class AMQPDispatcher(factory: ConnectionFactory, val exchange: String)
   private val log = Logger.getLogger(getClass.getName)
 
 //  protected def useActor = true
+  
+  /**
+   * Number of decode workers, 0 means deliveries are decoded in the delivery 
+   * thread of the channel. Deliveries of the same routing key are decoded and 
+   * forwarded in order.
+   */
+  protected def decodeWorkers: Int = AMQPDispatcher.decodeWorkers
+  
+  /** so close won't create the stage just to shut it down */
+  @volatile private var isDecodeStageCreated = false
+  @volatile private var isClosed = false
+  protected lazy val decodeStage: Option[DecodeStage] = {
+    if (decodeWorkers > 0) {
+      isDecodeStageCreated = true
+      Some(new DecodeStage(getClass.getSimpleName, decodeWorkers, AMQPDispatcher.decodeQueueSize))
+    } else None
+  }
 
   private case class State(connection: Option[Connection], channel: Option[Channel], consumer: Option[Consumer])
   private var state = State(None, None, None)
 
   private var reconnectDelay: Long = AMQPDispatcher.defaultReconnectDelay
 
+  private case class BatchKey(exchange: String, routingKey: String, contentType: ContentType, contentEncoding: String)
+  private val batches = new java.util.HashMap[BatchKey, BatchFrames]()
+
+  private case class Unconfirmed(exchange: String, routingKey: String, mandatory: Boolean, immediate: Boolean, props: AMQP.BasicProperties, body: Array[Byte])
+  private val unconfirmed = new ConcurrentSkipListMap[java.lang.Long, Unconfirmed]()
+  private val unconfirmedPermits = new Semaphore(AMQPDispatcher.maxUnconfirmed)
+
+  // --- back-pressure metrics of confirms
+  private val _confirmBlocked = new AtomicLong
+  private val _confirmBlockedNanos = new AtomicLong
+  private val _confirmTimeouts = new AtomicLong
+  /** number of publishings that waited for a permit */
+  def confirmBlocked = _confirmBlocked.get
+  def confirmBlockedNanos = _confirmBlockedNanos.get
+  /** number of publishings that failed since no permit in confirmTimeout */
+  def confirmTimeouts = _confirmTimeouts.get
+  
+  private val confirmListener = new ConfirmListener {
+    def handleAck(seqNo: Long, multiple: Boolean) {
+      removeConfirmed(seqNo, multiple)
+    }
+    
+    def handleNack(seqNo: Long, multiple: Boolean) {
+      val nacked = removeConfirmed(seqNo, multiple)
+      log.warning("Nacked " + nacked.size + " messages by broker, will republish them")
+      republish(nacked)
+    }
+  }
+
   /**
    * Connect only when start, so we can control it to connect at a appropriate time,
    * for instance, all processors are ready. Otherwise, the messages may have been
@@ -183,9 +282,17 @@ abstract class AMQPDispatcher(factory: ConnectionFactory, val exchange: String)
         // we won't catch exceptions thrown during the following procedure, since we need them to fire ShutdownSignalException
         try{
           val channel = conn.createChannel
+          if (AMQPDispatcher.isConfirmEnabled) {
+            channel.setConfirmListener(confirmListener)
+            channel.confirmSelect
+          }
           val consumer = configure(channel)
 
+          // messages that were not confirmed by the previous channel
+          val lost = if (AMQPDispatcher.isConfirmEnabled) removeConfirmed(Long.MaxValue, true) else Nil
+          
           state = State(Option(conn), Option(channel), consumer)
+          republish(lost)
 
           log.info("Successfully connected at: " + conn.getAddress.getHostAddress + ":" + conn.getPort)
           reconnectDelay = AMQPDispatcher.defaultReconnectDelay
@@ -215,6 +322,7 @@ abstract class AMQPDispatcher(factory: ConnectionFactory, val exchange: String)
 
     AMQPDispatcher.timer.schedule(new TimerTask {
         def run {
+          if (isClosed) return
           reconnectDelay *= 2
           if (reconnectDelay > AMQPDispatcher.maxReconnectDelay) reconnectDelay = AMQPDispatcher.maxReconnectDelay
           doConnect
@@ -245,6 +353,19 @@ abstract class AMQPDispatcher(factory: ConnectionFactory, val exchange: String)
     }
   }
 
+  /**
+   * Disconnects without reconnecting, then stops the decode stage after the 
+   * deliveries that are queued in it are forwarded. A closed dispatcher should
+   * not be connected again.
+   */
+  def close() {
+    isClosed = true
+    disconnect
+    if (isDecodeStageCreated) {
+      decodeStage foreach {_.shutdown()}
+    }
+  }
+
   def isConnected = connection.isDefined && connection.get.isOpen
 
   /**
@@ -263,60 +384,251 @@ abstract class AMQPDispatcher(factory: ConnectionFactory, val exchange: String)
   @throws(classOf[IOException])
   protected def configure(channel: Channel): Option[Consumer]
 
+  /**
+   * If batchWindow > 0, messages without props other than contentType/contentEncoding
+   * are coalesced by (exchange, routingKey, contentType, contentEncoding) and sent 
+   * as one body when batchMaxBytes/batchMaxMessages is reached or batchWindow elapsed.
+   */
   @throws(classOf[IOException])
   def publish(content: Any, exchange: String, routingKey: String, props: AMQP.BasicProperties = new AMQP.BasicProperties.Builder().build,
               mandatory: Boolean = false, immediate: Boolean = false
   ) {
-    channel foreach {_ch =>
-      val contentType = props.getContentType match {
-        case null | "" => DEFAULT_CONTENT_TYPE
-        case x => ContentType(x)
+    if (AMQPDispatcher.batchWindow > 0 && isBatchable(props, mandatory, immediate)) {
+      appendToBatch(content, exchange, routingKey, props)
+    } else {
+      publishNow(content, exchange, routingKey, props, mandatory, immediate)
+    }
+  }
+
+  /** Messages are dropped silently when not connected, failures are logged */
+  private def publishNow(content: Any, exchange: String, routingKey: String, props: AMQP.BasicProperties, mandatory: Boolean, immediate: Boolean) {
+    if (channel.isDefined) {
+      try {
+        publishOrFail(content, exchange, routingKey, props, mandatory, immediate)
+      } catch {
+        case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex)
       }
+    }
+  }
 
-      val headers = Option(props.getHeaders) getOrElse new java.util.HashMap[String, AnyRef](1)
+  /**
+   * Publishes at once without batching, and throws instead of logging when it's
+   * not connected or publishing fails, for callers that should know it, such as
+   * RpcClient, which fails the request.
+   */
+  @throws(classOf[IOException])
+  protected def publishOrFail(content: Any, exchange: String, routingKey: String, props: AMQP.BasicProperties, 
+                              mandatory: Boolean = false, immediate: Boolean = false
+  ) {
+    val _ch = channel getOrElse {
+      throw new IOException("Not connected to AMQP at " + factory.getHost + ":" + factory.getPort)
+    }
+    
+    val contentType = contentTypeOf(props)
 
-      try {
-        import ContentType._
-        val encodedBody = contentType.mimeType match {
-          case JSON.mimeType =>
-            content match {
-              case msg: Msg[_] => headers.put(TAG, msg.tag.asInstanceOf[AnyRef])
-              case _ => // todo
-            }
-            Serializer.encodeJson(content)
-          case AVRO.mimeType =>
-            content match {
-              case msg: Msg[_] => headers.put(TAG, msg.tag.asInstanceOf[AnyRef])
-              case _ => // todo
-            }
-            Serializer.encodeAvro(content)
+    val headers = Option(props.getHeaders) getOrElse new java.util.HashMap[String, AnyRef](1)
 
-          case JAVA_SERIALIZED_OBJECT.mimeType => Serializer.encodeJava(content)
-          case OCTET_STREAM.mimeType => content.asInstanceOf[Array[Byte]]
-          case _ => content.asInstanceOf[Array[Byte]]
+    import ContentType._
+    contentType.mimeType match {
+      case JSON.mimeType | AVRO.mimeType =>
+        content match {
+          case msg: Msg[_] => headers.put(TAG, msg.tag.asInstanceOf[AnyRef])
+          case _ => // todo
         }
+      case _ =>
+    }
+        
+    // avro is encoded into a per thread buffer and compressed from there
+    val encodedBody = Codec.encode(content, contentType)
 
-        val contentEncoding = props.getContentEncoding match {
-          case null | "" => GZIP
-          case x => x
-        }
+    val contentEncoding = Codec.encodingOf(contentEncodingOf(props), encodedBody.remaining)
+
+    val body = Codec.compress(contentEncoding, encodedBody, contentType.mimeType)
+
+    val outProps = props.builder.contentType(contentType.mimeType).contentEncoding(contentEncoding).headers(headers).build
+
+    send(_ch, exchange, routingKey, mandatory, immediate, outProps, body)
+    log.fine(content + " sent: routingKey=" + routingKey + " size=" + body.length)
+  }
+  
+  private def contentTypeOf(props: AMQP.BasicProperties): ContentType = props.getContentType match {
+    case null | "" => DEFAULT_CONTENT_TYPE
+    case x => ContentType(x)
+  }
 
-        val body = contentEncoding match {
-          case GZIP => Serializer.gzip(encodedBody)
-          case LZMA => Serializer.lzma(encodedBody)
-          case _ => encodedBody
+  private def contentEncodingOf(props: AMQP.BasicProperties): String = props.getContentEncoding match {
+    case null | "" => GZIP
+    case x => x
+  }
+  
+  /**
+   * The batch is sent with props of its own, so messages that carry headers or 
+   * any other property would lose them, they are sent alone.
+   */
+  private def isBatchable(props: AMQP.BasicProperties, mandatory: Boolean, immediate: Boolean) = {
+    !mandatory && !immediate && 
+    (props.getHeaders == null || props.getHeaders.isEmpty) &&
+    props.getDeliveryMode == null && props.getPriority == null && props.getExpiration == null &&
+    props.getReplyTo == null && props.getCorrelationId == null && props.getMessageId == null &&
+    props.getTimestamp == null && props.getType == null && props.getUserId == null && 
+    props.getAppId == null && props.getClusterId == null
+  }
+  
+  private def appendToBatch(content: Any, exchange: String, routingKey: String, props: AMQP.BasicProperties) {
+    val contentType = contentTypeOf(props)
+    val key = BatchKey(exchange, routingKey, contentType, contentEncodingOf(props))
+    try {
+      val encodedBody = Codec.encode(content, contentType)
+      val full = batches synchronized {
+        var frames = batches.get(key)
+        if (frames == null) {
+          frames = new BatchFrames(math.min(AMQPDispatcher.batchMaxBytes, 64 * 1024) + 1024)
+          frames.firstTime = System.nanoTime
+          batches.put(key, frames)
+          scheduleFlush(key, frames)
+        }
+        frames.append(BatchFrames.tagOf(content), encodedBody)
+        if (frames.size >= AMQPDispatcher.batchMaxBytes || frames.count >= AMQPDispatcher.batchMaxMessages) {
+          batches.remove(key)
+          frames
+        } else null
+      }
+      
+      if (full != null) {
+        flushBatch(key, full)
+      }
+    } catch {
+      case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex)
+    }
+  }
+  
+  private def scheduleFlush(key: BatchKey, frames: BatchFrames) {
+    AMQPDispatcher.flusher.schedule(new Runnable {
+        def run {
+          val expired = batches synchronized {
+            if (batches.get(key) eq frames) {
+              batches.remove(key)
+              true
+            } else false // has been flushed as full
+          }
+          if (expired) flushBatch(key, frames)
         }
+      }, AMQPDispatcher.batchWindow, TimeUnit.MILLISECONDS)
+  }
+  
+  private def flushBatch(key: BatchKey, frames: BatchFrames) {
+    channel foreach {_ch =>
+      try {
+        val headers = new java.util.HashMap[String, AnyRef](1)
+        headers.put(BATCH, frames.count.asInstanceOf[AnyRef])
 
-        val outProps = props.builder.contentType(contentType.mimeType).contentEncoding(contentEncoding).headers(headers).build
+        val contentEncoding = Codec.encodingOf(key.contentEncoding, frames.size)
+        val body = Codec.compress(contentEncoding, frames.toByteBuffer, key.contentType.mimeType)
+        val outProps = new AMQP.BasicProperties.Builder().contentType(key.contentType.mimeType).contentEncoding(contentEncoding).headers(headers).build
 
-        _ch.basicPublish(exchange, routingKey, mandatory, immediate, outProps, body)
-        log.fine(content + " sent: routingKey=" + routingKey + " size=" + body.length)
+        send(_ch, key.exchange, key.routingKey, false, false, outProps, body)
+        log.fine("Batch of " + frames.count + " sent: routingKey=" + key.routingKey + " size=" + body.length + 
+                 " waited=" + (System.nanoTime - frames.firstTime) / 1000 + "us")
       } catch {
         case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex)
       }
     }
   }
 
+  /**
+   * When confirms are enabled, the message is kept until it's confirmed, instead 
+   * of waiting for each confirm. When there are maxUnconfirmed ones in flight, 
+   * publishing blocks until some are confirmed, and fails by IOException if none 
+   * is confirmed in confirmTimeout ms. Every publishing is under the channel's 
+   * lock, so the seqNo that a message is tracked by is the one it's published with.
+   * 
+   * @Note Don't publish from the channel's delivery thread with confirms enabled, 
+   *       the confirms that release permits come from the same thread.
+   */
+  @throws(classOf[IOException])
+  private def send(ch: Channel, exchange: String, routingKey: String, mandatory: Boolean, immediate: Boolean, props: AMQP.BasicProperties, body: Array[Byte]) {
+    if (AMQPDispatcher.isConfirmEnabled) {
+      acquireUnconfirmedPermit
+      ch synchronized {
+        val seqNo = ch.getNextPublishSeqNo
+        unconfirmed.put(seqNo, Unconfirmed(exchange, routingKey, mandatory, immediate, props, body))
+        try {
+          ch.basicPublish(exchange, routingKey, mandatory, immediate, props, body)
+        } catch {
+          case ex: Throwable =>
+            // not published, won't be confirmed
+            if (unconfirmed.remove(seqNo) ne null) unconfirmedPermits.release
+            throw ex
+        }
+      }
+    } else {
+      ch synchronized {
+        ch.basicPublish(exchange, routingKey, mandatory, immediate, props, body)
+      }
+    }
+  }
+
+  @throws(classOf[IOException])
+  private def acquireUnconfirmedPermit {
+    if (!unconfirmedPermits.tryAcquire) {
+      _confirmBlocked.incrementAndGet
+      val t0 = System.nanoTime
+      val isAcquired = try {
+        unconfirmedPermits.tryAcquire(AMQPDispatcher.confirmTimeout, TimeUnit.MILLISECONDS)
+      } catch {
+        case ex: InterruptedException => 
+          Thread.currentThread.interrupt
+          false
+      }
+      _confirmBlockedNanos.addAndGet(System.nanoTime - t0)
+      if (!isAcquired) {
+        _confirmTimeouts.incrementAndGet
+        throw new IOException("No confirm of " + unconfirmed.size + " unconfirmed messages in " + AMQPDispatcher.confirmTimeout + "ms, " + confirmMetrics)
+      }
+    }
+  }
+
+  def confirmMetrics: String = {
+    "unconfirmed=" + unconfirmed.size + ", confirmBlocked=" + confirmBlocked + 
+    ", confirmBlockedTime=" + confirmBlockedNanos / 1000000 + "ms, confirmTimeouts=" + confirmTimeouts
+  }
+  
+  private def removeConfirmed(seqNo: Long, multiple: Boolean): List[Unconfirmed] = {
+    var removed: List[Unconfirmed] = Nil
+    if (multiple) {
+      val confirmed = unconfirmed.headMap(seqNo, true)
+      val itr = confirmed.values.iterator
+      while (itr.hasNext) {
+        removed ::= itr.next
+        itr.remove
+      }
+    } else {
+      val x = unconfirmed.remove(seqNo)
+      if (x != null) removed ::= x
+    }
+    unconfirmedPermits.release(removed.size)
+    removed.reverse
+  }
+  
+  /** republish in flusher thread, since we may be called in connection's main loop */
+  private def republish(xs: List[Unconfirmed]) {
+    if (xs.isEmpty) return
+    
+    AMQPDispatcher.flusher.execute(new Runnable {
+        def run {
+          channel foreach {_ch =>
+            xs foreach {x =>
+              try {
+                send(_ch, x.exchange, x.routingKey, x.mandatory, x.immediate, x.props, x.body)
+              } catch {
+                case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex)
+              }
+            }
+          }
+        }
+      })
+  }
+
   protected def deleteQueue(queue: String) {
     channel foreach {_ch =>
       try {
@@ -336,12 +648,20 @@ abstract class AMQPDispatcher(factory: ConnectionFactory, val exchange: String)
     }
   }
 
-  class AMQPConsumer(channel: Channel, val isAutoAck: Boolean) extends DefaultConsumer(channel) {
+  /**
+   * @param ackBatchSize if > 1 and not isAutoAck, deliveries are acked by multiple
+   *        every ackBatchSize deliveries, or ackWindow ms after the first unacked 
+   *        one, the prefetch count of channel should be >= ackBatchSize
+   */
+  class AMQPConsumer(channel: Channel, val isAutoAck: Boolean, ackBatchSize: Int = 1) extends DefaultConsumer(channel) {
     private val log = Logger.getLogger(this.getClass.getName)
 
     // When this is non-null the queue is in shutdown mode and nextDelivery should
     // throw a shutdown signal exception.
     @volatile private var _shutdown: ShutdownSignalException = _
+    
+    private var unacked = 0
+    private var lastUnackedTag = 0L
 
     override def handleShutdownSignal(consumerTag: String, sig: ShutdownSignalException ) {
       _shutdown = sig
@@ -349,14 +669,42 @@ abstract class AMQPDispatcher(factory: ConnectionFactory, val exchange: String)
 
     def handleAck(_isAutoAck: Boolean, _channel: Channel, _envelope: Envelope) {
       if (!_isAutoAck) {
-        try {
-          // Params:
-          //   deliveryTag - the tag from the received AMQP.Basic.GetOk or AMQP.Basic.Deliver
-          //   multiple - true  to acknowledge all messages up to and including the supplied delivery tag;
-          //              false to acknowledge just the supplied delivery tag.
-          _channel.basicAck(_envelope.getDeliveryTag, false)
-        } catch {
-          case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex)
+        if (ackBatchSize > 1) {
+          val (isFirst, isFull) = synchronized {
+            unacked += 1
+            lastUnackedTag = _envelope.getDeliveryTag
+            (unacked == 1, unacked >= ackBatchSize)
+          }
+          if (isFull) {
+            flushAcks(_channel)
+          } else if (isFirst) {
+            AMQPDispatcher.flusher.schedule(new Runnable {
+                def run {flushAcks(_channel)}
+              }, AMQPDispatcher.ackWindow, TimeUnit.MILLISECONDS)
+          }
+        } else {
+          try {
+            // Params:
+            //   deliveryTag - the tag from the received AMQP.Basic.GetOk or AMQP.Basic.Deliver
+            //   multiple - true  to acknowledge all messages up to and including the supplied delivery tag;
+            //              false to acknowledge just the supplied delivery tag.
+            _channel.basicAck(_envelope.getDeliveryTag, false)
+          } catch {
+            case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex)
+          }
+        }
+      }
+    }
+    
+    private def flushAcks(_channel: Channel) {
+      synchronized {
+        if (unacked > 0) {
+          try {
+            _channel.basicAck(lastUnackedTag, true)
+          } catch {
+            case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex)
+          }
+          unacked = 0
         }
       }
     }
@@ -370,12 +718,20 @@ abstract class AMQPDispatcher(factory: ConnectionFactory, val exchange: String)
 
       log.fine("Got amqp message: " + (body.length / 1024.0) + "k" )
 
-      val unzippedBody = props.getContentEncoding match {
-        case GZIP => Serializer.ungzip(body)
-        case LZMA => Serializer.unlzma(body)
-        case _ => body
+      decodeStage match {
+        case Some(stage) => 
+          try {
+            stage.submit(envelope.getRoutingKey, () => decodeAndForward(envelope, props, body))
+          } catch {
+            case ex: RejectedExecutionException => 
+              // delivered (and may have been acked) during closing, don't drop it
+              decodeAndForward(envelope, props, body)
+          }
+        case None => decodeAndForward(envelope, props, body)
       }
-
+    }
+    
+    private def decodeAndForward(envelope: Envelope, props: AMQP.BasicProperties, body: Array[Byte]) {
       val contentType = props.getContentType match {
         case null | "" =>  DEFAULT_CONTENT_TYPE
         case x => ContentType(x)
@@ -384,42 +740,68 @@ abstract class AMQPDispatcher(factory: ConnectionFactory, val exchange: String)
       val headers = Option(props.getHeaders) getOrElse java.util.Collections.emptyMap[String, AnyRef]
 
       try {
-        import ContentType._
-        val content = contentType.mimeType match {
-          case JSON.mimeType => headers.get(TAG) match {
-              case tag: java.lang.Integer =>
-                val value = Serializer.decodeJson(unzippedBody, tag.intValue)
-                Msg(tag.intValue, value)
-              case _ => null
+        val unzippedBody = Codec.decompress(props.getContentEncoding, body, contentType.mimeType)
+        
+        headers.get(BATCH) match {
+          case count: java.lang.Integer =>
+            val frames = BatchFrames.split(unzippedBody, count.intValue)
+            var i = -1
+            while ({i += 1; i < frames.length}) {
+              val (msgTag, offset, length) = frames(i)
+              val msgHeaders = new java.util.HashMap[String, AnyRef](headers)
+              msgHeaders.remove(BATCH)
+              msgHeaders.put(TAG, msgTag.asInstanceOf[AnyRef])
+              msgHeaders.put(BATCH_REMAINING, (frames.length - 1 - i).asInstanceOf[AnyRef])
+              forward(decode(contentType, unzippedBody, offset, length, msgHeaders), contentType, props, msgHeaders, envelope)
             }
-          case AVRO.mimeType => headers.get(TAG) match {
-              case tag: java.lang.Integer =>
-                val value = Serializer.decodeAvro(unzippedBody, tag.intValue)
-                Msg(tag.intValue, value)
-              case _ => null
-            }
-
-          case JAVA_SERIALIZED_OBJECT.mimeType => Serializer.decodeJava(unzippedBody)
-          case OCTET_STREAM.mimeType => unzippedBody
-          case _ => unzippedBody
-        }
-
-        val fwProps = props.builder.contentType(contentType.mimeType).headers(headers).build
-
-        // forward to interested observers for further relay
-        if (useActor){
-//          for(l <- listeners if l != this) log.info(l + ",  state=" + l.getState)
-          publish(AMQPMessage(content, fwProps, envelope))
+          case _ =>
+            forward(decode(contentType, unzippedBody, 0, unzippedBody.length, headers), contentType, props, headers, envelope)
         }
-        else process(content, fwProps, envelope)
-
-        log.fine("Forward amqp message: " + content)
       } catch {
         // should catch it when old version classes were sent by old version of clients.
         case ex: InvalidClassException => log.log(Level.WARNING, ex.getMessage, ex)
         case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex)
       }
     }
+    
+    private def decode(contentType: ContentType, body: Array[Byte], offset: Int, length: Int, headers: java.util.Map[String, AnyRef]): Any = {
+      import ContentType._
+      contentType.mimeType match {
+        case JSON.mimeType => headers.get(TAG) match {
+            case tag: java.lang.Integer =>
+              val value = Serializer.decodeJson(slice(body, offset, length), tag.intValue)
+              Msg(tag.intValue, value)
+            case _ => null
+          }
+        case AVRO.mimeType => headers.get(TAG) match {
+            case tag: java.lang.Integer =>
+              val value = Serializer.decodeAvro(body, offset, length, tag.intValue)
+              Msg(tag.intValue, value)
+            case _ => null
+          }
+
+        case JAVA_SERIALIZED_OBJECT.mimeType => Serializer.decodeJava(slice(body, offset, length))
+        case OCTET_STREAM.mimeType => slice(body, offset, length)
+        case _ => slice(body, offset, length)
+      }
+    }
+    
+    private def slice(body: Array[Byte], offset: Int, length: Int): Array[Byte] = {
+      if (offset == 0 && length == body.length) body else java.util.Arrays.copyOfRange(body, offset, offset + length)
+    }
+    
+    private def forward(content: Any, contentType: ContentType, props: AMQP.BasicProperties, headers: java.util.Map[String, AnyRef], envelope: Envelope) {
+      val fwProps = props.builder.contentType(contentType.mimeType).headers(headers).build
+
+      // forward to interested observers for further relay
+      if (useActor){
+//        for(l <- listeners if l != this) log.info(l + ",  state=" + l.getState)
+        publish(AMQPMessage(content, fwProps, envelope))
+      }
+      else process(content, fwProps, envelope)
+
+      log.fine("Forward amqp message: " + content)
+    }
   }
 
   protected def useActor = true
@@ -99,6 +99,8 @@ object AMQPRelay {
   }
 
   def stop = {
+    consumer.close()
+    publisher.close()
     consumer.stop
     publisher.stop
     isInitialized = false
@@ -172,9 +174,11 @@ class RelayPublisher(factory: ConnectionFactory, exchange: String, queue: String
       
       //Publish the msg to the slave AMQP
       publish(msg.body, exchange, bindingKey, msg.props)
-      //Then acknowledge the delivery to master AMQP
+      //Then acknowledge the delivery to master AMQP, once per delivery even if it's a batch
       log.fine(msg.envelope.getDeliveryTag + " relayed")
-      publish(AMQPAcknowledge(msg.envelope.getDeliveryTag))
+      if (AMQPDispatcher.isLastOfDelivery(msg.props)) {
+        publish(AMQPAcknowledge(msg.envelope.getDeliveryTag))
+      }
 
       val duration = System.currentTimeMillis - now
       if(duration > 5) log.warning("Publish " + msg.envelope.getDeliveryTag + " to slave costs " + duration)
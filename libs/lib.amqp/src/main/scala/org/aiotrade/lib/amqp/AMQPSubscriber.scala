@@ -94,7 +94,7 @@ class AMQPSubscriber(factory: ConnectionFactory, exchange: String, isAutoAck: Bo
   }
 
   override protected def configure(channel: Channel): Option[Consumer] = {
-    Some(new AMQPConsumer(channel, isAutoAck))
+    Some(new AMQPConsumer(channel, isAutoAck, AMQPDispatcher.ackBatchSize))
   }
 
   /**
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2006-2011, AIOTrade Computing Co. and Contributors
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *    
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *    
+ *  o Neither the name of AIOTrade Computing Co. nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.aiotrade.lib.amqp
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import org.aiotrade.lib.avro.Evt
+import org.apache.avro.io.BinaryData
+
+/**
+ * Framing of batched messages in one amqp body, which is compressed as a whole:
+ * 
+ *   [tag: zigzag varint][length: varint][encoded message] ...
+ * 
+ * All messages of a batch have the same content type, the number of messages is
+ * put in header BATCH.
+ * 
+ * @author Caoyuan Deng
+ */
+final class BatchFrames(initialCapacity: Int) {
+  private var buf = new Array[Byte](initialCapacity)
+  private var _size = 0
+  private var _count = 0
+  
+  /** nanoTime when the first frame was appended */
+  var firstTime = 0L
+  
+  def size = _size
+  def count = _count
+  def bytes = buf
+  
+  def append(tag: Int, msg: ByteBuffer) {
+    val length = msg.remaining
+    ensureCapacity(_size + 10 + length)
+    _size += BinaryData.encodeInt(tag, buf, _size)
+    _size += BinaryData.encodeInt(length, buf, _size)
+    msg.get(buf, _size, length)
+    _size += length
+    _count += 1
+  }
+  
+  def toByteBuffer = ByteBuffer.wrap(buf, 0, _size)
+  
+  private def ensureCapacity(capacity: Int) {
+    if (capacity > buf.length) {
+      buf = java.util.Arrays.copyOf(buf, math.max(capacity, buf.length * 2))
+    }
+  }
+}
+
+object BatchFrames {
+  
+  /**
+   * @return (tag, offset, length) of each framed message
+   */
+  @throws(classOf[IOException])
+  def split(body: Array[Byte], count: Int): Array[(Int, Int, Int)] = {
+    val frames = new Array[(Int, Int, Int)](count)
+    var pos = 0
+    var i = -1
+    while ({i += 1; i < count}) {
+      var n = readVarint(body, pos)
+      val tag = n._1
+      pos = n._2
+      n = readVarint(body, pos)
+      val length = n._1
+      pos = n._2
+      if (length < 0 || pos + length > body.length) {
+        throw new IOException("Corrupt batch frame " + i + " of " + count)
+      }
+      frames(i) = (tag, pos, length)
+      pos += length
+    }
+    frames
+  }
+  
+  def tagOf(content: Any): Int = content match {
+    case org.aiotrade.lib.avro.Msg(tag, _) => tag
+    case _ => Evt.NO_TAG
+  }
+  
+  /** @see org.apache.avro.io.BinaryDecoder#readInt, returns (value, nextPos) */
+  @throws(classOf[IOException])
+  private def readVarint(bytes: Array[Byte], pos: Int): (Int, Int) = {
+    var n = 0
+    var shift = 0
+    var i = pos
+    while (shift < 32) {
+      if (i >= bytes.length) throw new IOException("Unexpected end of batch")
+      val b = bytes(i) & 0xff
+      i += 1
+      n |= (b & 0x7F) << shift
+      if ((b & 0x80) == 0) {
+        return ((n >>> 1) ^ -(n & 1), i)
+      }
+      shift += 7
+    }
+    throw new IOException("Invalid int encoding")
+  }
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright (c) 2006-2011, AIOTrade Computing Co. and Contributors
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *    
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *    
+ *  o Neither the name of AIOTrade Computing Co. nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.aiotrade.lib.amqp
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.CRC32
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+import java.util.zip.ZipException
+
+/**
+ * Compression codecs of amqp bodies.
+ * 
+ * Deflater/Inflater, LZMA encoder/decoder and the scratch buffers are kept per 
+ * thread and reused, the input is compressed from the array slice it's encoded 
+ * into, and the result is copied once to an exactly sized array. GZIP bodies are
+ * framed as RFC 1952 (same as GZIPOutputStream), and the decompressed size is 
+ * known from the trailer, so ungzip inflates straight into the result array.
+ * 
+ * Bodies smaller than threshold are sent as IDENTITY, which older receivers 
+ * also take as uncompressed.
+ * 
+ * @author Caoyuan Deng
+ */
+object Codec {
+  private val config = org.aiotrade.lib.util.config.Config()
+
+  /** bodies of less bytes than this won't be compressed */
+  val threshold = config.getInt("amqp.compress.threshold", 256)
+  val gzipLevel = config.getInt("amqp.compress.gziplevel", Deflater.DEFAULT_COMPRESSION)
+  
+  /** max size of per thread scratch buffers that will be kept for reusing */
+  private val MAX_REUSED_BUFFER_SIZE = 4 * 1024 * 1024
+  
+  private val GZIP_MAGIC = 0x8b1f
+  private val GZIP_HEADER = Array[Byte](0x1f.toByte, 0x8b.toByte, Deflater.DEFLATED.toByte, 0, 0, 0, 0, 0, 0, 0)
+  private val GZIP_TRAILER_SIZE = 8
+  /** isize comes from the input, do not trust it for pre-allocating more than this */
+  private val MAX_GZIP_PREALLOC_SIZE = 1024 * 1024
+  private val FHCRC    = 2
+  private val FEXTRA   = 4
+  private val FNAME    = 8
+  private val FCOMMENT = 16
+  
+  private final class ReusableByteArrayOutputStream extends ByteArrayOutputStream(4096) {
+    def capacity = buf.length
+  }
+
+  private final class Coders {
+    lazy val deflater = new Deflater(gzipLevel, true)
+    lazy val inflater = new Inflater(true)
+    val crc = new CRC32
+    
+    lazy val lzmaEncoder = {
+      val encoder = new SevenZip.Compression.LZMA.Encoder
+      encoder.SetEndMarkerMode(true)     // must set true
+      encoder.SetDictionarySize(1 << 20) // 1048576
+      encoder
+    }
+    lazy val lzmaDecoder = {
+      val decoder = new SevenZip.Compression.LZMA.Decoder
+      decoder.SetDecoderProperties(Serializer.lzmaProps)
+      decoder
+    }
+    
+    private var _out = new ReusableByteArrayOutputStream
+    def out = {
+      if (_out.capacity > MAX_REUSED_BUFFER_SIZE) {
+        _out = new ReusableByteArrayOutputStream
+      } else {
+        _out.reset
+      }
+      _out
+    }
+    
+    private var _scratch = new Array[Byte](4096)
+    def scratch(size: Int) = {
+      if (_scratch.length < size || _scratch.length > MAX_REUSED_BUFFER_SIZE && size <= MAX_REUSED_BUFFER_SIZE) {
+        _scratch = new Array[Byte](size)
+      }
+      _scratch
+    }
+    
+    private var _encodeBuf = ByteBuffer.allocate(4096)
+    def encodeBuf = {
+      if (_encodeBuf.capacity > MAX_REUSED_BUFFER_SIZE) {
+        _encodeBuf = ByteBuffer.allocate(4096)
+      }
+      _encodeBuf.clear
+      _encodeBuf
+    }
+    def growEncodeBuf = {
+      _encodeBuf = ByteBuffer.allocate(_encodeBuf.capacity * 2)
+      _encodeBuf
+    }
+  }
+  
+  private val coders = new ThreadLocal[Coders] {
+    override 
+    protected def initialValue = new Coders
+  }
+  
+  // --- metrics
+  
+  final class Stats(val contentType: String) {
+    val messages = new AtomicLong
+    val rawBytes = new AtomicLong
+    val compressedBytes = new AtomicLong
+    val compressNanos = new AtomicLong
+    val uncompressed = new AtomicLong
+    val decompressed = new AtomicLong
+    val decompressNanos = new AtomicLong
+    
+    /** compressed / raw, of the compressed messages */
+    def ratio: Double = if (rawBytes.get == 0) 1.0 else compressedBytes.get.toDouble / rawBytes.get
+    
+    override 
+    def toString = {
+      contentType + ": messages=" + messages.get + ", uncompressed=" + uncompressed.get + ", ratio=" + "%.3f".format(ratio) + 
+      ", compress=" + (if (messages.get - uncompressed.get > 0) compressNanos.get / 1000 / (messages.get - uncompressed.get) else 0) + "us/msg" +
+      ", decompress=" + (if (decompressed.get > 0) decompressNanos.get / 1000 / decompressed.get else 0) + "us/msg"
+    }
+  }
+  
+  private val typeToStats = new ConcurrentHashMap[String, Stats]()
+  
+  def statsOf(contentType: String): Stats = {
+    val stats = typeToStats.get(contentType)
+    if (stats != null) {
+      stats
+    } else {
+      val newStats = new Stats(contentType)
+      val existed = typeToStats.putIfAbsent(contentType, newStats)
+      if (existed != null) existed else newStats
+    }
+  }
+  
+  def metrics: String = {
+    val sb = new StringBuilder
+    val itr = typeToStats.values.iterator
+    while (itr.hasNext) {
+      if (sb.length > 0) sb.append("; ")
+      sb.append(itr.next)
+    }
+    sb.toString
+  }
+  
+  // --- encoding
+  
+  /**
+   * Encode content of contentType into a per thread buffer, avro messages are 
+   * written straight into the buffer.
+   * @return the buffer that is flipped, i.e. content is in [position, limit)
+   */
+  def encode(content: Any, contentType: ContentType): ByteBuffer = {
+    import ContentType._
+    contentType.mimeType match {
+      case AVRO.mimeType =>
+        val cs = coders.get
+        var buf = cs.encodeBuf
+        var done = false
+        while (!done) {
+          try {
+            Serializer.encodeAvroTo(content, buf)
+            done = true
+          } catch {
+            case ex: java.nio.BufferOverflowException => buf = cs.growEncodeBuf
+          }
+        }
+        buf.flip
+        buf
+      case JSON.mimeType => ByteBuffer.wrap(Serializer.encodeJson(content))
+      case JAVA_SERIALIZED_OBJECT.mimeType => ByteBuffer.wrap(Serializer.encodeJava(content))
+      case _ => ByteBuffer.wrap(content.asInstanceOf[Array[Byte]])
+    }
+  }
+  
+  /**
+   * @return the actual content encoding, which is IDENTITY if the body is less 
+   *         than threshold.
+   */
+  def encodingOf(contentEncoding: String, size: Int): String = {
+    if (size < threshold) IDENTITY else contentEncoding
+  }
+  
+  /**
+   * Compress body [buf.position, buf.limit) by contentEncoding
+   */
+  @throws(classOf[IOException])
+  def compress(contentEncoding: String, buf: ByteBuffer, contentType: String): Array[Byte] = {
+    val bytes = buf.array
+    val offset = buf.arrayOffset + buf.position
+    val length = buf.remaining
+    
+    val stats = statsOf(contentType)
+    stats.messages.incrementAndGet
+    
+    contentEncoding match {
+      case GZIP | LZMA =>
+        val t0 = System.nanoTime
+        val body = if (contentEncoding == GZIP) gzip(bytes, offset, length) else lzma(bytes, offset, length)
+        stats.compressNanos.addAndGet(System.nanoTime - t0)
+        stats.rawBytes.addAndGet(length)
+        stats.compressedBytes.addAndGet(body.length)
+        body
+      case _ =>
+        stats.uncompressed.incrementAndGet
+        if (offset == 0 && length == bytes.length) bytes else java.util.Arrays.copyOfRange(bytes, offset, offset + length)
+    }
+  }
+
+  @throws(classOf[IOException])
+  def decompress(contentEncoding: String, body: Array[Byte], contentType: String): Array[Byte] = {
+    contentEncoding match {
+      case GZIP | LZMA =>
+        val stats = statsOf(contentType)
+        val t0 = System.nanoTime
+        val unzipped = if (contentEncoding == GZIP) ungzip(body) else unlzma(body)
+        stats.decompressNanos.addAndGet(System.nanoTime - t0)
+        stats.decompressed.incrementAndGet
+        unzipped
+      case _ => body
+    }
+  }
+  
+  // --- gzip
+  
+  @throws(classOf[IOException])
+  def gzip(input: Array[Byte], offset: Int, length: Int): Array[Byte] = {
+    val cs = coders.get
+    val deflater = cs.deflater
+    val crc = cs.crc
+    
+    // zlib's compressBound plus gzip header and trailer
+    var out = cs.scratch(length + (length >> 12) + (length >> 14) + (length >> 25) + 13 + GZIP_HEADER.length + GZIP_TRAILER_SIZE)
+    System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length)
+    var pos = GZIP_HEADER.length
+    
+    deflater.reset
+    deflater.setInput(input, offset, length)
+    deflater.finish
+    while (!deflater.finished) {
+      if (pos >= out.length - GZIP_TRAILER_SIZE) {
+        out = java.util.Arrays.copyOf(out, out.length * 2)
+      }
+      pos += deflater.deflate(out, pos, out.length - GZIP_TRAILER_SIZE - pos)
+    }
+    
+    crc.reset
+    crc.update(input, offset, length)
+    writeIntLE(out, pos, crc.getValue.toInt)
+    writeIntLE(out, pos + 4, length)
+    pos += GZIP_TRAILER_SIZE
+    
+    java.util.Arrays.copyOf(out, pos)
+  }
+  
+  /**
+   * Concatenated members (as gzip(1) may produce) are decompressed into one body,
+   * anything else after a member is rejected.
+   */
+  @throws(classOf[IOException])
+  def ungzip(input: Array[Byte]): Array[Byte] = {
+    val cs = coders.get
+    val inflater = cs.inflater
+    val crc = cs.crc
+    
+    // isize is the size modulo 2^32, it's the exact size for bodies we send, but
+    // a corrupt or hostile trailer may claim anything, so cap it and grow as needed
+    val isizeHint = if (input.length >= GZIP_TRAILER_SIZE) readIntLE(input, input.length - 4) else 0
+    var out = new Array[Byte](if (isizeHint > 0) math.min(isizeHint, MAX_GZIP_PREALLOC_SIZE) else 1024)
+    var len = 0
+    var pos = 0
+    do {
+      pos = readGzipHeader(input, pos)
+      
+      inflater.reset
+      inflater.setInput(input, pos, input.length - pos)
+      val memberStart = len
+      while (!inflater.finished) {
+        if (len == out.length) {
+          if (out.length == Int.MaxValue) {
+            throw new ZipException("GZIP body is too large")
+          }
+          out = java.util.Arrays.copyOf(out, math.min(out.length.toLong * 2, Int.MaxValue).toInt)
+        }
+        val n = try {
+          inflater.inflate(out, len, out.length - len)
+        } catch {
+          case ex: DataFormatException => throw new ZipException("Invalid GZIP body: " + ex.getMessage)
+        }
+        if (n == 0 && (inflater.needsInput || inflater.needsDictionary)) {
+          throw new ZipException("Unexpected end of GZIP body")
+        }
+        len += n
+      }
+      
+      pos = input.length - inflater.getRemaining
+      if (pos + GZIP_TRAILER_SIZE > input.length) {
+        throw new ZipException("Truncated GZIP trailer")
+      }
+      crc.reset
+      crc.update(out, memberStart, len - memberStart)
+      if (crc.getValue.toInt != readIntLE(input, pos) || len - memberStart != readIntLE(input, pos + 4)) {
+        throw new ZipException("Corrupt GZIP trailer")
+      }
+      pos += GZIP_TRAILER_SIZE
+    } while (pos < input.length)
+    
+    if (len == out.length) out else java.util.Arrays.copyOf(out, len)
+  }
+  
+  /**
+   * @return position of the deflated data of member that starts at start
+   */
+  @throws(classOf[IOException])
+  private def readGzipHeader(input: Array[Byte], start: Int): Int = {
+    if (input.length - start < GZIP_HEADER.length + GZIP_TRAILER_SIZE || readShortLE(input, start) != GZIP_MAGIC) {
+      throw new ZipException(if (start == 0) "Not in GZIP format" else "Trailing garbage after GZIP member")
+    }
+    if (input(start + 2) != Deflater.DEFLATED) {
+      throw new ZipException("Unsupported compression method")
+    }
+    
+    // the optional fields should leave room for the trailer at least
+    val end = input.length - GZIP_TRAILER_SIZE
+    val flags = input(start + 3) & 0xff
+    var pos = start + GZIP_HEADER.length
+    if ((flags & FEXTRA) == FEXTRA) {
+      if (pos + 2 > end) {
+        throw new ZipException("Truncated GZIP header")
+      }
+      pos += readShortLE(input, pos) + 2
+    }
+    if ((flags & FNAME) == FNAME) {
+      pos = skipZeroTerminated(input, pos, end)
+    }
+    if ((flags & FCOMMENT) == FCOMMENT) {
+      pos = skipZeroTerminated(input, pos, end)
+    }
+    if ((flags & FHCRC) == FHCRC) {
+      pos += 2
+    }
+    if (pos > end) {
+      throw new ZipException("Truncated GZIP header")
+    }
+    pos
+  }
+  
+  @throws(classOf[IOException])
+  private def skipZeroTerminated(input: Array[Byte], start: Int, end: Int): Int = {
+    var pos = start
+    while (pos < end && input(pos) != 0) pos += 1
+    if (pos >= end) {
+      throw new ZipException("Truncated GZIP header")
+    }
+    pos + 1
+  }
+  
+  // --- lzma
+  
+  @throws(classOf[IOException])
+  def lzma(input: Array[Byte], offset: Int, length: Int): Array[Byte] = {
+    val cs = coders.get
+    val in = new ByteArrayInputStream(input, offset, length)
+    val out = cs.out
+    cs.lzmaEncoder.Code(in, out, -1, -1, null)
+    out.toByteArray
+  }
+
+  @throws(classOf[IOException])
+  def unlzma(input: Array[Byte]): Array[Byte] = {
+    val cs = coders.get
+    val in = new ByteArrayInputStream(input)
+    val out = cs.out
+    cs.lzmaDecoder.Code(in, out, -1)
+    out.toByteArray
+  }
+  
+  private def readShortLE(bytes: Array[Byte], pos: Int): Int = {
+    (bytes(pos) & 0xff) | ((bytes(pos + 1) & 0xff) << 8)
+  }
+  
+  private def readIntLE(bytes: Array[Byte], pos: Int): Int = {
+    readShortLE(bytes, pos) | (readShortLE(bytes, pos + 2) << 16)
+  }
+  
+  private def writeIntLE(bytes: Array[Byte], pos: Int, v: Int) {
+    bytes(pos)     = v.toByte
+    bytes(pos + 1) = (v >> 8).toByte
+    bytes(pos + 2) = (v >> 16).toByte
+    bytes(pos + 3) = (v >> 24).toByte
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2006-2011, AIOTrade Computing Co. and Contributors
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *    
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *    
+ *  o Neither the name of AIOTrade Computing Co. nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.aiotrade.lib.amqp
+
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.logging.Level
+import java.util.logging.Logger
+import org.aiotrade.lib.util.LatencyHistogram
+
+/**
+ * A pool of decode workers, each one has its own bounded queue and thread. Tasks
+ * of the same key (routing key) always go to the same worker, so they are run in
+ * submitted order, while different keys are decoded in parallel.
+ * 
+ * When the queue of a worker is full, submit blocks the delivery thread, which
+ * will in turn hold the broker by prefetch count.
+ * 
+ * @author Caoyuan Deng
+ */
+class DecodeStage(val name: String, nWorkers: Int, queueSize: Int) {
+  private val log = Logger.getLogger(this.getClass.getName)
+  
+  private final class Task(val enqueueTime: Long, val job: () => Unit)
+  
+  private val queues = Array.fill(nWorkers)(new ArrayBlockingQueue[Task](queueSize))
+  @volatile private var isRunning = true
+  
+  private val _submitted = new AtomicLong
+  private val _blocked = new AtomicLong
+  @volatile private var _maxQueueDepth = 0
+  /** time from submitted to started, per worker, so recording is not contended */
+  val waitLatencies = Array.tabulate(nWorkers){i => new LatencyHistogram(name + "-" + i + " wait")}
+  /** time of decoding and forwarding, per worker */
+  val decodeLatencies = Array.tabulate(nWorkers){i => new LatencyHistogram(name + "-" + i + " decode")}
+  
+  def submitted = _submitted.get
+  /** number of submits that were blocked by a full queue */
+  def blocked = _blocked.get
+  def maxQueueDepth = _maxQueueDepth
+  def queueDepth: Int = {
+    var depth = 0
+    var i = -1
+    while ({i += 1; i < queues.length}) {
+      depth += queues(i).size
+    }
+    depth
+  }
+  
+  private val workers = Array.tabulate(nWorkers){i => 
+    val t = new Thread(new Runnable {def run = loop(queues(i), waitLatencies(i), decodeLatencies(i))}, name + "-decoder-" + i)
+    t.setDaemon(true)
+    t.start
+    t
+  }
+  
+  /**
+   * @throws RejectedExecutionException if it has been shutdown, the job is not run
+   */
+  @throws(classOf[RejectedExecutionException])
+  def submit(key: String, job: () => Unit) {
+    if (!isRunning) {
+      throw new RejectedExecutionException(name + " has been shutdown")
+    }
+    
+    val queue = queues(if (key == null) 0 else (key.hashCode & Int.MaxValue) % nWorkers)
+    val task = new Task(System.nanoTime, job)
+    if (!queue.offer(task)) {
+      _blocked.incrementAndGet
+      queue.put(task)
+    }
+    // shutdown during offering, the worker may have gone, take the task back if it's still there
+    if (!isRunning && queue.remove(task)) {
+      throw new RejectedExecutionException(name + " has been shutdown")
+    }
+    _submitted.incrementAndGet
+    
+    val depth = queue.size
+    if (depth > _maxQueueDepth) _maxQueueDepth = depth
+  }
+  
+  /** 
+   * Stop accepting tasks, and wait until the queued ones are done. If called in
+   * a worker, that worker is not waited for.
+   */
+  def shutdown() {
+    isRunning = false
+    val current = Thread.currentThread
+    try {
+      workers foreach {t => if (t ne current) t.join}
+    } catch {
+      case ex: InterruptedException =>
+        log.warning(name + " is interrupted in shutdown, " + queueDepth + " tasks are not done yet")
+        current.interrupt
+    }
+  }
+
+  def metrics: String = {
+    name + ": submitted=" + submitted + ", blocked=" + blocked + ", queueDepth=" + queueDepth + 
+    ", maxQueueDepth=" + maxQueueDepth + ", " + waitLatencies.mkString(", ") + ", " + decodeLatencies.mkString(", ")
+  }
+  
+  private def loop(queue: ArrayBlockingQueue[Task], waitLatencies: LatencyHistogram, decodeLatencies: LatencyHistogram) {
+    while (isRunning || !queue.isEmpty) {
+      try {
+        val task = queue.poll(100, TimeUnit.MILLISECONDS)
+        if (task != null) {
+          val t0 = System.nanoTime
+          waitLatencies.recordNanos(t0 - task.enqueueTime)
+          task.job()
+          decodeLatencies.recordNanos(System.nanoTime - t0)
+        }
+      } catch {
+        case ex: InterruptedException => 
+        case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex)
+      }
+    }
+  }
+}
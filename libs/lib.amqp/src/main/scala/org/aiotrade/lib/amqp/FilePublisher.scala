@@ -38,8 +38,20 @@ import com.rabbitmq.client.Consumer
 import java.io.File
 import java.io.FileInputStream
 import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.util.zip.CRC32
 
 object FilePublisher {
+  private val config = org.aiotrade.lib.util.config.Config()
+
+  /**
+   * If chunked, files larger than chunkSize are sent in chunks of it. Off by 
+   * default, since subscribers that don't know chunks would take each chunk as 
+   * a whole file.
+   */
+  val isChunked = config.getBool("amqp.file.chunked", false)
+  val chunkSize = config.getInt("amqp.file.chunksize", 1024 * 1024)
 
   // --- simple test
   def main(args: Array[String]) {
@@ -82,8 +94,17 @@ class FilePublisher(factory: ConnectionFactory, exchange: String, routingKey: St
     files foreach (sendFile(_))
   }
 
+  /**
+   * If FilePublisher.isChunked, files larger than FilePublisher.chunkSize are 
+   * sent in chunks, @see sendFileChunked
+   */
   @throws(classOf[IOException])
   def sendFile(file: File, toName: Option[String] = None) {
+    if (FilePublisher.isChunked && file.length > FilePublisher.chunkSize) {
+      sendFileChunked(file, toName.getOrElse(file.getName))
+      return
+    }
+
     val is = new FileInputStream(file)
     val length = file.length.toInt
     val body = new Array[Byte](length)
@@ -93,6 +114,51 @@ class FilePublisher(factory: ConnectionFactory, exchange: String, routingKey: St
     sendFile(body, toName.getOrElse(file.getName))
   }
 
+  /**
+   * Send file in chunks, so only one chunk is in memory whatever the file size is.
+   * Each chunk carries headers "offset" and "crc32" besides "filename" and "length", 
+   * FileSubscriber writes chunks at their offsets and verifies them.
+   * 
+   * @param fromOffset to resume a broken transfer from, which should be the 
+   *        length of the partly received file
+   */
+  @throws(classOf[IOException])
+  def sendFileChunked(file: File, toName: String, chunkSize: Int = FilePublisher.chunkSize, fromOffset: Long = 0) {
+    val raf = new RandomAccessFile(file, "r")
+    try {
+      val fileChannel = raf.getChannel
+      val size = fileChannel.size
+      val crc = new CRC32
+      var position = fromOffset
+      while (position < size) {
+        val length = math.min(chunkSize.toLong, size - position).toInt
+        // a new array for each chunk, since the body may be kept for republishing
+        val body = new Array[Byte](length)
+        val buf = ByteBuffer.wrap(body)
+        while (buf.hasRemaining) {
+          if (fileChannel.read(buf, position + buf.position) == -1) {
+            throw new IOException("Unexpected end of " + file + " at " + (position + buf.position))
+          }
+        }
+        crc.reset
+        crc.update(body)
+
+        val headers: java.util.Map[String, AnyRef] = new java.util.HashMap
+        headers.put("filename", toName)
+        headers.put("length", size.asInstanceOf[AnyRef])
+        headers.put("offset", position.asInstanceOf[AnyRef])
+        headers.put("crc32", crc.getValue.asInstanceOf[AnyRef])
+        val propsbd = new BasicProperties.Builder().headers(headers).contentType(ContentType.OCTET_STREAM.mimeType)
+        if (durable) propsbd.deliveryMode(2) // persistent
+        publish(body, exchange, routingKey, propsbd.build)
+
+        position += length
+      }
+    } finally {
+      raf.close
+    }
+  }
+
   def sendFile(body: Array[Byte], toName: String) {
     val headers: java.util.Map[String, AnyRef] = new java.util.HashMap
     headers.put("filename", toName)
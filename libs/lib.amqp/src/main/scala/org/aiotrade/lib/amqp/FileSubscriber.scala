@@ -33,7 +33,13 @@ package org.aiotrade.lib.amqp
 import com.rabbitmq.client.ConnectionFactory
 import java.io.File
 import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.util.logging.Level
 import java.util.logging.Logger
+import java.util.zip.CRC32
+import scala.collection.mutable
 
 object FileSubscriber {
 
@@ -80,12 +86,122 @@ class FileSubscriber(factory: ConnectionFactory, exchange: String, outputDirPath
     assert(outputDir.isDirectory, "outputDir should be director: " + outputDir)
   }
 
+  private val log = Logger.getLogger(this.getClass.getName)
+
+  /** A file that is being received in chunks */
+  private final class Receiving(val file: File, val writeTo: File, val size: Long) {
+    val raf = new RandomAccessFile(writeTo, "rw")
+    var received = raf.length
+  }
+
+  /** filename header -> Receiving */
+  private val receivings = mutable.HashMap[String, Receiving]()
+
+  private def isChunk(headers: java.util.Map[String, AnyRef]) = headers.containsKey("offset")
+
+  /**
+   * Write a chunk sent by FilePublisher.sendFileChunked at its offset. A transfer
+   * broken by restart is resumed when the next chunk's offset equals the length 
+   * of the partly received file.
+   * 
+   * @param safe if true, write to a temporary file, and rename it when done
+   * @return the file when all of its chunks are received
+   */
+  protected def receiveChunk(headers: java.util.Map[String, AnyRef], body: Array[Byte], safe: Boolean): Option[File] = receivings synchronized {
+    val name = headers.get("filename").toString
+    val size = headers.get("length").toString.toLong
+    val offset = headers.get("offset").toString.toLong
+    val expectedCrc = headers.get("crc32").toString.toLong
+    if (size < 0 || offset < 0 || offset + body.length > size) {
+      log.warning("Dropped chunk of " + name + " at " + offset + ", invalid for length " + size)
+      return None
+    }
+
+    val receiving = receivings.get(name) match {
+      case Some(x) if offset != 0 => x
+      case existed =>
+        existed foreach {x => x.raf.close} // restarted from 0
+        val resumable = if (offset == 0) None else {
+          val file = new File(outputDir, name)
+          val writeTo = if (safe) new File(outputDir, "." + name + ".tmp") else file
+          if (writeTo.exists && writeTo.length == offset) Some(new Receiving(file, writeTo, size)) else None
+        }
+        resumable orElse {
+          if (offset == 0) Some(newReceiving(name, size, safe)) else None
+        } match {
+          case Some(x) =>
+            receivings(name) = x
+            x
+          case None =>
+            log.warning("Dropped chunk of " + name + " at " + offset + ", the previous chunks are missing")
+            return None
+        }
+    }
+
+    if (offset != receiving.received) {
+      log.warning("Dropped chunk of " + name + " at " + offset + ", expected " + receiving.received)
+      return None
+    }
+
+    val crc = new CRC32
+    crc.update(body)
+    if (crc.getValue != expectedCrc) {
+      log.severe("Checksum failed at chunk " + offset + " of " + name + ", dropped the file")
+      receivings -= name
+      receiving.raf.close
+      receiving.writeTo.delete
+      return None
+    }
+
+    try {
+      val buf = ByteBuffer.wrap(body)
+      val channel = receiving.raf.getChannel
+      while (buf.hasRemaining) {
+        channel.write(buf, offset + buf.position)
+      }
+      receiving.received += body.length
+    } catch {
+      case ex: IOException =>
+        log.log(Level.SEVERE, ex.getMessage, ex)
+        receivings -= name
+        receiving.raf.close
+        return None
+    }
+
+    if (receiving.received >= receiving.size) {
+      receivings -= name
+      receiving.raf.close
+      if (receiving.writeTo != receiving.file) {
+        receiving.writeTo.renameTo(receiving.file)
+      }
+      Some(receiving.file)
+    } else None
+  }
+
+  private def newReceiving(name: String, size: Long, safe: Boolean): Receiving = {
+    var fileName = name
+    var outputFile = new File(outputDir, fileName)
+    var i = 1
+    while (outputFile.exists || safe && new File(outputDir, "." + fileName + ".tmp").exists) {
+      fileName = name + "_" + i
+      outputFile = new File(outputDir, fileName)
+      i += 1
+    }
+    val writeTo = if (safe) new File(outputDir, "." + fileName + ".tmp") else outputFile
+    new Receiving(outputFile, writeTo, size)
+  }
+
 
   class DefaultProcessor extends Processor {
     def process(msg: AMQPMessage) {
       val headers = msg.props.getHeaders
       val body = msg.body.asInstanceOf[Array[Byte]]
 
+      if (isChunk(headers)) {
+        receiveChunk(headers, body, false)
+        return
+      }
+
       var fileName = headers.get("filename").toString
       var outputFile = new File(outputDir, fileName)
       var i = 1
@@ -112,6 +228,11 @@ class FileSubscriber(factory: ConnectionFactory, exchange: String, outputDirPath
       val headers = msg.props.getHeaders
       val body = msg.body.asInstanceOf[Array[Byte]]
 
+      if (isChunk(headers)) {
+        receiveChunk(headers, body, true) foreach {file => log.info("Received " + file.getName)}
+        return
+      }
+
       var fileName = headers.get("filename").toString
       var outputFile = new File(outputDir, "." + fileName + ".tmp")
       var i = 1
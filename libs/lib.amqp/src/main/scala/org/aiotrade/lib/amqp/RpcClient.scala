@@ -38,8 +38,17 @@ import com.rabbitmq.client.Envelope
 import com.rabbitmq.client.ShutdownSignalException
 import java.io.EOFException
 import java.io.IOException
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicLong
 import org.aiotrade.lib.avro.Evt
-import scala.collection.mutable
+import scala.concurrent.Future
+import scala.concurrent.Promise
 import scala.concurrent.SyncVar
 import java.util.logging.Logger
 
@@ -48,6 +57,12 @@ import java.util.logging.Logger
  * The class is agnostic about the format of RPC arguments / return values.
  * It simply provides a mechanism for sending a message to an exchange with a given routing key,
  * and waiting for a response on a reply queue.
+ * 
+ * Requests are multiplexed on the channel: each request carries an unique 
+ * correlation id, and all replies come back to the same reply queue, where they
+ * are dispatched to the waiting continuations by correlation id, so any number 
+ * of requests may be in flight at the same time. Use futureRpc to issue requests
+ * without holding a thread per request.
  *
  * @param channel the channel to use for communication
  * @param exchange the exchange to connect to
@@ -60,12 +75,15 @@ class RpcClient($factory: ConnectionFactory, $reqExchange: String) extends AMQPD
 
   private val log = Logger.getLogger(getClass.getName)
 
-  var replyQueue: String = _ // The name of our private reply queue
+  @volatile var replyQueue: String = _ // The name of our private reply queue
 
-  /** Map from request correlation ID to continuation BlockingCell */
-  private val continuationMap = mutable.Map[String, SyncVar[Any]]()
+  /** 
+   * Map from request correlation ID to continuation. The continuation is removed
+   * by whoever completes it first: the reply, a timeout, a cancel or a shutdown.
+   */
+  private val continuations = new ConcurrentHashMap[String, RpcClient.Continuation]()
   /** Contains the most recently-used request correlation ID */
-  private var correlationId = 0L
+  private val correlationId = new AtomicLong
   /** Should hold strong ref for SyncVarSetterProcessor */
 //  private val processor = new SyncVarSetterProcessor
 
@@ -84,11 +102,8 @@ class RpcClient($factory: ConnectionFactory, $reqExchange: String) extends AMQPD
 
     val consumer = new AMQPConsumer(channel, true) {
       override def handleShutdownSignal(consumerTag: String, signal: ShutdownSignalException) {
-        continuationMap synchronized {
-          for ((_, syncVar) <- continuationMap) {
-            syncVar.set(signal.getMessage)
-          }
-        }
+        // the exclusive reply queue is gone with the connection, no reply will come back
+        failAll(new IOException(signal.getMessage, signal))
       }
     }
 
@@ -121,6 +136,9 @@ class RpcClient($factory: ConnectionFactory, $reqExchange: String) extends AMQPD
     if (consumer.isEmpty) throw new EOFException("Consumer of rpcClient is closed")
   }
 
+  /** number of requests that are waiting for replies */
+  def inFlight = continuations.size
+
   /**
    * Perform a simple byte-array-based RPC roundtrip.
    * @param req the rpc request message to send
@@ -134,30 +152,19 @@ class RpcClient($factory: ConnectionFactory, $reqExchange: String) extends AMQPD
   @throws(classOf[IOException])
   @throws(classOf[ShutdownSignalException])
   def rpc(req: Any, routingKey: String, props: AMQP.BasicProperties = new AMQP.BasicProperties.Builder().build, timeout: Long = -1): Any = {
-    val syncVar = asyncRpc(req, routingKey, props)
-
-    val res = if (timeout < 0) {
-      syncVar.get
-    } else {
-      syncVar.get(timeout) getOrElse Evt.Error("Rpc timeout")
-    }
-
-    res
+    val syncVar = new SyncVar[Any]
+    send(req, routingKey, props, timeout, syncVarContinuation(syncVar))
+    syncVar.get
   }
 
   @throws(classOf[IOException])
   @throws(classOf[ShutdownSignalException])
   def arpc(req: Any, routingKey: String, props: AMQP.BasicProperties = new AMQP.BasicProperties.Builder().build, timeout: Long = -1)(action: Any => Unit) {
-    val syncVar = asyncRpc(req, routingKey, props)
+    val syncVar = new SyncVar[Any]
+    send(req, routingKey, props, timeout, syncVarContinuation(syncVar))
 
     scala.actors.Actor.actor {
-      val res = if (timeout < 0) {
-        syncVar.get
-      } else {
-        syncVar.get(timeout) getOrElse Evt.Error("Rpc timeout")
-      }
-
-      action(res)
+      action(syncVar.get)
     }
   }
 
@@ -174,38 +181,120 @@ class RpcClient($factory: ConnectionFactory, $reqExchange: String) extends AMQPD
   @throws(classOf[ShutdownSignalException])
   def asyncRpc(req: Any, routingKey: String, props: AMQP.BasicProperties = new AMQP.BasicProperties.Builder().build): SyncVar[Any] = {
     val syncVar = new SyncVar[Any]
-    val replyId = continuationMap synchronized {
-      correlationId += 1
-      val replyIdx = correlationId.toString
-      continuationMap.put(replyIdx, syncVar)
-      replyIdx
+    send(req, routingKey, props, -1, syncVarContinuation(syncVar))
+    syncVar
+  }
+
+  /**
+   * Perform a RPC roundtrip without blocking any thread.
+   * 
+   * The future is completed with the response, or failed with TimeoutException 
+   * when timeout elapsed, CancellationException when cancelled, or IOException 
+   * when the client is not connected, the request can't be published, or the 
+   * connection is shutdown (or the client closed) before the response arrives. 
+   * Callbacks of the future run on the ExecutionContext given to them, not on 
+   * the AMQP delivery thread.
+   * 
+   * @param timeout in milliseconds, default infinit (-1)
+   * @return a RpcFuture whose correlationId can be used to cancel it
+   */
+  def futureRpc(req: Any, routingKey: String, props: AMQP.BasicProperties = new AMQP.BasicProperties.Builder().build, timeout: Long = -1): RpcFuture = {
+    val promise = Promise[Any]()
+    val replyId = send(req, routingKey, props, timeout, new RpcClient.Continuation {
+        def reply(res: Any) {promise.trySuccess(res)}
+        def fail(ex: Throwable) {promise.tryFailure(ex)}
+      })
+    new RpcFuture(replyId, promise.future, this)
+  }
+
+  /**
+   * Cancel the request of correlationId, its reply, if arrives later, will be 
+   * dropped.
+   * @return false if it has been completed
+   */
+  def cancel(correlationId: String): Boolean = {
+    complete(correlationId, _.fail(new CancellationException("Rpc cancelled: " + correlationId)))
+  }
+
+  private def syncVarContinuation(syncVar: SyncVar[Any]) = new RpcClient.Continuation {
+    def reply(res: Any) {syncVar.set(res)}
+    def fail(ex: Throwable) {
+      syncVar.set(ex match {
+          case _: TimeoutException => Evt.Error("Rpc timeout")
+          case _ => Evt.Error(ex.getMessage)
+        })
     }
+  }
+
+  /**
+   * @return the correlation id of request
+   */
+  private def send(req: Any, routingKey: String, props: AMQP.BasicProperties, timeout: Long, continuation: RpcClient.Continuation): String = {
+    val replyId = correlationId.incrementAndGet.toString
+    continuations.put(replyId, continuation)
 
     try {
       checkConsumer
     } catch {
       case ex: Throwable =>
         log.warning(ex.getMessage)
-        syncVar.set(Evt.Error(ex.getMessage))
-        return syncVar
+        complete(replyId, _.fail(ex))
+        return replyId
+    }
+
+    if (timeout >= 0) {
+      continuation.timeoutTask = RpcClient.timer.schedule(new Runnable {
+          def run {
+            complete(replyId, _.fail(new TimeoutException("Rpc timeout after " + timeout + "ms: " + replyId)))
+          }
+        }, timeout, TimeUnit.MILLISECONDS)
     }
 
     val reqProps = props.builder.correlationId(replyId).replyTo(replyQueue).build
 
-    publish(req, exchange, routingKey, reqProps)
+    try {
+      publishOrFail(req, exchange, routingKey, reqProps)
+    } catch {
+      case ex: Throwable =>
+        // no reply will come back, fail it now instead of leaving it to the timeout, if any
+        log.warning("Failed to send rpc " + replyId + ": " + ex.getMessage)
+        complete(replyId, _.fail(ex))
+    }
 
-    syncVar
+    replyId
+  }
+
+  private def complete(replyId: String, action: RpcClient.Continuation => Unit): Boolean = {
+    val continuation = continuations.remove(replyId)
+    if (continuation != null) {
+      val timeoutTask = continuation.timeoutTask
+      if (timeoutTask != null) timeoutTask.cancel(false)
+      action(continuation)
+      true
+    } else false
+  }
+
+  /**
+   * Closes the connection and fails the requests that are still waiting for replies
+   */
+  override def close() {
+    super.close()
+    failAll(new IOException("RpcClient closed"))
+  }
+
+  private def failAll(ex: Throwable) {
+    val itr = continuations.keySet.iterator
+    while (itr.hasNext) {
+      complete(itr.next, _.fail(ex))
+    }
   }
 
   override protected def useActor = false
   override def process(res: Any, props: AMQP.BasicProperties = new AMQP.BasicProperties.Builder().build, envelope: Envelope = null) {
     val replyId = props.getCorrelationId
 //    log.info("Reply id=" + replyId)
-    continuationMap synchronized {
-      continuationMap.remove(replyId) match{
-        case Some(syncVar) => syncVar.set(res)
-        case None =>
-      }
+    if (replyId != null) {
+      complete(replyId, _.reply(res))
     }
   }
 
@@ -226,4 +315,33 @@ class RpcClient($factory: ConnectionFactory, $reqExchange: String) extends AMQPD
 //      }
 //    }
 //  }
-}
\ No newline at end of file
+}
+
+object RpcClient {
+  private[amqp] abstract class Continuation {
+    @volatile var timeoutTask: ScheduledFuture[_] = _
+    def reply(res: Any)
+    def fail(ex: Throwable)
+  }
+
+  /** 
+   * A single timer for timeouts of all clients, the tasks only remove and 
+   * complete the continuations.
+   */
+  private lazy val timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+      def newThread(r: Runnable) = {
+        val t = new Thread(r, "RpcClientTimer")
+        t.setDaemon(true)
+        t
+      }
+    })
+}
+
+/**
+ * Handle of a request issued by RpcClient.futureRpc
+ */
+final class RpcFuture private[amqp] (val correlationId: String, val future: Future[Any], client: RpcClient) {
+  /** @see RpcClient#cancel */
+  def cancel(): Boolean = client.cancel(correlationId)
+  def isCompleted = future.isCompleted
+}
@@ -30,28 +30,94 @@
  */
 package org.aiotrade.lib.amqp
 
+import com.rabbitmq.client.AMQP
 import com.rabbitmq.client.ConnectionFactory
+import java.util.concurrent.atomic.AtomicInteger
+import org.aiotrade.lib.util.config.Config
 import org.aiotrade.lib.util.pool.StackObjectPool
 import java.util.logging.Level
 import java.util.logging.Logger
 import org.aiotrade.lib.util.pool.PoolableObjectFactory
 
 object RpcClientPool {
+  private val config = Config()
+
+  /** number of connections that futureRpc requests are multiplexed on */
+  val multiplexedConnections = config.getInt("amqp.rpc.connections", 1)
+
   def apply(factory: ConnectionFactory, exchange: String, maxIdle: Int, initIdleCapacity: Int) =
     new RpcClientPool(factory, exchange, maxIdle, initIdleCapacity)
 }
 
+/**
+ * Pool of RpcClients. Besides borrowing a whole client for blocking calls, 
+ * requests can be issued by futureRpc, which multiplexes them on a few shared 
+ * clients (one connection and reply queue each, amqp.rpc.connections), so 
+ * hundreds of requests can be in flight concurrently without borrowing a client
+ * or holding a thread for each.
+ */
 class RpcClientPool(factory: ConnectionFactory, exchange: String, maxIdle: Int, initIdleCapacity: Int
 ) extends StackObjectPool[RpcClient](maxIdle, initIdleCapacity) with PoolableObjectFactory[RpcClient] {
   private val log = Logger.getLogger(this.getClass.getName)
 
   factory_=(this)
 
+  @volatile private var isMultiplexedCreated = false
+  private lazy val multiplexedClients = {
+    isMultiplexedCreated = true
+    Array.fill(math.max(RpcClientPool.multiplexedConnections, 1))(create)
+  }
+  private val nextClient = new AtomicInteger
+
+  /**
+   * @see RpcClient#futureRpc
+   */
+  def futureRpc(req: Any, routingKey: String, props: AMQP.BasicProperties = new AMQP.BasicProperties.Builder().build, timeout: Long = -1): RpcFuture = {
+    multiplexedClient.futureRpc(req, routingKey, props, timeout)
+  }
+
+  /** 
+   * Round-robin on connected clients, a disconnected client is skipped while 
+   * it's reconnecting, if none is connected, the request fails from the client.
+   */
+  private def multiplexedClient: RpcClient = {
+    val clients = multiplexedClients
+    val n = clients.length
+    val start = nextClient.getAndIncrement & Int.MaxValue
+    var i = -1
+    while ({i += 1; i < n}) {
+      val client = clients((start + i) % n)
+      if (client.isConnected) return client
+    }
+    clients(start % n)
+  }
+
+  /** number of futureRpc requests that are waiting for replies */
+  def inFlight: Int = if (isMultiplexedCreated) multiplexedClients.foldLeft(0)(_ + _.inFlight) else 0
+
+  /**
+   * Closes the idle clients and the multiplexed ones, futureRpc requests that are
+   * still waiting for replies are failed.
+   */
+  @throws(classOf[Exception])
+  override def close {
+    super.close
+    if (isMultiplexedCreated) {
+      multiplexedClients foreach destroy
+    }
+  }
+
   @throws(classOf[RuntimeException])
   final def activate(obj: RpcClient) {}
 
   @throws(classOf[RuntimeException])
-  final def destroy(obj: RpcClient) {}
+  final def destroy(obj: RpcClient) {
+    try {
+      obj.close()
+    } catch {
+      case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex)
+    }
+  }
 
   @throws(classOf[RuntimeException])
   final def create = {
@@ -30,15 +30,12 @@
  */
 package org.aiotrade.lib.amqp
 
-import java.io.BufferedInputStream
-import java.io.BufferedOutputStream
 import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
 import java.io.IOException
 import java.io.ObjectInputStream
 import java.io.ObjectOutputStream
-import java.util.zip.GZIPInputStream
-import java.util.zip.GZIPOutputStream
+import java.nio.ByteBuffer
 import org.aiotrade.lib.avro.ReflectData
 import org.aiotrade.lib.avro.ReflectDatumWriter
 import org.aiotrade.lib.avro.Evt
@@ -88,12 +85,37 @@ object Serializer {
     }
   }
 
+  /**
+   * Encode straight into buf from its position, Msg of registered Evt is written
+   * without intermediate array.
+   * @throws java.nio.BufferOverflowException if buf has not enough remaining
+   */
+  def encodeAvroTo(content: Any, buf: ByteBuffer) {
+    content match {
+      case Msg(tag, value) if Evt.exists(tag) => Evt.toAvro(value, tag, buf)
+      case _ => 
+        val start = buf.position
+        try {
+          buf.put(encodeAvro(content))
+        } catch {
+          case ex: java.nio.BufferOverflowException => buf.position(start); throw ex
+        }
+    }
+  }
+
   def decodeAvro(body: Array[Byte], tag: Int = Evt.NO_TAG): Any = {
     Evt.fromAvro(body, tag) match {
       case Some(x) => x
       case None => null
     }
   }
+
+  def decodeAvro(body: Array[Byte], offset: Int, length: Int, tag: Int): Any = {
+    Evt.fromAvro(ByteBuffer.wrap(body, offset, length), tag) match {
+      case Some(x) => x
+      case None => null
+    }
+  }
   
   def encodeJson(content: Any): Array[Byte] = {
     content match {
@@ -110,70 +132,15 @@ object Serializer {
   }
 
   @throws(classOf[IOException])
-  def gzip(input: Array[Byte]): Array[Byte] = {
-    val out = new ByteArrayOutputStream()
-    val bout = new BufferedOutputStream(new GZIPOutputStream(out))
-    bout.write(input)
-    bout.close
-
-    val body = out.toByteArray
-
-    out.close
-    body
-  }
+  def gzip(input: Array[Byte]): Array[Byte] = Codec.gzip(input, 0, input.length)
 
   @throws(classOf[IOException])
-  def ungzip(input: Array[Byte]): Array[Byte] = {
-    val in = new ByteArrayInputStream(input)
-    val bin = new BufferedInputStream(new GZIPInputStream(in))
-    val out = new ByteArrayOutputStream()
-
-    val buf = new Array[Byte](1024)
-    var len = -1
-    while ({len = bin.read(buf); len > 0}) {
-      out.write(buf, 0, len)
-    }
-
-    val body = out.toByteArray
-
-    in.close
-    bin.close
-    out.close
-    body
-  }
+  def ungzip(input: Array[Byte]): Array[Byte] = Codec.ungzip(input)
 
   @throws(classOf[IOException])
-  def lzma(input: Array[Byte]): Array[Byte] = {
-    val in = new ByteArrayInputStream(input)
-    val out = new ByteArrayOutputStream
-
-    val encoder = new SevenZip.Compression.LZMA.Encoder
-    encoder.SetEndMarkerMode(true)     // must set true
-    encoder.SetDictionarySize(1 << 20) // 1048576
-
-    encoder.Code(in, out, -1, -1, null)
-
-    val body = out.toByteArray
-
-    in.close
-    out.close
-    body
-  }
+  def lzma(input: Array[Byte]): Array[Byte] = Codec.lzma(input, 0, input.length)
 
   @throws(classOf[IOException])
-  def unlzma(input: Array[Byte]): Array[Byte] = {
-    val in = new ByteArrayInputStream(input)
-    val out = new ByteArrayOutputStream
-
-    val decoder = new SevenZip.Compression.LZMA.Decoder
-    decoder.SetDecoderProperties(lzmaProps)
-    decoder.Code(in, out, -1)
-
-    val body = out.toByteArray
-
-    in.close
-    out.close
-    body
-  }
+  def unlzma(input: Array[Byte]): Array[Byte] = Codec.unlzma(input)
 
 }
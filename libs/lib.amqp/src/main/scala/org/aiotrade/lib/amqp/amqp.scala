@@ -39,6 +39,12 @@ package object amqp {
 
   val LZMA = "lzma"
   val GZIP = "gzip"
+  /** body is not compressed */
+  val IDENTITY = "identity"
   
   val TAG = "tag"
+  /** number of messages framed in a batch body */
+  val BATCH = "batch"
+  /** number of messages after this one in the same batch delivery */
+  val BATCH_REMAINING = "batch.remaining"
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2006-2011, AIOTrade Computing Co. and Contributors
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *    
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *    
+ *  o Neither the name of AIOTrade Computing Co. nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.aiotrade.lib.amqp.inmemory
+
+import com.rabbitmq.client.AMQP
+import com.rabbitmq.client.Channel
+import com.rabbitmq.client.ConnectionFactory
+import com.rabbitmq.client.Consumer
+import com.rabbitmq.client.Envelope
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.logging.Logger
+import org.aiotrade.lib.amqp.AMQPConnected
+import org.aiotrade.lib.amqp.AMQPDispatcher
+import org.aiotrade.lib.amqp.AMQPSubscriber
+import org.aiotrade.lib.amqp.Codec
+import org.aiotrade.lib.amqp.ContentType
+import org.aiotrade.lib.avro.Evt
+import org.aiotrade.lib.util.LatencyHistogram
+import org.aiotrade.lib.util.actors.Reactor
+
+/**
+ * Load generator of lib.amqp, runs publishers and subscribers of topics against
+ * an in-memory broker (default) or a real one, reports throughput, end to end 
+ * latency percentiles and the cost of serializer/compression by Codec.metrics:
+ * 
+ *   AMQPLoadGenerator [messages=100000] [topics=10] [payload=64] [rate=0] [host=inmemory] [port=5672]
+ * 
+ * payload is the number of doubles of each message, rate is messages per second,
+ * 0 means as fast as possible. Other settings, such as amqp.batch.window, 
+ * amqp.confirm and amqp.decode.workers, are read from config as usual, so the 
+ * same run can be repeated with different settings.
+ * 
+ * @author Caoyuan Deng
+ */
+object AMQPLoadGenerator {
+  private val log = Logger.getLogger(this.getClass.getName)
+  
+  val exchange = "load.test"
+  
+  /** (send time in nanos, payload) */
+  val LoadEvt = Evt[(Long, Array[Double])](9001, "sendNanos, payload")
+  
+  private class LoadPublisher(factory: ConnectionFactory) extends AMQPDispatcher(factory, exchange) {
+    val connected = new CountDownLatch(1)
+    
+    new Reactor {
+      reactions += {
+        case AMQPConnected => connected.countDown
+      }
+      listenTo(LoadPublisher.this)
+    }
+    
+    def configure(channel: Channel): Option[Consumer] = {
+      channel.exchangeDeclare(exchange, "direct")
+      None
+    }
+  }
+  
+  private class LoadSubscriber(factory: ConnectionFactory, expected: Long) extends AMQPSubscriber(factory, exchange) {
+    val received = new AtomicLong
+    val done = new CountDownLatch(1)
+    val latencies = new LatencyHistogram("end-to-end")
+    
+    override 
+    protected def useActor = false
+    
+    override 
+    protected def process(res: Any, props: AMQP.BasicProperties, envelope: Envelope) {
+      res match {
+        case LoadEvt(sendNanos, _) =>
+          latencies.recordNanos(System.nanoTime - sendNanos)
+          if (received.incrementAndGet == expected) done.countDown
+        case _ =>
+      }
+    }
+  }
+  
+  def main(args: Array[String]) {
+    val params = args.map{x => x.split("=") match {
+        case Array(k, v) => (k, v)
+        case _ => (x, "")
+      }
+    }.toMap
+    
+    val nMessages = params.getOrElse("messages", "100000").toLong
+    val nTopics   = params.getOrElse("topics", "10").toInt
+    val payload   = params.getOrElse("payload", "64").toInt
+    val rate      = params.getOrElse("rate", "0").toInt
+    val host      = params.getOrElse("host", "inmemory")
+    
+    val factory = if (host == "inmemory") {
+      new InMemoryConnectionFactory(InMemoryBroker("load"))
+    } else {
+      val x = new ConnectionFactory
+      x.setHost(host)
+      x.setPort(params.getOrElse("port", "5672").toInt)
+      x
+    }
+    
+    log.info(run(factory, nMessages, nTopics, payload, rate))
+    factory match {
+      case x: InMemoryConnectionFactory => log.info(x.broker.metrics)
+      case _ =>
+    }
+    System.exit(0)
+  }
+  
+  /**
+   * @return the report
+   */
+  def run(factory: ConnectionFactory, nMessages: Long, nTopics: Int, payload: Int, rate: Int): String = {
+    val subscriber = new LoadSubscriber(factory, nMessages)
+    subscriber.connect
+    subscriber.consumeQueue("load.test.queue")
+    var i = -1
+    while ({i += 1; i < nTopics}) {
+      subscriber.subscribeTopic("load.test.topic." + i)
+    }
+    
+    val publisher = new LoadPublisher(factory)
+    publisher.connect
+    if (!publisher.connected.await(10, TimeUnit.SECONDS)) {
+      return "Publisher could not connect to " + factory.getHost + ":" + factory.getPort
+    }
+    // wait for subscriptions being done by subscriber's actor
+    Thread.sleep(500)
+    
+    val props = new AMQP.BasicProperties.Builder().contentType(ContentType.AVRO.mimeType).build
+    val values = Array.fill(payload)(math.random)
+    val intervalNanos = if (rate > 0) 1000000000L / rate else 0L
+    
+    log.info("Start publishing " + nMessages + " messages of " + payload + " doubles to " + nTopics + " topics")
+    val t0 = System.nanoTime
+    var n = 0L
+    while (n < nMessages) {
+      if (intervalNanos > 0) {
+        val due = t0 + n * intervalNanos
+        while (System.nanoTime < due) {}
+      }
+      publisher.publish(LoadEvt((System.nanoTime, values)), exchange, "load.test.topic." + (n % nTopics), props)
+      n += 1
+    }
+    val publishNanos = System.nanoTime - t0
+    
+    val isDone = subscriber.done.await(math.max(60, nMessages / 1000), TimeUnit.SECONDS)
+    val totalNanos = System.nanoTime - t0
+    val received = subscriber.received.get
+    
+    val report = new StringBuilder
+    report.append("messages=").append(nMessages).append(", received=").append(received)
+    if (!isDone) report.append(" (timeout)")
+    report.append(", publish=").append(nMessages * 1000000000L / math.max(publishNanos, 1)).append(" msg/s")
+    report.append(", throughput=").append(received * 1000000000L / math.max(totalNanos, 1)).append(" msg/s\n")
+    report.append(subscriber.latencies).append("\n")
+    report.append(Codec.metrics)
+    report.toString
+  }
+}
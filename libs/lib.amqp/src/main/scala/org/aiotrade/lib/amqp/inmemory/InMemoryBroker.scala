@@ -0,0 +1,505 @@
+/*
+ * Copyright (c) 2006-2011, AIOTrade Computing Co. and Contributors
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *    
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *    
+ *  o Neither the name of AIOTrade Computing Co. nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.aiotrade.lib.amqp.inmemory
+
+import com.rabbitmq.client.AMQP
+import com.rabbitmq.client.ConfirmListener
+import com.rabbitmq.client.Connection
+import com.rabbitmq.client.ConnectionFactory
+import com.rabbitmq.client.Consumer
+import com.rabbitmq.client.Envelope
+import com.rabbitmq.client.ShutdownListener
+import com.rabbitmq.client.ShutdownSignalException
+import java.io.IOException
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.net.InetAddress
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.logging.Level
+import java.util.logging.Logger
+import org.aiotrade.lib.amqp.AMQPExchange
+
+/**
+ * An in-process, in-memory stand-in of an AMQP broker, so lib.amqp dispatchers
+ * can be run and load tested without a RabbitMQ:
+ * 
+ *   val factory = new InMemoryConnectionFactory(InMemoryBroker())
+ *   new AMQPSubscriber(factory, "market").connect
+ * 
+ * Supports direct (including the default "" exchange), topic and fanout 
+ * exchanges, server-named/exclusive queues, consumer round-robin, acks and 
+ * publisher confirms. Prefetch (basicQos), mandatory/immediate returns, 
+ * transactions and persistence are not simulated. Messages are passed by 
+ * reference, bodies are not copied.
+ * 
+ * Each queue delivers in its own thread, as the client's delivery thread does, 
+ * calls to a consumer that consumes several queues are serialized. Consumers
+ * get handleShutdownSignal when their channel or connection is closed.
+ * 
+ * @author Caoyuan Deng
+ */
+class InMemoryBroker(val name: String) {
+  private val log = Logger.getLogger(this.getClass.getName)
+  
+  private final case class Message(exchange: String, routingKey: String, props: AMQP.BasicProperties, body: Array[Byte])
+  private final case class Binding(queue: BrokerQueue, key: String)
+  
+  private final class Exchange(val name: String, val tpe: String) {
+    val bindings = new CopyOnWriteArrayList[Binding]()
+    
+    def route(routingKey: String, f: BrokerQueue => Unit) {
+      val itr = bindings.iterator
+      var routed = Set[BrokerQueue]()
+      while (itr.hasNext) {
+        val binding = itr.next
+        val isMatched = tpe match {
+          case "fanout" => true
+          case "topic"  => InMemoryBroker.topicMatches(binding.key, routingKey)
+          case _        => binding.key == routingKey
+        }
+        if (isMatched && !routed.contains(binding.queue)) {
+          routed += binding.queue
+          f(binding.queue)
+        }
+      }
+    }
+  }
+  
+  private[inmemory] final class BrokerQueue(val name: String, val owner: AnyRef, val autoDelete: Boolean) {
+    private val messages = new LinkedBlockingQueue[Message]()
+    private val consumers = new CopyOnWriteArrayList[(String, Consumer, InMemoryChannel)]()
+    private val nextConsumer = new AtomicInteger
+    @volatile private var isDeleted = false
+    
+    val enqueued = new AtomicLong
+    val delivered = new AtomicLong
+
+    private val deliverer = new Thread(new Runnable {def run = deliverLoop}, "InMemoryBroker-" + name)
+    deliverer.setDaemon(true)
+    deliverer.start
+    
+    def depth = messages.size
+    
+    def offer(msg: Message) {
+      enqueued.incrementAndGet
+      messages.put(msg)
+    }
+    
+    def addConsumer(tag: String, consumer: Consumer, ch: InMemoryChannel) {
+      consumers.add((tag, consumer, ch))
+    }
+    
+    /**
+     * @param signal the shutdown signal to the removed consumers, or null if they
+     *        are cancelled
+     */
+    def removeConsumers(p: ((String, Consumer, InMemoryChannel)) => Boolean, signal: ShutdownSignalException = null): Int = {
+      var n = 0
+      val itr = consumers.iterator
+      while (itr.hasNext) {
+        val x = itr.next
+        if (p(x)) {
+          consumers.remove(x)
+          n += 1
+          val (tag, consumer, _) = x
+          try {
+            consumer synchronized {
+              if (signal == null) consumer.handleCancelOk(tag) else consumer.handleShutdownSignal(tag, signal)
+            }
+          } catch {
+            case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex)
+          }
+        }
+      }
+      if (n > 0 && autoDelete && consumers.isEmpty) delete
+      n
+    }
+    
+    def delete {
+      isDeleted = true
+      queues.remove(name)
+      val itr = exchanges.values.iterator
+      while (itr.hasNext) {
+        val bindings = itr.next.bindings
+        val bitr = bindings.iterator
+        while (bitr.hasNext) {
+          val b = bitr.next
+          if (b.queue eq this) bindings.remove(b)
+        }
+      }
+    }
+    
+    private def deliverLoop {
+      var pending: Message = null
+      while (!isDeleted) {
+        try {
+          if (pending == null) {
+            pending = messages.poll(100, TimeUnit.MILLISECONDS)
+          }
+          if (pending != null) {
+            val n = consumers.size
+            if (n == 0) {
+              Thread.sleep(1) // hold it until there is a consumer
+            } else {
+              val (tag, consumer, ch) = consumers.get((nextConsumer.getAndIncrement & Int.MaxValue) % n)
+              val envelope = new Envelope(ch.nextDeliveryTag, false, pending.exchange, pending.routingKey)
+              val msg = pending
+              pending = null
+              delivered.incrementAndGet
+              consumer synchronized {
+                consumer.handleDelivery(tag, envelope, msg.props, msg.body)
+              }
+            }
+          }
+        } catch {
+          case ex: IndexOutOfBoundsException => // consumer removed meanwhile, try again
+          case ex: InterruptedException =>
+          case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex)
+        }
+      }
+    }
+  }
+  
+  private val exchanges = new ConcurrentHashMap[String, Exchange]()
+  private val queues = new ConcurrentHashMap[String, BrokerQueue]()
+  private val queueNameSeq = new AtomicLong
+  
+  val published = new AtomicLong
+  val unroutable = new AtomicLong
+  
+  exchanges.put(AMQPExchange.defaultDirect, new Exchange(AMQPExchange.defaultDirect, AMQPExchange.Direct.toString))
+  
+  // --- broker operations
+  
+  @throws(classOf[IOException])
+  def exchangeDeclare(name: String, tpe: String) {
+    tpe match {
+      case "direct" | "topic" | "fanout" =>
+      case _ => throw new IOException("Unsupported exchange type: " + tpe)
+    }
+    val existed = exchanges.putIfAbsent(name, new Exchange(name, tpe))
+    if (existed != null && existed.tpe != tpe) {
+      throw new IOException("Exchange " + name + " was declared as " + existed.tpe + ", not " + tpe)
+    }
+  }
+  
+  def queueDeclare(name: String, owner: AnyRef, autoDelete: Boolean): String = {
+    val qname = if (name == null || name == "") "amq.gen-" + queueNameSeq.incrementAndGet else name
+    if (!queues.containsKey(qname)) {
+      val queue = new BrokerQueue(qname, owner, autoDelete)
+      if (queues.putIfAbsent(qname, queue) == null) {
+        // every queue is bound to the default direct exchange by its name
+        exchanges.get(AMQPExchange.defaultDirect).bindings.add(Binding(queue, qname))
+      }
+    }
+    qname
+  }
+  
+  @throws(classOf[IOException])
+  def queueOf(name: String): BrokerQueue = {
+    val queue = queues.get(name)
+    if (queue == null) throw new IOException("NOT_FOUND - no queue '" + name + "'")
+    queue
+  }
+  
+  @throws(classOf[IOException])
+  private def exchangeOf(name: String): Exchange = {
+    val exchange = exchanges.get(name)
+    if (exchange == null) throw new IOException("NOT_FOUND - no exchange '" + name + "'")
+    exchange
+  }
+  
+  @throws(classOf[IOException])
+  def queueBind(queue: String, exchange: String, key: String) {
+    val binding = Binding(queueOf(queue), key)
+    val bindings = exchangeOf(exchange).bindings
+    bindings.addIfAbsent(binding)
+  }
+
+  @throws(classOf[IOException])
+  def queueUnbind(queue: String, exchange: String, key: String) {
+    exchangeOf(exchange).bindings.remove(Binding(queueOf(queue), key))
+  }
+  
+  @throws(classOf[IOException])
+  def publish(exchange: String, routingKey: String, props: AMQP.BasicProperties, body: Array[Byte]) {
+    published.incrementAndGet
+    val msg = Message(exchange, routingKey, props, body)
+    var routed = false
+    exchangeOf(exchange).route(routingKey, {queue => queue.offer(msg); routed = true})
+    if (!routed) unroutable.incrementAndGet
+  }
+  
+  /** queues owned by an exclusive connection are deleted when it's closed */
+  def closeOwner(owner: AnyRef, signal: ShutdownSignalException) {
+    val itr = queues.values.iterator
+    while (itr.hasNext) {
+      val queue = itr.next
+      queue.removeConsumers(_._3.connection eq owner, signal)
+      if (queue.owner eq owner) queue.delete
+    }
+  }
+  
+  def metrics: String = {
+    val sb = new StringBuilder
+    sb.append(name).append(": published=").append(published.get).append(", unroutable=").append(unroutable.get)
+    val itr = queues.values.iterator
+    while (itr.hasNext) {
+      val q = itr.next
+      sb.append(", ").append(q.name).append("(enqueued=").append(q.enqueued.get)
+      .append(", delivered=").append(q.delivered.get).append(", depth=").append(q.depth).append(")")
+    }
+    sb.toString
+  }
+  
+  // --- client side objects
+  
+  def newConnection(factory: ConnectionFactory): Connection = {
+    val conn = new InMemoryConnection(factory)
+    InMemoryBroker.proxy(classOf[Connection], conn)
+  }
+
+  private[inmemory] final class InMemoryConnection(factory: ConnectionFactory) {
+    @volatile var isOpen = true
+    private val channelSeq = new AtomicInteger
+    private val shutdownListeners = new CopyOnWriteArrayList[ShutdownListener]()
+    
+    def createChannel: AnyRef = {
+      val ch = new InMemoryChannel(this, channelSeq.incrementAndGet)
+      InMemoryBroker.proxy(classOf[com.rabbitmq.client.Channel], ch)
+    }
+    def createChannel(n: Int): AnyRef = createChannel
+    
+    def addShutdownListener(l: ShutdownListener) {shutdownListeners.add(l)}
+    def removeShutdownListener(l: ShutdownListener) {shutdownListeners.remove(l)}
+    def getAddress = InetAddress.getByName("127.0.0.1")
+    def getPort = factory.getPort
+    def getHost = factory.getHost
+    
+    def close {
+      if (isOpen) {
+        isOpen = false
+        val signal = new ShutdownSignalException(true, true, "connection closed", this)
+        closeOwner(this, signal)
+        val itr = shutdownListeners.iterator
+        while (itr.hasNext) {
+          itr.next.shutdownCompleted(signal)
+        }
+      }
+    }
+    def abort = close
+  }
+  
+  private[inmemory] final class InMemoryChannel(val connection: InMemoryConnection, val getChannelNumber: Int) {
+    @volatile var isOpen = true
+    private val deliveryTagSeq = new AtomicLong
+    private val publishSeq = new AtomicLong(1)
+    private val consumerTagSeq = new AtomicLong
+    @volatile private var isConfirmMode = false
+    @volatile private var confirmListener: ConfirmListener = _
+    
+    val acked = new AtomicLong
+    
+    def nextDeliveryTag = deliveryTagSeq.incrementAndGet
+    
+    def exchangeDeclare(exchange: String, tpe: String) {InMemoryBroker.this.exchangeDeclare(exchange, tpe)}
+    def exchangeDeclare(exchange: String, tpe: String, durable: Boolean) {exchangeDeclare(exchange, tpe)}
+    
+    def queueDeclare: String = InMemoryBroker.this.queueDeclare("", connection, true)
+    def queueDeclare(queue: String, durable: Boolean, exclusive: Boolean, autoDelete: Boolean): String = {
+      InMemoryBroker.this.queueDeclare(queue, if (exclusive) connection else null, autoDelete)
+    }
+    def queueDeclarePassive(queue: String): String = queueOf(queue).name
+    def queueDelete(queue: String) {queueOf(queue).delete}
+    def queueBind(queue: String, exchange: String, key: String) {InMemoryBroker.this.queueBind(queue, exchange, key)}
+    def queueUnbind(queue: String, exchange: String, key: String) {InMemoryBroker.this.queueUnbind(queue, exchange, key)}
+    
+    def basicQos(prefetchCount: Int) {}
+    
+    def basicPublish(exchange: String, routingKey: String, props: AMQP.BasicProperties, body: Array[Byte]) {
+      val seqNo = if (isConfirmMode) publishSeq.getAndIncrement else 0
+      publish(exchange, routingKey, if (props == null) new AMQP.BasicProperties.Builder().build else props, body)
+      if (isConfirmMode && confirmListener != null) {
+        confirmListener.handleAck(seqNo, false)
+      }
+    }
+    
+    def basicPublish(exchange: String, routingKey: String, mandatory: Boolean, immediate: Boolean, props: AMQP.BasicProperties, body: Array[Byte]) {
+      basicPublish(exchange, routingKey, props, body)
+    }
+    
+    def basicConsume(queue: String, autoAck: Boolean, consumer: Consumer): String = {
+      val tag = "amq.ctag-" + getChannelNumber + "-" + consumerTagSeq.incrementAndGet
+      queueOf(queue).addConsumer(tag, consumer, this)
+      consumer.handleConsumeOk(tag)
+      tag
+    }
+    
+    def basicCancel(consumerTag: String) {
+      val itr = queues.values.iterator
+      while (itr.hasNext) {
+        itr.next.removeConsumers(_._1 == consumerTag)
+      }
+    }
+    
+    def basicAck(deliveryTag: Long, multiple: Boolean) {acked.incrementAndGet}
+    
+    def confirmSelect {isConfirmMode = true}
+    def setConfirmListener(l: ConfirmListener) {confirmListener = l}
+    def getNextPublishSeqNo: Long = if (isConfirmMode) publishSeq.get else 0
+    
+    def close {
+      if (isOpen) {
+        isOpen = false
+        val signal = new ShutdownSignalException(false, true, "channel closed", this)
+        val itr = queues.values.iterator
+        while (itr.hasNext) {
+          itr.next.removeConsumers(_._3 eq this, signal)
+        }
+      }
+    }
+    def abort = close
+  }
+}
+
+object InMemoryBroker {
+  private val nameToBroker = new ConcurrentHashMap[String, InMemoryBroker]()
+  
+  /** the broker of name, which is created at first call */
+  def apply(name: String = "default"): InMemoryBroker = {
+    val broker = nameToBroker.get(name)
+    if (broker != null) {
+      broker
+    } else {
+      val newBroker = new InMemoryBroker(name)
+      val existed = nameToBroker.putIfAbsent(name, newBroker)
+      if (existed != null) existed else newBroker
+    }
+  }
+  
+  /**
+   * AMQP topic matching, words are separated by '.', '*' matches exactly one 
+   * word, '#' matches zero or more words.
+   */
+  def topicMatches(pattern: String, routingKey: String): Boolean = {
+    def matches(ps: Array[String], pi: Int, ks: Array[String], ki: Int): Boolean = {
+      if (pi == ps.length) {
+        ki == ks.length
+      } else ps(pi) match {
+        case "#" => 
+          var i = ki
+          while (i <= ks.length) {
+            if (matches(ps, pi + 1, ks, i)) return true
+            i += 1
+          }
+          false
+        case "*" => ki < ks.length && matches(ps, pi + 1, ks, ki + 1)
+        case word => ki < ks.length && ks(ki) == word && matches(ps, pi + 1, ks, ki + 1)
+      }
+    }
+    matches(pattern.split("\\."), 0, routingKey.split("\\."), 0)
+  }
+  
+  /**
+   * A proxy of AMQP client interface iface, whose methods are dispatched to the 
+   * method of target with same name and arity. Methods returning protocol 
+   * 'Ok' interfaces are answered by a proxy whose getQueue returns the String 
+   * result of target. Methods that are not implemented by target throw 
+   * UnsupportedOperationException.
+   */
+  private[inmemory] def proxy[T](iface: Class[T], target: AnyRef): T = {
+    val targetMethods = target.getClass.getMethods
+    Proxy.newProxyInstance(iface.getClassLoader, Array[Class[_]](iface), new InvocationHandler {
+        def invoke(p: AnyRef, m: Method, _args: Array[AnyRef]): AnyRef = {
+          val args = if (_args == null) Array[AnyRef]() else _args
+          m.getName match {
+            case "hashCode" if args.length == 0 => Int.box(System.identityHashCode(p))
+            case "equals" if args.length == 1 => Boolean.box(p eq args(0))
+            case "toString" if args.length == 0 => "InMemory" + iface.getSimpleName + "(" + target + ")"
+            case name =>
+              val arity = args.length
+              val tm = targetMethods find {x => x.getName == name && x.getParameterTypes.length == arity} getOrElse {
+                // tolerate extra trailing args, e.g. queueDeclare(..., arguments)
+                val candidates = targetMethods.filter(x => x.getName == name && x.getParameterTypes.length < arity)
+                if (candidates.isEmpty) {
+                  throw new UnsupportedOperationException(iface.getSimpleName + "." + name + " is not supported by in-memory broker")
+                }
+                candidates.maxBy(_.getParameterTypes.length)
+              }
+              val result = try {
+                tm.invoke(target, args.take(tm.getParameterTypes.length): _*)
+              } catch {
+                case ex: java.lang.reflect.InvocationTargetException => throw ex.getCause
+              }
+              okOf(m.getReturnType, result)
+          }
+        }
+      }).asInstanceOf[T]
+  }
+  
+  private def okOf(returnType: Class[_], result: AnyRef): AnyRef = {
+    if (returnType.isInterface && !returnType.isInstance(result)) {
+      val queue = result match {
+        case x: String => x
+        case _ => null
+      }
+      Proxy.newProxyInstance(returnType.getClassLoader, Array[Class[_]](returnType), new InvocationHandler {
+          def invoke(p: AnyRef, m: Method, args: Array[AnyRef]): AnyRef = m.getName match {
+            case "getQueue" => queue
+            case "getMessageCount" | "getConsumerCount" | "protocolClassId" | "protocolMethodId" => Int.box(0)
+            case "protocolMethodName" => returnType.getSimpleName
+            case "hashCode" => Int.box(System.identityHashCode(p))
+            case "equals" => Boolean.box(p eq args(0))
+            case "toString" => returnType.getSimpleName + "(" + queue + ")"
+            case _ => null
+          }
+        })
+    } else result
+  }
+}
+
+/**
+ * ConnectionFactory that connects to an in-memory broker instead of network,
+ * other settings (host, port etc) are kept for logging only.
+ */
+class InMemoryConnectionFactory(val broker: InMemoryBroker) extends ConnectionFactory {
+  def this() = this(InMemoryBroker())
+  
+  @throws(classOf[IOException])
+  override 
+  def newConnection: Connection = broker.newConnection(this)
+}
@@ -0,0 +1,119 @@
+package org.aiotrade.lib.amqp
+
+import java.io.ByteArrayOutputStream
+import java.util.Random
+import java.util.zip.GZIPOutputStream
+import java.util.zip.ZipException
+import junit.framework.TestCase
+import junit.framework.Assert._
+
+class TestCodec extends TestCase {
+  private val FEXTRA   = 4
+  private val FNAME    = 8
+  private val FCOMMENT = 16
+
+  private def bytesOf(size: Int, seed: Long): Array[Byte] = {
+    val random = new Random(seed)
+    val bytes = new Array[Byte](size)
+    var i = -1
+    while ({i += 1; i < size}) {
+      // compressible, but not trivially
+      bytes(i) = ('a' + random.nextInt(8)).toByte
+    }
+    bytes
+  }
+
+  private def gzip(bytes: Array[Byte]) = Codec.gzip(bytes, 0, bytes.length)
+
+  /** member of gzipped with optional header fields inserted after the fixed header */
+  private def withFields(gzipped: Array[Byte], flags: Int, fields: Array[Byte]): Array[Byte] = {
+    val out = new ByteArrayOutputStream
+    out.write(gzipped, 0, 3)
+    out.write(flags)
+    out.write(gzipped, 4, 6)
+    out.write(fields)
+    out.write(gzipped, 10, gzipped.length - 10)
+    out.toByteArray
+  }
+
+  private def assertZipException(msg: String, input: Array[Byte]) {
+    try {
+      Codec.ungzip(input)
+      fail(msg + ": should throw ZipException")
+    } catch {
+      case ex: ZipException =>
+    }
+  }
+
+  def testRoundTrip {
+    for (size <- List(0, 1, 1000, 100000)) {
+      val bytes = bytesOf(size, size)
+      assertTrue("size " + size, java.util.Arrays.equals(bytes, Codec.ungzip(gzip(bytes))))
+    }
+  }
+
+  def testUngzipGZIPOutputStream {
+    val bytes = bytesOf(10000, 1L)
+    val out = new ByteArrayOutputStream
+    val gout = new GZIPOutputStream(out)
+    gout.write(bytes)
+    gout.close
+    assertTrue(java.util.Arrays.equals(bytes, Codec.ungzip(out.toByteArray)))
+  }
+
+  def testHeaderWithNameExtraAndComment {
+    val bytes = bytesOf(1000, 2L)
+    val extra = Array[Byte](3, 0, 'x'.toByte, 'y'.toByte, 'z'.toByte)
+    val name = "body.bin\u0000".getBytes("ISO-8859-1")
+    val comment = "a comment\u0000".getBytes("ISO-8859-1")
+    val fields = extra ++ name ++ comment
+    val input = withFields(gzip(bytes), FEXTRA | FNAME | FCOMMENT, fields)
+    assertTrue(java.util.Arrays.equals(bytes, Codec.ungzip(input)))
+  }
+
+  def testTruncatedHeader {
+    val gzipped = gzip(bytesOf(1000, 3L))
+
+    // name without terminating zero, runs to the end of input
+    val unterminated = new ByteArrayOutputStream
+    unterminated.write(gzipped, 0, 3)
+    unterminated.write(FNAME)
+    unterminated.write(gzipped, 4, 6)
+    unterminated.write(Array.fill[Byte](20)('n'.toByte))
+    assertZipException("unterminated name", unterminated.toByteArray)
+
+    // extra length beyond input
+    assertZipException("extra too long", withFields(gzipped, FEXTRA, Array[Byte](0xff.toByte, 0x7f)))
+
+    // header only
+    assertZipException("no body", java.util.Arrays.copyOf(gzipped, 10))
+  }
+
+  def testEveryTruncation {
+    val bytes = bytesOf(200, 4L)
+    val input = withFields(gzip(bytes), FEXTRA | FNAME, Array[Byte](2, 0, 'x'.toByte, 'y'.toByte) ++ "name\u0000".getBytes("ISO-8859-1"))
+    var len = -1
+    while ({len += 1; len < input.length}) {
+      assertZipException("truncated to " + len, java.util.Arrays.copyOf(input, len))
+    }
+  }
+
+  def testMultiMember {
+    val bytes1 = bytesOf(1000, 5L)
+    val bytes2 = bytesOf(3000, 6L)
+    val input = gzip(bytes1) ++ withFields(gzip(bytes2), FNAME, "second\u0000".getBytes("ISO-8859-1"))
+    assertTrue(java.util.Arrays.equals(bytes1 ++ bytes2, Codec.ungzip(input)))
+  }
+
+  def testTrailingGarbage {
+    val gzipped = gzip(bytesOf(1000, 7L))
+    assertZipException("trailing garbage", gzipped ++ Array[Byte](1, 2, 3))
+    assertZipException("trailing zeros", gzipped ++ new Array[Byte](20))
+  }
+
+  def testCorruptTrailer {
+    val gzipped = gzip(bytesOf(1000, 8L))
+    gzipped(gzipped.length - 8) = (gzipped(gzipped.length - 8) ^ 0xff).toByte
+    assertZipException("corrupt crc", gzipped)
+  }
+}
@@ -33,16 +33,29 @@ package org.aiotrade.lib.avro
 import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
 import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
 import java.util.logging.Level
 import java.util.logging.Logger
 import org.aiotrade.lib.util.ClassHelper
 import org.apache.avro.Schema
+import org.apache.avro.io.BinaryDecoder
+import org.apache.avro.io.BinaryEncoder
+import org.apache.avro.io.DatumReader
+import org.apache.avro.io.DatumWriter
 import org.apache.avro.io.DecoderFactory
 import org.apache.avro.io.EncoderFactory
 import scala.reflect._
 import scala.reflect.runtime.universe._
 
 /**
+ * Encoding/decoding of values by reflect datum writers/readers.
+ * 
+ * Writers and readers are stateless between calls (readers keep their resolvers
+ * in thread local), so they can be shared by threads, @see Evt#writer, Evt#reader
+ * which are resolved once per Evt. Encoders, decoders and the output buffer are 
+ * reused per thread, so encoding of an evt message allocates nothing but the 
+ * result bytes, and nothing at all when encoding into a caller supplied ByteBuffer.
  * 
  * @author Caoyuan Deng
  */
@@ -52,39 +65,128 @@ object Avro {
   protected[avro] val AVRO = 0
   protected[avro] val JSON = 1
 
+  /** output buffer larger than this won't be kept for reusing */
+  private val MAX_REUSED_BUFFER_SIZE = 1024 * 1024
+
+  private final class ReusableByteArrayOutputStream extends ByteArrayOutputStream(1024) {
+    def capacity = buf.length
+  }
+  
+  /** Writes to a ByteBuffer directly, throws BufferOverflowException when it's full */
+  private final class ByteBufferOutputStream(var buf: ByteBuffer) extends OutputStream {
+    override 
+    def write(b: Int) {buf.put(b.toByte)}
+    
+    override 
+    def write(bytes: Array[Byte], off: Int, len: Int) {buf.put(bytes, off, len)}
+  }
+  
+  private final class Codecs {
+    var out = new ReusableByteArrayOutputStream
+    val bufOut = new ByteBufferOutputStream(null)
+    var binaryEncoder: BinaryEncoder = _
+    var directEncoder: BinaryEncoder = _
+    var binaryDecoder: BinaryDecoder = _
+    var bytes: Array[Byte] = new Array[Byte](1024)
+    
+    def resetOut: ByteArrayOutputStream = {
+      if (out.capacity > MAX_REUSED_BUFFER_SIZE) {
+        out = new ReusableByteArrayOutputStream
+      } else {
+        out.reset
+      }
+      out
+    }
+    
+    /** a scratch array to copy a non-array-backed ByteBuffer */
+    def bytesOf(size: Int): Array[Byte] = {
+      if (bytes.length < size) {
+        bytes = new Array[Byte](size)
+      }
+      bytes
+    }
+  }
+  
+  private val codecs = new ThreadLocal[Codecs] {
+    override 
+    protected def initialValue = new Codecs
+  }
+
   def encode[T](value: T, schema: Schema, contentType: Int): Array[Byte] = {
-    var out: ByteArrayOutputStream = null
+    encode(value, ReflectDatumWriter[T](schema), schema, contentType)
+  }
+  
+  /**
+   * @param writer a resolved writer, which could be cached and reused for the schema
+   */
+  def encode[T](value: T, writer: DatumWriter[T], schema: Schema, contentType: Int): Array[Byte] = {
     try {
-      out = new ByteArrayOutputStream()
-    
-      val encoder = contentType match {
-        case JSON => JsonEncoder(schema, out)
-        case AVRO => EncoderFactory.get.binaryEncoder(out, null)
+      contentType match {
+        case JSON => 
+          val out = new ByteArrayOutputStream()
+          val encoder = JsonEncoder(schema, out)
+          writer.write(value, encoder)
+          encoder.flush()
+          out.toByteArray
+        case AVRO => 
+          val cs = codecs.get
+          val out = cs.resetOut
+          val encoder = EncoderFactory.get.binaryEncoder(out, cs.binaryEncoder)
+          cs.binaryEncoder = encoder
+          writer.write(value, encoder)
+          encoder.flush()
+          out.toByteArray
       }
-      
-      val writer = ReflectDatumWriter[T](schema)
+    } catch {
+      case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex); Array[Byte]()
+    }
+  }
+  
+  /**
+   * Encode in avro binary straight into buf, from its position. 
+   * 
+   * @return number of bytes written, buf's position is advanced by it.
+   * @throws java.nio.BufferOverflowException if buf has not enough remaining,
+   *         in that case, buf's position is reset to where it was. 
+   */
+  def encodeTo[T](value: T, writer: DatumWriter[T], buf: ByteBuffer): Int = {
+    val cs = codecs.get
+    val start = buf.position
+    cs.bufOut.buf = buf
+    try {
+      val encoder = EncoderFactory.get.directBinaryEncoder(cs.bufOut, cs.directEncoder)
+      cs.directEncoder = encoder
       writer.write(value, encoder)
       encoder.flush()
-      
-      out.toByteArray
+      buf.position - start
     } catch {
-      case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex); Array[Byte]()
+      case ex: java.nio.BufferOverflowException => buf.position(start); throw ex
     } finally {
-      if (out != null) try {out.close} catch {case _: Throwable =>}
+      cs.bufOut.buf = null
     }
   }
   
   def decode[T](bytes: Array[Byte], schema: Schema, valueType: Class[T], contentType: Int): Option[T] = {
+    decode(bytes, 0, bytes.length, ReflectDatumReader[T](schema), schema, valueType, contentType)
+  }
+  
+  /**
+   * @param reader a resolved reader, which could be cached and reused for the schema
+   */
+  def decode[T](bytes: Array[Byte], offset: Int, length: Int, reader: DatumReader[T], schema: Schema, valueType: Class[T], contentType: Int): Option[T] = {
     var in: InputStream = null
     try {
-      in = new ByteArrayInputStream(bytes)
-      
       val decoder = contentType match {
-        case JSON => JsonDecoder(schema, in)
-        case AVRO => DecoderFactory.get.binaryDecoder(in, null)
+        case JSON => 
+          in = new ByteArrayInputStream(bytes, offset, length)
+          JsonDecoder(schema, in)
+        case AVRO => 
+          val cs = codecs.get
+          val decoder = DecoderFactory.get.binaryDecoder(bytes, offset, length, cs.binaryDecoder)
+          cs.binaryDecoder = decoder
+          decoder
       }
       
-      val reader = ReflectDatumReader[T](schema)
       reader.read(null.asInstanceOf[T], decoder) match {
         case null => 
           import ClassHelper._
@@ -102,6 +204,22 @@ object Avro {
     }
   }
   
+  /**
+   * Decode avro binary from buf's position to limit, buf's position is moved to limit.
+   */
+  def decodeFrom[T](buf: ByteBuffer, reader: DatumReader[T], schema: Schema, valueType: Class[T]): Option[T] = {
+    val length = buf.remaining
+    if (buf.hasArray) {
+      val offset = buf.arrayOffset + buf.position
+      buf.position(buf.limit)
+      decode(buf.array, offset, length, reader, schema, valueType, AVRO)
+    } else {
+      val bytes = codecs.get.bytesOf(length)
+      buf.get(bytes, 0, length)
+      decode(bytes, 0, length, reader, schema, valueType, AVRO)
+    }
+  }
+  
   protected[avro] def tpeParams[T: TypeTag : ClassTag]: List[Class[_]] = tpeParams(typeOf[T])
   protected[avro] def tpeParams(tp: Type): List[Class[_]] = {
     tp match {
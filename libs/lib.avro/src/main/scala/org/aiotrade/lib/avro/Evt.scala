@@ -34,6 +34,7 @@ import java.io.EOFException
 import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
+import java.nio.ByteBuffer
 import java.util.Calendar
 import java.util.logging.Level
 import java.util.logging.Logger
@@ -122,6 +123,21 @@ final class Evt[T: ClassTag : TypeTag] private (val tag: Int, val doc: String =
     }
   }
   
+  /** 
+   * Resolved once and shared by all threads, readers keep their resolving 
+   * decoders in thread local.
+   */
+  lazy val writer: ReflectDatumWriter[T] = ReflectDatumWriter[T](schema)
+  lazy val reader: ReflectDatumReader[T] = ReflectDatumReader[T](schema)
+  
+  def toAvro(value: T): Array[Byte] = Avro.encode(value, writer, schema, Avro.AVRO)
+  def toJson(value: T): Array[Byte] = Avro.encode(value, writer, schema, Avro.JSON)
+  def toAvro(value: T, buf: ByteBuffer): Int = Avro.encodeTo(value, writer, buf)
+  
+  def fromAvro(bytes: Array[Byte]): Option[T] = Avro.decode(bytes, 0, bytes.length, reader, schema, tpe, Avro.AVRO)
+  def fromJson(bytes: Array[Byte]): Option[T] = Avro.decode(bytes, 0, bytes.length, reader, schema, tpe, Avro.JSON)
+  def fromAvro(buf: ByteBuffer): Option[T] = Avro.decodeFrom(buf, reader, schema, tpe)
+  
   /**
    * Return the evt message that is to be passed to. the evt message is wrapped in
    * a tuple in form of (tag, evtValue)
@@ -182,23 +198,38 @@ object Evt {
   def schemaOf(tag: Int): Option[Schema] = tagToEvt.get(tag) map (_.schema)
   def tagToSchema = tagToEvt map {x => (x._1 -> schemaOf(x._1))}
  
-  def toAvro[T](value: T, tag: Int): Array[Byte] = schemaOf(tag) match {
-    case Some(schema) => Avro.encode(value, schema, Avro.AVRO)
+  def toAvro[T](value: T, tag: Int): Array[Byte] = evtOf(tag) match {
+    case Some(evt) => evt.asInstanceOf[Evt[T]].toAvro(value)
     case None => Array[Byte]()
   }
   
-  def toJson[T](value: T, tag: Int): Array[Byte] = schemaOf(tag) match {
-    case Some(schema) => Avro.encode(value, schema, Avro.JSON)
+  def toJson[T](value: T, tag: Int): Array[Byte] = evtOf(tag) match {
+    case Some(evt) => evt.asInstanceOf[Evt[T]].toJson(value)
     case None => Array[Byte]()
   }
   
+  /**
+   * Encode straight into buf
+   * @return number of bytes written, or -1 if there is no such evt
+   * @throws java.nio.BufferOverflowException if buf has not enough remaining
+   */
+  def toAvro[T](value: T, tag: Int, buf: ByteBuffer): Int = evtOf(tag) match {
+    case Some(evt) => evt.asInstanceOf[Evt[T]].toAvro(value, buf)
+    case None => -1
+  }
+  
   def fromAvro(bytes: Array[Byte], tag: Int): Option[_] = evtOf(tag) match {
-    case Some(evt) => Avro.decode(bytes, evt.schema, evt.tpe, Avro.AVRO)
+    case Some(evt) => evt.fromAvro(bytes)
     case None => None
   }
 
   def fromJson(bytes: Array[Byte], tag: Int): Option[_] = evtOf(tag) match {
-    case Some(evt) => Avro.decode(bytes, evt.schema, evt.tpe, Avro.JSON)
+    case Some(evt) => evt.fromJson(bytes)
+    case None => None
+  }
+  
+  def fromAvro(buf: ByteBuffer, tag: Int): Option[_] = evtOf(tag) match {
+    case Some(evt) => evt.fromAvro(buf)
     case None => None
   }
   
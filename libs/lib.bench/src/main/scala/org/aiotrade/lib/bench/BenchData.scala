@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2006-2007, AIOTrade Computing Co. and Contributors
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *    
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *    
+ *  o Neither the name of AIOTrade Computing Co. nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.aiotrade.lib.bench
+
+import java.util.Random
+import org.aiotrade.lib.math.timeseries.DefaultBaseTSer
+import org.aiotrade.lib.math.timeseries.TFreq
+import org.aiotrade.lib.securities.QuoteSer
+import org.aiotrade.lib.securities.model.Quote
+import org.aiotrade.lib.securities.model.Sec
+
+/**
+ * Synthetic data shared by benchmarks. Everything is generated from a fixed seed,
+ * so runs are comparable with each other.
+ *
+ * @author Caoyuan Deng
+ */
+object BenchData {
+  val SEED = 20131201L
+  val ONE_DAY = 24 * 60 * 60 * 1000L
+  /** 2000-01-03 00:00 UTC */
+  val BEGIN_TIME = 946857600000L
+
+  def timesOf(n: Int): Array[Long] = {
+    val times = new Array[Long](n)
+    var i = -1
+    while ({i += 1; i < n}) {
+      times(i) = BEGIN_TIME + i * ONE_DAY
+    }
+    times
+  }
+
+  /**
+   * A random walk of daily quotes, high/low/close are never 0, so none of them
+   * will be dropped as bad quote.
+   */
+  def quotesOf(n: Int): Array[Quote] = {
+    val random = new Random(SEED)
+    val quotes = new Array[Quote](n)
+    var prevClose = 10.0
+    var i = -1
+    while ({i += 1; i < n}) {
+      val open = prevClose * (1 + (random.nextDouble - 0.5) * 0.02)
+      val close = open * (1 + (random.nextDouble - 0.5) * 0.04)
+      val high = math.max(open, close) * (1 + random.nextDouble * 0.01)
+      val low = math.min(open, close) * (1 - random.nextDouble * 0.01)
+      val volume = 100000 + random.nextInt(900000)
+
+      val quote = new Quote
+      quote.time = BEGIN_TIME + i * ONE_DAY
+      quote.open = open
+      quote.high = high
+      quote.low = low
+      quote.close = close
+      quote.volume = volume
+      quote.amount = volume * (high + low) / 2
+      quote.prevClose = prevClose
+      quotes(i) = quote
+
+      prevClose = close
+    }
+    quotes
+  }
+
+  /**
+   * A daily QuoteSer of an unsaved sec, no database is touched.
+   */
+  def quoteSerOf(quotes: Array[Quote]): QuoteSer = {
+    val ser = new QuoteSer(new Sec, TFreq.DAILY)
+    var i = -1
+    while ({i += 1; i < quotes.length}) {
+      ser.updateFrom(quotes(i))
+    }
+    ser
+  }
+
+  /**
+   * The column layout of Quote.importFrom
+   */
+  def vmapOf(quotes: Array[Quote]): collection.Map[String, Array[_]] = {
+    Map(
+      "." -> quotes.map(_.time),
+      "O" -> quotes.map(_.open),
+      "H" -> quotes.map(_.high),
+      "L" -> quotes.map(_.low),
+      "C" -> quotes.map(_.close),
+      "V" -> quotes.map(_.volume),
+      "A" -> quotes.map(_.amount)
+    )
+  }
+
+  /**
+   * A minimal base ser with one var, so appending measures TSer/TStamps itself,
+   * without Quote assigning and event publishing.
+   */
+  final class CloseSer extends DefaultBaseTSer {
+    val close = TVar[Double]("C")
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2006-2007, AIOTrade Computing Co. and Contributors
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *    
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *    
+ *  o Neither the name of AIOTrade Computing Co. nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.aiotrade.lib.bench
+
+import java.util.logging.Logger
+import org.aiotrade.lib.securities.data.SyncUtil
+import org.aiotrade.lib.securities.model.Exchange
+import org.aiotrade.lib.securities.model.Exchanges
+import ru.circumflex.orm._
+
+/**
+ * The in-memory database of benches that go through the securities model. Run
+ * with -Drun.mode=bench so that bench.conf is picked, the schema, the SS exchange
+ * and its synthetic secs are then created here instead of loaded from a real
+ * database.
+ *
+ * @Note Exchange loads all exchanges when it is initialized, so it should not be
+ * touched before the schema is created.
+ *
+ * @author Caoyuan Deng
+ */
+object BenchDb {
+  private val log = Logger.getLogger(this.getClass.getName)
+
+  private var uniSymbols: Array[String] = Array()
+
+  /**
+   * @return uniSymbols of at least nSecs secs, which are created in the first call
+   */
+  def createSecs(nSecs: Int): Array[String] = synchronized {
+    if (uniSymbols.length < nSecs) {
+      val t0 = System.currentTimeMillis
+      if (uniSymbols.length == 0) {
+        SyncUtil.schema()
+        Exchanges.insertBatch_!(Array(Exchange("SS", "Asia/Shanghai", Array(9, 30, 11, 30, 13, 0, 15, 0))))
+        COMMIT
+        Exchange.allExchanges = Exchanges.allExchanges
+      }
+
+      val created = Array.tabulate(nSecs - uniSymbols.length) {i => "%06d.SS".format(600000 + uniSymbols.length + i)}
+      created foreach {symbol => Exchanges.createSimpleSec(symbol, symbol)}
+      COMMIT
+      Exchange.resetSearchTables()
+
+      uniSymbols ++= created
+      log.info("Created " + created.length + " secs in " + (System.currentTimeMillis - t0) + " ms")
+    }
+    uniSymbols take nSecs
+  }
+}
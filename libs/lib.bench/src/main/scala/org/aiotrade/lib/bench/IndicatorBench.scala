@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2006-2007, AIOTrade Computing Co. and Contributors
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *    
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *    
+ *  o Neither the name of AIOTrade Computing Co. nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.aiotrade.lib.bench
+
+import java.util.concurrent.TimeUnit
+import org.aiotrade.lib.indicator.Indicator
+import org.aiotrade.lib.indicator.basic._
+import org.aiotrade.lib.securities.QuoteSer
+import org.aiotrade.lib.securities.model.Quote
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+
+/**
+ * Full and incremental recompute of each lib.indicator.basic indicator on a
+ * synthetic daily QuoteSer.
+ *
+ * o full: computeFrom(0), what happens when a ser is loaded or a factor changed.
+ * o incremental: the last bar is updated as a real-time tick does, then
+ *   computeFrom(lastTime), the ser size keeps constant between invocations.
+ *
+ * @author Caoyuan Deng
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+class IndicatorBench {
+  import BenchData._
+  import IndicatorBench._
+
+  @Param(Array("ARBR", "BIAS", "BOLL", "CCI", "DMI", "EMA", "GMMA", "HVD", "KD", "MACD",
+               "MA", "MFI", "MTM", "OBV", "ROC", "RSI", "SAR", "WMS", "ZIGZAGFA", "ZIGZAG"))
+  var indicator: String = _
+
+  @Param(Array("5000"))
+  var size: Int = _
+
+  private var ser: QuoteSer = _
+  private var ind: Indicator = _
+  private var lastQuote: Quote = _
+  private var tick = 0
+
+  @Setup(Level.Trial)
+  def setup {
+    val quotes = quotesOf(size)
+    ser = quoteSerOf(quotes)
+    lastQuote = quotes(quotes.length - 1)
+
+    ind = indicatorClasses(indicator).newInstance
+    ind.set(ser)
+    ind.computeFrom(0)
+  }
+
+  @Benchmark
+  def fullRecompute: Long = {
+    ind.computeFrom(0)
+    ind.computedTime
+  }
+
+  @Benchmark
+  def incrementalRecompute: Long = {
+    tick += 1
+    lastQuote.close = lastQuote.open * (1 + ((tick & 15) - 8) * 0.001)
+    ser.close(lastQuote.time) = lastQuote.close
+    ind.computeFrom(lastQuote.time)
+    ind.computedTime
+  }
+}
+
+object IndicatorBench {
+  val indicatorClasses: Map[String, Class[_ <: Indicator]] = Map(
+    "ARBR"     -> classOf[ARBRIndicator],
+    "BIAS"     -> classOf[BIASIndicator],
+    "BOLL"     -> classOf[BOLLIndicator],
+    "CCI"      -> classOf[CCIIndicator],
+    "DMI"      -> classOf[DMIIndicator],
+    "EMA"      -> classOf[EMAIndicator],
+    "GMMA"     -> classOf[GMMAIndicator],
+    "HVD"      -> classOf[HVDIndicator],
+    "KD"       -> classOf[KDIndicator],
+    "MACD"     -> classOf[MACDIndicator],
+    "MA"       -> classOf[MAIndicator],
+    "MFI"      -> classOf[MFIIndicator],
+    "MTM"      -> classOf[MTMIndicator],
+    "OBV"      -> classOf[OBVIndicator],
+    "ROC"      -> classOf[ROCIndicator],
+    "RSI"      -> classOf[RSIIndicator],
+    "SAR"      -> classOf[SARIndicator],
+    "WMS"      -> classOf[WMSIndicator],
+    "ZIGZAGFA" -> classOf[ZIGZAGFAIndicator],
+    "ZIGZAG"   -> classOf[ZIGZAGIndicator]
+  )
+}
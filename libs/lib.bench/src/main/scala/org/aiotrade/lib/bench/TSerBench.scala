@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2006-2007, AIOTrade Computing Co. and Contributors
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *    
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *    
+ *  o Neither the name of AIOTrade Computing Co. nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.aiotrade.lib.bench
+
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+
+/**
+ * DefaultTSer appending (createOrReset + var update) and lookup by time.
+ *
+ * @author Caoyuan Deng
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+class TSerBench {
+  import BenchData._
+
+  @Param(Array("1000", "10000"))
+  var size: Int = _
+
+  private var times: Array[Long] = _
+  private var ser: CloseSer = _
+  private var lookupIdx = 0
+
+  @Setup(Level.Trial)
+  def setup {
+    times = timesOf(size)
+    ser = new CloseSer
+    appendAll(ser)
+  }
+
+  private def appendAll(ser: CloseSer) {
+    var i = -1
+    while ({i += 1; i < times.length}) {
+      val time = times(i)
+      ser.createOrReset(time)
+      ser.close(time) = i
+    }
+  }
+
+  /** append size items to an empty ser */
+  @Benchmark
+  def append: Int = {
+    val ser = new CloseSer
+    appendAll(ser)
+    ser.size
+  }
+
+  /** append size items to an empty ser in single-writer mode */
+  @Benchmark
+  def appendSingleWriter: Int = {
+    val ser = new CloseSer
+    ser.toSingleWriterMode()
+    appendAll(ser)
+    ser.size
+  }
+
+  /** update an existing item, it's what real-time ticks do to the last bar */
+  @Benchmark
+  def reset: Double = {
+    val time = times(times.length - 1)
+    ser.createOrReset(time)
+    ser.close(time) = time
+    ser.close(time)
+  }
+
+  @Benchmark
+  def lookupByTime: Double = {
+    lookupIdx += 7
+    if (lookupIdx >= times.length) lookupIdx -= times.length
+    ser.close(times(lookupIdx))
+  }
+
+  @Benchmark
+  def lookupByIndex: Double = {
+    lookupIdx += 7
+    if (lookupIdx >= times.length) lookupIdx -= times.length
+    ser.close(lookupIdx)
+  }
+}
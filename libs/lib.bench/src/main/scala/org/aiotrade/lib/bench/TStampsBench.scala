@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2006-2007, AIOTrade Computing Co. and Contributors
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *    
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *    
+ *  o Neither the name of AIOTrade Computing Co. nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.aiotrade.lib.bench
+
+import java.util.Random
+import java.util.concurrent.TimeUnit
+import org.aiotrade.lib.math.timeseries.TStamps
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+
+/**
+ * TStamps.indexOfOccurredTime on hits, misses, and the last time, which is the
+ * most frequent lookup of real-time updating.
+ *
+ * @author Caoyuan Deng
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+class TStampsBench {
+  import BenchData._
+
+  private val N_PROBES = 1024
+
+  @Param(Array("1000", "100000"))
+  var size: Int = _
+
+  @Param(Array("false", "true"))
+  var singleWriter: Boolean = _
+
+  private var tstamps: TStamps = _
+  private var hits: Array[Long] = _
+  private var misses: Array[Long] = _
+  private var probeIdx = 0
+
+  @Setup(Level.Trial)
+  def setup {
+    tstamps = TStamps(size)
+    if (singleWriter) tstamps.toSingleWriterMode()
+    val times = timesOf(size)
+    tstamps ++= times
+
+    val random = new Random(SEED)
+    hits = new Array[Long](N_PROBES)
+    misses = new Array[Long](N_PROBES)
+    var i = -1
+    while ({i += 1; i < N_PROBES}) {
+      val time = times(random.nextInt(size))
+      hits(i) = time
+      misses(i) = time + ONE_DAY / 2
+    }
+  }
+
+  private def nextProbe: Int = {
+    probeIdx = (probeIdx + 1) & (N_PROBES - 1)
+    probeIdx
+  }
+
+  @Benchmark
+  def indexOfHit: Int = tstamps.indexOfOccurredTime(hits(nextProbe))
+
+  @Benchmark
+  def indexOfMiss: Int = tstamps.indexOfOccurredTime(misses(nextProbe))
+
+  @Benchmark
+  def indexOfLast: Int = tstamps.indexOfOccurredTime(tstamps.lastOccurredTime)
+
+  @Benchmark
+  def nearestIndexOf: Int = tstamps.nearestIndexOfOccurredTime(misses(nextProbe))
+}
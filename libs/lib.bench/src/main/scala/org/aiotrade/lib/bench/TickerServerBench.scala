@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2006-2007, AIOTrade Computing Co. and Contributors
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *    
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *    
+ *  o Neither the name of AIOTrade Computing Co. nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.aiotrade.lib.bench
+
+import java.util.Random
+import java.util.TimeZone
+import java.util.concurrent.TimeUnit
+import java.util.logging.Logger
+import org.aiotrade.lib.securities.dataserver.TickerContract
+import org.aiotrade.lib.securities.dataserver.TickerServer
+import org.aiotrade.lib.securities.model.Ticker
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+
+/**
+ * TickerServer.processData on synthetic ticker batches of subscribed synthetic
+ * secs. Each invocation moves all tickers one second forward, with a new
+ * price and a larger day volume, so every ticker produces an execution and
+ * updates its daily/minute quotes, as a busy market does.
+ *
+ * The secs are created by BenchDb in an in-memory database, see bench.conf.
+ * Persisting goes through the write-behind queue, which is drained on tear
+ * down. The batch latencies of TickerServer are logged on tear down.
+ *
+ * @author Caoyuan Deng
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = Array("-Drun.mode=bench"))
+class TickerServerBench {
+  import BenchData._
+  import TickerServerBench._
+
+  /** number of symbols in a batch */
+  @Param(Array("100", "1000", "5000"))
+  var batchSize: Int = _
+
+  private var server: BenchTickerServer = _
+  private var tickers: Array[Ticker] = _
+  private var random: Random = _
+  private var time = 0L
+
+  @Setup(Level.Trial)
+  def setup {
+    val symbols = BenchDb.createSecs(batchSize)
+
+    server = new BenchTickerServer
+    symbols foreach {symbol =>
+      val contract = new TickerContract
+      contract.srcSymbol = symbol
+      server.subscribe(contract)
+    }
+    random = new Random(SEED)
+    time = System.currentTimeMillis / 1000 * 1000
+    tickers = symbols map {symbol =>
+      val ticker = new Ticker
+      ticker.uniSymbol = symbol
+      ticker.time = time
+      ticker.prevClose = 10.0
+      ticker.lastPrice = 10.0
+      ticker.dayOpen = 10.0
+      ticker.dayHigh = 10.0
+      ticker.dayLow = 10.0
+      ticker.dayVolume = 100
+      ticker.dayAmount = 1000
+      ticker
+    }
+  }
+
+  @TearDown(Level.Trial)
+  def tearDown {
+    TickerServer.writeBehind.close()
+    log.info(TickerServer.batchLatencies.toString)
+  }
+
+  @Benchmark
+  def processData: Long = {
+    time += 1000
+    var i = -1
+    while ({i += 1; i < tickers.length}) {
+      val ticker = tickers(i)
+      val price = ticker.lastPrice * (1 + (random.nextDouble - 0.5) * 0.002)
+      val volume = 100 + random.nextInt(1000)
+      ticker.time = time
+      ticker.lastPrice = price
+      ticker.dayHigh = math.max(ticker.dayHigh, price)
+      ticker.dayLow = math.min(ticker.dayLow, price)
+      ticker.dayVolume += volume
+      ticker.dayAmount += volume * price
+    }
+    server.process(tickers)
+  }
+}
+
+object TickerServerBench {
+  private val log = Logger.getLogger(this.getClass.getName)
+}
+
+/**
+ * Exposes processData, never requests data by itself.
+ */
+final class BenchTickerServer extends TickerServer {
+  override 
+  def startRefresh {}
+
+  protected def requestData(contracts: Iterable[TickerContract]) {}
+
+  def process(tickers: Array[Ticker]): Long = processData(tickers, null)
+
+  val displayName = "Bench Ticker Server"
+  val defaultDatePattern = "MM/dd/yyyy h:mma"
+  val serialNumber = 103
+  val sourceTimeZone = TimeZone.getDefault
+}
@@ -54,23 +54,23 @@ class ARBRIndicator extends Indicator {
   protected def compute(fromIdx: Int, size: Int) {
     var i = fromIdx
     while (i < size) {
-      up(i) = H(i) - O(i)
+      up.updateDouble(i, H.double(i) - O.double(i))
       val up_sum_i = sum(i, up, period)
             
-      dn(i) = O(i) - L(i)
+      dn.updateDouble(i, O.double(i) - L.double(i))
       val dn_sum_i = sum(i, dn, period)
             
-      ar(i) = up_sum_i / dn_sum_i * 100
+      ar.updateDouble(i, up_sum_i / dn_sum_i * 100)
             
-      val bs_tmp = H(i) - C(i)
-      bs(i) = math.max(0, bs_tmp)
+      val bs_tmp = H.double(i) - C.double(i)
+      bs.updateDouble(i, math.max(0, bs_tmp))
       val bs_sum_i = sum(i, bs, period)
             
-      val ss_tmp = C(i) - L(i)
-      ss(i) = math.max(0, ss_tmp)
+      val ss_tmp = C.double(i) - L.double(i)
+      ss.updateDouble(i, math.max(0, ss_tmp))
       val ss_sum_i = sum(i, ss, period)
             
-      br(i) = bs_sum_i / ss_sum_i * 100
+      br.updateDouble(i, bs_sum_i / ss_sum_i * 100)
 
       i += 1
     }
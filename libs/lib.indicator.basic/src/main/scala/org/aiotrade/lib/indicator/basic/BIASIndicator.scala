@@ -55,9 +55,9 @@ class BIASIndicator extends Indicator {
       val ma2 = ma(i, C, period2)
       val ma3 = ma(i, C, period3)
             
-      bias1(i) = (C(i) - ma1) / ma1 * 100
-      bias2(i) = (C(i) - ma2) / ma2 * 100
-      bias3(i) = (C(i) - ma3) / ma3 * 100
+      bias1.updateDouble(i, (C.double(i) - ma1) / ma1 * 100)
+      bias2.updateDouble(i, (C.double(i) - ma2) / ma2 * 100)
+      bias3.updateDouble(i, (C.double(i) - ma3) / ma3 * 100)
 
       i += 1
     }
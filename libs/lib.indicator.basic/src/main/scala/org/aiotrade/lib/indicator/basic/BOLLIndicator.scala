@@ -56,10 +56,10 @@ class BOLLIndicator extends Indicator {
     var i = fromIdx
     while (i < size) {
       boll_m (i) = bollMiddle(i, C, period, alpha1)
-      boll_u1(i) = bollUpper (i, C, period, alpha1)
-      boll_l1(i) = bollLower (i, C, period, alpha1)
-      boll_u2(i) = bollUpper (i, C, period, alpha2)
-      boll_l2(i) = bollLower (i, C, period, alpha2)
+      boll_u1.updateDouble(i, bollUpper (i, C, period, alpha1))
+      boll_l1.updateDouble(i, bollLower (i, C, period, alpha1))
+      boll_u2.updateDouble(i, bollUpper (i, C, period, alpha2))
+      boll_l2.updateDouble(i, bollLower (i, C, period, alpha2))
 
       i += 1
     }
@@ -51,8 +51,8 @@ class CCIIndicator extends Indicator {
   protected def compute(fromIdx: Int, size: Int) {
     var i = fromIdx
     while (i < size) {
-      cci(i)    = cci(i, period, alpha)
-      cci_ma(i) = ma (i, cci, periodMa)
+      cci.updateDouble(i, cci(i, period, alpha))
+      cci_ma.updateDouble(i, ma (i, cci, periodMa))
 
       i += 1
     }
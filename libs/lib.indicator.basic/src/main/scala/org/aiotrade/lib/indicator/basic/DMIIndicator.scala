@@ -53,7 +53,7 @@ class DMIIndicator extends Indicator {
     var i = fromIdx
     while (i < size) {
       diPlus (i) = diPlus( i, periodDi)
-      diMinus(i) = diMinus(i, periodDi)
+      diMinus.updateDouble(i, diMinus(i, periodDi))
       adx    (i) = adx(    i, periodDi, periodAdx)
       adxr   (i) = adxr(   i, periodDi, periodAdx)
 
@@ -52,9 +52,9 @@ class EMAIndicator extends Indicator {
   protected def compute(fromIdx: Int, size: Int) {
     var i = fromIdx
     while (i < size) {
-      ema1(i) = ema(i, C, period1)
-      ema2(i) = ema(i, C, period2)
-      ema3(i) = ema(i, C, period3)
+      ema1.updateDouble(i, ema(i, C, period1))
+      ema2.updateDouble(i, ema(i, C, period2))
+      ema3.updateDouble(i, ema(i, C, period3))
 
       i += 1
     }
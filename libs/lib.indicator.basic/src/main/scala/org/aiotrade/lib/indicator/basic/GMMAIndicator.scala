@@ -70,18 +70,18 @@ class GMMAIndicator extends Indicator {
   protected def compute(fromIdx: Int, size: Int) {
     var i = fromIdx
     while (i < size) {
-      ma01(i) = ma(i, C, period01)
-      ma02(i) = ma(i, C, period02)
-      ma03(i) = ma(i, C, period03)
-      ma04(i) = ma(i, C, period04)
-      ma05(i) = ma(i, C, period05)
-      ma06(i) = ma(i, C, period06)
-      ma07(i) = ma(i, C, period07)
-      ma08(i) = ma(i, C, period08)
-      ma09(i) = ma(i, C, period09)
-      ma10(i) = ma(i, C, period10)
-      ma11(i) = ma(i, C, period11)
-      ma12(i) = ma(i, C, period12)
+      ma01.updateDouble(i, ma(i, C, period01))
+      ma02.updateDouble(i, ma(i, C, period02))
+      ma03.updateDouble(i, ma(i, C, period03))
+      ma04.updateDouble(i, ma(i, C, period04))
+      ma05.updateDouble(i, ma(i, C, period05))
+      ma06.updateDouble(i, ma(i, C, period06))
+      ma07.updateDouble(i, ma(i, C, period07))
+      ma08.updateDouble(i, ma(i, C, period08))
+      ma09.updateDouble(i, ma(i, C, period09))
+      ma10.updateDouble(i, ma(i, C, period10))
+      ma11.updateDouble(i, ma(i, C, period11))
+      ma12.updateDouble(i, ma(i, C, period12))
 
       i += 1
     }
@@ -52,9 +52,9 @@ class KDIndicator extends Indicator {
   protected def compute(fromIdx: Int, size: Int) {
     var i = fromIdx
     while (i < size) {
-      k(i) = stochK(i, period, periodK)
-      d(i) = stochD(i, period, periodK, periodD)
-      j(i) = stochJ(i, period, periodK, periodD)
+      k.updateDouble(i, stochK(i, period, periodK))
+      d.updateDouble(i, stochD(i, period, periodK, periodD))
+      j.updateDouble(i, stochJ(i, period, periodK, periodD))
 
       i += 1
     }
@@ -51,9 +51,9 @@ class MACDIndicator extends Indicator {
   protected def compute(fromIdx: Int, size: Int) = {
     var i = fromIdx
     while (i < size) {
-      macd(i)   = macd(i, C, periodSlow, periodFast)
-      signal(i) = ema (i, macd, periodSignal)
-      osc(i)    = macd(i) - signal(i)
+      macd.updateDouble(i, macd(i, C, periodSlow, periodFast))
+      signal.updateDouble(i, ema (i, macd, periodSignal))
+      osc.updateDouble(i, macd.double(i) - signal.double(i))
       
       i += 1
     }
@@ -52,9 +52,9 @@ class MAIndicator extends Indicator {
   protected def compute(fromIdx: Int, size: Int): Unit = {
     var i = fromIdx
     while (i < size) {
-      ma1(i) = ma(i, C, period1)
-      ma2(i) = ma(i, C, period2)
-      ma3(i) = ma(i, C, period3)
+      ma1.updateDouble(i, ma(i, C, period1))
+      ma2.updateDouble(i, ma(i, C, period2))
+      ma3.updateDouble(i, ma(i, C, period3))
 
       i += 1
     }
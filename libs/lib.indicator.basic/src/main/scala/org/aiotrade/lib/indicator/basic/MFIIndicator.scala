@@ -48,7 +48,7 @@ class MFIIndicator extends Indicator {
   protected def compute(fromIdx: Int, size: Int): Unit = {
     var i = fromIdx
     while (i < size) {
-      mfi(i) = mfi(i, period)
+      mfi.updateDouble(i, mfi(i, period))
 
       i += 1
     }
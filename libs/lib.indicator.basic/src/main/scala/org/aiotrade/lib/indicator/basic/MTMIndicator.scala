@@ -49,8 +49,8 @@ class MTMIndicator extends Indicator {
   protected def compute(fromIdx: Int, size: Int) {
     var i = fromIdx
     while (i < size) {
-      mtm(i) = mtm(i, C, period)
-      mtm_ma(i) = ma(i, mtm, periodSmooth)
+      mtm.updateDouble(i, mtm(i, C, period))
+      mtm_ma.updateDouble(i, ma(i, mtm, periodSmooth))
 
       i += 1
     }
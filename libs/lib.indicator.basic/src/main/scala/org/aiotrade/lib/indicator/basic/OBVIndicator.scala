@@ -45,7 +45,7 @@ class OBVIndicator extends Indicator {
   protected def compute(fromIdx: Int, size: Int): Unit = {
     var i = fromIdx
     while (i < size) {
-      obv1(i) = obv(i)
+      obv1.updateDouble(i, obv(i))
 
       i += 1
     }
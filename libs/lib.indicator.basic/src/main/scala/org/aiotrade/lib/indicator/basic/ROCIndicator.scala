@@ -49,8 +49,8 @@ class ROCIndicator extends Indicator {
   protected def compute(fromIdx: Int, size: Int) {
     var i = fromIdx
     while (i < size) {
-      roc1(i) = roc(i, C, period1)
-      roc2(i) = roc(i, C, period2)
+      roc1.updateDouble(i, roc(i, C, period1))
+      roc2.updateDouble(i, roc(i, C, period2))
 
       i += 1
     }
@@ -52,9 +52,9 @@ class RSIIndicator extends Indicator {
   protected def compute(fromIdx: Int, size: Int) {
     var i = fromIdx
     while (i < size) {
-      rsi1(i) = rsi(i, periodS)
-      rsi2(i) = rsi(i, periodM)
-      rsi3(i) = rsi(i, periodL)
+      rsi1.updateDouble(i, rsi(i, periodS))
+      rsi2.updateDouble(i, rsi(i, periodM))
+      rsi3.updateDouble(i, rsi(i, periodL))
 
       i += 1
     }
@@ -50,7 +50,7 @@ class SARIndicator extends Indicator {
   protected def compute(fromIdx: Int, size: Int) {
     var i = fromIdx
     while (i < size) {
-      sar(i) = sar(i, initial, step, maximum)
+      sar.updateDouble(i, sar(i, initial, step, maximum))
 
       i += 1
     }
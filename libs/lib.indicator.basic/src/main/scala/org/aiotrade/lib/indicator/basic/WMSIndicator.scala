@@ -50,8 +50,8 @@ class WMSIndicator extends Indicator {
   protected def compute(fromIdx: Int, size: Int) {
     var i = fromIdx
     while (i < size) {
-      wms1(i) = wms(i, period1)
-      wms2(i) = wms(i, period2)
+      wms1.updateDouble(i, wms(i, period1))
+      wms2.updateDouble(i, wms(i, period2))
 
       i += 1
     }
@@ -49,8 +49,8 @@ class ZIGZAGIndicator extends Indicator {
   protected def compute(fromIdx: Int, size: Int) {
     var i = fromIdx
     while (i < size) {
-      zigzag(i) = zigzag(i, percent)
-      pseudoZigzag(i) = pseudoZigzag(i, percent)
+      zigzag.updateDouble(i, zigzag(i, percent))
+      pseudoZigzag.updateDouble(i, pseudoZigzag(i, percent))
 
       i += 1
     }
@@ -53,9 +53,9 @@ class MACDSignal extends SignalIndicator {
   protected def compute(fromIdx: Int, size: Int) {
     var i = fromIdx
     while (i < size) {
-      _macd(i) = macd(i, C, periodSlow, periodFast)
-      _signal(i) = ema(i, _macd, periodSignal)
-      _osc(i) = _macd(i) - _signal(i)
+      _macd.updateDouble(i, macd(i, C, periodSlow, periodFast))
+      _signal.updateDouble(i, ema(i, _macd, periodSignal))
+      _osc.updateDouble(i, _macd.double(i) - _signal.double(i))
 
       if (crossOver(i, _macd, _signal)) {
         sign(i, Side.EnterLong)
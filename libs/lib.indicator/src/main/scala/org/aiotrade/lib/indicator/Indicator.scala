@@ -33,6 +33,7 @@ package org.aiotrade.lib.indicator
 import org.aiotrade.lib.indicator.function._
 import org.aiotrade.lib.math.indicator.Factor
 import org.aiotrade.lib.math.indicator.Function
+import org.aiotrade.lib.math.indicator.FunctionScope
 import org.aiotrade.lib.math.indicator.IndicatorHelper
 import org.aiotrade.lib.math.signal.Side
 import org.aiotrade.lib.math.timeseries.{DefaultTSer, TVar, BaseTSer}
@@ -62,6 +63,12 @@ abstract class Indicator(protected var _baseSer: BaseTSer) extends DefaultTSer
    */
   private var _computedTime = Long.MinValue
   
+  /** 
+   * Scope that this is created in, the functions are looked up in it, even if 
+   * computed in other threads, @see FunctionScope 
+   */
+  protected val functionScope = FunctionScope.current
+  
   /** Always use unadjusted values?, override it to get you want */
   val isUsingUnadjusted = false
   
@@ -212,8 +219,8 @@ abstract class Indicator(protected var _baseSer: BaseTSer) extends DefaultTSer
   // ----- Functions for test
   final protected def crossOver(idx: Int, var1: TVar[Double], var2: TVar[Double]): Boolean = {
     if (idx > 0) {
-      if (var1(idx) >= var2(idx) &&
-          var1(idx - 1) < var2(idx - 1)) {
+      if (var1.double(idx) >= var2.double(idx) &&
+          var1.double(idx - 1) < var2.double(idx - 1)) {
         return true
       }
     }
@@ -222,8 +229,8 @@ abstract class Indicator(protected var _baseSer: BaseTSer) extends DefaultTSer
 
   final protected def crossOver(idx: Int, var1: TVar[Double], value:Double): Boolean = {
     if (idx > 0) {
-      if (var1(idx) >= value &&
-          var1(idx - 1) < value) {
+      if (var1.double(idx) >= value &&
+          var1.double(idx - 1) < value) {
         return true
       }
     }
@@ -232,8 +239,8 @@ abstract class Indicator(protected var _baseSer: BaseTSer) extends DefaultTSer
 
   final protected def crossUnder(idx: Int, var1: TVar[Double], var2: TVar[Double]): Boolean = {
     if (idx > 0) {
-      if (var1(idx) < var2(idx) &&
-          var1(idx - 1) >= var2(idx - 1)) {
+      if (var1.double(idx) < var2.double(idx) &&
+          var1.double(idx - 1) >= var2.double(idx - 1)) {
         return true
       }
     }
@@ -242,8 +249,8 @@ abstract class Indicator(protected var _baseSer: BaseTSer) extends DefaultTSer
 
   final protected def crossUnder(idx: Int, var1: TVar[Double], value: Double): Boolean = {
     if (idx > 0) {
-      if (var1(idx) < value &&
-          var1(idx - 1) >= value) {
+      if (var1.double(idx) < value &&
+          var1.double(idx - 1) >= value) {
         true
       }
     }
@@ -252,8 +259,8 @@ abstract class Indicator(protected var _baseSer: BaseTSer) extends DefaultTSer
 
   final protected def turnUp(idx: Int, var1: TVar[Double]): Boolean = {
     if (idx > 1) {
-      if (var1(idx) > var1(idx - 1) &&
-          var1(idx - 1) <= var1(idx - 2)) {
+      if (var1.double(idx) > var1.double(idx - 1) &&
+          var1.double(idx - 1) <= var1.double(idx - 2)) {
         return true
       }
     }
@@ -262,8 +269,8 @@ abstract class Indicator(protected var _baseSer: BaseTSer) extends DefaultTSer
 
   final protected def turnDown(idx: Int, var1: TVar[Double]): Boolean = {
     if (idx > 1) {
-      if (var1(idx) < var1(idx - 1) &&
-          var1(idx - 1) >= var1(idx - 2)) {
+      if (var1.double(idx) < var1.double(idx - 1) &&
+          var1.double(idx - 1) >= var1.double(idx - 2)) {
         return true
       }
     }
@@ -273,143 +280,143 @@ abstract class Indicator(protected var _baseSer: BaseTSer) extends DefaultTSer
   // ----- End of functions for test
     
   final protected def sum(idx: Int, baseVar: TVar[_], period: Factor): Double = {
-    Function(classOf[SUMFunction], baseSer, baseVar, period).sum(sessionId, idx)
+    Function(functionScope, classOf[SUMFunction], baseSer, baseVar, period).sum(sessionId, idx)
   }
     
   final protected def max(idx: Int, baseVar: TVar[_], period: Factor): Double = {
-    Function(classOf[MAXFunction], baseSer, baseVar, period).max(sessionId, idx)
+    Function(functionScope, classOf[MAXFunction], baseSer, baseVar, period).max(sessionId, idx)
   }
     
   final protected def min(idx: Int, baseVar: TVar[_], period: Factor): Double = {
-    Function(classOf[MINFunction], baseSer, baseVar, period).min(sessionId, idx)
+    Function(functionScope, classOf[MINFunction], baseSer, baseVar, period).min(sessionId, idx)
   }
     
   final protected def ma(idx: Int, baseVar: TVar[_], period: Factor): Double = {
-    Function(classOf[MAFunction], baseSer, baseVar, period).ma(sessionId, idx)
+    Function(functionScope, classOf[MAFunction], baseSer, baseVar, period).ma(sessionId, idx)
   }
     
   final protected def ema(idx: Int, baseVar: TVar[_], period: Factor): Double = {
-    Function(classOf[EMAFunction], baseSer, baseVar, period).ema(sessionId, idx)
+    Function(functionScope, classOf[EMAFunction], baseSer, baseVar, period).ema(sessionId, idx)
   }
     
   final protected def stdDev(idx: Int, baseVar: TVar[_], period: Factor): Double = {
-    Function(classOf[STDDEVFunction], baseSer, baseVar, period).stdDev(sessionId, idx)
+    Function(functionScope, classOf[STDDEVFunction], baseSer, baseVar, period).stdDev(sessionId, idx)
   }
     
   final protected def probMass(idx: Int, baseVar: TVar[Double], period: Factor, nInterval: Factor): Array[Array[Double]] = {
-    Function(classOf[PROBMASSFunction], baseSer, baseVar, null, period, nInterval).probMass(sessionId, idx)
+    Function(functionScope, classOf[PROBMASSFunction], baseSer, baseVar, null, period, nInterval).probMass(sessionId, idx)
   }
     
   final protected def probMass(idx: Int, baseVar: TVar[Double], weight: TVar[Double], period: Factor, nInterval: Factor): Array[Array[Double]] = {
-    Function(classOf[PROBMASSFunction], baseSer, baseVar, weight, period, nInterval).probMass(sessionId, idx)
+    Function(functionScope, classOf[PROBMASSFunction], baseSer, baseVar, weight, period, nInterval).probMass(sessionId, idx)
   }
     
   final protected def tr(idx: Int): Double = {
-    Function(classOf[TRFunction], baseSer).tr(sessionId, idx)
+    Function(functionScope, classOf[TRFunction], baseSer).tr(sessionId, idx)
   }
     
   final protected def dmPlus(idx: Int): Double = {
-    Function(classOf[DMFunction], baseSer).dmPlus(sessionId, idx)
+    Function(functionScope, classOf[DMFunction], baseSer).dmPlus(sessionId, idx)
   }
     
   final protected def dmMinus(idx: Int): Double = {
-    Function(classOf[DMFunction], baseSer).dmMinus(sessionId, idx)
+    Function(functionScope, classOf[DMFunction], baseSer).dmMinus(sessionId, idx)
   }
     
   final protected def diPlus(idx: Int, period: Factor): Double = {
-    Function(classOf[DIFunction], baseSer, period).diPlus(sessionId, idx)
+    Function(functionScope, classOf[DIFunction], baseSer, period).diPlus(sessionId, idx)
   }
     
   final protected def diMinus(idx: Int, period: Factor): Double = {
-    Function(classOf[DIFunction], baseSer, period).diMinus(sessionId, idx)
+    Function(functionScope, classOf[DIFunction], baseSer, period).diMinus(sessionId, idx)
   }
     
   final protected def dx(idx: Int, period: Factor): Double = {
-    Function(classOf[DXFunction], baseSer, period).dx(sessionId, idx)
+    Function(functionScope, classOf[DXFunction], baseSer, period).dx(sessionId, idx)
   }
     
   final protected def adx(idx: Int, periodDi: Factor, periodAdx: Factor): Double = {
-    Function(classOf[ADXFunction], baseSer, periodDi, periodAdx).adx(sessionId, idx)
+    Function(functionScope, classOf[ADXFunction], baseSer, periodDi, periodAdx).adx(sessionId, idx)
   }
     
   final protected def adxr(idx: Int, periodDi: Factor, periodAdx: Factor): Double = {
-    Function(classOf[ADXRFunction], baseSer, periodDi, periodAdx).adxr(sessionId, idx)
+    Function(functionScope, classOf[ADXRFunction], baseSer, periodDi, periodAdx).adxr(sessionId, idx)
   }
     
   final protected def bollMiddle(idx: Int, baseVar: TVar[_], period: Factor, alpha: Factor): Double = {
-    Function(classOf[BOLLFunction], baseSer, baseVar, period, alpha).bollMiddle(sessionId, idx)
+    Function(functionScope, classOf[BOLLFunction], baseSer, baseVar, period, alpha).bollMiddle(sessionId, idx)
   }
     
   final protected def bollUpper(idx: Int, baseVar: TVar[_], period: Factor, alpha: Factor): Double = {
-    Function(classOf[BOLLFunction], baseSer, baseVar, period, alpha).bollUpper(sessionId, idx)
+    Function(functionScope, classOf[BOLLFunction], baseSer, baseVar, period, alpha).bollUpper(sessionId, idx)
   }
     
   final protected def bollLower(idx: Int, baseVar: TVar[_], period: Factor, alpha: Factor): Double = {
-    Function(classOf[BOLLFunction], baseSer, baseVar, period, alpha).bollLower(sessionId, idx)
+    Function(functionScope, classOf[BOLLFunction], baseSer, baseVar, period, alpha).bollLower(sessionId, idx)
   }
     
   final protected def cci(idx: Int, period: Factor, alpha: Factor): Double = {
-    Function(classOf[CCIFunction], baseSer, period, alpha).cci(sessionId, idx)
+    Function(functionScope, classOf[CCIFunction], baseSer, period, alpha).cci(sessionId, idx)
   }
     
   final protected def macd(idx: Int, baseVar: TVar[_], periodSlow: Factor, periodFast: Factor): Double = {
-    Function(classOf[MACDFunction], baseSer, baseVar, periodSlow, periodFast).macd(sessionId, idx)
+    Function(functionScope, classOf[MACDFunction], baseSer, baseVar, periodSlow, periodFast).macd(sessionId, idx)
   }
     
   final protected def mfi(idx: Int, period: Factor): Double = {
-    Function(classOf[MFIFunction], baseSer, period).mfi(sessionId, idx)
+    Function(functionScope, classOf[MFIFunction], baseSer, period).mfi(sessionId, idx)
   }
     
   final protected def mtm(idx: Int, baseVar: TVar[_], period: Factor): Double = {
-    Function(classOf[MTMFunction], baseSer, baseVar, period).mtm(sessionId, idx)
+    Function(functionScope, classOf[MTMFunction], baseSer, baseVar, period).mtm(sessionId, idx)
   }
     
   final protected def obv(idx: Int): Double = {
-    Function(classOf[OBVFunction], baseSer).obv(sessionId, idx)
+    Function(functionScope, classOf[OBVFunction], baseSer).obv(sessionId, idx)
   }
     
   final protected def roc(idx: Int, baseVar: TVar[_], period: Factor): Double = {
-    Function(classOf[ROCFunction], baseSer, baseVar, period).roc(sessionId, idx)
+    Function(functionScope, classOf[ROCFunction], baseSer, baseVar, period).roc(sessionId, idx)
   }
     
   final protected def rsi(idx: Int, period: Factor): Double = {
-    Function(classOf[RSIFunction], baseSer, period).rsi(sessionId, idx)
+    Function(functionScope, classOf[RSIFunction], baseSer, period).rsi(sessionId, idx)
   }
     
   final protected def sar(idx: Int, initial: Factor, step: Factor, maximum: Factor): Double = {
-    Function(classOf[SARFunction], baseSer, initial, step, maximum).sar(sessionId, idx)
+    Function(functionScope, classOf[SARFunction], baseSer, initial, step, maximum).sar(sessionId, idx)
   }
     
   final protected def sarSide(idx: Int, initial: Factor, step: Factor, maximum: Factor): Side = {
-    Function(classOf[SARFunction], baseSer, initial, step, maximum).sarSide(sessionId, idx)
+    Function(functionScope, classOf[SARFunction], baseSer, initial, step, maximum).sarSide(sessionId, idx)
   }
     
   final protected def stochK(idx: Int, period: Factor, periodK: Factor): Double = {
-    Function(classOf[STOCHKFunction], baseSer, period, periodK).stochK(sessionId, idx)
+    Function(functionScope, classOf[STOCHKFunction], baseSer, period, periodK).stochK(sessionId, idx)
   }
     
   final protected def stochD(idx: Int, period: Factor, periodK: Factor, periodD: Factor): Double = {
-    Function(classOf[STOCHDFunction], baseSer, period, periodK, periodD).stochD(sessionId, idx)
+    Function(functionScope, classOf[STOCHDFunction], baseSer, period, periodK, periodD).stochD(sessionId, idx)
   }
     
   final protected def stochJ(idx: Int, period: Factor, periodK: Factor, periodD: Factor): Double = {
-    Function(classOf[STOCHJFunction], baseSer, period, periodK, periodD).stochJ(sessionId, idx)
+    Function(functionScope, classOf[STOCHJFunction], baseSer, period, periodK, periodD).stochJ(sessionId, idx)
   }
     
   final protected def wms(idx: Int, period: Factor): Double = {
-    Function(classOf[WMSFunction], baseSer, period).wms(sessionId, idx)
+    Function(functionScope, classOf[WMSFunction], baseSer, period).wms(sessionId, idx)
   }
     
   final protected def zigzag(idx: Int, percent: Factor): Double = {
-    Function(classOf[ZIGZAGFunction], baseSer, percent).zigzag(sessionId, idx)
+    Function(functionScope, classOf[ZIGZAGFunction], baseSer, percent).zigzag(sessionId, idx)
   }
     
   final protected def pseudoZigzag(idx: Int, percent: Factor): Double = {
-    Function(classOf[ZIGZAGFunction], baseSer, percent).pseudoZigzag(sessionId, idx)
+    Function(functionScope, classOf[ZIGZAGFunction], baseSer, percent).pseudoZigzag(sessionId, idx)
   }
     
   final protected def zigzagSide(idx: Int, percent: Factor): Side = {
-    Function(classOf[ZIGZAGFunction], baseSer, percent).zigzagSide(sessionId, idx)
+    Function(functionScope, classOf[ZIGZAGFunction], baseSer, percent).zigzagSide(sessionId, idx)
   }
     
   override def dispose {
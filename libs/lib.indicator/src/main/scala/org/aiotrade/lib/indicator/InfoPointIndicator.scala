@@ -38,7 +38,7 @@ class InfoPointIndicator extends Indicator {
     while (i < size) {
       val info = infos(i)
       if (info != null && !info.isEmpty) {
-        exists(i) = 0
+        exists.updateDouble(i, 0)
       }
 
       i += 1
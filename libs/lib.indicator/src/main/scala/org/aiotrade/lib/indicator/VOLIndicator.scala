@@ -49,9 +49,9 @@ class VOLIndicator extends Indicator {
   protected def compute(fromIdx: Int, size: Int) {
     var i = fromIdx
     while (i < size) {
-      vol(i) = V(i)
-      ma1(i) = ma(i, V, period1)
-      ma2(i) = ma(i, V, period2)
+      vol.updateDouble(i, V.double(i))
+      ma1.updateDouble(i, ma(i, V, period1))
+      ma2.updateDouble(i, ma(i, V, period2))
       i += 1
     }
   }
@@ -56,15 +56,15 @@ class ADXFunction extends Function {
   }
     
   protected def computeSpot(i: Int): Unit = {
-    _dx(i) = dx(i, periodDi)
+    _dx.updateDouble(i, dx(i, periodDi))
         
     if (i < periodDi.value - 1 || i < periodAdx.value - 1) {
             
-      _adx(i) = Null.Double
+      _adx.updateDouble(i, Null.Double)
             
     } else {
             
-      _adx(i) = ma(i, _dx, periodAdx)
+      _adx.updateDouble(i, ma(i, _dx, periodAdx))
             
     }
   }
@@ -72,7 +72,7 @@ class ADXFunction extends Function {
   def adx(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _adx(idx)
+    _adx.double(idx)
   }
     
 }
@@ -53,18 +53,18 @@ class ADXRFunction extends Function {
   }
     
   protected def computeSpot(i: Int) {
-    _adx(i) = adx(i, periodDi, periodAdx)
+    _adx.updateDouble(i, adx(i, periodDi, periodAdx))
         
     if (i < periodDi.value - 1 || i < periodAdx.value - 1) {
             
-      _adxr(i) = Null.Double
+      _adxr.updateDouble(i, Null.Double)
             
     } else {
             
-      val adx_i = _adx(i)
-      val adx_j = _adx(i - periodAdx.value.toInt)
+      val adx_i = _adx.double(i)
+      val adx_j = _adx.double(i - periodAdx.value.toInt)
             
-      _adxr(i) = (adx_i + adx_j) / 2f
+      _adxr.updateDouble(i, (adx_i + adx_j) / 2f)
             
     }
   }
@@ -73,7 +73,7 @@ class ADXRFunction extends Function {
   def adxr(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _adxr(idx)
+    _adxr.double(idx)
   }
     
 }
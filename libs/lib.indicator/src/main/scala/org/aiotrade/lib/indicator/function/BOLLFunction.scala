@@ -59,18 +59,18 @@ class BOLLFunction extends Function {
   protected def computeSpot(i: Int): Unit = {
     if (i < period.value - 1) {
             
-      _bollMiddle(i) = Null.Double
-      _bollUpper(i)  = Null.Double
-      _bollLower(i)  = Null.Double
+      _bollMiddle.updateDouble(i, Null.Double)
+      _bollUpper.updateDouble(i, Null.Double)
+      _bollLower.updateDouble(i, Null.Double)
             
     } else {
             
       val ma_i = ma(i, baseVar, period)
       val standard_deviation_i = stdDev(i, baseVar, period)
             
-      _bollMiddle(i) = ma_i
-      _bollUpper(i)  = ma_i + alpha.value * standard_deviation_i
-      _bollLower(i)  = ma_i - alpha.value * standard_deviation_i
+      _bollMiddle.updateDouble(i, ma_i)
+      _bollUpper.updateDouble(i, ma_i + alpha.value * standard_deviation_i)
+      _bollLower.updateDouble(i, ma_i - alpha.value * standard_deviation_i)
             
     }
   }
@@ -79,19 +79,19 @@ class BOLLFunction extends Function {
   def bollMiddle(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _bollMiddle(idx)
+    _bollMiddle.double(idx)
   }
     
   def bollUpper(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _bollUpper(idx)
+    _bollUpper.double(idx)
   }
     
   def bollLower(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _bollLower(idx)
+    _bollLower.double(idx)
   }
     
 }
@@ -55,22 +55,22 @@ class CCIFunction extends Function {
   }
     
   protected def computeSpot(i: Int): Unit = {
-    _tp(i) = (H(i) + 2 * C(i) + L(i)) / 4f
+    _tp.updateDouble(i, (H.double(i) + 2 * C.double(i) + L.double(i)) / 4f)
         
     if (i < period.value - 1) {
             
-      _deviation(i) = Null.Double
+      _deviation.updateDouble(i, Null.Double)
             
-      _cci(i) = Null.Double
+      _cci.updateDouble(i, Null.Double)
             
     } else {
             
       val tp_ma_i = ma(i, _tp, period)
             
-      _deviation(i) = math.abs(_tp(i) - tp_ma_i)
+      _deviation.updateDouble(i, math.abs(_tp.double(i) - tp_ma_i))
       val deviation_ma_i = ma(i, _deviation, period)
             
-      _cci(i) = (_tp(i) - tp_ma_i) / (alpha.value * deviation_ma_i)
+      _cci.updateDouble(i, (_tp.double(i) - tp_ma_i) / (alpha.value * deviation_ma_i))
             
     }
   }
@@ -78,7 +78,7 @@ class CCIFunction extends Function {
   def cci(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _cci(idx)
+    _cci.double(idx)
   }
     
 }
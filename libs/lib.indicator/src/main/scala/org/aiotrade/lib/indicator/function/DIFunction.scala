@@ -56,14 +56,14 @@ class DIFunction extends Function {
   }
     
   protected def computeSpot(i: Int): Unit = {
-    _dmPlus(i)  = dmPlus(i)
-    _dmMinus(i) = dmMinus(i)
-    _tr(i)      = tr(i)
+    _dmPlus.updateDouble(i, dmPlus(i))
+    _dmMinus.updateDouble(i, dmMinus(i))
+    _tr.updateDouble(i, tr(i))
         
     if (i < period.value - 1) {
             
-      _diPlus(i)  = Null.Double
-      _diMinus(i) = Null.Double
+      _diPlus.updateDouble(i, Null.Double)
+      _diMinus.updateDouble(i, Null.Double)
             
     } else {
             
@@ -74,8 +74,8 @@ class DIFunction extends Function {
       val diPlus_i  = if (tr_ma == 0) 0f else dmPlus_ma  / tr_ma * 100f
       val diMinus_i = if (tr_ma == 0) 0f else dmMinus_ma / tr_ma * 100f
             
-      _diPlus(i)  = diPlus_i
-      _diMinus(i) = diMinus_i
+      _diPlus.updateDouble(i, diPlus_i)
+      _diMinus.updateDouble(i, diMinus_i)
             
     }
   }
@@ -83,13 +83,13 @@ class DIFunction extends Function {
   def diPlus(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _diPlus(idx)
+    _diPlus.double(idx)
   }
     
   def diMinus(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _diMinus(idx)
+    _diMinus.double(idx)
   }
 }
 
@@ -50,39 +50,39 @@ class DMFunction extends Function {
     if (i == 0) {
             
       _dmPlus (i) = Null.Double
-      _dmMinus(i) = Null.Double
+      _dmMinus.updateDouble(i, Null.Double)
             
     } else {
             
-      if (H(i) > H(i - 1) && L(i) > L(i - 1)) {
-        _dmPlus (i) = H(i) - H(i - 1)
-        _dmMinus(i) = 0f
-      } else if (H(i) < H(i - 1) && L(i) < L(i - 1)) {
+      if (H.double(i) > H.double(i - 1) && L.double(i) > L.double(i - 1)) {
+        _dmPlus (i) = H.double(i) - H.double(i - 1)
+        _dmMinus.updateDouble(i, 0f)
+      } else if (H.double(i) < H.double(i - 1) && L.double(i) < L.double(i - 1)) {
         _dmPlus (i) = 0f
-        _dmMinus(i) = L(i - 1) - L(i)
-      } else if (H(i) > H(i - 1) && L(i) < L(i - 1)) {
-        if (H(i) - H(i - 1) > L(i - 1) - L(i)) {
-          _dmPlus (i) = H(i) - H(i - 1)
-          _dmMinus(i) = 0f
+        _dmMinus.updateDouble(i, L.double(i - 1) - L.double(i))
+      } else if (H.double(i) > H.double(i - 1) && L.double(i) < L.double(i - 1)) {
+        if (H.double(i) - H.double(i - 1) > L.double(i - 1) - L.double(i)) {
+          _dmPlus (i) = H.double(i) - H.double(i - 1)
+          _dmMinus.updateDouble(i, 0f)
         } else {
           _dmPlus (i) = 0f
-          _dmMinus(i) = L(i - 1) - L(i)
+          _dmMinus.updateDouble(i, L.double(i - 1) - L.double(i))
         }
-      } else if (H(i) < H(i - 1) && L(i) > L(i - 1)) {
+      } else if (H.double(i) < H.double(i - 1) && L.double(i) > L.double(i - 1)) {
         _dmPlus (i) = 0f
-        _dmMinus(i) = 0f
-      } else if (H(i) == H(i - 1) && L(i) == L(i - 1)) {
+        _dmMinus.updateDouble(i, 0f)
+      } else if (H.double(i) == H.double(i - 1) && L.double(i) == L.double(i - 1)) {
         _dmPlus (i) = 0f
-        _dmMinus(i) = 0f
-      } else if (L(i) > H(i - 1)) {
-        _dmPlus (i) = H(i) - H(i)
-        _dmMinus(i) = 0f
-      } else if (H(i) < L(i - 1)) {
+        _dmMinus.updateDouble(i, 0f)
+      } else if (L.double(i) > H.double(i - 1)) {
+        _dmPlus (i) = H.double(i) - H.double(i)
+        _dmMinus.updateDouble(i, 0f)
+      } else if (H.double(i) < L.double(i - 1)) {
         _dmPlus (i) = 0f
-        _dmMinus(i) = L(i - 1) - L(i)
+        _dmMinus.updateDouble(i, L.double(i - 1) - L.double(i))
       } else {
         _dmPlus (i) = 0f
-        _dmMinus(i) = 0f
+        _dmMinus.updateDouble(i, 0f)
       }
             
     }
@@ -91,13 +91,13 @@ class DMFunction extends Function {
   def dmPlus(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _dmPlus(idx)
+    _dmPlus.double(idx)
   }
     
   def dmMinus(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _dmMinus(idx)
+    _dmMinus.double(idx)
   }
 }
 
@@ -57,28 +57,28 @@ class DXFunction extends Function {
     if (i < period.value - 1) {
             
       _diPlus (i) = diPlus( i, period)
-      _diMinus(i) = diMinus(i, period)
+      _diMinus.updateDouble(i, diMinus(i, period))
             
-      _dx(i) = Null.Double
+      _dx.updateDouble(i, Null.Double)
             
     } else {
             
       _diPlus (i) = diPlus( i, period)
-      _diMinus(i) = diMinus(i, period)
+      _diMinus.updateDouble(i, diMinus(i, period))
             
       val diPlus_i  = _diPlus (i)
-      val diMinus_i = _diMinus(i)
+      val diMinus_i = _diMinus.double(i)
             
       val dx_i = if (diPlus_i + diMinus_i == 0) 0f else math.abs(diPlus_i - diMinus_i) / (diPlus_i + diMinus_i) * 100f
             
-      _dx(i) = dx_i
+      _dx.updateDouble(i, dx_i)
     }
   }
     
   def dx(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _dx(idx)
+    _dx.double(idx)
   }
     
 }
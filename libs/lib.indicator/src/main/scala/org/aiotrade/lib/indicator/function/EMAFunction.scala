@@ -41,7 +41,7 @@ import org.aiotrade.lib.math.indicator.Factor
  */
 class EMAFunction extends Function {
   final protected def iema(idx: Int, var1: TVar[Double], period: Double, prev: Double): Double = {
-    StatsFunctions.iema(idx, var1.values, period.toInt, prev)
+    StatsFunctions.iema(idx, var1.values.window, period.toInt, prev)
   }
     
   var period: Factor = _
@@ -59,11 +59,11 @@ class EMAFunction extends Function {
   protected def computeSpot(i: Int): Unit = {
     if (i == 0) {
             
-      _ema(i) = baseVar(i)
+      _ema.updateDouble(i, baseVar.double(i))
             
     } else {
             
-      _ema(i) = iema(i, baseVar, period.value, _ema(i - 1))
+      _ema.updateDouble(i, iema(i, baseVar, period.value, _ema.double(i - 1)))
             
     }
   }
@@ -71,7 +71,7 @@ class EMAFunction extends Function {
   def ema(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _ema(idx)
+    _ema.double(idx)
   }
     
 }
@@ -57,16 +57,16 @@ class MACDFunction extends Function {
   }
     
   protected def computeSpot(i: Int): Unit = {
-    _emaFast(i) = ema(i, baseVar, periodFast)
-    _emaSlow(i) = ema(i, baseVar, periodSlow)
+    _emaFast.updateDouble(i, ema(i, baseVar, periodFast))
+    _emaSlow.updateDouble(i, ema(i, baseVar, periodSlow))
             
-    _macd(i) = _emaFast(i) - _emaSlow(i)
+    _macd.updateDouble(i, _emaFast.double(i) - _emaSlow.double(i))
   }
     
   def macd(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _macd(idx)
+    _macd.double(idx)
   }
     
 }
@@ -42,7 +42,7 @@ import org.aiotrade.lib.math.indicator.Factor
  */
 class MAFunction extends Function {
   final protected def ima(idx: Int, baseVar: TVar[Double], period: Double, prev: Double): Double = {
-    return StatsFunctions.ima(idx, baseVar.values, period.toInt, prev)
+    return StatsFunctions.ima(idx, baseVar.values.window, period.toInt, prev)
   }
     
   var period: Factor = _
@@ -62,11 +62,11 @@ class MAFunction extends Function {
   protected def computeSpot(i: Int) : Unit = {
     if (i < period.value - 1) {
             
-      _ma(i) = Null.Double
+      _ma.updateDouble(i, Null.Double)
             
     } else {
             
-      _ma(i) = ima(i, baseVar, period.value, _ma(i - 1))
+      _ma.updateDouble(i, ima(i, baseVar, period.value, _ma.double(i - 1)))
             
     }
   }
@@ -74,7 +74,7 @@ class MAFunction extends Function {
   def ma(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _ma(idx)
+    _ma.double(idx)
   }
     
 }
@@ -30,19 +30,25 @@
  */
 package org.aiotrade.lib.indicator.function
 
-import org.aiotrade.lib.math.StatsFunctions
 import org.aiotrade.lib.math.timeseries.Null
 import org.aiotrade.lib.math.timeseries.BaseTSer
 import org.aiotrade.lib.math.timeseries.TVar
 import org.aiotrade.lib.math.indicator.Factor
+import org.aiotrade.lib.math.stats.MaxWindow
 
 /**
  *
  * @author Caoyuan Deng
  */
 class MAXFunction extends Function {
-  final protected def imax(idx: Int, baseVar: TVar[Double], period: Double, prev: Double): Double = {
-    StatsFunctions.imax(idx, baseVar.values, period.toInt, prev)
+  private var window: MaxWindow = _
+
+  final protected def imax(idx: Int, baseVar: TVar[Double], period: Double): Double = {
+    val period1 = period.toInt
+    if (window == null || window.period != period1) {
+      window = new MaxWindow(period1)
+    }
+    window(idx, baseVar)
   }
     
   var period: Factor = _
@@ -55,16 +61,17 @@ class MAXFunction extends Function {
         
     this.baseVar = args(0).asInstanceOf[TVar[Double]]
     this.period  = args(1).asInstanceOf[Factor]
+    this.window  = null
   }
     
   protected def computeSpot(i: Int): Unit = {
     if (i < period.value - 1) {
             
-      _max(i) = Null.Double
+      _max.updateDouble(i, Null.Double)
             
     } else {
             
-      _max(i) = imax(i, baseVar, period.value, _max(i - 1))
+      _max.updateDouble(i, imax(i, baseVar, period.value))
             
     }
   }
@@ -72,7 +79,7 @@ class MAXFunction extends Function {
   def max(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _max(idx)
+    _max.double(idx)
   }
     
 }
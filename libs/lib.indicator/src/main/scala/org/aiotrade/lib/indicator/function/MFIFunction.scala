@@ -54,27 +54,27 @@ class MFIFunction extends Function {
   }
     
   protected def computeSpot(i: Int): Unit = {
-    _tp(i) = (H(i) + C(i) + L(i)) / 3f
+    _tp.updateDouble(i, (H.double(i) + C.double(i) + L.double(i)) / 3f)
         
     if (i == 0) {
             
-      _mfPos(i) = 0f
-      _mfNeg(i) = 0f
+      _mfPos.updateDouble(i, 0f)
+      _mfNeg.updateDouble(i, 0f)
             
-      _mfi(i) = 0f
+      _mfi.updateDouble(i, 0f)
             
     } else {
             
             
-      if (_tp(i) > _tp(i - 1)) {
-        _mfPos(i) = _tp(i) * V(i)
-        _mfNeg(i) = 0f
-      } else if (_tp(i) < _tp(i - 1)) {
-        _mfPos(i) = 0f
-        _mfNeg(i) = _tp(i) * V(i)
+      if (_tp.double(i) > _tp.double(i - 1)) {
+        _mfPos.updateDouble(i, _tp.double(i) * V.double(i))
+        _mfNeg.updateDouble(i, 0f)
+      } else if (_tp.double(i) < _tp.double(i - 1)) {
+        _mfPos.updateDouble(i, 0f)
+        _mfNeg.updateDouble(i, _tp.double(i) * V.double(i))
       } else {
-        _mfPos(i) = 0f
-        _mfNeg(i) = 0f
+        _mfPos.updateDouble(i, 0f)
+        _mfNeg.updateDouble(i, 0f)
       }
             
       val mfPos_sum_i = sum(i, _mfPos, period)
@@ -83,7 +83,7 @@ class MFIFunction extends Function {
             
       val mr_i = mfPos_sum_i / mfNeg_sum_i
             
-      _mfi(i) = 100 / (1 + mr_i)
+      _mfi.updateDouble(i, 100 / (1 + mr_i))
             
     }
   }
@@ -91,7 +91,7 @@ class MFIFunction extends Function {
   def mfi(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _mfi(idx)
+    _mfi.double(idx)
   }
     
 }
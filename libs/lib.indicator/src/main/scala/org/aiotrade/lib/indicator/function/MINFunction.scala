@@ -30,19 +30,25 @@
  */
 package org.aiotrade.lib.indicator.function
 
-import org.aiotrade.lib.math.StatsFunctions
 import org.aiotrade.lib.math.timeseries.Null
 import org.aiotrade.lib.math.timeseries.BaseTSer
 import org.aiotrade.lib.math.timeseries.TVar
 import org.aiotrade.lib.math.indicator.Factor
+import org.aiotrade.lib.math.stats.MinWindow
 
 /**
  *
  * @author Caoyuan Deng
  */
 class MINFunction extends Function {
-  final protected def imin(idx: Int, baseVar: TVar[Double], period: Double, prev: Double): Double = {
-    StatsFunctions.imin(idx, baseVar.values, period.toInt, prev)
+  private var window: MinWindow = _
+
+  final protected def imin(idx: Int, baseVar: TVar[Double], period: Double): Double = {
+    val period1 = period.toInt
+    if (window == null || window.period != period1) {
+      window = new MinWindow(period1)
+    }
+    window(idx, baseVar)
   }
     
   var period: Factor = _
@@ -55,16 +61,17 @@ class MINFunction extends Function {
         
     this.baseVar = args(0).asInstanceOf[TVar[Double]]
     this.period  = args(1).asInstanceOf[Factor]
+    this.window  = null
   }
     
   protected def computeSpot(i: Int): Unit = {
     if (i < period.value - 1) {
             
-      _min(i) = Null.Double
+      _min.updateDouble(i, Null.Double)
             
     } else {
             
-      _min(i) = imin(i, baseVar, period.value, _min(i - 1))
+      _min.updateDouble(i, imin(i, baseVar, period.value))
             
     }
   }
@@ -72,7 +79,7 @@ class MINFunction extends Function {
   def min(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _min(idx)
+    _min.double(idx)
   }
     
 }
@@ -56,11 +56,11 @@ class MTMFunction extends Function {
   protected def computeSpot(i: Int): Unit = {
     if (i < period.value - 1) {
             
-      _mtm(i) = Null.Double
+      _mtm.updateDouble(i, Null.Double)
             
     } else {
             
-      _mtm(i) = (baseVar(i) / baseVar(i - period.value.toInt)) * 100f
+      _mtm.updateDouble(i, (baseVar.double(i) / baseVar.double(i - period.value.toInt)) * 100f)
             
     }
   }
@@ -68,7 +68,7 @@ class MTMFunction extends Function {
   def mtm(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _mtm(idx)
+    _mtm.double(idx)
   }
     
 }
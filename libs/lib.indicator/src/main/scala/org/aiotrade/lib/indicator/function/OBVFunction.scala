@@ -47,17 +47,17 @@ class OBVFunction extends Function {
   protected def computeSpot(i: Int): Unit = {
     if (i == 0) {
             
-      _obv(i) = 0f
+      _obv.updateDouble(i, 0f)
             
     } else {
             
-      if (C(i) > C(i - 1)) {
-        _obv(i) = _obv(i - 1) + V(i)
-      } else if (C(i) < C(i - 1)) {
-        _obv(i) = _obv(i - 1) - V(i)
+      if (C.double(i) > C.double(i - 1)) {
+        _obv.updateDouble(i, _obv.double(i - 1) + V.double(i))
+      } else if (C.double(i) < C.double(i - 1)) {
+        _obv.updateDouble(i, _obv.double(i - 1) - V.double(i))
       } else {
         /** C(i) == C(i - 1) */
-        _obv(i) = _obv(i - 1)
+        _obv.updateDouble(i, _obv.double(i - 1))
       }
             
     }
@@ -66,7 +66,7 @@ class OBVFunction extends Function {
   def obv(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _obv(idx)
+    _obv.double(idx)
   }
     
 }
@@ -56,15 +56,15 @@ class ROCFunction extends Function {
   protected def computeSpot(i: Int): Unit = {
     if (i < period.value - 1) {
             
-      _roc(i) = Null.Double
+      _roc.updateDouble(i, Null.Double)
             
     } else {
             
-      val var_j = baseVar(i - period.value.toInt)
+      val var_j = baseVar.double(i - period.value.toInt)
             
-      val roc_i = if (var_j == 0) 0f else ((baseVar(i) - var_j) / var_j) * 100
+      val roc_i = if (var_j == 0) 0f else ((baseVar.double(i) - var_j) / var_j) * 100
             
-      _roc(i) = roc_i
+      _roc.updateDouble(i, roc_i)
             
     }
   }
@@ -72,7 +72,7 @@ class ROCFunction extends Function {
   def roc(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _roc(idx)
+    _roc.double(idx)
   }
     
 }
@@ -56,32 +56,32 @@ class RSIFunction extends Function {
   protected def computeSpot(i: Int): Unit = {
     if (i == 0) {
             
-      _up(i) = Null.Double
-      _dn(i) = Null.Double
+      _up.updateDouble(i, Null.Double)
+      _dn.updateDouble(i, Null.Double)
             
-      _rsi(i) = Null.Double
+      _rsi.updateDouble(i, Null.Double)
             
     } else {
             
-      val change = C(i) - C(i - 1)
+      val change = C.double(i) - C.double(i - 1)
       if (change > 0) {
-        _up(i) = change
-        _dn(i) = 0f
+        _up.updateDouble(i, change)
+        _dn.updateDouble(i, 0f)
       } else {
-        _up(i) = 0f
-        _dn(i) = -change
+        _up.updateDouble(i, 0f)
+        _dn.updateDouble(i, -change)
       }
             
       if (i < period.value - 1) {
                 
-        _rsi(i) = Null.Double
+        _rsi.updateDouble(i, Null.Double)
             
       } else {
             
         val up_sum_i = sum(i, _up, period)
         val dn_sum_i = sum(i, _dn, period)
                 
-        _rsi(i) = if (up_sum_i + dn_sum_i == 0) 0f else up_sum_i / (up_sum_i + dn_sum_i) * 100f
+        _rsi.updateDouble(i, if (up_sum_i + dn_sum_i == 0) 0f else up_sum_i / (up_sum_i + dn_sum_i) * 100f)
       }
     }
   }
@@ -89,7 +89,7 @@ class RSIFunction extends Function {
   def rsi(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _rsi(idx)
+    _rsi.double(idx)
   }
     
 }
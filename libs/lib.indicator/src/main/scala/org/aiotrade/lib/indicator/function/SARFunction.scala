@@ -61,42 +61,42 @@ class SARFunction extends Function {
             
       _side(i) = Side.EnterLong
             
-      val currLow = L(i)
-      _sar(i) = currLow
+      val currLow = L.double(i)
+      _sar.updateDouble(i, currLow)
             
-      _af(i) = initial.value
+      _af.updateDouble(i, initial.value)
             
-      val currHigh = H(i)
-      _ep(i) = currHigh
+      val currHigh = H.double(i)
+      _ep.updateDouble(i, currHigh)
             
     } else {
             
       if (_side(i - 1) == Side.EnterLong) {
         /** in long-term */
                 
-        val currHigh = H(i)
-        val prevHigh = H(i - 1)
+        val currHigh = H.double(i)
+        val prevHigh = H.double(i - 1)
                 
-        if (currHigh > _ep(i - 1)) {
+        if (currHigh > _ep.double(i - 1)) {
           /** new high, acceleration adds 'step' each day, till 'maximum' */
-          _af(i) = math.min(_af(i - 1) + step.value, maximum.value)
-          _ep(i) = currHigh
+          _af.updateDouble(i, math.min(_af.double(i - 1) + step.value, maximum.value))
+          _ep.updateDouble(i, currHigh)
         } else {
           /** keep same acceleration */
-          _af(i) = _af(i - 1)
-          _ep(i) = _ep(i - 1)
+          _af.updateDouble(i, _af.double(i - 1))
+          _ep.updateDouble(i, _ep.double(i - 1))
         }
-        _sar(i) = _sar(i - 1) + _af(i) * (prevHigh - _sar(i - 1))
+        _sar.updateDouble(i, _sar.double(i - 1) + _af.double(i) * (prevHigh - _sar.double(i - 1)))
                 
-        if (_sar(i) >= currHigh) {
+        if (_sar.double(i) >= currHigh) {
           /** turn to short-term */
                     
           _side(i) = Side.ExitLong
                     
-          _sar(i) = currHigh
+          _sar.updateDouble(i, currHigh)
                     
-          _af(i) = initial.value
-          _ep(i) = L(i)
+          _af.updateDouble(i, initial.value)
+          _ep.updateDouble(i, L.double(i))
                     
         } else {
           /** still in long-term */
@@ -107,27 +107,27 @@ class SARFunction extends Function {
       } else {
         /** in short-term */
                 
-        val currLow = L(i)
-        val prevLow = L(i - 1)
+        val currLow = L.double(i)
+        val prevLow = L.double(i - 1)
                 
-        if (currLow < _ep(i - 1)) {
-          _af(i) = math.min(_af(i - 1) + step.value, maximum.value)
-          _ep(i) = currLow
+        if (currLow < _ep.double(i - 1)) {
+          _af.updateDouble(i, math.min(_af.double(i - 1) + step.value, maximum.value))
+          _ep.updateDouble(i, currLow)
         } else {
-          _af(i) = _af(i - 1)
-          _ep(i) = _ep(i - 1)
+          _af.updateDouble(i, _af.double(i - 1))
+          _ep.updateDouble(i, _ep.double(i - 1))
         }
-        _sar(i) = _sar(i - 1) + _af(i) * (prevLow - _sar(i - 1))
+        _sar.updateDouble(i, _sar.double(i - 1) + _af.double(i) * (prevLow - _sar.double(i - 1)))
                 
-        if (_sar(i) <= currLow) {
+        if (_sar.double(i) <= currLow) {
           /** turn to long-term */
                     
           _side(i) = Side.EnterLong
                     
-          _sar(i) = currLow
+          _sar.updateDouble(i, currLow)
                     
-          _af(i) = initial.value
-          _ep(i) = H(i)
+          _af.updateDouble(i, initial.value)
+          _ep.updateDouble(i, H.double(i))
                     
         } else {
           /** still in short-term */
@@ -142,7 +142,7 @@ class SARFunction extends Function {
   def sar(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _sar(idx)
+    _sar.double(idx)
   }
     
   def sarSide(sessionId: Long, idx: Int): Side = {
@@ -30,22 +30,25 @@
  */
 package org.aiotrade.lib.indicator.function
 
-import org.aiotrade.lib.math.StatsFunctions
 import org.aiotrade.lib.math.timeseries.Null
 import org.aiotrade.lib.math.timeseries.BaseTSer
 import org.aiotrade.lib.math.timeseries.TVar
 import org.aiotrade.lib.math.indicator.Factor
+import org.aiotrade.lib.math.stats.StdDevWindow
 
 /**
  *
  * @author Caoyuan Deng
  */
 class STDDEVFunction extends Function {
-  final protected def stdDev(idx: Int, baseVar: TVar[Double], period: Double): Double = {
-    val begIdx = idx - period.toInt + 1
-    val endIdx = idx
+  private var window: StdDevWindow = _
 
-    StatsFunctions.stdDev(baseVar.values, begIdx, endIdx)
+  final protected def stdDev(idx: Int, baseVar: TVar[Double], period: Double): Double = {
+    val period1 = period.toInt
+    if (window == null || window.period != period1) {
+      window = new StdDevWindow(period1)
+    }
+    window(idx, baseVar)
   }
 
     
@@ -59,16 +62,17 @@ class STDDEVFunction extends Function {
         
     this.baseVar = args(0).asInstanceOf[TVar[Double]]
     this.period  = args(1).asInstanceOf[Factor]
+    this.window  = null
   }
     
   protected def computeSpot(i: Int): Unit = {
     if (i < period.value - 1) {
             
-      _stdDev(i) = Null.Double
+      _stdDev.updateDouble(i, Null.Double)
             
     } else {
             
-      _stdDev(i) = stdDev(i, baseVar, period.value)
+      _stdDev.updateDouble(i, stdDev(i, baseVar, period.value))
             
     }
   }
@@ -76,7 +80,7 @@ class STDDEVFunction extends Function {
   def stdDev(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _stdDev(idx)
+    _stdDev.double(idx)
   }
     
 }
@@ -55,16 +55,16 @@ class STOCHDFunction extends Function {
   }
     
   protected def computeSpot(i: Int): Unit = {
-    _stochK(i) = stochK(i, period, periodK)
+    _stochK.updateDouble(i, stochK(i, period, periodK))
         
     if (i < periodD.value - 1) {
             
-      _stochD(i) = Null.Double
+      _stochD.updateDouble(i, Null.Double)
             
     } else {
             
       /** smooth stochK, periodD */
-      _stochD(i) = ma(i, _stochK, periodD)
+      _stochD.updateDouble(i, ma(i, _stochK, periodD))
             
     }
   }
@@ -72,7 +72,7 @@ class STOCHDFunction extends Function {
   def stochD(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _stochD(idx)
+    _stochD.double(idx)
   }
     
     
@@ -55,16 +55,16 @@ class STOCHJFunction extends Function {
   }
     
   protected def computeSpot(i: Int): Unit = {
-    _stochK(i) = stochK(i, period, periodK)
-    _stochD(i) = stochD(i, period, periodK, periodD)
+    _stochK.updateDouble(i, stochK(i, period, periodK))
+    _stochD.updateDouble(i, stochD(i, period, periodK, periodD))
         
-    _stochJ(i) = _stochD(i) + 2 * (_stochD(i) - _stochK(i))
+    _stochJ.updateDouble(i, _stochD.double(i) + 2 * (_stochD.double(i) - _stochK.double(i)))
   }
         
   def stochJ(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _stochJ(idx)
+    _stochJ.double(idx)
   }
     
 }
@@ -56,19 +56,19 @@ class STOCHKFunction extends Function {
   protected def computeSpot(i: Int): Unit = {
     if (i < period.value - 1) {
             
-      _elementK(i) = Null.Double
+      _elementK.updateDouble(i, Null.Double)
 
-      _stochK(i) = Null.Double
+      _stochK.updateDouble(i, Null.Double)
             
     } else {
             
       val h_max_i = max(i, H, period)
       val l_min_i = min(i, L, period)
             
-      _elementK(i) = (C(i) - l_min_i) / (h_max_i - l_min_i) * 100f
+      _elementK.updateDouble(i, (C.double(i) - l_min_i) / (h_max_i - l_min_i) * 100f)
             
       /** smooth elementK, periodK */
-      _stochK(i) = ma(i, _elementK, periodK)
+      _stochK.updateDouble(i, ma(i, _elementK, periodK))
             
     }
   }
@@ -76,7 +76,7 @@ class STOCHKFunction extends Function {
   def stochK(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _stochK(idx)
+    _stochK.double(idx)
   }
     
 }
@@ -30,19 +30,25 @@
  */
 package org.aiotrade.lib.indicator.function
 
-import org.aiotrade.lib.math.StatsFunctions
 import org.aiotrade.lib.math.timeseries.Null
 import org.aiotrade.lib.math.timeseries.BaseTSer
 import org.aiotrade.lib.math.timeseries.TVar
 import org.aiotrade.lib.math.indicator.Factor
+import org.aiotrade.lib.math.stats.SumWindow
 
 /**
  *
  * @author Caoyuan Deng
  */
 class SUMFunction extends Function {
-  final protected def isum(idx: Int, baseVar: TVar[Double], period: Double, prev: Double): Double = {
-    StatsFunctions.isum(idx, baseVar.values, period.toInt, prev)
+  private var window: SumWindow = _
+
+  final protected def isum(idx: Int, baseVar: TVar[Double], period: Double): Double = {
+    val period1 = period.toInt
+    if (window == null || window.period != period1) {
+      window = new SumWindow(period1)
+    }
+    window(idx, baseVar)
   }
     
   var period: Factor = _
@@ -55,16 +61,17 @@ class SUMFunction extends Function {
         
     this.baseVar = args(0).asInstanceOf[TVar[Double]]
     this.period  = args(1).asInstanceOf[Factor]
+    this.window  = null
   }
     
   protected def computeSpot(i: Int): Unit = {
     if (i < period.value - 1) {
             
-      _sum(i) = Null.Double
+      _sum.updateDouble(i, Null.Double)
             
     } else {
             
-      _sum(i) = isum(i, baseVar, period.value, _sum(i - 1))
+      _sum.updateDouble(i, isum(i, baseVar, period.value))
             
     }
   }
@@ -72,7 +79,7 @@ class SUMFunction extends Function {
   def sum(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _sum(idx)
+    _sum.double(idx)
   }
     
 }
@@ -48,12 +48,12 @@ class TRFunction extends Function {
   protected def computeSpot(i: Int): Unit = {
     if (i == 0) {
             
-      _tr(i) = Null.Double
+      _tr.updateDouble(i, Null.Double)
             
     } else {
             
-      val tr_tmp = math.max(H(i) - L(i), math.abs(H(i) - C(i - 1)))
-      _tr(i) = math.max(tr_tmp, math.abs(L(i) - C(i - 1)))
+      val tr_tmp = math.max(H.double(i) - L.double(i), math.abs(H.double(i) - C.double(i - 1)))
+      _tr.updateDouble(i, math.max(tr_tmp, math.abs(L.double(i) - C.double(i - 1))))
             
     }
   }
@@ -61,7 +61,7 @@ class TRFunction extends Function {
   def tr(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _tr(idx)
+    _tr.double(idx)
   }
 
 }
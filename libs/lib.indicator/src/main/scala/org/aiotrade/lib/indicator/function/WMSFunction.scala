@@ -53,13 +53,13 @@ class WMSFunction extends Function {
     val h_max_i = max(i, H, period)
     val l_min_i = min(i, L, period)
         
-    _wms(i) = 100 - (C(i) - l_min_i) / (h_max_i - l_min_i) * 100f
+    _wms.updateDouble(i, 100 - (C.double(i) - l_min_i) / (h_max_i - l_min_i) * 100f)
   }
     
   def wms(sessionId: Long, idx: Int): Double = {
     computeTo(sessionId, idx)
         
-    _wms(idx)
+    _wms.double(idx)
   }
     
 }
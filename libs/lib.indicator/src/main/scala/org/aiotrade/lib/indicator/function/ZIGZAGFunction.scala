@@ -91,17 +91,17 @@ class ZIGZAGFunction extends Function {
     /** get the last zigzag as the first pseudo point */
     val lastZigzagIdx = indexOfLastValidValue(_zigzag)
     if (lastZigzagIdx >= 0) {
-      _pseudoZigzag(lastZigzagIdx) = _zigzag(lastZigzagIdx)
+      _pseudoZigzag.updateDouble(lastZigzagIdx, _zigzag.double(lastZigzagIdx))
     }
         
     /** set pseudo zigzag to the last peakHi/Lo in current trend */
     if (lastIdx >= 0) {
       if (_side(lastIdx) == Side.EnterLong) {
         val lastPeakHiIdx = _peakHiIdx(lastIdx)
-        _pseudoZigzag(lastPeakHiIdx) = H(lastPeakHiIdx)
+        _pseudoZigzag.updateDouble(lastPeakHiIdx, H.double(lastPeakHiIdx))
       } else {
         val lastPeakLoIdx = _peakLoIdx(lastIdx)
-        _pseudoZigzag(lastPeakLoIdx) = L(lastPeakLoIdx)
+        _pseudoZigzag.updateDouble(lastPeakLoIdx, L.double(lastPeakLoIdx))
       }
     }
         
@@ -112,10 +112,10 @@ class ZIGZAGFunction extends Function {
     if (i == 0) {
             
       _side(i) = Side.EnterLong
-      _zigzag(i) = Null.Double
-      _pseudoZigzag(i) = Null.Double
-      _peakHi(i) = H(i)
-      _peakLo(i) = L(i)
+      _zigzag.updateDouble(i, Null.Double)
+      _pseudoZigzag.updateDouble(i, Null.Double)
+      _peakHi.updateDouble(i, H.double(i))
+      _peakLo.updateDouble(i, L.double(i))
       _peakHiIdx(i) = i
       _peakLoIdx(i) = i
             
@@ -123,28 +123,28 @@ class ZIGZAGFunction extends Function {
             
       if (_side(i - 1) == Side.EnterLong) {
                 
-        if ((H(i) - _peakHi(i - 1)) / _peakHi(i - 1) <= -percent.value) {
+        if ((H.double(i) - _peakHi.double(i - 1)) / _peakHi.double(i - 1) <= -percent.value) {
           /** turn over to short trend */
           _side(i) = Side.ExitLong
                     
           /** and we get a new zigzag peak of high at (idx - 1) */
           val newZigzagIdx = _peakHiIdx(i - 1)
-          _zigzag(newZigzagIdx) = H(newZigzagIdx)
+          _zigzag.updateDouble(newZigzagIdx, H.double(newZigzagIdx))
                     
-          _peakLo(i) = L(i)
+          _peakLo.updateDouble(i, L.double(i))
           _peakLoIdx(i) = i
                     
         } else {
           /** long trend goes on */
           _side(i) = _side(i - 1)
                     
-          if (H(i) > _peakHi(i - 1)) {
+          if (H.double(i) > _peakHi.double(i - 1)) {
             /** new high */
-            _peakHi(i) = H(i)
+            _peakHi.updateDouble(i, H.double(i))
             _peakHiIdx(i) = i
           } else {
             /** keep same */
-            _peakHi(i) = _peakHi(i - 1)
+            _peakHi.updateDouble(i, _peakHi.double(i - 1))
             _peakHiIdx(i) = _peakHiIdx(i - 1)
           }
                     
@@ -152,28 +152,28 @@ class ZIGZAGFunction extends Function {
                 
       } else {
                 
-        if ((L(i) - _peakLo(i - 1)) / _peakLo(i - 1) >= percent.value) {
+        if ((L.double(i) - _peakLo.double(i - 1)) / _peakLo.double(i - 1) >= percent.value) {
           /** turn over to long trend */
           _side(i) = Side.EnterLong
                     
           /** and we get a new zigzag peak of low at (idx - 1) */
           val newZigzagIdx = _peakLoIdx(i - 1)
-          _zigzag(newZigzagIdx) = L(newZigzagIdx)
+          _zigzag.updateDouble(newZigzagIdx, L.double(newZigzagIdx))
                     
-          _peakHi(i) = H(i)
+          _peakHi.updateDouble(i, H.double(i))
           _peakHiIdx(i) = i
                     
         } else {
           /** short trend goes on */
           _side(i) = _side(i - 1)
                     
-          if (L(i) < _peakLo(i - 1)) {
+          if (L.double(i) < _peakLo.double(i - 1)) {
             /** new low */
-            _peakLo(i) = L(i)
+            _peakLo.updateDouble(i, L.double(i))
             _peakLoIdx(i) = i
           } else {
             /** keep same */
-            _peakLo(i) = _peakLo(i - 1)
+            _peakLo.updateDouble(i, _peakLo.double(i - 1))
             _peakLoIdx(i) = _peakLoIdx(i - 1)
           }
                     
@@ -202,7 +202,7 @@ class ZIGZAGFunction extends Function {
       i += 1
     }
         
-    _zigzag(idx)
+    _zigzag.double(idx)
   }
     
   def pseudoZigzag(sessionId: Long, idx:Int): Double = {
@@ -223,7 +223,7 @@ class ZIGZAGFunction extends Function {
       i += 1
     }
         
-    _pseudoZigzag(idx)
+    _pseudoZigzag.double(idx)
   }
 
   def zigzagSide(sessionId: Long, idx: Int): Side = {
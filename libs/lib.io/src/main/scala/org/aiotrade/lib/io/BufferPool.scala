@@ -0,0 +1,119 @@
+package org.aiotrade.lib.io
+
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A pool of direct ByteBuffer chunks, which are reference counted: a chunk goes
+ * back to the pool when the last holder releases it. Reading sockets into direct
+ * buffers avoids the copy via JDK's temporary direct buffer, and reusing them
+ * avoids allocating an array per read.
+ *
+ * Chunks that are not released (leaked) are simply collected by GC, the pool then
+ * allocates new ones.
+ *
+ * @param chunkSize size of each chunk
+ * @param maxPooled max number of idle chunks to be kept
+ * @author Caoyuan Deng
+ */
+class BufferPool(val chunkSize: Int, maxPooled: Int) {
+  private val idle = new ConcurrentLinkedQueue[BufferChunk]()
+  private val nIdle = new AtomicInteger
+  private val _allocated = new AtomicLong
+  private val _acquired = new AtomicLong
+
+  /** number of chunks that were allocated */
+  def allocated = _allocated.get
+  /** number of chunks that were acquired */
+  def acquired = _acquired.get
+  def idleCount = nIdle.get
+
+  /**
+   * @return a chunk with refCount 1, whose buffer is cleared
+   */
+  def acquire(): BufferChunk = {
+    _acquired.incrementAndGet
+    val chunk = idle.poll
+    if (chunk != null) {
+      nIdle.decrementAndGet
+      chunk.reuse
+      chunk
+    } else {
+      _allocated.incrementAndGet
+      new BufferChunk(this, ByteBuffer.allocateDirect(chunkSize))
+    }
+  }
+
+  private[io] def recycle(chunk: BufferChunk) {
+    if (nIdle.incrementAndGet <= maxPooled) {
+      idle.offer(chunk)
+    } else {
+      nIdle.decrementAndGet
+    }
+  }
+
+  override
+  def toString = "BufferPool(chunkSize=" + chunkSize + ", allocated=" + allocated + ", acquired=" + acquired + ", idle=" + idleCount + ")"
+}
+
+object BufferPool {
+  /** the default pool shared by readers of lib.io */
+  lazy val default = new BufferPool(64 * 1024, 256)
+}
+
+final class BufferChunk private[io] (pool: BufferPool, val buffer: ByteBuffer) {
+  private val refCount = new AtomicInteger(1)
+
+  def retain(): this.type = {
+    if (refCount.getAndIncrement <= 0) {
+      throw new IllegalStateException("Chunk has been released")
+    }
+    this
+  }
+
+  def release() {
+    val n = refCount.decrementAndGet
+    if (n == 0) {
+      pool.recycle(this)
+    } else if (n < 0) {
+      throw new IllegalStateException("Chunk has been released")
+    }
+  }
+
+  private[io] def reuse {
+    buffer.clear
+    refCount.set(1)
+  }
+
+  /**
+   * @return a slice view of [offset, offset + length) that holds a reference of
+   *         this chunk
+   */
+  def slice(offset: Int, length: Int): BufferSlice = {
+    val dup = buffer.duplicate
+    dup.limit(offset + length).position(offset)
+    retain
+    new BufferSlice(this, dup.slice)
+  }
+}
+
+/**
+ * A view of part of a chunk. The holder should call release when done with it,
+ * the view should not be used after that.
+ */
+final class BufferSlice private[io] (chunk: BufferChunk, val data: ByteBuffer) {
+  def remaining = data.remaining
+
+  def release() {
+    chunk.release
+  }
+
+  /** copy of the remaining bytes, for handlers that need an array */
+  def toArray: Array[Byte] = {
+    val bytes = new Array[Byte](data.remaining)
+    data.duplicate.get(bytes)
+    bytes
+  }
+}
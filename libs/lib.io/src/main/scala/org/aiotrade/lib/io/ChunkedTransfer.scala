@@ -0,0 +1,283 @@
+package org.aiotrade.lib.io
+
+import java.io.EOFException
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.SocketChannel
+import java.util.logging.Logger
+import java.util.zip.CRC32
+
+/**
+ * Chunked, resumable file transfer on a blocking SocketChannel, in constant
+ * memory whatever the size of files is.
+ *
+ * Protocol:
+ *   sender   -> MAGIC(int) numFiles(int)
+ *   for each file:
+ *   sender   -> nameLength(int) name size(long) chunkSize(int)
+ *   receiver -> resumeOffset(long)
+ *   for each chunk from resumeOffset:
+ *   sender   -> length(int) crc32(long) data
+ *   receiver -> size(long), when the whole file is received and verified
+ *
+ * The sender maps each chunk of file, computes its checksum on the mapped pages,
+ * then ships it by FileChannel.transferTo. The receiver writes to a '.name.part'
+ * file in pieces of a small buffer, and verifies the checksum of each chunk. The
+ * verified length of the part file is recorded in a '.name.part.offset' file, so
+ * if the transfer is broken, the next transfer of same name and size resumes from
+ * there. When a chunk fails the checksum, the receiver truncates it and closes
+ * the connection, the sender may send again to resume from the last good chunk.
+ *
+ * @author Caoyuan Deng
+ */
+object ChunkedTransfer {
+  private val log = Logger.getLogger(this.getClass.getName)
+
+  val MAGIC = 0x43484b31 // "CHK1"
+  val DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024
+  private val PIECE_SIZE = 64 * 1024
+  /** limits of what a receiver takes from the connection before allocating or looping */
+  private val MAX_FILES = 65536
+  private val MAX_NAME_LENGTH = 1024
+
+  // --- sender side
+
+  @throws(classOf[IOException])
+  def sendFiles(channel: SocketChannel, files: Array[File], chunkSize: Int = DEFAULT_CHUNK_SIZE) {
+    val head = ByteBuffer.allocate(8)
+    head.putInt(MAGIC).putInt(files.length).flip
+    writeFully(channel, head)
+
+    val scratch = new Array[Byte](PIECE_SIZE)
+    var i = -1
+    while ({i += 1; i < files.length}) {
+      sendFile(channel, files(i), chunkSize, scratch)
+    }
+  }
+
+  @throws(classOf[IOException])
+  private def sendFile(channel: SocketChannel, file: File, chunkSize: Int, scratch: Array[Byte]) {
+    val raf = new RandomAccessFile(file, "r")
+    try {
+      val fileChannel = raf.getChannel
+      val size = fileChannel.size
+
+      val name = file.getName.getBytes("UTF-8")
+      val meta = ByteBuffer.allocate(4 + name.length + 8 + 4)
+      meta.putInt(name.length).put(name).putLong(size).putInt(chunkSize).flip
+      writeFully(channel, meta)
+
+      val offset = readLong(channel)
+      if (offset < 0 || offset > size) {
+        throw new IOException("Invalid resume offset " + offset + " of " + file)
+      }
+      if (offset > 0) {
+        log.info("Resume sending " + file + " from " + offset + " of " + size)
+      }
+
+      val crc = new CRC32
+      val chunkHead = ByteBuffer.allocate(12)
+      var position = offset
+      while (position < size) {
+        val length = math.min(chunkSize.toLong, size - position).toInt
+
+        val mapped = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, length)
+        crc.reset
+        while (mapped.hasRemaining) {
+          val n = math.min(scratch.length, mapped.remaining)
+          mapped.get(scratch, 0, n)
+          crc.update(scratch, 0, n)
+        }
+
+        chunkHead.clear
+        chunkHead.putInt(length).putLong(crc.getValue).flip
+        writeFully(channel, chunkHead)
+
+        var sent = 0L
+        while (sent < length) {
+          sent += fileChannel.transferTo(position + sent, length - sent, channel)
+        }
+        position += length
+      }
+
+      val ack = readLong(channel)
+      if (ack != size) {
+        throw new IOException("Receiver acked " + ack + " instead of " + size + " for " + file)
+      }
+    } finally {
+      raf.close
+    }
+  }
+
+  // --- receiver side
+
+  /**
+   * Receive files sent by sendFiles, after MAGIC has been read.
+   * @return the received files
+   */
+  @throws(classOf[IOException])
+  def receiveFiles(channel: SocketChannel, storageDir: File): Array[File] = {
+    val nFiles = readInt(channel)
+    if (nFiles < 0 || nFiles > MAX_FILES) {
+      throw new IOException("Invalid number of files " + nFiles)
+    }
+    val piece = ByteBuffer.allocate(PIECE_SIZE)
+    val files = new Array[File](nFiles)
+    var i = -1
+    while ({i += 1; i < nFiles}) {
+      files(i) = receiveFile(channel, storageDir, piece)
+    }
+    files
+  }
+
+  @throws(classOf[IOException])
+  private def receiveFile(channel: SocketChannel, storageDir: File, piece: ByteBuffer): File = {
+    val nameLength = readInt(channel)
+    if (nameLength <= 0 || nameLength > MAX_NAME_LENGTH) {
+      throw new IOException("Invalid file name length " + nameLength)
+    }
+    val nameBytes = new Array[Byte](nameLength)
+    readFully(channel, ByteBuffer.wrap(nameBytes))
+    // only keep the name, never write out of storageDir
+    val name = new File(new String(nameBytes, "UTF-8")).getName
+    if (name == "" || name == "." || name == "..") {
+      throw new IOException("Invalid file name " + name)
+    }
+    val size = readLong(channel)
+    val chunkSize = readInt(channel)
+    if (size < 0 || chunkSize <= 0) {
+      throw new IOException("Invalid size " + size + " or chunk size " + chunkSize + " of " + name)
+    }
+
+    val partFile = new File(storageDir, "." + name + ".part")
+    val offsetFile = new File(storageDir, "." + name + ".part.offset")
+    val resumeOffset = if (partFile.exists) math.min(recordedOffset(offsetFile, size, chunkSize), partFile.length) else 0L
+
+    val raf = new RandomAccessFile(partFile, "rw")
+    try {
+      val fileChannel = raf.getChannel
+      fileChannel.truncate(resumeOffset)
+
+      val ack = ByteBuffer.allocate(8)
+      ack.putLong(resumeOffset).flip
+      writeFully(channel, ack)
+
+      val crc = new CRC32
+      val chunkHead = ByteBuffer.allocate(12)
+      var position = resumeOffset
+      while (position < size) {
+        chunkHead.clear
+        readFully(channel, chunkHead)
+        chunkHead.flip
+        val length = chunkHead.getInt
+        val expectedCrc = chunkHead.getLong
+        if (length <= 0 || length > chunkSize || length > size - position) {
+          throw new IOException("Invalid chunk length " + length + " at " + position + " of " + name)
+        }
+
+        crc.reset
+        var received = 0
+        while (received < length) {
+          piece.clear
+          piece.limit(math.min(piece.capacity, length - received))
+          readFully(channel, piece)
+          piece.flip
+          crc.update(piece.array, 0, piece.limit)
+          while (piece.hasRemaining) {
+            fileChannel.write(piece, position + received + piece.position)
+          }
+          received += piece.limit
+        }
+
+        if (crc.getValue != expectedCrc) {
+          fileChannel.truncate(position)
+          throw new IOException("Checksum failed at chunk " + position + " of " + name + ", will resume from there")
+        }
+
+        position += length
+        // the recorded offset should never be ahead of what is on disk
+        fileChannel.force(false)
+        recordOffset(offsetFile, position, size, chunkSize)
+      }
+    } finally {
+      raf.close
+    }
+
+    val file = new File(storageDir, name)
+    if (file.exists) file.delete
+    if (!partFile.renameTo(file)) {
+      throw new IOException("Failed to rename " + partFile + " to " + file)
+    }
+    offsetFile.delete
+
+    val done = ByteBuffer.allocate(8)
+    done.putLong(size).flip
+    writeFully(channel, done)
+    log.info("Received " + file + " (" + size + " bytes)")
+    file
+  }
+
+  /**
+   * @return the verified offset of previous transfer of same size and chunkSize, or 0
+   */
+  private def recordedOffset(offsetFile: File, size: Long, chunkSize: Int): Long = {
+    if (!offsetFile.exists) return 0
+    try {
+      val raf = new RandomAccessFile(offsetFile, "r")
+      try {
+        val offset = raf.readLong
+        if (raf.readLong == size && raf.readInt == chunkSize && offset <= size) offset else 0
+      } finally {
+        raf.close
+      }
+    } catch {
+      case ex: IOException => 0
+    }
+  }
+
+  private def recordOffset(offsetFile: File, offset: Long, size: Long, chunkSize: Int) {
+    val raf = new RandomAccessFile(offsetFile, "rw")
+    try {
+      raf.writeLong(offset)
+      raf.writeLong(size)
+      raf.writeInt(chunkSize)
+    } finally {
+      raf.close
+    }
+  }
+
+  // --- helpers
+
+  @throws(classOf[IOException])
+  def readInt(channel: SocketChannel): Int = {
+    val buf = ByteBuffer.allocate(4)
+    readFully(channel, buf)
+    buf.flip
+    buf.getInt
+  }
+
+  @throws(classOf[IOException])
+  def readLong(channel: SocketChannel): Long = {
+    val buf = ByteBuffer.allocate(8)
+    readFully(channel, buf)
+    buf.flip
+    buf.getLong
+  }
+
+  @throws(classOf[IOException])
+  def readFully(channel: SocketChannel, buf: ByteBuffer) {
+    while (buf.hasRemaining) {
+      if (channel.read(buf) == -1) throw new EOFException("Connection closed")
+    }
+  }
+
+  @throws(classOf[IOException])
+  def writeFully(channel: SocketChannel, buf: ByteBuffer) {
+    while (buf.hasRemaining) {
+      channel.write(buf)
+    }
+  }
+}
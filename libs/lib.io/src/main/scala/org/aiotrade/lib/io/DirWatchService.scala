@@ -0,0 +1,49 @@
+package org.aiotrade.lib.io
+
+import java.io.File
+import java.util.logging.{Logger, Level}
+import scala.collection.mutable
+
+/**
+ * Events source of DirWatcher. The implementation by java.nio.file (Java 7) is
+ * loaded by name, so DirWatcher still runs on Java 6, and lists the directories
+ * instead.
+ */
+private[io] trait DirWatchService {
+  /**
+   * @return false if dir can not be watched, it should be listed instead
+   */
+  def register(dir: File): Boolean
+
+  def registeredDirs: Set[File]
+
+  /**
+   * Polls the pending events without waiting, the files reported changed are
+   * added to changed by file name.
+   *
+   * @return false if events were overflowed or a directory is not watched any
+   *         more, the directories should be listed then
+   */
+  def poll(changed: mutable.Map[String, mutable.Set[File]]): Boolean
+
+  def close()
+}
+
+private[io] object DirWatchService {
+  private val log = Logger.getLogger(this.getClass.getName)
+
+  private val NIO_IMPL = "org.aiotrade.lib.io.NioDirWatchService"
+
+  /**
+   * @return None if WatchService is not available on this JVM
+   */
+  def open(): Option[DirWatchService] = {
+    try {
+      Some(Class.forName(NIO_IMPL).newInstance.asInstanceOf[DirWatchService])
+    } catch {
+      case ex: Throwable => // LinkageError on Java 6, or IOException from the file system
+        log.log(Level.WARNING, "WatchService is not available: " + ex)
+        None
+    }
+  }
+}
@@ -18,14 +18,35 @@ import scala.collection.mutable
  * If only one path is provided for DirWatcher and the other path is null,
  * the Dirwatcher will only watch one directory and ignore the null path.
  *
+ * When useWatchService is true, directories are registered to a WatchService,
+ * each run only checks the files that are reported changed instead of listing
+ * the directories, so it's cheap to be run in short period even on directories
+ * of tens of thousands files. It falls back to listing when the events were
+ * overflowed, a directory can not be registered, or WatchService is not 
+ * available (on Java 6).
+ *
+ * Events found in one run are delivered as one batch by onChanges, sorted by
+ * file name.
+ *
+ * @param maxKnownFiles bound of the known-file table, the least recently 
+ *        changed files are forgotten beyond it, and will be reported as added 
+ *        if they are changed later. The bound is raised to the number of files
+ *        that a listing finds, so a listing never reports known files as added.
  * @author Caoyuan Deng, Guibin Zhang
  */
 @throws(classOf[IOException])
-abstract class DirWatcher(paths: List[File], filter: FileFilter, includingExistingFiles: Boolean = false) extends TimerTask {
+abstract class DirWatcher(paths: List[File], filter: FileFilter, includingExistingFiles: Boolean = false,
+                          useWatchService: Boolean = true, maxKnownFiles: Int = Int.MaxValue
+) extends TimerTask {
   private val log = Logger.getLogger(this.getClass.getName)
   log.log(Level.INFO, "Watching on " + paths)
   
   protected val NOT_SURE = Long.MinValue
+
+  /** when true, next run should list the directories */
+  @volatile private var isFullScanNeeded = false
+  private val watchService: DirWatchService = if (useWatchService) openWatchService else null
+
   protected val fileNameToLastModified = init
 
   def this(paths: List[String], endWith: String) =
@@ -47,12 +68,14 @@ abstract class DirWatcher(paths: List[File], filter: FileFilter, includingExisti
    */
   private def init = {
     val map = scanFiles
+    val known = new WatcherMap(math.max(maxKnownFiles, map.size))
+    map.values foreach {x => known.put(x._1, x._2)}
     /** @TODO Here are NullPointerException bug to be fixed!! */
     if (includingExistingFiles && map.size > 0) {
-      map.values.sortWith{(a, b) => a._1.compareTo(b._1) < 0} foreach {x => onChange(FileAdded(x._1, x._2))}
+      onChanges(map.values.sortWith{(a, b) => a._1.compareTo(b._1) < 0} map {x => FileAdded(x._1, x._2)})
     }
     
-    map
+    known
   }
   
   /**
@@ -84,14 +107,123 @@ abstract class DirWatcher(paths: List[File], filter: FileFilter, includingExisti
     map
   }
 
+  private def openWatchService: DirWatchService = {
+    DirWatchService.open() match {
+      case Some(ws) =>
+        for (path <- paths if path != null) {
+          register(ws, path)
+        }
+        ws
+      case None =>
+        log.log(Level.WARNING, "Will list " + paths + " instead of watching")
+        null
+    }
+  }
+
+  private def register(ws: DirWatchService, dir: File) {
+    if (!ws.register(dir)) {
+      log.log(Level.WARNING, "Will list " + dir + " instead of watching")
+      isFullScanNeeded = true
+    }
+  }
+
   final def run {
     apply()
   }
 
   /** always add () for empty apply method */
   final def apply() {
+    if (watchService != null && !isFullScanNeeded) {
+      applyWatchEvents
+    } else {
+      applyListing
+    }
+  }
+
+  /**
+   * Stop watching, the WatchService is closed.
+   */
+  override 
+  def cancel: Boolean = {
+    if (watchService != null) {
+      watchService.close()
+    }
+    super.cancel
+  }
+
+  /**
+   * Check the files that the WatchService reported changed.
+   */
+  private def applyWatchEvents {
+    val changed = mutable.Map[String, mutable.Set[File]]()
+    val isOverflowed = !watchService.poll(changed)
+
+    if (isOverflowed) {
+      log.info("Events of " + paths + " overflowed, will list them")
+      applyListing
+      return
+    }
+    if (changed.isEmpty) return
+
+    val events = new mutable.ArrayBuffer[FileEvent]()
+    val fileNames = changed.keys.toArray.sortWith(_.compareTo(_) < 0)
+    var i = 0
+    while (i < fileNames.length) {
+      val fileName = fileNames(i)
+      // the latest one of the existing files of this name in all paths
+      var latest: File = null
+      var latestTime = NOT_SURE
+      for (path <- paths if path != null) {
+        val file = new File(path, fileName)
+        if (file.exists && filter.accept(file)) {
+          val time = lastModified(file)
+          if (time != NOT_SURE && (latest == null || time > latestTime)) {
+            latest = file
+            latestTime = time
+          }
+        }
+      }
+
+      fileNameToLastModified.get(fileName) match {
+        case None if latest != null =>
+          if (latest.canRead) {
+            fileNameToLastModified.put(latest, latestTime)
+            events += FileAdded(latest, latestTime)
+          }
+        case Some(oldTime) if latest != null =>
+          if (oldTime < latestTime && latest.canRead) {
+            fileNameToLastModified.put(latest, latestTime)
+            events += FileModified(latest, latestTime)
+          }
+        case Some(oldTime) =>
+          val file = fileNameToLastModified.fileOf(fileName).get
+          fileNameToLastModified remove file
+          events += FileDeleted(file, oldTime)
+        case None =>
+      }
+      i += 1
+    }
+
+    if (!events.isEmpty) onChanges(events)
+  }
+
+  /**
+   * List the directories and compare with the known files.
+   */
+  private def applyListing {
+    if (isFullScanNeeded && watchService != null) {
+      // try to watch again the directories that are not registered
+      isFullScanNeeded = false
+      val registered = watchService.registeredDirs
+      for (path <- paths if path != null && !registered.contains(path)) {
+        register(watchService, path)
+      }
+    }
+
     val start = System.currentTimeMillis
     val newMap = scanFiles
+    // known files that are forgotten would be reported as added
+    fileNameToLastModified.ensureMaxSize(newMap.size)
     
     val listDuration = System.currentTimeMillis - start
     if (listDuration > 1000) {
@@ -101,6 +233,7 @@ abstract class DirWatcher(paths: List[File], filter: FileFilter, includingExisti
     // It is to Guarantee that the name strings in the resulting array will appear in alphabetical order.
     val fileNames = newMap.toFileNames.sortWith(_.compareTo(_) < 0)
     val checkedFiles = mutable.Set[String]()
+    val events = new mutable.ArrayBuffer[FileEvent]()
 
     var i = 0
     while (i < fileNames.length) {
@@ -114,7 +247,7 @@ abstract class DirWatcher(paths: List[File], filter: FileFilter, includingExisti
           val file = newMap.fileOf(fileName).get
           if (file.canRead) {
             fileNameToLastModified.put(file, newTime)
-            onChange(FileAdded(file, newTime))
+            events += FileAdded(file, newTime)
           }
         case Some(oldTime)  =>
           // modified file
@@ -123,7 +256,7 @@ abstract class DirWatcher(paths: List[File], filter: FileFilter, includingExisti
             val file = newMap.fileOf(fileName).get
             if (file.canRead) {
               fileNameToLastModified.put(file, newTime)
-              onChange(FileModified(file, newTime))
+              events += FileModified(file, newTime)
             }
           } else {
             // Ingore the old one and current one, only care the newer one.
@@ -139,8 +272,10 @@ abstract class DirWatcher(paths: List[File], filter: FileFilter, includingExisti
       val file = fileNameToLastModified.fileOf(fileName).get
       val time = fileNameToLastModified.get(fileName).get
       fileNameToLastModified remove file
-      onChange(FileDeleted(file, time))
+      events += FileDeleted(file, time)
     }
+
+    if (!events.isEmpty) onChanges(events)
     
     val duration = System.currentTimeMillis - start
     if (duration > 2000) {
@@ -148,6 +283,14 @@ abstract class DirWatcher(paths: List[File], filter: FileFilter, includingExisti
     }
   }
 
+  /**
+   * Called with the events found in one run, override it to process them as a
+   * batch, the default one calls onChange for each of them.
+   */
+  protected def onChanges(events: Seq[FileEvent]) {
+    events foreach onChange
+  }
+
   /**
    * Override it if you want sync processing
    */
@@ -163,8 +306,22 @@ abstract class DirWatcher(paths: List[File], filter: FileFilter, includingExisti
     file.lastModified
   }
     
-  protected class WatcherMap {
-    private val map = mutable.Map[String, (File, Long)]()
+  protected class WatcherMap(private var maxSize: Int = Int.MaxValue) {
+    // in order of put, so the least recently changed ones are evicted beyond maxSize
+    private val map = mutable.LinkedHashMap[String, (File, Long)]()
+
+    /** raise maxSize to size at least, never lower it */
+    def ensureMaxSize(size: Int) {
+      if (size > maxSize) maxSize = size
+    }
+
+    private def store(fileName: String, value: (File, Long)) {
+      map -= fileName
+      map(fileName) = value
+      if (map.size > maxSize) {
+        map -= map.head._1
+      }
+    }
 
     /**
      * Filter out the duplicated file whose file name is same,
@@ -175,13 +332,13 @@ abstract class DirWatcher(paths: List[File], filter: FileFilter, includingExisti
         case Some((f, time)) =>
           // Only keep the latest one
           if (time < lastModified) {
-            map(file.getName) = (file, lastModified)
+            store(file.getName, (file, lastModified))
             true
           } else {
             false
           }
         case None =>
-          map(file.getName) = (file, lastModified)
+          store(file.getName, (file, lastModified))
           true
       }
     }
@@ -8,12 +8,19 @@ import java.net.InetAddress
 import java.net.InetSocketAddress
 import java.nio.channels.SelectionKey
 import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
 import java.nio.channels.spi.SelectorProvider
+import java.util.logging.Level
+import java.util.logging.Logger
 import scala.actors.Actor
 import Encoding._
 
-
-class FileReceiver(hostAddress: InetAddress, port: Int, storageDirPath: String) extends Actor {
+/**
+ * @param chunked if true, receives files sent by FileSender.sendChunked, each
+ *        connection is served by its own thread on a blocking channel
+ */
+class FileReceiver(hostAddress: InetAddress, port: Int, storageDirPath: String, chunked: Boolean = false) extends Actor {
+  private val log = Logger.getLogger(this.getClass.getName)
 
   val storageDir = new File(storageDirPath)
   if (!storageDir.exists) {
@@ -38,7 +45,9 @@ class FileReceiver(hostAddress: InetAddress, port: Int, storageDirPath: String)
 
   def act = loop {
     val clientChannel = serverChannel.accept
-    if (clientChannel != null) {
+    if (clientChannel != null && chunked) {
+      receiveChunked(clientChannel)
+    } else if (clientChannel != null) {
       clientChannel.configureBlocking(false)
       println("new connection accepted")
 
@@ -50,6 +59,27 @@ class FileReceiver(hostAddress: InetAddress, port: Int, storageDirPath: String)
       selectorActor.requestChange(InterestInOps(clientChannel, SelectionKey.OP_READ))
     }
   }
+
+  private def receiveChunked(channel: SocketChannel) {
+    val t = new Thread(new Runnable {
+        def run {
+          try {
+            val magic = ChunkedTransfer.readInt(channel)
+            if (magic != ChunkedTransfer.MAGIC) {
+              log.warning("Not a chunked transfer: " + magic)
+            } else {
+              ChunkedTransfer.receiveFiles(channel, storageDir)
+            }
+          } catch {
+            case ex: IOException => log.log(Level.WARNING, ex.getMessage, ex)
+          } finally {
+            channel.close
+          }
+        }
+      }, "FileReceiver-" + channel.socket.getRemoteSocketAddress)
+    t.setDaemon(true)
+    t.start
+  }
 }
 
 
@@ -66,11 +96,17 @@ object FileReceiver {
 
     private val requestParser = new RequestParser(storageDir)
 
-    private def handleRequest(data: Array[Byte]) = {
-      var i = 0
-      while (i < data.length) {
-        requestParser.consume(data(i))
-        i += 1
+    private def handleRequest(data: BufferSlice) = {
+      try {
+        val buf = data.data
+        var i = buf.position
+        val end = buf.limit
+        while (i < end) {
+          requestParser.consume(buf.get(i))
+          i += 1
+        }
+      } finally {
+        data.release
       }
 
       requestParser.parsed
@@ -1,5 +1,6 @@
 package org.aiotrade.lib.io
 
+import java.io.File
 import java.io.IOException
 import java.io.RandomAccessFile
 import java.net.InetSocketAddress
@@ -64,6 +65,20 @@ class FileSender(hostAddress: String, port: Int) {
     }
   }
 
+  /**
+   * Send files in chunks by ChunkedTransfer on a blocking channel, which needs a
+   * FileReceiver of chunked mode, and resumes the files that were partly sent.
+   */
+  @throws(classOf[IOException])
+  def sendChunked(files: Array[String], chunkSize: Int = ChunkedTransfer.DEFAULT_CHUNK_SIZE) {
+    val channel = SocketChannel.open(new InetSocketAddress(hostAddress, port))
+    try {
+      ChunkedTransfer.sendFiles(channel, files map (new File(_)), chunkSize)
+    } finally {
+      channel.close
+    }
+  }
+
   private def sendInt(channel: SocketChannel, i: Int) {
     val bytes = encodeInt(i)
     selectReactor ! SendData(channel, ByteBuffer.wrap(bytes), None)
@@ -84,9 +99,14 @@ class FileSender(hostAddress: String, port: Int) {
   private def sendFile(channel: SocketChannel, file: String) {
     val fileChannel = (new RandomAccessFile(file, "r")).getChannel
     val size = fileChannel.size
-    val byteBuf = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size)
     sendLong(channel, size)
-    selectReactor ! SendData(channel, byteBuf, None)
+    // map in chunks, a single mapping is limited to 2G
+    var position = 0L
+    while (position < size) {
+      val length = math.min(size - position, ChunkedTransfer.DEFAULT_CHUNK_SIZE)
+      selectReactor ! SendData(channel, fileChannel.map(FileChannel.MapMode.READ_ONLY, position, length), None)
+      position += length
+    }
   }
 
 }
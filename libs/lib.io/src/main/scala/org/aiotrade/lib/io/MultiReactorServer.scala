@@ -0,0 +1,435 @@
+package org.aiotrade.lib.io
+
+import java.io.IOException
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.ClosedSelectorException
+import java.nio.channels.SelectionKey
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+import java.nio.channels.spi.SelectorProvider
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.logging.Level
+import java.util.logging.Logger
+import org.aiotrade.lib.util.LatencyHistogram
+import scala.actors.Actor
+
+/**
+ * A boss/worker NIO server: one acceptor thread accepts connections, and hands
+ * each of them to one of nWorkers selector threads, by round-robin, or to the
+ * worker which has least connections. Each worker owns its selector, and reads,
+ * writes all of its channels in its own thread, so there is no lock and no actor
+ * message on the hot path, and the load is spread on cores.
+ *
+ * Received data is handed to the handler got from handlerOf as ProcessData, the
+ * same as SelectReactor, the handler may reply by sending SendData to the
+ * reactor of ProcessData, or by calling send directly.
+ *
+ * To fan out data to many clients, use broadcast, which costs one task and one
+ * wakeup per worker instead of one per client. A client whose pending data
+ * exceeds maxPendingBytes is considered too slow and will be closed.
+ *
+ * @param nWorkers number of worker selectors, default number of processors
+ * @param handlerOf gives the handler of an accepted channel
+ * @author Caoyuan Deng
+ */
+class MultiReactorServer(hostAddress: InetAddress, port: Int,
+                         nWorkers: Int = Runtime.getRuntime.availableProcessors,
+                         leastLoaded: Boolean = false,
+                         maxPendingBytes: Int = 4 * 1024 * 1024,
+                         bufferPool: BufferPool = BufferPool.default
+)(handlerOf: SocketChannel => Option[Actor]) {
+  import MultiReactorServer._
+  private val log = Logger.getLogger(this.getClass.getName)
+
+  val serverChannel = ServerSocketChannel.open
+  serverChannel.configureBlocking(true)
+  serverChannel.socket.bind(new InetSocketAddress(hostAddress, port))
+
+  val workers = Array.tabulate(math.max(nWorkers, 1)){i => new Worker(i)}
+  private val nextWorker = new AtomicInteger
+  @volatile private var isRunning = false
+
+  private val acceptor = new Thread(new Runnable {def run = acceptLoop}, "NioAcceptor-" + port)
+  acceptor.setDaemon(true)
+
+  def start: this.type = {
+    isRunning = true
+    workers foreach (_.start)
+    acceptor.start
+    this
+  }
+
+  def stop {
+    isRunning = false
+    try {
+      serverChannel.close
+    } catch {case ex: IOException =>}
+    workers foreach (_.stop)
+  }
+
+  def connections: Int = workers.foldLeft(0)(_ + _.connections)
+
+  /**
+   * Send data to channel. Could be called from any thread.
+   * @param owner if not null, will be released after data is written
+   */
+  def send(channel: SocketChannel, data: ByteBuffer, owner: BufferSlice = null) {
+    val conn = connectionOf(channel)
+    if (conn != null) {
+      conn.worker.execute(new Runnable {def run = conn.enqueue(SendData(channel, data, None, owner))})
+    } else if (owner != null) {
+      owner.release
+    }
+  }
+
+  /**
+   * Send data to all connected channels. Each channel writes its own duplicate
+   * of data, so data is not copied. Could be called from any thread.
+   */
+  def broadcast(data: ByteBuffer) {
+    var i = -1
+    while ({i += 1; i < workers.length}) {
+      val worker = workers(i)
+      worker.execute(new Runnable {def run = worker.broadcastInThread(data)})
+    }
+  }
+
+  def metrics: String = {
+    val sb = new StringBuilder
+    sb.append("connections=").append(connections).append(", ").append(bufferPool)
+    var i = -1
+    while ({i += 1; i < workers.length}) {
+      sb.append("\n").append(workers(i).metrics)
+    }
+    sb.toString
+  }
+
+  private def connectionOf(channel: SocketChannel): Connection = {
+    var i = -1
+    while ({i += 1; i < workers.length}) {
+      val key = channel.keyFor(workers(i).selector)
+      if (key != null) return key.attachment.asInstanceOf[Connection]
+    }
+    null
+  }
+
+  private def acceptLoop {
+    while (isRunning) {
+      try {
+        val channel = serverChannel.accept
+        if (channel != null) {
+          channel.configureBlocking(false)
+          channel.socket.setTcpNoDelay(true)
+          val worker = selectWorker
+          worker.execute(new Runnable {def run = worker.registerInThread(channel)})
+        }
+      } catch {
+        case ex: IOException => if (isRunning) log.log(Level.WARNING, ex.getMessage, ex)
+      }
+    }
+  }
+
+  private def selectWorker: Worker = {
+    if (leastLoaded) {
+      var min = workers(0)
+      var i = 0
+      while ({i += 1; i < workers.length}) {
+        if (workers(i).connections < min.connections) min = workers(i)
+      }
+      min
+    } else {
+      workers((nextWorker.getAndIncrement & Int.MaxValue) % workers.length)
+    }
+  }
+
+  /**
+   * State of a channel, which is accessed only in the thread of its worker
+   */
+  private final class Connection(val worker: Worker, val channel: SocketChannel, val key: SelectionKey, val handler: Option[Actor]) {
+    val pending = new java.util.ArrayDeque[SendData]()
+    var pendingBytes = 0L
+
+    def enqueue(msg: SendData) {
+      if (!key.isValid) {
+        if (msg.owner != null) msg.owner.release
+        return
+      }
+
+      pending.add(msg)
+      pendingBytes += msg.data.remaining
+      if (pendingBytes > maxPendingBytes) {
+        log.warning("Close slow client " + channel + ", pending " + pendingBytes + " bytes")
+        worker.close(this)
+      } else if (pending.size == 1) {
+        // try to write through, only wait for OP_WRITE when socket buffer is full
+        worker.write(this)
+      }
+    }
+  }
+
+  final class Worker private[MultiReactorServer] (val id: Int) {
+    val selector = SelectorProvider.provider.openSelector
+
+    private val tasks = new ConcurrentLinkedQueue[Runnable]()
+    private val isWakeupPending = new AtomicBoolean
+    private var readChunk: BufferChunk = _
+    private val gathering = new Array[ByteBuffer](MAX_GATHER)
+    private val _connections = new AtomicInteger
+    @volatile private var isRunning = false
+
+    // --- metrics
+    /** time of processing the ready keys and tasks of each loop, excluding waiting */
+    val loopLatencies = new LatencyHistogram("worker-" + id + " loop")
+    private val _loops = new AtomicLong
+    private val _readyKeys = new AtomicLong
+    @volatile private var _maxReadyKeys = 0
+    private val _bytesRead = new AtomicLong
+    private val _bytesWritten = new AtomicLong
+
+    def connections = _connections.get
+    def loops = _loops.get
+    /** average number of ready keys per loop */
+    def readyKeysPerLoop: Double = if (loops == 0) 0 else _readyKeys.get.toDouble / loops
+    def maxReadyKeys = _maxReadyKeys
+    def bytesRead = _bytesRead.get
+    def bytesWritten = _bytesWritten.get
+
+    /** ProcessData.reactor, so handlers can reply by SendData as to SelectReactor */
+    private val replyActor = new Actor {
+      def act = loop {
+        react {
+          case msg@SendData(channel, _, _, _) =>
+            val key = channel.keyFor(selector)
+            if (key != null) {
+              val conn = key.attachment.asInstanceOf[Connection]
+              execute(new Runnable {def run = conn.enqueue(msg)})
+            } else if (msg.owner != null) {
+              msg.owner.release
+            }
+          case StopWorker => exit
+        }
+      }
+    }
+
+    private val thread = new Thread(new Runnable {def run = selectLoop}, "NioWorker-" + port + "-" + id)
+    thread.setDaemon(true)
+
+    private[MultiReactorServer] def start {
+      isRunning = true
+      replyActor.start
+      thread.start
+    }
+
+    private[MultiReactorServer] def stop {
+      isRunning = false
+      selector.wakeup
+    }
+
+    /**
+     * Run task in the thread of this worker
+     */
+    def execute(task: Runnable) {
+      tasks.offer(task)
+      if (Thread.currentThread ne thread) {
+        if (isWakeupPending.compareAndSet(false, true)) selector.wakeup
+      }
+    }
+
+    def metrics: String = {
+      "worker-" + id + ": connections=" + connections + ", loops=" + loops +
+      ", readyKeysPerLoop=" + "%1.2f".format(readyKeysPerLoop) + ", maxReadyKeys=" + maxReadyKeys +
+      ", bytesRead=" + bytesRead + ", bytesWritten=" + bytesWritten + ", " + loopLatencies
+    }
+
+    private def selectLoop {
+      while (isRunning) {
+        try {
+          selector.select
+          isWakeupPending.set(false)
+          val t0 = System.nanoTime
+
+          runTasks
+
+          val keys = selector.selectedKeys
+          val nReady = keys.size
+          val itr = keys.iterator
+          while (itr.hasNext) {
+            val key = itr.next
+            itr.remove
+
+            val conn = key.attachment.asInstanceOf[Connection]
+            if (key.isValid && key.isReadable) read(conn)
+            if (key.isValid && key.isWritable) write(conn)
+          }
+
+          _loops.incrementAndGet
+          _readyKeys.addAndGet(nReady)
+          if (nReady > _maxReadyKeys) _maxReadyKeys = nReady
+          loopLatencies.recordNanos(System.nanoTime - t0)
+        } catch {
+          case ex: ClosedSelectorException => isRunning = false
+          case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex)
+        }
+      }
+
+      closeAll
+    }
+
+    private def runTasks {
+      var task = tasks.poll
+      while (task != null) {
+        try {
+          task.run
+        } catch {
+          case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex)
+        }
+        task = tasks.poll
+      }
+    }
+
+    private[MultiReactorServer] def registerInThread(channel: SocketChannel) {
+      try {
+        val key = channel.register(selector, SelectionKey.OP_READ)
+        key.attach(new Connection(this, channel, key, handlerOf(channel)))
+        _connections.incrementAndGet
+      } catch {
+        case ex: IOException =>
+          log.log(Level.WARNING, ex.getMessage, ex)
+          channel.close
+      }
+    }
+
+    private[MultiReactorServer] def broadcastInThread(data: ByteBuffer) {
+      val itr = selector.keys.iterator
+      while (itr.hasNext) {
+        val key = itr.next
+        if (key.isValid) {
+          val conn = key.attachment.asInstanceOf[Connection]
+          conn.enqueue(SendData(conn.channel, data.duplicate, None))
+        }
+      }
+    }
+
+    private def read(conn: Connection) {
+      // Take a new chunk when there is not enough room left in current one
+      if (readChunk == null || readChunk.buffer.remaining < MIN_READ_ROOM) {
+        if (readChunk != null) readChunk.release
+        readChunk = bufferPool.acquire()
+      }
+      val readBuffer = readChunk.buffer
+      val offset = readBuffer.position
+
+      val numRead = try {
+        conn.channel.read(readBuffer)
+      } catch {
+        case ex: IOException => -1 // The remote forcibly closed the connection
+      }
+
+      if (numRead == -1) {
+        readBuffer.position(offset)
+        close(conn)
+      } else if (numRead > 0) {
+        _bytesRead.addAndGet(numRead)
+        conn.handler match {
+          case Some(handler) => handler ! ProcessData(replyActor, conn.channel, conn.key, readChunk.slice(offset, numRead))
+          case None => readBuffer.position(offset)
+        }
+      }
+    }
+
+    private[MultiReactorServer] def write(conn: Connection) {
+      val queue = conn.pending
+      try {
+        var done = false
+        while (!queue.isEmpty && !done) {
+          var n = 0
+          val itr = queue.iterator
+          while (itr.hasNext && n < MAX_GATHER) {
+            gathering(n) = itr.next.data
+            n += 1
+          }
+          val written = conn.channel.write(gathering, 0, n)
+          _bytesWritten.addAndGet(written)
+          conn.pendingBytes -= written
+
+          var i = 0
+          while (i < n) {
+            if (!done) {
+              if (gathering(i).remaining > 0) {
+                done = true
+              } else {
+                val sent = queue.poll
+                if (sent.owner != null) sent.owner.release
+              }
+            }
+            gathering(i) = null
+            i += 1
+          }
+        }
+      } catch {
+        case ex: IOException =>
+          close(conn)
+          return
+      }
+
+      if (queue.isEmpty) {
+        if ((conn.key.interestOps & SelectionKey.OP_WRITE) != 0) conn.key.interestOps(SelectionKey.OP_READ)
+      } else {
+        if ((conn.key.interestOps & SelectionKey.OP_WRITE) == 0) conn.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE)
+      }
+    }
+
+    private[MultiReactorServer] def close(conn: Connection) {
+      if (conn.key.isValid) {
+        conn.key.cancel
+        _connections.decrementAndGet
+      }
+      try {
+        conn.channel.close
+      } catch {case ex: IOException =>}
+
+      while (!conn.pending.isEmpty) {
+        val unsent = conn.pending.poll
+        if (unsent.owner != null) unsent.owner.release
+      }
+      conn.pendingBytes = 0
+    }
+
+    private def closeAll {
+      val itr = selector.keys.iterator
+      while (itr.hasNext) {
+        close(itr.next.attachment.asInstanceOf[Connection])
+      }
+      selector.close
+      replyActor ! StopWorker
+    }
+  }
+}
+
+object MultiReactorServer {
+  private val log = Logger.getLogger(this.getClass.getName)
+
+  private case object StopWorker
+
+  /** max number of buffers to be written by one gathering write */
+  private val MAX_GATHER = 64
+  /** take a new read chunk when the room left is less than it */
+  private val MIN_READ_ROOM = 4096
+
+  // --- simple test, an echo server
+  def main(args: Array[String]) {
+    val port = if (args.length > 0) args(0).toInt else 9090
+    val handler = new NioServer.EchoWorker
+    handler.start
+    val server = new MultiReactorServer(null, port)(_ => Some(handler)).start
+    while (true) {
+      Thread.sleep(10000)
+      log.info(server.metrics)
+    }
+  }
+}
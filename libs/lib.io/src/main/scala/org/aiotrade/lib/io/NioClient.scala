@@ -69,8 +69,9 @@ object NioClient {
 
   class EchoRespHandler extends Actor {
 
-    def handleResponse(resp: Array[Byte]): Boolean = {
-      println(new String(resp))
+    def handleResponse(resp: BufferSlice): Boolean = {
+      println(new String(resp.toArray))
+      resp.release
       true
     }
 
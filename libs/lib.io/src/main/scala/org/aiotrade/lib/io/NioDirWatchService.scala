@@ -0,0 +1,78 @@
+package org.aiotrade.lib.io
+
+import java.io.File
+import java.io.IOException
+import java.nio.file.ClosedWatchServiceException
+import java.nio.file.FileSystems
+import java.nio.file.Path
+import java.nio.file.StandardWatchEventKinds
+import java.nio.file.WatchKey
+import java.util.logging.{Logger, Level}
+import scala.collection.mutable
+
+/**
+ * DirWatchService by java.nio.file.WatchService, which needs Java 7.
+ *
+ * @Note only be referred by name in DirWatchService.open, don't refer it
+ *       directly, otherwise the classes that refer it won't load on Java 6.
+ */
+private[io] final class NioDirWatchService extends DirWatchService {
+  private val log = Logger.getLogger(this.getClass.getName)
+
+  private val watchService = FileSystems.getDefault.newWatchService
+  private val keyToDir = mutable.Map[WatchKey, File]()
+
+  def register(dir: File): Boolean = {
+    try {
+      val key = dir.toPath.register(watchService,
+                                    StandardWatchEventKinds.ENTRY_CREATE,
+                                    StandardWatchEventKinds.ENTRY_MODIFY,
+                                    StandardWatchEventKinds.ENTRY_DELETE)
+      keyToDir synchronized {keyToDir(key) = dir}
+      true
+    } catch {
+      case ex: IOException =>
+        log.log(Level.WARNING, "Can not watch " + dir + ": " + ex.getMessage)
+        false
+    }
+  }
+
+  def registeredDirs: Set[File] = keyToDir synchronized {keyToDir.values.toSet}
+
+  def poll(changed: mutable.Map[String, mutable.Set[File]]): Boolean = {
+    var isComplete = true
+    try {
+      var key = watchService.poll
+      while (key != null) {
+        val dir = keyToDir synchronized {keyToDir.get(key)}
+        val itr = key.pollEvents.iterator
+        while (itr.hasNext) {
+          val event = itr.next
+          if (event.kind == StandardWatchEventKinds.OVERFLOW) {
+            isComplete = false
+          } else dir foreach {dir =>
+            val name = event.context.asInstanceOf[Path].getFileName.toString
+            changed.getOrElseUpdate(name, mutable.Set[File]()) += new File(dir, name)
+          }
+        }
+        if (!key.reset) {
+          // the directory is inaccessible, list it until it's registered again
+          keyToDir synchronized {keyToDir -= key}
+          isComplete = false
+        }
+        key = watchService.poll
+      }
+    } catch {
+      case ex: ClosedWatchServiceException => changed.clear
+    }
+    isComplete
+  }
+
+  def close() {
+    try {
+      watchService.close
+    } catch {
+      case ex: IOException =>
+    }
+  }
+}
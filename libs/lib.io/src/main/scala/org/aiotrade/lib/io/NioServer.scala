@@ -3,7 +3,6 @@ package org.aiotrade.lib.io
 import java.io.IOException
 import java.net.InetAddress
 import java.net.InetSocketAddress
-import java.nio.ByteBuffer
 import java.nio.channels.SelectionKey
 import java.nio.channels.ServerSocketChannel
 import java.nio.channels.spi.SelectorProvider
@@ -78,8 +77,8 @@ object NioServer {
     def act = loop {
       react {
         case ProcessData(reactor, channel, key, data) =>
-          // Return to sender
-          reactor ! SendData(channel, ByteBuffer.wrap(data), Some(this))
+          // Return to sender, the slice is released by reactor after it's written
+          reactor ! SendData(channel, data.data, Some(this), data)
       }
     }
   }
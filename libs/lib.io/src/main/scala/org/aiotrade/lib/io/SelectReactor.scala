@@ -6,18 +6,35 @@ import java.nio.ByteBuffer
 import java.nio.channels.SelectionKey
 import java.nio.channels.SocketChannel
 import scala.actors.Actor
-import scala.collection.immutable.Queue
 import scala.collection.mutable
 
-final case class ProcessData(reactor: Actor, socket: SocketChannel, key: SelectionKey, data: Array[Byte])
-final case class SendData(channel: SocketChannel, data: ByteBuffer, rspHandler: Option[Actor])
+/**
+ * @param data a slice view of the pooled read buffer, the handler should call
+ *        data.release when it's done with it
+ */
+final case class ProcessData(reactor: Actor, socket: SocketChannel, key: SelectionKey, data: BufferSlice)
+/**
+ * @param owner if not null, will be released after data is written
+ */
+final case class SendData(channel: SocketChannel, data: ByteBuffer, rspHandler: Option[Actor], owner: BufferSlice = null)
 final case class SetResponseHandler(channel: SocketChannel, rspHandler: Option[Actor])
 
-class SelectReactor(dispatcher: SelectDispatcher) extends Actor {
-  // The buffer into which we'll read data when it's available
-  private val readBuffer = ByteBuffer.allocate(8192)
+/**
+ * Reads are done into chunks of a BufferPool, successive reads fill the same
+ * chunk, and each read is handed to the handler as a slice of it, so there is
+ * no copy and no allocation of arrays per read.
+ *
+ * Pending writes of a channel are kept in a queue, and written by gathering
+ * write of up to MAX_GATHER buffers at a time.
+ */
+class SelectReactor(dispatcher: SelectDispatcher, bufferPool: BufferPool = BufferPool.default) extends Actor {
+  import SelectReactor._
 
-  private val pendingData = mutable.Map[SocketChannel, Queue[ByteBuffer]]()
+  // The chunk into which we'll read data when it's available
+  private var readChunk: BufferChunk = _
+
+  private val pendingData = mutable.HashMap[SocketChannel, java.util.ArrayDeque[SendData]]()
+  private val gathering = new Array[ByteBuffer](MAX_GATHER)
 
   // Maps a SocketChannel to a Handler
   private val rspHandlers = mutable.Map[SocketChannel, Actor]()
@@ -28,16 +45,13 @@ class SelectReactor(dispatcher: SelectDispatcher) extends Actor {
         // Register the response handler
         rspHandler foreach {x => rspHandlers += (channel -> x)}
 
-      case SendData(channel, data, rspHandler) =>
+      case msg@SendData(channel, data, rspHandler, _) =>
         // Register the response handler
         rspHandler foreach {x => rspHandlers += (channel -> x)}
 
         // And queue the data we want written
-        val queue = pendingData.get(channel) match {
-          case None => Queue(data)
-          case Some(x) => x enqueue data
-        }
-        pendingData += (channel -> queue)
+        val queue = pendingData.getOrElseUpdate(channel, new java.util.ArrayDeque[SendData]())
+        queue.add(msg)
 
         // Fianally, indicate we want the interest ops set changed
         dispatcher.requestChange(InterestInOps(channel, SelectionKey.OP_WRITE))
@@ -55,8 +69,13 @@ class SelectReactor(dispatcher: SelectDispatcher) extends Actor {
   private def read(key: SelectionKey) {
     val socketChannel = key.channel.asInstanceOf[SocketChannel]
 
-    // Clear out our read buffer so it's ready for new data
-    readBuffer.clear
+    // Take a new chunk when there is not enough room left in current one
+    if (readChunk == null || readChunk.buffer.remaining < MIN_READ_ROOM) {
+      if (readChunk != null) readChunk.release
+      readChunk = bufferPool.acquire()
+    }
+    val readBuffer = readChunk.buffer
+    val offset = readBuffer.position
 
     // Attempt to read off the channel
     var numRead = -1
@@ -67,6 +86,7 @@ class SelectReactor(dispatcher: SelectDispatcher) extends Actor {
         // the selection key and close the channel.
         key.cancel
         socketChannel.close
+        discard(socketChannel)
         return
     }
 
@@ -75,17 +95,32 @@ class SelectReactor(dispatcher: SelectDispatcher) extends Actor {
       // same from our end and cancel the channel.
       key.cancel
       socketChannel.close
+      discard(socketChannel)
       return
     }
 
     if (numRead > 0) {
       // Look up the handler for this channel
-      rspHandlers.get(socketChannel) foreach {handler =>
-        // Make a correctly sized copy of the data before handing it to the client
-        val data = new Array[Byte](numRead)
-        System.arraycopy(readBuffer.array, 0, data, 0, numRead)
-        // Hand the data off to our handler actor
-        handler ! ProcessData(this, socketChannel, key, data)
+      rspHandlers.get(socketChannel) match {
+        case Some(handler) =>
+          // Hand a slice view of the data off to our handler actor
+          handler ! ProcessData(this, socketChannel, key, readChunk.slice(offset, numRead))
+        case None =>
+          // no one is interested in, reuse the room
+          readBuffer.position(offset)
+      }
+    }
+  }
+
+  /**
+   * Drop the states of a closed channel, release the pending data
+   */
+  private def discard(socketChannel: SocketChannel) {
+    rspHandlers -= socketChannel
+    pendingData.remove(socketChannel) foreach {queue =>
+      while (!queue.isEmpty) {
+        val unsent = queue.poll
+        if (unsent.owner != null) unsent.owner.release
       }
     }
   }
@@ -94,27 +129,50 @@ class SelectReactor(dispatcher: SelectDispatcher) extends Actor {
   private def write(key: SelectionKey) {
     val socketChannel = key.channel.asInstanceOf[SocketChannel]
 
-    var queue = pendingData.get(socketChannel).getOrElse(return)
+    val queue = pendingData.get(socketChannel).getOrElse(return)
 
     // Write until there's not more data ...
     var done = false
     while (!queue.isEmpty && !done) {
-      val (head, tail) = queue.dequeue
-      socketChannel.write(head)
-      if (head.remaining > 0) {
-        // ... or the socket's buffer fills up
-        done = true
-      } else {
-        queue = tail
+      var n = 0
+      val itr = queue.iterator
+      while (itr.hasNext && n < MAX_GATHER) {
+        gathering(n) = itr.next.data
+        n += 1
+      }
+      socketChannel.write(gathering, 0, n)
+
+      var i = 0
+      while (i < n && !done) {
+        if (gathering(i).remaining > 0) {
+          // ... or the socket's buffer fills up
+          done = true
+        } else {
+          val sent = queue.poll
+          if (sent.owner != null) sent.owner.release
+        }
+        gathering(i) = null
+        i += 1
+      }
+      while (i < n) {
+        gathering(i) = null
+        i += 1
       }
     }
-    pendingData(socketChannel) = queue
 
     if (queue.isEmpty) {
+      pendingData -= socketChannel
       // We wrote away all data, so we're no longer interested
       // in writing on this socket. Switch back to waiting for
       // data.
       key.interestOps(SelectionKey.OP_READ)
     }
   }
-}
\ No newline at end of file
+}
+
+object SelectReactor {
+  /** max number of buffers to be written by one gathering write */
+  private val MAX_GATHER = 64
+  /** take a new read chunk when the room left is less than it */
+  private val MIN_READ_ROOM = 4096
+}
@@ -32,8 +32,18 @@ package org.aiotrade.lib.math
 
 import org.aiotrade.lib.math.timeseries.Null
 import org.aiotrade.lib.collection.ArrayList
+import org.aiotrade.lib.collection.ArrayWindow
 
 /**
+ * Each function has 3 forms:
+ *   values: ArrayList[Double]   - goes to ArrayWindow form, no copying
+ *   values: ArrayWindow[Double] - works on the backing array of window directly
+ *   values: Array[Double]
+ * All of them finally go to the private form of (xs: Array[Double], base: Int, len: Int, ...),
+ * where xs(base + i) is the i-th value, and len is the count of valid values.
+ *
+ * Do not call ArrayList.toArray here, which will copy the whole series on each spot
+ * and make a full recomputing of a long series quadratic.
  *
  * @author Caoyuan Deng
  */
@@ -44,16 +54,18 @@ object StatsFunctions {
   val VALUE = 0
   val MASS = 1
 
-  def sum(values: ArrayList[Double], fromIdx: Int, toIdx: Int): Double = sum(values.toArray, fromIdx, toIdx)
-  def sum(values: Array[Double], fromIdx: Int, toIdx: Int): Double = {
-    if (fromIdx < 0 || toIdx >= values.length) {
+  def sum(values: ArrayList[Double], fromIdx: Int, toIdx: Int): Double = sum(values.window, fromIdx, toIdx)
+  def sum(values: ArrayWindow[Double], fromIdx: Int, toIdx: Int): Double = sum(doubles(values), base(values), values.length, fromIdx, toIdx)
+  def sum(values: Array[Double], fromIdx: Int, toIdx: Int): Double = sum(values, 0, values.length, fromIdx, toIdx)
+  private def sum(xs: Array[Double], base: Int, len: Int, fromIdx: Int, toIdx: Int): Double = {
+    if (fromIdx < 0 || toIdx >= len) {
       return Null.Double
     }
 
     var sum = 0.0
     var i = fromIdx
     while (i <= toIdx) {
-      val value = values(i)
+      val value = xs(base + i)
       if (Null.not(value)) {
         sum += value
       }
@@ -63,15 +75,17 @@ object StatsFunctions {
     sum
   }
 
-  def isum(idx: Int, values: ArrayList[Double], period: Int, prev: Double): Double = isum(idx, values.toArray, period, prev)
-  def isum(idx: Int, values: Array[Double], period: Int, prev: Double): Double = {
+  def isum(idx: Int, values: ArrayList[Double], period: Int, prev: Double): Double = isum(idx, values.window, period, prev)
+  def isum(idx: Int, values: ArrayWindow[Double], period: Int, prev: Double): Double = isum(idx, doubles(values), base(values), values.length, period, prev)
+  def isum(idx: Int, values: Array[Double], period: Int, prev: Double): Double = isum(idx, values, 0, values.length, period, prev)
+  private def isum(idx: Int, xs: Array[Double], base: Int, len: Int, period: Int, prev: Double): Double = {
     val lookbackIdx = lookback(idx, period)
 
-    if (lookbackIdx < 0 || idx >= values.length) {
+    if (lookbackIdx < 0 || idx >= len) {
       Null.Double
     } else if (lookbackIdx == 0) {
       /** compute first availabe sum (in case of enough period first time) */
-      sum(values, 0, idx)
+      sum(xs, base, len, 0, idx)
     } else {
       if (Null.is(prev)) {
         /**
@@ -79,35 +93,39 @@ object StatsFunctions {
          * element, thus cause the prevSum to be a Null.Double, we should
          * precess this case by:
          */
-        sum(values, lookbackIdx, idx)
+        sum(xs, base, len, lookbackIdx, idx)
       } else {
-        prev + values(idx) - values(lookbackIdx - 1)
+        prev + xs(base + idx) - xs(base + lookbackIdx - 1)
       }
     }
   }
 
-  def ma(values: ArrayList[Double], fromIdx: Int, toIdx: Int): Double = ma(values.toArray, fromIdx, toIdx)
-  def ma(values: Array[Double], fromIdx: Int, toIdx: Int): Double = {
-    if (fromIdx < 0 || toIdx >= values.length) {
+  def ma(values: ArrayList[Double], fromIdx: Int, toIdx: Int): Double = ma(values.window, fromIdx, toIdx)
+  def ma(values: ArrayWindow[Double], fromIdx: Int, toIdx: Int): Double = ma(doubles(values), base(values), values.length, fromIdx, toIdx)
+  def ma(values: Array[Double], fromIdx: Int, toIdx: Int): Double = ma(values, 0, values.length, fromIdx, toIdx)
+  private def ma(xs: Array[Double], base: Int, len: Int, fromIdx: Int, toIdx: Int): Double = {
+    if (fromIdx < 0 || toIdx >= len) {
       return Null.Double
     }
 
     val period1 = period(fromIdx, toIdx).toDouble
-    sum(values, fromIdx, toIdx) / period1
+    sum(xs, base, len, fromIdx, toIdx) / period1
   }
 
   /**
    * ma(t + 1) = ma(t) + ( x(t) / N - x(t - n) / N )
    */
-  def ima(idx: Int, values: ArrayList[Double], period: Int, prev: Double): Double = ima(idx, values.toArray, period, prev)
-  def ima(idx: Int, values: Array[Double], period: Int, prev: Double): Double = {
+  def ima(idx: Int, values: ArrayList[Double], period: Int, prev: Double): Double = ima(idx, values.window, period, prev)
+  def ima(idx: Int, values: ArrayWindow[Double], period: Int, prev: Double): Double = ima(idx, doubles(values), base(values), values.length, period, prev)
+  def ima(idx: Int, values: Array[Double], period: Int, prev: Double): Double = ima(idx, values, 0, values.length, period, prev)
+  private def ima(idx: Int, xs: Array[Double], base: Int, len: Int, period: Int, prev: Double): Double = {
     val lookbackIdx = lookback(idx, period)
 
-    if (lookbackIdx < 0 || idx >= values.length) {
+    if (lookbackIdx < 0 || idx >= len) {
       Null.Double
     } else if (lookbackIdx == 0) {
       /** compute first available ma (in case of enough period first time) */
-      ma(values, 0, idx)
+      ma(xs, base, len, 0, idx)
     } else {
       if (Null.is(prev)) {
         /**
@@ -115,16 +133,18 @@ object StatsFunctions {
          * element, thus cause the prevSum to be a Null.Double, we should
          * precess this case by:
          */
-        ma(values, lookbackIdx, idx)
+        ma(xs, base, len, lookbackIdx, idx)
       } else {
-        prev + (values(idx) - values(lookbackIdx - 1)) / (period * 1f)
+        prev + (xs(base + idx) - xs(base + lookbackIdx - 1)) / (period * 1f)
       }
     }
   }
 
-  def ema(values: ArrayList[Double], fromIdx: Int, toIdx: Int): Double = ema(values.toArray, fromIdx, toIdx)
-  def ema(values: Array[Double], fromIdx: Int, toIdx: Int): Double = {
-    if (fromIdx < 0 || toIdx >= values.length) {
+  def ema(values: ArrayList[Double], fromIdx: Int, toIdx: Int): Double = ema(values.window, fromIdx, toIdx)
+  def ema(values: ArrayWindow[Double], fromIdx: Int, toIdx: Int): Double = ema(doubles(values), base(values), values.length, fromIdx, toIdx)
+  def ema(values: Array[Double], fromIdx: Int, toIdx: Int): Double = ema(values, 0, values.length, fromIdx, toIdx)
+  private def ema(xs: Array[Double], base: Int, len: Int, fromIdx: Int, toIdx: Int): Double = {
+    if (fromIdx < 0 || toIdx >= len) {
       return Null.Double
     }
 
@@ -132,7 +152,7 @@ object StatsFunctions {
     var ema = 0.0
     var i = fromIdx
     while (i <= toIdx) {
-      ema += ((period1 - 1.0) / (period1 + 1.0)) * ema + (2.0 / (period1 + 1.0)) * values(i)
+      ema += ((period1 - 1.0) / (period1 + 1.0)) * ema + (2.0 / (period1 + 1.0)) * xs(base + i)
       i += 1
     }
 
@@ -144,9 +164,13 @@ object StatsFunctions {
    *            = (1 - 1/N) * ema(t) + (1/N) * x(t)
    *            = (1 - a) * ema(t) + a * x(t)  // let a = 1/N
    */
-  def iema(idx: Int, values: Array[Double], period: Int, prev: Double): Double = iema(idx, values.toArray, period, prev)
-  def iema(idx: Int, values: ArrayList[Double], period: Int, prev: Double): Double = {
-    var value = values(idx)
+  def iema(idx: Int, values: ArrayList[Double], period: Int, prev: Double): Double = iema(idx, values.window, period, prev)
+  def iema(idx: Int, values: ArrayWindow[Double], period: Int, prev: Double): Double = iema(idx, doubles(values), base(values), values.length, period, prev)
+  def iema(idx: Int, values: Array[Double], period: Int, prev: Double): Double = iema(idx, values, 0, values.length, period, prev)
+  private def iema(idx: Int, xs: Array[Double], base: Int, len: Int, period: Int, prev: Double): Double = {
+    if (idx < 0 || idx >= len) throw new IndexOutOfBoundsException(idx.toString)
+    
+    var value = xs(base + idx)
     if (Null.is(value)) value = 0.0
 
 
@@ -160,64 +184,74 @@ object StatsFunctions {
     //return ((period - 1.0f) / (period + 1.0f)) * prevEma + (2.0f / (period + 1.0f)) * value;
   }
 
-  def max(values: ArrayList[Double], fromIdx: Int, toIdx: Int): Double = max(values.toArray, fromIdx, toIdx)
-  def max(values: Array[Double], fromIdx: Int, toIdx: Int): Double = {
-    maxmin(values, fromIdx, toIdx)(MAX)
+  def max(values: ArrayList[Double], fromIdx: Int, toIdx: Int): Double = max(values.window, fromIdx, toIdx)
+  def max(values: ArrayWindow[Double], fromIdx: Int, toIdx: Int): Double = max(doubles(values), base(values), values.length, fromIdx, toIdx)
+  def max(values: Array[Double], fromIdx: Int, toIdx: Int): Double = max(values, 0, values.length, fromIdx, toIdx)
+  private def max(xs: Array[Double], base: Int, len: Int, fromIdx: Int, toIdx: Int): Double = {
+    maxmin(xs, base, len, fromIdx, toIdx)(MAX)
   }
 
-  def imax(idx: Int, values: ArrayList[Double], period: Int, prev: Double): Double = imax(idx, values.toArray, period, prev)
-  def imax(idx: Int, values: Array[Double], period: Int, prev: Double): Double = {
+  def imax(idx: Int, values: ArrayList[Double], period: Int, prev: Double): Double = imax(idx, values.window, period, prev)
+  def imax(idx: Int, values: ArrayWindow[Double], period: Int, prev: Double): Double = imax(idx, doubles(values), base(values), values.length, period, prev)
+  def imax(idx: Int, values: Array[Double], period: Int, prev: Double): Double = imax(idx, values, 0, values.length, period, prev)
+  private def imax(idx: Int, xs: Array[Double], base: Int, len: Int, period: Int, prev: Double): Double = {
     val lookbackIdx = lookback(idx, period)
 
-    if (lookbackIdx < 0 || idx >= values.length) {
+    if (lookbackIdx < 0 || idx >= len) {
       Null.Double
     } else if (lookbackIdx == 0) {
-      max(values, 0, idx)
+      max(xs, base, len, 0, idx)
     } else {
-      if (Null.is(prev) || values(lookbackIdx - 1) == prev) {
-        max(values, lookbackIdx, idx)
+      if (Null.is(prev) || xs(base + lookbackIdx - 1) == prev) {
+        max(xs, base, len, lookbackIdx, idx)
       } else {
-        val value = values(idx)
+        val value = xs(base + idx)
         if (prev >= value) prev else value
       }
     }
   }
 
-  def min(values: ArrayList[Double], fromIdx: Int, toIdx: Int): Double = min(values.toArray, fromIdx, toIdx)
-  def min(values: Array[Double], fromIdx: Int, toIdx: Int): Double = {
-    maxmin(values, fromIdx, toIdx)(MIN)
+  def min(values: ArrayList[Double], fromIdx: Int, toIdx: Int): Double = min(values.window, fromIdx, toIdx)
+  def min(values: ArrayWindow[Double], fromIdx: Int, toIdx: Int): Double = min(doubles(values), base(values), values.length, fromIdx, toIdx)
+  def min(values: Array[Double], fromIdx: Int, toIdx: Int): Double = min(values, 0, values.length, fromIdx, toIdx)
+  private def min(xs: Array[Double], base: Int, len: Int, fromIdx: Int, toIdx: Int): Double = {
+    maxmin(xs, base, len, fromIdx, toIdx)(MIN)
   }
 
-  def imin(idx: Int, values: ArrayList[Double], period: Int, prev: Double): Double = imin(idx, values.toArray, period, prev)
-  def imin(idx: Int, values: Array[Double], period: Int, prev: Double): Double = {
+  def imin(idx: Int, values: ArrayList[Double], period: Int, prev: Double): Double = imin(idx, values.window, period, prev)
+  def imin(idx: Int, values: ArrayWindow[Double], period: Int, prev: Double): Double = imin(idx, doubles(values), base(values), values.length, period, prev)
+  def imin(idx: Int, values: Array[Double], period: Int, prev: Double): Double = imin(idx, values, 0, values.length, period, prev)
+  private def imin(idx: Int, xs: Array[Double], base: Int, len: Int, period: Int, prev: Double): Double = {
     val lookbackIdx = lookback(idx, period)
 
-    if (lookbackIdx < 0 || idx >= values.length) {
+    if (lookbackIdx < 0 || idx >= len) {
       Null.Double
     } else if (lookbackIdx == 0) {
-      min(values, 0, idx)
+      min(xs, base, len, 0, idx)
     } else {
-      if (Null.is(prev) || values(lookbackIdx - 1) == prev) {
-        min(values, lookbackIdx, idx)
+      if (Null.is(prev) || xs(base + lookbackIdx - 1) == prev) {
+        min(xs, base, len, lookbackIdx, idx)
       } else {
-        val value = values(idx)
+        val value = xs(base + idx)
         if (prev <= value) prev else value
       }
     }
   }
 
-  def maxmin(values: ArrayList[Double], fromIdx: Int, toIdx: Int): Array[Double] = maxmin(values.toArray, fromIdx, toIdx)
-  def maxmin(values: Array[Double], fromIdx: Int, toIdx: Int): Array[Double] = {
+  def maxmin(values: ArrayList[Double], fromIdx: Int, toIdx: Int): Array[Double] = maxmin(values.window, fromIdx, toIdx)
+  def maxmin(values: ArrayWindow[Double], fromIdx: Int, toIdx: Int): Array[Double] = maxmin(doubles(values), base(values), values.length, fromIdx, toIdx)
+  def maxmin(values: Array[Double], fromIdx: Int, toIdx: Int): Array[Double] = maxmin(values, 0, values.length, fromIdx, toIdx)
+  private def maxmin(xs: Array[Double], base: Int, len: Int, fromIdx: Int, toIdx: Int): Array[Double] = {
     if (fromIdx < 0) {
       return Array(Null.Double, Null.Double)
     }
 
     var max = Double.MinValue
     var min = Double.MaxValue
-    val lastIdx = math.min(toIdx, values.length - 1)
+    val lastIdx = math.min(toIdx, len - 1)
     var i = fromIdx
     while (i <= lastIdx) {
-      val value = values(i)
+      val value = xs(base + i)
       if (Null.not(value)) {
         max = math.max(max, value)
         min = math.min(min, value)
@@ -231,18 +265,20 @@ object StatsFunctions {
   /**
    * Standard Deviation
    */
-  def stdDev(values: ArrayList[Double], fromIdx: Int, toIdx: Int): Double = stdDev(values.toArray, fromIdx, toIdx)
-  def stdDev(values: Array[Double], fromIdx: Int, toIdx: Int): Double = {
-    if (fromIdx < 0 || toIdx >= values.length) {
+  def stdDev(values: ArrayList[Double], fromIdx: Int, toIdx: Int): Double = stdDev(values.window, fromIdx, toIdx)
+  def stdDev(values: ArrayWindow[Double], fromIdx: Int, toIdx: Int): Double = stdDev(doubles(values), base(values), values.length, fromIdx, toIdx)
+  def stdDev(values: Array[Double], fromIdx: Int, toIdx: Int): Double = stdDev(values, 0, values.length, fromIdx, toIdx)
+  private def stdDev(xs: Array[Double], base: Int, len: Int, fromIdx: Int, toIdx: Int): Double = {
+    if (fromIdx < 0 || toIdx >= len) {
       return Null.Double
     }
 
-    val ma1 = ma(values, fromIdx, toIdx)
-    val lastIdx = math.min(toIdx, values.length - 1)
+    val ma1 = ma(xs, base, len, fromIdx, toIdx)
+    val lastIdx = math.min(toIdx, len - 1)
     var deviation_square_sum = 0.0
     var i = fromIdx
     while (i <= lastIdx) {
-      val deviation = values(i) - ma1
+      val deviation = xs(base + i) - ma1
       deviation_square_sum += deviation * deviation
       i += 1
     }
@@ -251,29 +287,37 @@ object StatsFunctions {
     math.sqrt(deviation_square_sum / period1)
   }
 
-  def correlation(xs: ArrayList[Double], ys: ArrayList[Double], fromIdx: Int, toIdx: Int): Double = correlation(xs.toArray, ys.toArray, fromIdx, toIdx)
+  def correlation(xs: ArrayList[Double], ys: ArrayList[Double], fromIdx: Int, toIdx: Int): Double = correlation(xs.window, ys.window, fromIdx, toIdx)
+  def correlation(xs: ArrayWindow[Double], ys: ArrayWindow[Double], fromIdx: Int, toIdx: Int): Double = {
+    correlation(doubles(xs), base(xs), xs.length, doubles(ys), base(ys), ys.length, fromIdx, toIdx)
+  }
   def correlation(xs: Array[Double], ys: Array[Double], fromIdx: Int, toIdx: Int): Double = {
+    assert(xs != null && ys != null, "Invald params: xs and ys should not be null")
+    correlation(xs, 0, xs.length, ys, 0, ys.length, fromIdx, toIdx)
+  }
+  private def correlation(xs: Array[Double], xBase: Int, xLen: Int, ys: Array[Double], yBase: Int, yLen: Int, fromIdx: Int, toIdx: Int): Double = {
     assert(
-      xs != null && ys != null && xs.length >= 2 && xs.length == ys.length, 
-      "Invald params: x.length(>=2)=%s, y.length(=x.length)=%s".format(xs.length, ys.length)
+      xLen >= 2 && xLen == yLen, 
+      "Invald params: x.length(>=2)=%s, y.length(=x.length)=%s".format(xLen, yLen)
     )
     
-    if (fromIdx < 0 || toIdx >= xs.length) {
+    if (fromIdx < 0 || toIdx >= xLen) {
       return Null.Double
     }
     
-    val ma_x = ma(xs, fromIdx, toIdx)
-    val ma_y = ma(ys, fromIdx, toIdx)
+    val ma_x = ma(xs, xBase, xLen, fromIdx, toIdx)
+    val ma_y = ma(ys, yBase, yLen, fromIdx, toIdx)
     
-    val lastIdx = math.min(toIdx, xs.length - 1)
+    val lastIdx = math.min(toIdx, xLen - 1)
     var covxy = 0.0
     var dev_x = 0.0
     var dev_y = 0.0
-    var r = 0.0
     var i = fromIdx
     while (i <= lastIdx) {
-      val dx = if (Null.not(xs(i))) xs(i) - ma_x else 0
-      val dy = if (Null.not(ys(i))) ys(i) - ma_y else 0
+      val x = xs(xBase + i)
+      val y = ys(yBase + i)
+      val dx = if (Null.not(x)) x - ma_x else 0
+      val dy = if (Null.not(y)) y - ma_y else 0
       covxy += dx * dy
       dev_x += dx * dx
       dev_y += dy * dy
@@ -290,18 +334,29 @@ object StatsFunctions {
   /**
    * Probability Mass Function
    */
-  def probMass(values: ArrayList[Double], fromIdx: Int, toIdx: Int, nIntervals: Int): Array[Array[Double]] = probMass(values.toArray, fromIdx, toIdx, nIntervals)
+  def probMass(values: ArrayList[Double], fromIdx: Int, toIdx: Int, nIntervals: Int): Array[Array[Double]] = probMass(values.window, fromIdx, toIdx, nIntervals)
+  def probMass(values: ArrayWindow[Double], fromIdx: Int, toIdx: Int, nIntervals: Int): Array[Array[Double]] = {
+    probMass(doubles(values), base(values), values.length, null, 0, fromIdx, toIdx, nIntervals)
+  }
   def probMass(values: Array[Double], fromIdx: Int, toIdx: Int, nIntervals: Int): Array[Array[Double]] = {
-    probMass(values, null.asInstanceOf[Array[Double]], fromIdx, toIdx, nIntervals)
+    probMass(values, 0, values.length, null, 0, fromIdx, toIdx, nIntervals)
   }
   
   /**
    * Probability Mass Function
    */
-  def probMass(values: ArrayList[Double], weights: ArrayList[Double], fromIdx: Int, toIdx: Int, nIntervals: Int): Array[Array[Double]] = probMass(values.toArray, weights.toArray, fromIdx, toIdx, nIntervals)
+  def probMass(values: ArrayList[Double], weights: ArrayList[Double], fromIdx: Int, toIdx: Int, nIntervals: Int): Array[Array[Double]] = probMass(values.window, weights.window, fromIdx, toIdx, nIntervals)
+  def probMass(values: ArrayWindow[Double], weights: ArrayWindow[Double], fromIdx: Int, toIdx: Int, nIntervals: Int): Array[Array[Double]] = {
+    probMass(doubles(values), base(values), values.length, doubles(weights), base(weights), fromIdx, toIdx, nIntervals)
+  }
   def probMass(values: Array[Double], weights: Array[Double],
                fromIdx: Int, toIdx: Int, nIntervals: Int
   ): Array[Array[Double]] = {
+    probMass(values, 0, values.length, weights, 0, fromIdx, toIdx, nIntervals)
+  }
+  private def probMass(xs: Array[Double], base: Int, len: Int, ws: Array[Double], wBase: Int,
+                       fromIdx: Int, toIdx: Int, nIntervals: Int
+  ): Array[Array[Double]] = {
 
     if (nIntervals <= 0) {
       return null
@@ -309,30 +364,41 @@ object StatsFunctions {
 
     val begIdx1 = if (fromIdx < 0) 0 else fromIdx
 
-    val maxmin1 = maxmin(values, begIdx1, toIdx)
+    val maxmin1 = maxmin(xs, base, len, begIdx1, toIdx)
     val max = maxmin1(MAX)
     val min = maxmin1(MIN)
-    probMass(values, weights, begIdx1, toIdx, max, min, nIntervals)
+    probMass(xs, base, len, ws, wBase, begIdx1, toIdx, max, min, nIntervals)
   }
 
   /**
    * Probability Density Function
    */
-  def probMass(values: ArrayList[Double], fromIdx: Int, toIdx: Int, interval: Double): Array[Array[Double]] = probMass(values.toArray, fromIdx, toIdx, interval)
+  def probMass(values: ArrayList[Double], fromIdx: Int, toIdx: Int, interval: Double): Array[Array[Double]] = probMass(values.window, fromIdx, toIdx, interval)
+  def probMass(values: ArrayWindow[Double], fromIdx: Int, toIdx: Int, interval: Double): Array[Array[Double]] = {
+    probMass(doubles(values), base(values), values.length, null, 0, fromIdx, toIdx, interval)
+  }
   def probMass(values: Array[Double],
                fromIdx: Int, toIdx: Int, interval: Double
   ): Array[Array[Double]] = {
 
-    probMass(values, null, fromIdx, toIdx, interval)
+    probMass(values, 0, values.length, null, 0, fromIdx, toIdx, interval)
   }
 
   /**
    * Probability Mass Function
    */
-  def probMass(values: ArrayList[Double], weights: ArrayList[Double], fromIdx: Int, toIdx: Int, interval: Double): Array[Array[Double]] = probMass(values.toArray, weights.toArray, fromIdx, toIdx, interval)
+  def probMass(values: ArrayList[Double], weights: ArrayList[Double], fromIdx: Int, toIdx: Int, interval: Double): Array[Array[Double]] = probMass(values.window, weights.window, fromIdx, toIdx, interval)
+  def probMass(values: ArrayWindow[Double], weights: ArrayWindow[Double], fromIdx: Int, toIdx: Int, interval: Double): Array[Array[Double]] = {
+    probMass(doubles(values), base(values), values.length, doubles(weights), base(weights), fromIdx, toIdx, interval)
+  }
   def probMass(values: Array[Double], weights: Array[Double],
                fromIdx: Int, toIdx: Int, interval: Double
   ): Array[Array[Double]] = {
+    probMass(values, 0, values.length, weights, 0, fromIdx, toIdx, interval)
+  }
+  private def probMass(xs: Array[Double], base: Int, len: Int, ws: Array[Double], wBase: Int,
+                       fromIdx: Int, toIdx: Int, interval: Double
+  ): Array[Array[Double]] = {
 
     if (interval <= 0) {
       return null
@@ -340,18 +406,17 @@ object StatsFunctions {
 
     val begIdx1 = if (fromIdx < 0) 0 else fromIdx
 
-    val maxmin1 = maxmin(values, begIdx1, toIdx)
+    val maxmin1 = maxmin(xs, base, len, begIdx1, toIdx)
     val max = maxmin1(MAX)
     val min = maxmin1(MIN)
     val nIntervals = (((max - min) / interval) + 1).toInt
-    probMass(values, weights, begIdx1, toIdx, max, min, nIntervals)
+    probMass(xs, base, len, ws, wBase, begIdx1, toIdx, max, min, nIntervals)
   }
 
   /**
    * Probability Mass Function
    */
-  private def probMass(values: ArrayList[Double], weights: ArrayList[Double], fromIdx: Int, toIdx: Int, max: Double, min: Double, nIntervals: Int): Array[Array[Double]] = probMass(values.toArray, weights.toArray, fromIdx, toIdx, max, min, nIntervals)
-  private def probMass(values: Array[Double], weights: Array[Double],
+  private def probMass(xs: Array[Double], base: Int, len: Int, ws: Array[Double], wBase: Int,
                        fromIdx: Int, toIdx: Int, max: Double, min: Double, nIntervals: Int
   ): Array[Array[Double]] = {
 
@@ -370,12 +435,12 @@ object StatsFunctions {
       i += 1
     }
 
-    val lastIdx = math.min(toIdx, values.size - 1)
+    val lastIdx = math.min(toIdx, len - 1)
     var total = 0.0
     i = begIdx1
     while (i <= lastIdx) {
-      val value = values(i)
-      val weight = if (weights == null) 1.0 else weights(i)
+      val value = xs(base + i)
+      val weight = if (ws == null) 1.0 else ws(wBase + i)
       if (value >= min && value <= max) {
         /** only calculate those between max and min */
         val densityIdx = ((value - min) / interval).toInt
@@ -394,16 +459,24 @@ object StatsFunctions {
   /**
    * Probability Density Function
    */
-  def probMassWithTimeInfo(values: ArrayList[Double], weights: ArrayList[Double], fromIdx: Int, toIdx: Int, interval: Double): Array[Array[Double]] = probMassWithTimeInfo(values.toArray, weights.toArray, fromIdx, toIdx, interval)
+  def probMassWithTimeInfo(values: ArrayList[Double], weights: ArrayList[Double], fromIdx: Int, toIdx: Int, interval: Double): Array[Array[Double]] = probMassWithTimeInfo(values.window, weights.window, fromIdx, toIdx, interval)
+  def probMassWithTimeInfo(values: ArrayWindow[Double], weights: ArrayWindow[Double], fromIdx: Int, toIdx: Int, interval: Double): Array[Array[Double]] = {
+    probMassWithTimeInfo(doubles(values), base(values), values.length, doubles(weights), base(weights), fromIdx, toIdx, interval)
+  }
   def probMassWithTimeInfo(values: Array[Double], weights: Array[Double],
                            fromIdx: Int, toIdx: Int, interval: Double
   ): Array[Array[Double]] = {
+    probMassWithTimeInfo(values, 0, values.length, weights, 0, fromIdx, toIdx, interval)
+  }
+  private def probMassWithTimeInfo(xs: Array[Double], base: Int, len: Int, ws: Array[Double], wBase: Int,
+                                   fromIdx: Int, toIdx: Int, interval: Double
+  ): Array[Array[Double]] = {
 
     if (fromIdx < 0 || interval <= 0) {
       return null
     }
 
-    val maxmin1 = maxmin(values, fromIdx, toIdx)
+    val maxmin1 = maxmin(xs, base, len, fromIdx, toIdx)
     val max = maxmin1(MAX)
     val min = maxmin1(MIN)
     val nIntervals = (((max - min) / interval) + 1).toInt
@@ -416,12 +489,12 @@ object StatsFunctions {
       i += 1
     }
 
-    val lastIdx = math.min(toIdx, values.length - 1)
+    val lastIdx = math.min(toIdx, len - 1)
     var total = 0.0
     i = fromIdx
     while (i <= lastIdx) {
-      val value = values(i)
-      val weight = if (weights == null) 1f else weights(i)
+      val value = xs(base + i)
+      val weight = if (ws == null) 1f else ws(wBase + i)
       if (value >= min && value <= max) {
         /** only calculate those between max and min */
         val densityIdx = ((value - min) / interval).toInt
@@ -444,5 +517,20 @@ object StatsFunctions {
   private def lookback(idx: Int, period: Int): Int = {
     idx - period + 1
   }
-}
 
+  /**
+   * The backing array of an ArrayList[Double] is a primitive double array unless
+   * it was created with a runtime elementClass, for which we have to copy to a
+   * double array.
+   */
+  private def doubles(values: ArrayWindow[Double]): Array[Double] = {
+    values.arrayRef match {
+      case xs: Array[Double] => xs
+      case _ => values.toArray
+    }
+  }
+
+  private def base(values: ArrayWindow[Double]): Int = {
+    if (values.arrayRef.isInstanceOf[Array[Double]]) values.offset else 0
+  }
+}
@@ -31,7 +31,6 @@
 
 package org.aiotrade.lib.math.indicator
 
-import java.util.concurrent.ConcurrentHashMap
 import java.util.logging.Level
 import java.util.logging.Logger
 import org.aiotrade.lib.math.timeseries.BaseTSer
@@ -41,17 +40,24 @@ import org.aiotrade.lib.math.timeseries.TSer
 object Function {
   private val log = Logger.getLogger(this.getClass.getName)
 
-  private val idToFunction = new ConcurrentHashMap[Id[_ <: Function], Function](8, 0.9f, 1)
-
   def idOf[T <: Function](klass: Class[T], baseSer: BaseTSer, args: Any*) = Id[T](klass, baseSer, args: _*)
   
   def apply[T <: Function](klass: Class[T], baseSer: BaseTSer, args: Any*): T = {
+    apply(FunctionScope.current, klass, baseSer, args: _*)
+  }
+
+  /**
+   * Look up in scope, the function is created in scope too, so it may capture
+   * scope for its own lookups, @see FunctionScope
+   */
+  def apply[T <: Function](scope: FunctionScope, klass: Class[T], baseSer: BaseTSer, args: Any*): T = {
     val id = idOf(klass, baseSer, args: _*)
+    val idToFunction = scope.idToFunction
     idToFunction.get(id) match {
       case null =>
         /** if got none from idToFunction, try to create new one */
         try {
-          val function = klass.newInstance
+          val function = FunctionScope.using(scope) {klass.newInstance}
           /** don't forget to call set(baseSer, args) immediatley */
           function.set(baseSer, args: _*)
           idToFunction.putIfAbsent(id, function)
@@ -63,8 +69,11 @@ object Function {
     }
   }
   
+  /**
+   * Release the functions of current scope
+   */
   def releaseAll() {
-    idToFunction.clear
+    FunctionScope.current.idToFunction.clear
   }
 }
 
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2006-2010, AIOTrade Computing Co. and Contributors
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of AIOTrade Computing Co. nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.aiotrade.lib.math.indicator
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * A scope of cached functions and indicators. Function(...) and Indicator(...)
+ * look up and cache instances in the scope of current thread, which is the global
+ * one unless the thread is running in FunctionScope.using(scope) { ... }.
+ *
+ * Indicators and functions may be computed later in other threads (for example,
+ * by events of their base sers), where the current scope is the global one, so
+ * they capture the current scope when created, and look up the functions they
+ * use in the captured one by Function(scope, ...). Create them in using(scope).
+ *
+ * Runs that compute with different parameters on the same series in parallel
+ * (for example, a parameter sweep of backtests) should each use their own scope,
+ * so their functions/indicators are not shared, and can be released without
+ * touching others.
+ *
+ * @author Caoyuan Deng
+ */
+final class FunctionScope(val name: String) {
+  private[indicator] val idToFunction = new ConcurrentHashMap[Id[_ <: Function], Function](8, 0.9f, 1)
+  private[indicator] val idToIndicator = new ConcurrentHashMap[Id[_ <: Indicator], Indicator](8, 0.9f, 1)
+
+  def isGlobal = this eq FunctionScope.global
+
+  def release() {
+    idToFunction.clear
+    idToIndicator.clear
+  }
+
+  override
+  def toString = "FunctionScope(" + name + ", functions=" + idToFunction.size + ", indicators=" + idToIndicator.size + ")"
+}
+
+object FunctionScope {
+  val global = new FunctionScope("global")
+
+  private val _current = new ThreadLocal[FunctionScope] {
+    override
+    protected def initialValue = global
+  }
+
+  def current: FunctionScope = _current.get
+
+  /**
+   * Run body with scope as the current scope of this thread, the previous scope
+   * is restored after that.
+   */
+  def using[T](scope: FunctionScope)(body: => T): T = {
+    val prev = _current.get
+    _current.set(scope)
+    try {
+      body
+    } finally {
+      _current.set(prev)
+    }
+  }
+}
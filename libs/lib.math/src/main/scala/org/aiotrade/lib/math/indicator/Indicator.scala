@@ -31,7 +31,6 @@
 package org.aiotrade.lib.math.indicator
 
 import java.text.DecimalFormat
-import java.util.concurrent.ConcurrentHashMap
 import java.util.logging.Level
 import java.util.logging.Logger
 import org.aiotrade.lib.math.timeseries.BaseTSer
@@ -180,17 +179,23 @@ object Indicator {
 
   private val FAC_DECIMAL_FORMAT = new DecimalFormat("0.###")
 
-  private val idToIndicator = new ConcurrentHashMap[Id[_ <: Indicator], Indicator](8, 0.9f, 1)
-
   def idOf[T <: Indicator](klass: Class[T], baseSer: BaseTSer, factors: Factor*) = Id[T](klass, baseSer, factors: _*)
   
   def apply[T <: Indicator](klass: Class[T], baseSer: BaseTSer, factors: Factor*): T = {
+    apply(FunctionScope.current, klass, baseSer, factors: _*)
+  }
+
+  /**
+   * @see Function#apply(FunctionScope, Class[T], BaseTSer, Any*)
+   */
+  def apply[T <: Indicator](scope: FunctionScope, klass: Class[T], baseSer: BaseTSer, factors: Factor*): T = {
     val id = idOf(klass, baseSer, factors: _*)
+    val idToIndicator = scope.idToIndicator
     idToIndicator.get(id) match {
       case null =>
         /** if got none from idToIndicator, try to create new one */
         try {
-          val indicator = klass.newInstance
+          val indicator = FunctionScope.using(scope) {klass.newInstance}
           indicator.factors = factors.toArray // set factors first to avoid multiple computeFrom(0)
           /** don't forget to call set(baseSer) immediatley */
           indicator.set(baseSer)
@@ -204,8 +209,11 @@ object Indicator {
     }
   }
 
+  /**
+   * Release the indicators of current scope
+   */
   def releaseAll() {
-    idToIndicator.clear
+    FunctionScope.current.idToIndicator.clear
   }
   
   def displayName(ser: TSer): String = ser match {
@@ -0,0 +1,239 @@
+package org.aiotrade.lib.math.stats
+
+import org.aiotrade.lib.math.timeseries.Null
+import org.aiotrade.lib.math.timeseries.TVar
+
+/**
+ * Streaming statistics over the window [idx - period + 1, idx] of a TVar[Double],
+ * which costs O(1) per spot when spots are computed one by one, instead of
+ * rescaning the whole window.
+ *
+ * The window keeps values of [idx - period + 1, idx - 1] as committed, and the
+ * value of idx as last, which is read again on each call, so the last spot can be
+ * re-computed in O(1) when it's being updated by real-time ticks. When moving to
+ * idx + 1, the value of idx is read again and committed, and the value of
+ * idx - period + 1 is evicted.
+ *
+ * When the spots are not computed continually, for instance recomputing from an
+ * earlier idx, the window will be rebuilt in O(period).
+ *
+ * A window is not thread safe, each function should hold its own one.
+ *
+ * @author Caoyuan Deng
+ */
+abstract class SlidingWindow(val period: Int) {
+  require(period > 0, "period should be > 0: " + period)
+
+  private var lastIdx = -1
+  private var nAdvances = 0
+
+  /**
+   * @return the value of window that ends at idx, or Null.Double if there is not
+   *         enough values yet
+   */
+  final def apply(idx: Int, xs: TVar[Double]): Double = {
+    if (idx < period - 1 || idx >= xs.size) {
+      return Null.Double
+    }
+
+    if (idx == lastIdx) {
+      // re-compute the same spot, only the last value may have been changed
+    } else if (idx == lastIdx + 1 && nAdvances < rebuildInterval) {
+      commit(lastIdx, xs.double(lastIdx))
+      val leavingIdx = idx - period
+      evict(leavingIdx, xs.double(leavingIdx))
+      nAdvances += 1
+    } else {
+      rebuild(idx, xs)
+    }
+    lastIdx = idx
+
+    result(xs.double(idx))
+  }
+
+  final def reset() {
+    lastIdx = -1
+    nAdvances = 0
+    clear()
+  }
+
+  private def rebuild(idx: Int, xs: TVar[Double]) {
+    clear()
+    nAdvances = 0
+    var i = idx - period + 1
+    while (i < idx) {
+      commit(i, xs.double(i))
+      i += 1
+    }
+  }
+
+  /**
+   * Rebuild the window after this number of continual moves, to drop the
+   * accumulated rounding errors of running sums. O(1) in amortized.
+   */
+  protected def rebuildInterval: Int = Int.MaxValue
+
+  protected def clear()
+  protected def commit(idx: Int, x: Double)
+  protected def evict(idx: Int, x: Double)
+  protected def result(last: Double): Double
+}
+
+/**
+ * Max/Min by monotonic deque of committed values, Null values are skipped.
+ * When all values of window are Null, returns Double.MinValue for max, and
+ * Double.MaxValue for min, the same as StatsFunctions.maxmin
+ */
+abstract class MonotonicWindow(_period: Int) extends SlidingWindow(_period) {
+  private val idxes = new Array[Int](period)
+  private val values = new Array[Double](period)
+  private var head = 0
+  private var count = 0
+
+  /** Should a be kept in front of b? */
+  protected def prefer(a: Double, b: Double): Boolean
+  protected def emptyValue: Double
+
+  protected def clear() {
+    head = 0
+    count = 0
+  }
+
+  protected def commit(idx: Int, x: Double) {
+    if (Null.is(x)) {
+      return
+    }
+
+    while (count > 0 && !prefer(values(tail), x)) {
+      count -= 1
+    }
+    val i = (head + count) % period
+    idxes(i) = idx
+    values(i) = x
+    count += 1
+  }
+
+  protected def evict(idx: Int, x: Double) {
+    while (count > 0 && idxes(head) <= idx) {
+      head = (head + 1) % period
+      count -= 1
+    }
+  }
+
+  protected def result(last: Double): Double = {
+    val front = if (count > 0) values(head) else emptyValue
+    if (Null.is(last) || prefer(front, last)) front else last
+  }
+
+  private def tail = (head + count - 1) % period
+}
+
+final class MaxWindow(_period: Int) extends MonotonicWindow(_period) {
+  protected def prefer(a: Double, b: Double) = a > b
+  protected def emptyValue = Double.MinValue
+}
+
+final class MinWindow(_period: Int) extends MonotonicWindow(_period) {
+  protected def prefer(a: Double, b: Double) = a < b
+  protected def emptyValue = Double.MaxValue
+}
+
+/**
+ * Sum by Kahan-Babuska (Neumaier) compensated running sum, Null values are
+ * counted as 0, the same as StatsFunctions.sum
+ */
+final class SumWindow(_period: Int) extends SlidingWindow(_period) {
+  private var sum = 0.0
+  private var compensation = 0.0
+
+  override
+  protected def rebuildInterval = math.max(period * 64, 4096)
+
+  protected def clear() {
+    sum = 0.0
+    compensation = 0.0
+  }
+
+  protected def commit(idx: Int, x: Double) {
+    if (Null.not(x)) add(x)
+  }
+
+  protected def evict(idx: Int, x: Double) {
+    if (Null.not(x)) add(-x)
+  }
+
+  protected def result(last: Double): Double = {
+    if (Null.not(last)) sum + compensation + last else sum + compensation
+  }
+
+  private def add(x: Double) {
+    val t = sum + x
+    if (math.abs(sum) >= math.abs(x)) {
+      compensation += (sum - t) + x
+    } else {
+      compensation += (x - t) + sum
+    }
+    sum = t
+  }
+}
+
+/**
+ * Population standard deviation by Welford running moments. If there is any
+ * Null value in window, returns Null.Double, the same as StatsFunctions.stdDev
+ */
+final class StdDevWindow(_period: Int) extends SlidingWindow(_period) {
+  private var n = 0
+  private var nNulls = 0
+  private var mean = 0.0
+  private var m2 = 0.0
+
+  override
+  protected def rebuildInterval = math.max(period * 64, 4096)
+
+  protected def clear() {
+    n = 0
+    nNulls = 0
+    mean = 0.0
+    m2 = 0.0
+  }
+
+  protected def commit(idx: Int, x: Double) {
+    if (Null.is(x)) {
+      nNulls += 1
+    } else {
+      n += 1
+      val d = x - mean
+      mean += d / n
+      m2 += d * (x - mean)
+    }
+  }
+
+  protected def evict(idx: Int, x: Double) {
+    if (Null.is(x)) {
+      nNulls -= 1
+    } else {
+      if (n == 1) {
+        n = 0
+        mean = 0.0
+        m2 = 0.0
+      } else {
+        val d = x - mean
+        n -= 1
+        mean -= d / n
+        m2 -= d * (x - mean)
+      }
+    }
+  }
+
+  protected def result(last: Double): Double = {
+    if (nNulls > 0 || Null.is(last)) {
+      Null.Double
+    } else {
+      val n1 = n + 1
+      val d = last - mean
+      val mean1 = mean + d / n1
+      val m21 = m2 + d * (last - mean1)
+      math.sqrt(math.max(m21, 0.0) / period)
+    }
+  }
+}
@@ -107,6 +107,7 @@ class DefaultTSer(private var _freq: TFreq) extends TSer {
   def timestamps: TStamps = _timestamps
   def attach(timestamps: TStamps) {
     _timestamps = timestamps
+    if (isSingleWriter && timestamps != null) timestamps.toSingleWriterMode()
   }
 
   /**
@@ -420,15 +421,27 @@ class DefaultTSer(private var _freq: TFreq) extends TSer {
   override 
   def hashCode: Int = _hashCode
 
+  /**
+   * TVar of Double, Long and Boolean will be created as DoubleTVar, LongTVar and
+   * BooleanTVar, which access the primitive backing array directly.
+   */
   object TVar {
-    def apply[V: ClassTag](): TVar[V] = new InnerTVar[V]("", Plot.None)
-    def apply[V: ClassTag](name: String): TVar[V] = new InnerTVar[V](name, Plot.None)
-    def apply[V: ClassTag](name: String, plot: Plot): TVar[V] = new InnerTVar[V](name, plot)
+    def apply[V: ClassTag](): TVar[V] = apply[V]("", Plot.None)
+    def apply[V: ClassTag](name: String): TVar[V] = apply[V](name, Plot.None)
+    def apply[V: ClassTag](name: String, plot: Plot): TVar[V] = {
+      val tvar = implicitly[ClassTag[V]] match {
+        case ClassTag.Double  => new DoubleTVar(name, plot)
+        case ClassTag.Long    => new LongTVar(name, plot)
+        case ClassTag.Boolean => new BooleanTVar(name, plot)
+        case _ => new InnerTVar[V](name, plot)
+      }
+      tvar.asInstanceOf[TVar[V]]
+    }
   }
   
-  final protected class InnerTVar[V: ClassTag](_name: String, _plot: Plot) extends AbstractInnerTVar[V](_name, _plot) {
+  protected class InnerTVar[V: ClassTag](_name: String, _plot: Plot) extends AbstractInnerTVar[V](_name, _plot) {
 
-    private var _values = new ArrayList[V](INIT_CAPACITY)
+    protected final val _values = new ArrayList[V](INIT_CAPACITY)
     def values = _values
     
     def put(time: Long, value: V): Boolean = {
@@ -494,6 +507,103 @@ class DefaultTSer(private var _freq: TFreq) extends TSer {
     def timesIterator: Iterator[Long] = timestamps.iterator
     def valuesIterator: Iterator[V] = _values.iterator
   }
+
+  /**
+   * The values of ArrayList[Double] is stored in a double array, we read/write it
+   * directly here instead of going through the generic ArrayList.apply/update, which
+   * will box/unbox each value.
+   *
+   * @Note there is no null in a double array, Null.Double is used instead.
+   */
+  final protected class DoubleTVar(_name: String, _plot: Plot) extends InnerTVar[Double](_name, _plot) {
+
+    override 
+    def apply(idx: Int): Double = {
+      if (idx >= 0 && idx < _values.size) _values.backingArray(idx) else Null.Double
+    }
+
+    override 
+    def update(idx: Int, value: Double) {
+      if (idx >= 0 && idx < _values.size) {
+        _values.backingArray(idx) = value
+      } else {
+        assert(false, "TVar.update(index, value): this index's value of Var did not be holded yet: " +
+               "idx=" + idx + ", value size=" + _values.size + ", timestamps size=" + timestamps.size)
+      }
+    }
+
+    override 
+    def double(idx: Int): Double = apply(idx)
+
+    override 
+    def updateDouble(idx: Int, value: Double) = update(idx, value)
+
+    override 
+    def float(idx: Int): Float = apply(idx).toFloat
+  }
+
+  /**
+   * @see DoubleTVar
+   */
+  final protected class LongTVar(_name: String, _plot: Plot) extends InnerTVar[Long](_name, _plot) {
+
+    override 
+    def apply(idx: Int): Long = {
+      if (idx >= 0 && idx < _values.size) _values.backingArray(idx) else Null.Long
+    }
+
+    override 
+    def update(idx: Int, value: Long) {
+      if (idx >= 0 && idx < _values.size) {
+        _values.backingArray(idx) = value
+      } else {
+        assert(false, "TVar.update(index, value): this index's value of Var did not be holded yet: " +
+               "idx=" + idx + ", value size=" + _values.size + ", timestamps size=" + timestamps.size)
+      }
+    }
+
+    override 
+    def long(idx: Int): Long = apply(idx)
+
+    override 
+    def updateLong(idx: Int, value: Long) = update(idx, value)
+
+    override 
+    def double(idx: Int): Double = apply(idx).toDouble
+
+    override 
+    def float(idx: Int): Float = apply(idx).toFloat
+  }
+
+  /**
+   * @see DoubleTVar
+   * 
+   * @Note values are kept in a boolean array (one byte per value) instead of bit-packed,
+   * since TVar.values should be an ArrayList which is exported to TSer.export etc.
+   */
+  final protected class BooleanTVar(_name: String, _plot: Plot) extends InnerTVar[Boolean](_name, _plot) {
+
+    override 
+    def apply(idx: Int): Boolean = {
+      if (idx >= 0 && idx < _values.size) _values.backingArray(idx) else Null.Boolean
+    }
+
+    override 
+    def update(idx: Int, value: Boolean) {
+      if (idx >= 0 && idx < _values.size) {
+        _values.backingArray(idx) = value
+      } else {
+        assert(false, "TVar.update(index, value): this index's value of Var did not be holded yet: " +
+               "idx=" + idx + ", value size=" + _values.size + ", timestamps size=" + timestamps.size)
+      }
+    }
+
+    override 
+    def boolean(idx: Int): Boolean = apply(idx)
+
+    override 
+    def updateBoolean(idx: Int, value: Boolean) = update(idx, value)
+  }
   
   //@todo SparseTVar
   /* protected class SparseTVar[V: ClassTag](
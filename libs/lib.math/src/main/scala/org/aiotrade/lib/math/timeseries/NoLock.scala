@@ -0,0 +1,20 @@
+package org.aiotrade.lib.math.timeseries
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.Condition
+import java.util.concurrent.locks.Lock
+
+/**
+ * A lock that does nothing, used as the readLock of TSer/TStamps under single
+ * writer mode, where readers read the published snapshot instead of locking.
+ *
+ * @author Caoyuan Deng
+ */
+object NoLock extends Lock {
+  def lock() {}
+  def lockInterruptibly() {}
+  def tryLock() = true
+  def tryLock(time: Long, unit: TimeUnit) = true
+  def unlock() {}
+  def newCondition(): Condition = throw new UnsupportedOperationException("NoLock does not support conditions")
+}
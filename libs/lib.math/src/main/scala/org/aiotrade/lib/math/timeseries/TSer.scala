@@ -30,6 +30,7 @@
  */
 package org.aiotrade.lib.math.timeseries
 
+import java.util.concurrent.locks.Lock
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import org.aiotrade.lib.util.actors.Publisher
 import scala.collection.mutable
@@ -59,8 +60,31 @@ trait TSer extends Publisher {
 //  ----- end of actor's implementation
 
   private val readWriteLock = new ReentrantReadWriteLock
-  protected val readLock  = readWriteLock.readLock
   protected val writeLock = readWriteLock.writeLock
+
+  @volatile private var _isSingleWriter = false
+  def isSingleWriter = _isSingleWriter
+
+  /**
+   * Under single writer mode, readers need not to lock, they go to the published
+   * snapshot of timestamps. @see TStamps#toSingleWriterMode
+   */
+  protected def readLock: Lock = if (_isSingleWriter) NoLock else readWriteLock.readLock
+
+  /**
+   * Should be called before this ser is shared with readers, the timestamps will
+   * be switched too.
+   *
+   * @Note Values of vars are not in the snapshot: the writer publishes a new
+   *       timestamp before it puts the values of this time to vars, and updates
+   *       values in place. So readers without lock should only read values at idx
+   *       below both timestamps.snapshot.size and the var's size, and the values of
+   *       the last idx may still be Null or be updated by the writer.
+   */
+  def toSingleWriterMode() {
+    _isSingleWriter = true
+    if (timestamps != null) timestamps.toSingleWriterMode()
+  }
       
   private var _isLoaded: Boolean = false
   def isLoaded = _isLoaded
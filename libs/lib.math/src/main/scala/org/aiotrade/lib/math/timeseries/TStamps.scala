@@ -34,6 +34,7 @@ import java.util.Calendar
 import java.util.ConcurrentModificationException
 import java.util.GregorianCalendar
 import java.util.TimeZone
+import java.util.concurrent.locks.Lock
 import org.aiotrade.lib.collection.AbstractArrayList
 import scala.reflect.ClassTag
 
@@ -220,14 +221,91 @@ object TStampsLog {
 
 
 abstract class TStamps(initialSize: Int) extends AbstractArrayList[Long](initialSize, None) with Cloneable {
+  import TStamps._
+  
   val LONG_LONG_AGO = new GregorianCalendar(1900, Calendar.JANUARY, 1).getTimeInMillis
 
   private val readWriteLock = new java.util.concurrent.locks.ReentrantReadWriteLock
-  val readLock  = readWriteLock.readLock
   val writeLock = readWriteLock.writeLock
 
+  /**
+   * Under single writer mode, readers need not to lock, they read the published
+   * snapshot instead.
+   */
+  def readLock: Lock = if (isSingleWriter) NoLock else readWriteLock.readLock
+
   val log = new TStampsLog(initialSize)
 
+  @volatile private var _isSingleWriter = false
+  /** published after each modification, under single writer mode only */
+  @volatile private var _snapshot = new Snapshot(array, 0, 0)
+  /** view of array under locked mode, renewed by readers after modifications */
+  @volatile private var _lockedView = _snapshot
+  private var version = 0L
+  private var isDetached = false
+
+  def isSingleWriter: Boolean = _isSingleWriter
+  
+  /**
+   * Switch to single writer mode: there is only one writer thread, readers do not
+   * lock but work against the snapshot that is published (via a volatile) after
+   * each modification. Elements of a published snapshot are never changed, the
+   * writer modifies a copy of array instead when it has to insert/remove/update
+   * elements that have been published.
+   * 
+   * Should be called before this timestamps is shared with readers, since the
+   * readLock/unlock pair should be got under the same mode.
+   */
+  def toSingleWriterMode() {
+    if (!_isSingleWriter) {
+      _isSingleWriter = true
+      publish()
+    }
+  }
+
+  /**
+   * Under single writer mode, the last published snapshot, which is consistent
+   * and can be read without lock. Under locked mode, a view of current elements,
+   * which should be read under readLock, and is allocated only when it's first
+   * read after a modification, so modifications never allocate.
+   */
+  def snapshot: Snapshot = {
+    if (isSingleWriter) {
+      _snapshot
+    } else {
+      val view = _lockedView
+      if (view.version == version && (view.times eq array) && view.size == size0) {
+        view
+      } else {
+        val newView = new Snapshot(array, size0, version)
+        _lockedView = newView
+        newView
+      }
+    }
+  }
+
+  /**
+   * Copy on write, so the array of published snapshot won't be changed in place
+   * 
+   * @param copySize number of leading elements to be copied
+   */
+  private def detach(minSize: Int, copySize: Int = size0) {
+    if (isSingleWriter && !isDetached) {
+      val newArray = makeArray(math.max(array.length, minSize))
+      scala.compat.Platform.arraycopy(array, 0, newArray, 0, copySize)
+      array = newArray
+      isDetached = true
+    }
+  }
+
+  private def publish() {
+    version += 1
+    if (isSingleWriter) {
+      isDetached = false
+      _snapshot = new Snapshot(array, size0, version)
+    }
+  }
+
   def isOnCalendar: Boolean
     
   def asOnCalendar: TStamps
@@ -278,6 +356,102 @@ abstract class TStamps(initialSize: Int) extends AbstractArrayList[Long](initial
    */
   override 
   def clone: TStamps = super.clone.asInstanceOf[TStamps]
+
+  // --- reading goes to the published snapshot under single writer mode
+
+  override 
+  def length: Int = if (isSingleWriter) _snapshot.size else size0
+
+  override 
+  def apply(idx: Int): Long = if (isSingleWriter) _snapshot(idx) else super.apply(idx)
+
+  override 
+  def toArray: Array[Long] = {
+    val s = snapshot
+    val res = new Array[Long](s.size)
+    scala.compat.Platform.arraycopy(s.times, 0, res, 0, s.size)
+    res
+  }
+
+  override 
+  def sliceToArray(start: Int, len: Int): Array[Long] = {
+    val s = snapshot
+    if (start < 0 || start + len > s.size) throw new IndexOutOfBoundsException("start=" + start + ", len=" + len + ", size=" + s.size)
+    val res = new Array[Long](len)
+    scala.compat.Platform.arraycopy(s.times, start, res, 0, len)
+    res
+  }
+
+  override 
+  def copyToArray[B >: Long](xs: Array[B], start: Int, len: Int) {
+    val s = snapshot
+    val len1 = len min (xs.length - start) min s.size
+    scala.compat.Platform.arraycopy(s.times, 0, xs, start, len1)
+  }
+
+  // --- each modification is followed by publish()
+  
+  override 
+  def +(elem: Long): this.type = {
+    super.+(elem)
+    publish()
+    this
+  }
+
+  override 
+  def ++(xs: TraversableOnce[Long]): this.type = {
+    super.++(xs)
+    publish()
+    this
+  }
+
+  override 
+  def +:(elem: Long): this.type = {
+    detach(size0 + 1)
+    super.+:(elem)
+    publish()
+    this
+  }
+
+  override 
+  def insertOne(n: Int, elem: Long) {
+    detach(size0 + 1)
+    super.insertOne(n, elem)
+    publish()
+  }
+
+  override 
+  def insertAll(n: Int, elems: scala.collection.Traversable[Long]) {
+    detach(size0)
+    super.insertAll(n, elems)
+    publish()
+  }
+
+  override 
+  def remove(n: Int, count: Int) {
+    detach(size0)
+    // published by reduceToSize, which is called at the end of super.remove
+    super.remove(n, count)
+  }
+
+  /**
+   * Slots in [sz, size0) are still visible to readers of earlier snapshots, and
+   * will be overwritten by following appending (clear() goes here too), so detach
+   * before reducing.
+   */
+  override 
+  def reduceToSize(sz: Int) {
+    detach(size0, math.min(sz, size0))
+    super.reduceToSize(sz)
+    publish()
+  }
+
+  override 
+  def update(idx: Int, elem: Long) {
+    detach(size0)
+    super.update(idx, elem)
+    publish()
+  }
 }
 
 
@@ -291,6 +465,18 @@ abstract class TStamps(initialSize: Int) extends AbstractArrayList[Long](initial
 object TStamps {
 
   def apply(initialCapacity: Int): TStamps = new TStampsOnOccurred(initialCapacity)
+
+  /**
+   * A view of timestamps. A snapshot published under single writer mode will
+   * never be changed in times [0, size), while a view under locked mode is valid
+   * only under readLock. The version increases on each modification.
+   */
+  final class Snapshot(val times: Array[Long], val size: Int, val version: Long) {
+    def apply(idx: Int): Long = {
+      if (idx < 0 || idx >= size) throw new IndexOutOfBoundsException(idx.toString)
+      times(idx)
+    }
+  }
     
   private class TStampsOnOccurred(initialCapacity: Int) extends TStamps(initialCapacity) {
 
@@ -305,13 +491,14 @@ object TStamps {
      * or after lastOccurredTime
      */
     def rowOfTime(time: Long, freq: TFreq): Int = {
-      val lastOccurredIdx = size - 1
+      val s = snapshot
+      val lastOccurredIdx = s.size - 1
       if (lastOccurredIdx == -1) {
         return -1
       }
             
-      val firstOccurredTime = apply(0)
-      val lastOccurredTime  = apply(lastOccurredIdx)
+      val firstOccurredTime = s(0)
+      val lastOccurredTime  = s(lastOccurredIdx)
       if (time <= firstOccurredTime) {
         freq.nFreqsBetween(firstOccurredTime, time)
       } else if (time >= lastOccurredTime) {
@@ -333,35 +520,38 @@ object TStamps {
      * This is an efficent method
      */
     def timeOfRow(row: Int, freq: TFreq): Long = {
-      val lastOccurredIdx = size - 1
+      val s = snapshot
+      val lastOccurredIdx = s.size - 1
       if (lastOccurredIdx < 0) {
         return 0
       }
             
-      val firstOccurredTime = apply(0)
-      val lastOccurredTime  = apply(lastOccurredIdx)
+      val firstOccurredTime = s(0)
+      val lastOccurredTime  = s(lastOccurredIdx)
       if (row < 0) {
         freq.timeAfterNFreqs(firstOccurredTime, row)
       } else if (row > lastOccurredIdx) {
         freq.timeAfterNFreqs(lastOccurredTime, row - lastOccurredIdx)
       } else {
-        apply(row)
+        s(row)
       }
     }
         
     def lastRow(freq: TFreq): Int = {
-      val lastOccurredIdx = size - 1
+      val s = snapshot
+      val lastOccurredIdx = s.size - 1
       lastOccurredIdx
     }
         
     def sizeOf(freq: TFreq): Int = size
         
     def indexOfOccurredTime(time: Long): Int = {
-      val size1 = size
+      val s = snapshot
+      val size1 = s.size
       if (size1 == 0) {
         return -1
       } else if (size1 == 1) {
-        if (apply(0) == time) {
+        if (s(0) == time) {
           return 0
         } else {
           return -1
@@ -373,7 +563,7 @@ object TStamps {
       var length = to - from
       while (length > 1) {
         length /= 2
-        val midTime = apply(from + length)
+        val midTime = s(from + length)
         if (time > midTime) {
           from += length
         } else if (time < midTime) {
@@ -390,9 +580,9 @@ object TStamps {
        * and the length should be 1 (end - start). So, just do following checking,
        * if can't get exact index, just return -1.
        */
-      if (time == apply(from)) {
+      if (time == s(from)) {
         from
-      } else if (time == apply(from + 1)) {
+      } else if (time == s(from + 1)) {
         from + 1
       } else {
         -1
@@ -404,12 +594,13 @@ object TStamps {
      * We only need to use this computing in case of onOccurred.
      */
     def nearestIndexOfOccurredTime(time: Long): Int = {
+      val s = snapshot
       var from = 0
-      var to = size - 1
+      var to = s.size - 1
       var length = to - from
       while (length > 1) {
         length /= 2
-        val midTime = apply(from + length)
+        val midTime = s(from + length)
         if (time > midTime) {
           from += length
         } else if (time < midTime) {
@@ -426,9 +617,9 @@ object TStamps {
        * and the length should be 1 (end - start). So, just do following checking,
        * if can't get exact index, just return nearest one: 'start'
        */
-      if (time == apply(from)) {
+      if (time == s(from)) {
         from
-      } else if (time == apply(from + 1)) {
+      } else if (time == s(from + 1)) {
         from + 1
       } else {
         from
@@ -440,11 +631,12 @@ object TStamps {
      * @param time the time, inclusive
      */
     def indexOrNextIndexOfOccurredTime(time: Long): Int = {
-      val size1 = size
+      val s = snapshot
+      val size1 = s.size
       if (size1 == 0) {
         return -1
       } else if (size1 == 1) {
-        if (apply(0) >= time) {
+        if (s(0) >= time) {
           return 0
         } else {
           return -1
@@ -456,7 +648,7 @@ object TStamps {
       var length = to - from
       while (length > 1) {
         length /= 2
-        val midTime = apply(from + length)
+        val midTime = s(from + length)
         if (time > midTime) {
           from += length
         } else if (time < midTime) {
@@ -473,9 +665,9 @@ object TStamps {
        * and the 'length' should be 1 (end - start). So, just do following checking.
        * If can't get exact index, ﻿just return invalid value -1
        */
-      if (apply(from) >= time) {
+      if (s(from) >= time) {
         from
-      } else if (apply(from + 1) >= time) {
+      } else if (s(from + 1) >= time) {
         from + 1
       } else {
         -1
@@ -484,11 +676,12 @@ object TStamps {
         
     /** return index of nearest before or equal(if exist) time */
     def indexOrPrevIndexOfOccurredTime(time: Long): Int = {
-      val size1 = size
+      val s = snapshot
+      val size1 = s.size
       if (size1 == 0) {
         return -1
       } else if (size1 == 1) {
-        if (apply(0) <= time) {
+        if (s(0) <= time) {
           return 0
         } else {
           return -1
@@ -500,7 +693,7 @@ object TStamps {
       var length = to - from
       while (length > 1) {
         length /= 2
-        val midTime = apply(from + length)
+        val midTime = s(from + length)
         if (time > midTime) {
           from += length
         } else if (time < midTime) {
@@ -517,9 +710,9 @@ object TStamps {
        * and the 'length' should be 1 (end - start). So, just do following checking.
        * If can't get exact index, just return invalid -1.
        */
-      if (apply(from + 1) <= time) {
+      if (s(from + 1) <= time) {
         from + 1
-      } else if (apply(from) <= time) {
+      } else if (s(from) <= time) {
         from
       } else {
         -1
@@ -527,13 +720,13 @@ object TStamps {
     }
         
     def firstOccurredTime: Long = {
-      val size1 = size
-      if (size1 > 0) apply(0) else 0
+      val s = snapshot
+      if (s.size > 0) s(0) else 0
     }
         
     def lastOccurredTime: Long = {
-      val size1 = size
-      if (size1 > 0) apply(size1 - 1) else 0
+      val s = snapshot
+      if (s.size > 0) s(s.size - 1) else 0
     }
         
     def iterator(freq: TFreq): TStampsIterator = {
@@ -690,12 +883,13 @@ object TStamps {
      * or after lastOccurredTime
      */
     def rowOfTime(time: Long, freq: TFreq): Int = {
-      val lastOccurredIdx = size - 1
+      val s = snapshot
+      val lastOccurredIdx = s.size - 1
       if (lastOccurredIdx == -1) {
         return -1
       }
             
-      val firstOccurredTime = apply(0)
+      val firstOccurredTime = s(0)
       freq.nFreqsBetween(firstOccurredTime, time)
     }
         
@@ -703,23 +897,25 @@ object TStamps {
      * This is an efficent method
      */
     def timeOfRow(row: Int, freq: TFreq): Long = {
-      val lastOccurredIdx = size - 1
+      val s = snapshot
+      val lastOccurredIdx = s.size - 1
       if (lastOccurredIdx < 0) {
         return 0
       }
             
-      val firstOccurredTime = apply(0)
+      val firstOccurredTime = s(0)
       freq.timeAfterNFreqs(firstOccurredTime, row)
     }
         
     def lastRow(freq: TFreq): Int = {
-      val lastOccurredIdx = size - 1
+      val s = snapshot
+      val lastOccurredIdx = s.size - 1
       if (lastOccurredIdx < 0) {
         return 0
       }
             
-      val firstOccurredTime = apply(0)
-      val lastOccurredTime  = apply(lastOccurredIdx)
+      val firstOccurredTime = s(0)
+      val lastOccurredTime  = s(lastOccurredIdx)
       freq.nFreqsBetween(firstOccurredTime, lastOccurredTime)
     }
         
@@ -742,8 +938,20 @@ object TStamps {
         
     def lastOccurredTime = delegateTimestamps.lastOccurredTime
 
+    override
+    def isSingleWriter = delegateTimestamps.isSingleWriter
+
+    override
+    def toSingleWriterMode() = delegateTimestamps.toSingleWriterMode()
+
+    override
+    def snapshot = delegateTimestamps.snapshot
+
     override
     def size = delegateTimestamps.size
+
+    override
+    def length = delegateTimestamps.length
         
     override
     def isEmpty = delegateTimestamps.isEmpty
@@ -760,6 +968,9 @@ object TStamps {
     override 
     def copyToArray[B >: Long](xs: Array[B], start: Int) = delegateTimestamps.copyToArray(xs, start)
 
+    override 
+    def copyToArray[B >: Long](xs: Array[B], start: Int, len: Int) = delegateTimestamps.copyToArray(xs, start, len)
+
     override 
     def sliceToArray(start: Int, len: Int): Array[Long] = delegateTimestamps.sliceToArray(start, len)
         
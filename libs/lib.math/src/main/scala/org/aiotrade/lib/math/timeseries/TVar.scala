@@ -150,6 +150,36 @@ abstract class TVar[V: ClassTag] extends Plottable {
   def double(time: Long): Double = toDouble(apply(time))
   def double(idx: Int):   Double = toDouble(apply(idx))
 
+  /**
+   * Primitive accessors by idx. TVar[Double] etc created by DefaultTSer override
+   * them to read the primitive backing array without boxing, so the hot paths of
+   * indicators should call double(idx) instead of apply(idx) on a TVar[Double].
+   */
+  def long(idx: Int): Long = toLong(apply(idx))
+  def boolean(idx: Int): Boolean = {
+    apply(idx) match {
+      case x: Boolean => x
+      case _ => Null.Boolean
+    }
+  }
+
+  /**
+   * Primitive writers by idx, the counterparts of double(idx) etc. update(idx, value)
+   * on a TVar[Double] is erased to update(Int, Object) and boxes the value, these
+   * are overridden by DoubleTVar etc to write the primitive backing array.
+   * 
+   * @Note the value should be of V, they are not converters.
+   */
+  def updateDouble(idx: Int, value: Double) {
+    update(idx, value.asInstanceOf[V])
+  }
+  def updateLong(idx: Int, value: Long) {
+    update(idx, value.asInstanceOf[V])
+  }
+  def updateBoolean(idx: Int, value: Boolean) {
+    update(idx, value.asInstanceOf[V])
+  }
+
   def toFloat(v: V): Float = {
     v match {
       case null => Null.Float
@@ -169,6 +199,25 @@ abstract class TVar[V: ClassTag] extends Plottable {
     }
   }
 
+  def toLong(v: V): Long = {
+    v match {
+      case null => Null.Long
+      case x: Byte   => x.toLong
+      case x: Short  => x.toLong
+      case x: Char   => x.toLong
+      case x: Int    => x.toLong
+      case x: Long   => x
+      case x: Float  => x.toLong
+      case x: Double => x.toLong
+      case x: Number => x.longValue
+      case x: AnyRef =>
+        assert(false, "Why you get here(TVar.long) ? " +
+               v + " Check your code and give me Long instead of long: " +
+               x.asInstanceOf[AnyRef].getClass.getCanonicalName)
+        Null.Long
+    }
+  }
+
   def toDouble(v: V): Double = {
     v match {
       case null => Null.Double
@@ -36,8 +36,6 @@ import java.awt.Toolkit
 import java.text.DateFormat
 import java.text.SimpleDateFormat
 import java.util.TimeZone
-import java.util.Timer
-import java.util.TimerTask
 import java.util.logging.Level
 import java.util.logging.Logger
 import org.aiotrade.lib.util.actors.Publisher
@@ -57,7 +55,7 @@ abstract class DataServer[V: ClassTag] extends Ordered[DataServer[V]] with Publi
 
   type C <: DataContract[_]
 
-  private case class RequestData(contracts: Iterable[C])
+  private case class RequestData(contracts: Iterable[C], isRefresh: Boolean = false)
   // @Note due to bug in PartialFunction, the inner final case class will cause isDefinedAt won't be compiled
   case class DataLoaded(values: Array[V], contract: C)
   case class DataProcessed(contract: C)
@@ -73,11 +71,8 @@ abstract class DataServer[V: ClassTag] extends Ordered[DataServer[V]] with Publi
   private val _refreshSymbolToContract = mutable.Map[String, C]()
   // --- Above maps should be created once here, since server may be singleton
 
-  private var isRefreshable = false
-
   /**
    * @note Beware of a case in producer-consumer module:
-   * During process DataLoaded, we may have accepted lots HeartBeat.
    * The producer is the one who implements requestData(...) and publishs DataLoaded,
    * after data collected. For example, who reads the data file and produces values;
    * The consumer is the one who accept DataLoaded and implements processData(...).
@@ -86,33 +81,16 @@ abstract class DataServer[V: ClassTag] extends Ordered[DataServer[V]] with Publi
    * in actor's mailbox, i.e. the memory. In extreme cases, the memory will be exhausted
    * finally. 
    * 
-   * You have to balance in this case, if the data that to be collected are very
-   * important, that cannot be lost, you should increase the memory or store data
-   * in persistence cache first. Otherwise, you have to try to sync the producer and 
-   * the consumer.
+   * The refreshScheduler balances them: it won't issue a refresh request when there
+   * are too many requests in flight or loaded data waiting for processing, and adapts
+   * the refresh interval to the processing time. If the data that to be collected 
+   * are very important, that cannot be lost, you should still increase the memory
+   * or store data in persistence cache first.
    */
-  private var flowCount: Int = _ // flow control that tries to balance request and process
-  // --- a proxy actor for HeartBeat event etc, which will detect the speed of
-  // refreshing requests, if consumer can not catch up the producer, will drop
-  // some requests.
-  reactions += {
-    case HeartBeat(interval) =>
-      if (isRefreshable && flowCount < 5) {
-        // refresh from loadedTime for subscribedContracts
-        try {
-          log.fine("Got HeartBeat message, going to request data, flowCount=" + flowCount)
-          requestActor ! RequestData(subscribedContracts)
-        } catch {
-          case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex)
-        }
-      } else {
-        flowCount -= 1 // give chance to requestData
-      }
-      flowCount = math.max(0, flowCount) // avoid too big gap
-  }
-  listenTo(DataServer)
+  protected val refreshScheduler = new RefreshScheduler(
+    this.getClass.getSimpleName, heartBeatInterval, maxRefreshInterval, maxInFlight
+  )(requestActor ! RequestData(subscribedContracts, true))
 
-  
   /**
    * We'll separate requestActor and processActor, so the request and process routines can be balanced a bit.
    * Otherwise, if the RequestData messages were sent batched, there will be no change to fetch DataLoaded message
@@ -120,13 +98,14 @@ abstract class DataServer[V: ClassTag] extends Ordered[DataServer[V]] with Publi
    */
   private val requestActor = new Reactor {
     reactions += {
-      case RequestData(contracts) =>
+      case RequestData(contracts, isRefresh) =>
         try {
-          flowCount += 1
-          log.fine("Got RequestData message, going to request data, flowCount=" + flowCount)
+          log.fine("Got RequestData message, going to request data, " + refreshScheduler.metrics)
           requestData(contracts)
         } catch {
           case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex)
+        } finally {
+          if (isRefresh) refreshScheduler.requestFinished
         }
     }
   }
@@ -136,9 +115,9 @@ abstract class DataServer[V: ClassTag] extends Ordered[DataServer[V]] with Publi
       // @Note 'contract' may be null, for instance: batch tickers loaded with multiple symbols.
       case DataLoaded(values, contract) =>
         val t0 = System.currentTimeMillis
+        val nanos0 = System.nanoTime
         try {
-          flowCount -= 1
-          log.info("Got DataLoaded message, going to process data, flowCount=" + flowCount)
+          log.info("Got DataLoaded message, going to process data, " + refreshScheduler.metrics)
           val loadedTime = processData(values, contract)
           if (contract ne null) {
             log.info("Processed data for " + contract.srcSymbol)
@@ -148,6 +127,7 @@ abstract class DataServer[V: ClassTag] extends Ordered[DataServer[V]] with Publi
           case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex)
         }
       
+        refreshScheduler.dataProcessed(if (values ne null) values.length else 0, System.nanoTime - nanos0)
         publish(DataProcessed(contract))
         log.info("Processed data in " + (System.currentTimeMillis - t0) + "ms")
     }
@@ -180,6 +160,10 @@ abstract class DataServer[V: ClassTag] extends Ordered[DataServer[V]] with Publi
    * @See reactions += {...}
    */
   protected def publishData(msg: Any) {
+    msg match {
+      case _: DataLoaded => refreshScheduler.dataQueued
+      case _ =>
+    }
     processActor ! msg
   }
     
@@ -190,8 +174,8 @@ abstract class DataServer[V: ClassTag] extends Ordered[DataServer[V]] with Publi
    */
   protected def processData(values: Array[V], contract: C): Long
 
-  def startRefresh {isRefreshable = true}
-  def stopRefresh  {isRefreshable = false}
+  def startRefresh {refreshScheduler.start}
+  def stopRefresh  {refreshScheduler.stop}
 
   // ----- subscribe/unsubscribe is used for refresh only
 
@@ -308,17 +292,9 @@ object DataServer extends Publisher {
   }
 
   private val config = org.aiotrade.lib.util.config.Config()
+  /** the base refresh interval */
   private val heartBeatInterval = config.getInt("dataserver.heartbeat", 318)
-  final case class HeartBeat(interval: Long) 
-  
-  // in context of applet, a page refresh may cause timer into a unpredict status,
-  // so it's always better to restart this timer? , if so, cancel it first.
-  //    if (timer != null) {
-  //      timer.cancel
-  //    }
-  private val timer = new Timer("DataServer Heart Beat Timer")
-  timer.schedule(new TimerTask {
-      def run = publish(HeartBeat(heartBeatInterval))
-    }, 1000, heartBeatInterval)
+  private val maxRefreshInterval = config.getInt("dataserver.heartbeat.max", 5000)
+  /** max number of refresh requests in flight plus loaded data waiting for processing */
+  private val maxInFlight = config.getInt("dataserver.maxinflight", 5)
 }
-
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2006-2007, AIOTrade Computing Co. and Contributors
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *    
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *    
+ *  o Neither the name of AIOTrade Computing Co. nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.aiotrade.lib.math.timeseries
+package datasource
+
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * Per data server refresh scheduler with back-pressure, which replaces the global
+ * heart beat and flowCount.
+ *
+ * On each tick, a refresh request is issued only when the number of in-flight
+ * requests plus the number of loaded but not yet processed data is less than
+ * maxInFlight, otherwise the tick is dropped and counted.
+ *
+ * The interval to next tick adapts to the observed throughput:
+ * o it won't be less than the average processing time (exponential moving average),
+ *   so we never request faster than we can process;
+ * o it doubles on dropped ticks, and grows gradually when consecutive requests
+ *   load nothing, i.e. the source is idle;
+ * o it returns to baseInterval as soon as new data are loaded and processed in time.
+ * And it's always in [baseInterval, maxInterval].
+ *
+ * @param request the function to issue a refresh request, which should be async
+ * @author Caoyuan Deng
+ */
+class RefreshScheduler(name: String, baseInterval: Long, maxInterval: Long, maxInFlight: Int)(request: => Unit) {
+  import RefreshScheduler._
+  private val log = Logger.getLogger(this.getClass.getName)
+
+  @volatile private var isRunning = false
+  @volatile private var generation = 0 // avoid duplicate tick chains after stop then start quickly
+  @volatile private var _interval = baseInterval
+
+  private val _inFlight = new AtomicInteger
+  private val _queueDepth = new AtomicInteger
+  private val _requests = new AtomicLong
+  private val _drops = new AtomicLong
+  private val _processed = new AtomicLong
+
+  @volatile private var ewmaProcessNanos = 0.0
+  @volatile private var idleStreak = 0
+  @volatile private var isLastDropped = false
+
+  /** number of issued requests that are not finished yet */
+  def inFlight = _inFlight.get
+  /** number of loaded data that are waiting for processing */
+  def queueDepth = _queueDepth.get
+  def requests = _requests.get
+  def drops = _drops.get
+  def processed = _processed.get
+  /** current interval to next tick in ms */
+  def interval = _interval
+  /** average processing time in ms */
+  def averageProcessTime: Double = ewmaProcessNanos / 1000000.0
+
+  def start: Unit = synchronized {
+    if (!isRunning) {
+      isRunning = true
+      generation += 1
+      _interval = baseInterval
+      schedule(baseInterval, generation)
+    }
+  }
+
+  def stop: Unit = synchronized {
+    isRunning = false
+  }
+
+  // --- following callbacks should be called by the data server
+
+  def requestStarted {
+    _inFlight.incrementAndGet
+  }
+
+  def requestFinished {
+    if (_inFlight.decrementAndGet < 0) _inFlight.set(0)
+  }
+
+  def dataQueued {
+    _queueDepth.incrementAndGet
+  }
+
+  /**
+   * @param nValues number of values that were loaded
+   * @param nanos   processing time
+   */
+  def dataProcessed(nValues: Int, nanos: Long) {
+    if (_queueDepth.decrementAndGet < 0) _queueDepth.set(0)
+    _processed.incrementAndGet
+    ewmaProcessNanos = if (ewmaProcessNanos == 0) nanos else ewmaProcessNanos * (1 - EWMA_ALPHA) + nanos * EWMA_ALPHA
+    idleStreak = if (nValues == 0) idleStreak + 1 else 0
+  }
+
+  private def schedule(delay: Long, gen: Int) {
+    timer.schedule(new Runnable {
+        def run = tick(gen)
+      }, delay, TimeUnit.MILLISECONDS)
+  }
+
+  private def tick(gen: Int) {
+    if (!isRunning || gen != generation) return
+
+    try {
+      if (_inFlight.get + _queueDepth.get < maxInFlight) {
+        isLastDropped = false
+        _requests.incrementAndGet
+        requestStarted
+        request
+      } else {
+        isLastDropped = true
+        _drops.incrementAndGet
+        log.fine(name + " is busy, dropped a refresh: " + metrics)
+      }
+    } catch {
+      case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex)
+    }
+
+    _interval = nextInterval
+    schedule(_interval, gen)
+  }
+
+  private def nextInterval: Long = {
+    val processMillis = (ewmaProcessNanos / 1000000).toLong
+    var next = math.max(baseInterval, processMillis)
+    if (isLastDropped) {
+      next = math.max(next, _interval * 2)
+    } else if (idleStreak > 0) {
+      next = math.max(next, _interval + _interval / 4)
+    }
+    math.min(next, maxInterval)
+  }
+
+  def metrics: String = {
+    name + ": interval=" + interval + "ms, inFlight=" + inFlight + ", queueDepth=" + queueDepth + 
+    ", requests=" + requests + ", drops=" + drops + ", processed=" + processed + 
+    ", avgProcessTime=" + averageProcessTime + "ms"
+  }
+
+  override 
+  def toString = metrics
+}
+
+object RefreshScheduler {
+  private val EWMA_ALPHA = 0.2
+
+  /** ticks only send messages to actors, so one thread is enough for all servers */
+  private lazy val timer: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+      def newThread(r: Runnable) = {
+        val t = new Thread(r, "DataServer Refresh Scheduler")
+        t.setDaemon(true)
+        t
+      }
+    })
+}
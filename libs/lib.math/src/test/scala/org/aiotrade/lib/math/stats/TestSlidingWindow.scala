@@ -0,0 +1,216 @@
+package org.aiotrade.lib.math.stats
+
+import java.util.Random
+import junit.framework.TestCase
+import junit.framework.Assert._
+import org.aiotrade.lib.math.timeseries.DefaultBaseTSer
+import org.aiotrade.lib.math.timeseries.Null
+import org.aiotrade.lib.math.timeseries.TVar
+
+/**
+ * Compares sliding max/min/sum/stdDev to a naive recomputation of the whole window
+ * on each spot.
+ */
+class TestSlidingWindow extends TestCase {
+  private val ONE_DAY = 24 * 60 * 60 * 1000L
+  private val BASE_TIME = 1262304000000L
+
+  private def newVar(values: Array[Double]): TVar[Double] = {
+    val ser = new DefaultBaseTSer
+    val x = ser.TVar[Double]("x")
+    var i = -1
+    while ({i += 1; i < values.length}) {
+      ser.createOrReset(BASE_TIME + i * ONE_DAY)
+      x(i) = values(i)
+    }
+    x
+  }
+
+  /** small integers so that there are ties, with some Nulls */
+  private def randomValues(n: Int, nullRatio: Double, seed: Long): Array[Double] = {
+    val random = new Random(seed)
+    Array.fill(n) {
+      if (random.nextDouble < nullRatio) Null.Double else (random.nextInt(10) - 5).toDouble
+    }
+  }
+
+  private def naiveMax(xs: TVar[Double], idx: Int, period: Int): Double = {
+    if (idx < period - 1) return Null.Double
+    var max = Double.MinValue
+    var i = idx - period
+    while ({i += 1; i <= idx}) {
+      val x = xs.double(i)
+      if (Null.not(x) && x > max) max = x
+    }
+    max
+  }
+
+  private def naiveMin(xs: TVar[Double], idx: Int, period: Int): Double = {
+    if (idx < period - 1) return Null.Double
+    var min = Double.MaxValue
+    var i = idx - period
+    while ({i += 1; i <= idx}) {
+      val x = xs.double(i)
+      if (Null.not(x) && x < min) min = x
+    }
+    min
+  }
+
+  private def naiveSum(xs: TVar[Double], idx: Int, period: Int): Double = {
+    if (idx < period - 1) return Null.Double
+    var sum = 0.0
+    var i = idx - period
+    while ({i += 1; i <= idx}) {
+      val x = xs.double(i)
+      if (Null.not(x)) sum += x
+    }
+    sum
+  }
+
+  private def naiveStdDev(xs: TVar[Double], idx: Int, period: Int): Double = {
+    if (idx < period - 1) return Null.Double
+    var sum = 0.0
+    var i = idx - period
+    while ({i += 1; i <= idx}) {
+      val x = xs.double(i)
+      if (Null.is(x)) return Null.Double
+      sum += x
+    }
+    val mean = sum / period
+    var dev = 0.0
+    i = idx - period
+    while ({i += 1; i <= idx}) {
+      val d = xs.double(i) - mean
+      dev += d * d
+    }
+    math.sqrt(dev / period)
+  }
+
+  private def assertSame(msg: String, expected: Double, actual: Double) {
+    if (Null.is(expected)) {
+      assertTrue(msg + ": expected Null, got " + actual, Null.is(actual))
+    } else {
+      assertEquals(msg, expected, actual, 1e-9)
+    }
+  }
+
+  private def checkForward(xs: TVar[Double], period: Int) {
+    val max = new MaxWindow(period)
+    val min = new MinWindow(period)
+    val sum = new SumWindow(period)
+    val stdDev = new StdDevWindow(period)
+    var i = -1
+    while ({i += 1; i < xs.size}) {
+      val msg = "period=" + period + ", idx=" + i
+      assertSame("max " + msg, naiveMax(xs, i, period), max(i, xs))
+      assertSame("min " + msg, naiveMin(xs, i, period), min(i, xs))
+      assertSame("sum " + msg, naiveSum(xs, i, period), sum(i, xs))
+      assertSame("stdDev " + msg, naiveStdDev(xs, i, period), stdDev(i, xs))
+    }
+  }
+
+  def testForwardWithTiesAndNulls {
+    val xs = newVar(randomValues(500, 0.1, 1L))
+    for (period <- List(1, 2, 3, 7, 20, 500)) {
+      checkForward(xs, period)
+    }
+  }
+
+  def testPeriodLargerThanSize {
+    val xs = newVar(randomValues(10, 0.0, 2L))
+    checkForward(xs, 11)
+  }
+
+  /** the max/min leaves the window while equal values remain */
+  def testEvictTiedExtreme {
+    val xs = newVar(Array(5.0, 5.0, 1.0, 5.0, 2.0, 2.0, 0.0, 0.0, 0.0, 9.0))
+    checkForward(xs, 3)
+  }
+
+  /** all values in window are Null, then the Nulls are evicted one by one */
+  def testEvictNulls {
+    val N = Null.Double
+    val xs = newVar(Array(1.0, N, N, N, N, 3.0, N, 2.0, N, N))
+    for (period <- List(1, 2, 3, 4)) {
+      checkForward(xs, period)
+    }
+  }
+
+  /** the last spot is re-computed after its value changed, as by real-time ticks */
+  def testUpdateLast {
+    val xs = newVar(randomValues(50, 0.0, 3L))
+    val period = 5
+    val max = new MaxWindow(period)
+    val min = new MinWindow(period)
+    val sum = new SumWindow(period)
+    val stdDev = new StdDevWindow(period)
+    val random = new Random(4L)
+    var i = -1
+    while ({i += 1; i < xs.size}) {
+      var k = -1
+      while ({k += 1; k < 3}) {
+        xs(i) = (random.nextInt(20) - 10).toDouble
+        val msg = "idx=" + i + ", update=" + k
+        assertSame("max " + msg, naiveMax(xs, i, period), max(i, xs))
+        assertSame("min " + msg, naiveMin(xs, i, period), min(i, xs))
+        assertSame("sum " + msg, naiveSum(xs, i, period), sum(i, xs))
+        assertSame("stdDev " + msg, naiveStdDev(xs, i, period), stdDev(i, xs))
+      }
+    }
+  }
+
+  /** spots not computed continually, the window should be rebuilt */
+  def testJumpAndGoBack {
+    val xs = newVar(randomValues(100, 0.05, 5L))
+    val period = 6
+    val max = new MaxWindow(period)
+    val min = new MinWindow(period)
+    val sum = new SumWindow(period)
+    val stdDev = new StdDevWindow(period)
+    for (i <- List(10, 11, 12, 40, 41, 5, 6, 7, 99, 0, 1, 2, 3, 4, 5, 6)) {
+      val msg = "idx=" + i
+      assertSame("max " + msg, naiveMax(xs, i, period), max(i, xs))
+      assertSame("min " + msg, naiveMin(xs, i, period), min(i, xs))
+      assertSame("sum " + msg, naiveSum(xs, i, period), sum(i, xs))
+      assertSame("stdDev " + msg, naiveStdDev(xs, i, period), stdDev(i, xs))
+    }
+  }
+
+  /**
+   * stdDev with the last spot updated to values and Nulls, while the window start
+   * jumps forward by less and more than a period, and back, then moves on
+   */
+  def testStdDevUpdateLastAndJumps {
+    val xs = newVar(randomValues(200, 0.02, 6L))
+    val period = 8
+    val stdDev = new StdDevWindow(period)
+    val random = new Random(7L)
+    val N = Null.Double
+    for (i <- List(20, 21, 22, 25, 26, 27, 60, 61, 62, 30, 31, 32, 7, 8, 9, 10, 190, 191, 192)) {
+      var k = -1
+      while ({k += 1; k < 4}) {
+        // a Null tick, then back to prices far from 0, to catch the drift of running mean
+        xs(i) = if (k == 1) N else 1000.0 + random.nextInt(20) - 10
+        val msg = "idx=" + i + ", update=" + k
+        assertSame("stdDev " + msg, naiveStdDev(xs, i, period), stdDev(i, xs))
+      }
+    }
+  }
+
+  def testInvalidPeriod {
+    for (period <- List(0, -1)) {
+      try {
+        new MaxWindow(period)
+        fail("MaxWindow(" + period + ") should be rejected")
+      } catch {
+        case ex: IllegalArgumentException =>
+      }
+      try {
+        new MinWindow(period)
+        fail("MinWindow(" + period + ") should be rejected")
+      } catch {
+        case ex: IllegalArgumentException =>
+      }
+    }
+  }
+}
@@ -0,0 +1,220 @@
+package org.aiotrade.lib.securities
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.logging.Level
+import java.util.logging.Logger
+import org.aiotrade.lib.collection.ArrayList
+import org.aiotrade.lib.math.timeseries.TFreq
+import org.aiotrade.lib.math.timeseries.TSerEvent
+import org.aiotrade.lib.securities.model.Quote
+import org.aiotrade.lib.securities.model.Quotes1d
+import org.aiotrade.lib.securities.model.Sec
+import ru.circumflex.orm._
+import scala.collection.mutable
+
+/**
+ * Loads daily sers of many secs in bulk: quotes are fetched by a few set-based
+ * queries, each of which covers a batch of secs by the list of their ids, instead
+ * of one query per sec. Batches are fetched, put to sers and adjusted on the
+ * loader's workers in parallel. Client nodes (dataserver.client = true) and other
+ * freqs are loaded per sec by loadSer on the workers.
+ *
+ * A batch query only fetches quotes since MAX_DATA_LENGTH trading days ago, which
+ * is estimated by calendar days, see fromTime. A sec suspended for a long time
+ * may then get less than the MAX_DATA_LENGTH quotes that Quotes1d.quotesOf gets.
+ *
+ * The workers live in one load only, each task commits its transaction, and the
+ * workers are shut down when the load is done, so the db connections bound to
+ * them are released instead of being held by idle threads.
+ *
+ * Progress is logged about every 10%, with the throughput of secs and quotes.
+ *
+ * @author Caoyuan Deng
+ */
+object BulkSerLoader {
+  private val log = Logger.getLogger(this.getClass.getName)
+  private val config = org.aiotrade.lib.util.config.Config()
+  private val isServer = !config.getBool("dataserver.client", false)
+
+  /** number of secs per query */
+  val batchSize = math.max(1, config.getInt("securities.bulkload.batch", 100))
+  val numWorkers = math.max(1, config.getInt("securities.bulkload.workers", Runtime.getRuntime.availableProcessors))
+
+  private val ONE_DAY = 24 * 60 * 60 * 1000L
+  /**
+   * Calendar days per trading day, which covers the weekends and holidays
+   */
+  private val CALENDAR_DAYS_PER_TRADING_DAY = 2
+
+  private val workerCount = new AtomicInteger
+
+  private def newWorkers(n: Int): ExecutorService = Executors.newFixedThreadPool(n, new ThreadFactory {
+      def newThread(r: Runnable) = {
+        val t = new Thread(r, "BulkSerLoader-" + workerCount.incrementAndGet)
+        t.setDaemon(true)
+        t
+      }
+    })
+
+  /**
+   * Lower bound of quotes' time to get the latest MAX_DATA_LENGTH daily quotes
+   */
+  private def fromTime: Long = {
+    System.currentTimeMillis - Quotes1d.MAX_DATA_LENGTH.toLong * CALENDAR_DAYS_PER_TRADING_DAY * ONE_DAY
+  }
+
+  private final class Progress(total: Int) {
+    private val t0 = System.currentTimeMillis
+    private val nSecs = new AtomicInteger
+    private val nQuotes = new AtomicLong
+    private val step = math.max(1, total / 10)
+
+    def loaded(sec: Sec, quotesCount: Int) {
+      val quotes = nQuotes.addAndGet(quotesCount)
+      val n = nSecs.incrementAndGet
+      log.fine("Loaded %s, %s quotes.".format(sec.uniSymbol, quotesCount))
+      if (n % step == 0 || n == total) {
+        log.info("Loaded %s of %s secs, %s".format(n, total, throughput(n, quotes)))
+      }
+    }
+
+    def summary = "%s secs, %s".format(nSecs.get, throughput(nSecs.get, nQuotes.get))
+
+    private def throughput(secs: Int, quotes: Long) = {
+      val elapsed = math.max(1, System.currentTimeMillis - t0)
+      "%s quotes in %.1fs: %.0f secs/s, %.0f quotes/s".format(quotes, elapsed / 1000.0, secs * 1000.0 / elapsed, quotes * 1000.0 / elapsed)
+    }
+  }
+
+  /**
+   * Load sers of secs from persistence, and adjust them if doAdjust, block until
+   * all done.
+   */
+  def load(secs: Array[Sec], freq: TFreq, doAdjust: Boolean = true) {
+    if (secs.isEmpty) return
+
+    val progress = new Progress(secs.length)
+    val tasks: Array[Callable[Unit]] = if (freq == TFreq.DAILY && isServer) {
+      dailyTasksFromDb(secs, doAdjust, progress)
+    } else {
+      secs map {sec =>
+        new Callable[Unit] {
+          def call {
+            try {
+              val ser = loadSer(sec, freq, doAdjust)
+              progress.loaded(sec, ser.size)
+            } finally {
+              endTransaction
+            }
+          }
+        }
+      }
+    }
+
+    val workers = newWorkers(math.min(numWorkers, tasks.length))
+    try {
+      val futures = tasks map {x => workers.submit(x)}
+      var i = -1
+      while ({i += 1; i < futures.length}) {
+        try {
+          futures(i).get
+        } catch {
+          case ex: Throwable => log.log(Level.SEVERE, ex.getMessage, ex)
+        }
+      }
+    } finally {
+      // let the workers exit, the db connections bound to them go with them
+      workers.shutdown
+    }
+    log.info("Bulk loaded sers of " + freq + ": " + progress.summary)
+  }
+
+  /**
+   * Secs are cut into batches, a batch is queried by the ids of its secs only.
+   */
+  private def dailyTasksFromDb(secs: Array[Sec], doAdjust: Boolean, progress: Progress): Array[Callable[Unit]] = {
+    secs.grouped(batchSize).toArray map {batch =>
+      new Callable[Unit] {
+        def call {
+          val q = Quotes1d
+          val ids = (batch map (_.id)).toList
+          val quotes = try {
+            SELECT (q.*) FROM (q) WHERE (
+              (q.sec.field IN (ids: _*)) AND (q.time GE fromTime)
+            ) ORDER_BY (q.time DESC) list()
+          } catch {
+            case ex: Throwable => log.log(Level.SEVERE, ex.getMessage, ex); Nil
+          } finally {
+            endTransaction
+          }
+          fillSers(batch, quotes, doAdjust, progress)
+        }
+      }
+    }
+  }
+
+  /**
+   * Ends the transaction of current worker, so its db connection is not held
+   * between tasks.
+   */
+  private def endTransaction {
+    try {
+      COMMIT
+    } catch {
+      case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex)
+    }
+  }
+
+  private def groupBySec(secs: Array[Sec], quotes: Seq[Quote]): mutable.HashMap[Long, ArrayList[Quote]] = {
+    val idToQuotes = new mutable.HashMap[Long, ArrayList[Quote]]()
+    var i = -1
+    while ({i += 1; i < secs.length}) {
+      idToQuotes(secs(i).id) = new ArrayList[Quote]()
+    }
+    for (quote <- quotes if quote.sec != null) {
+      idToQuotes.get(quote.sec.id) match {
+        case Some(xs) => xs += quote
+        case None =>
+      }
+    }
+    idToQuotes
+  }
+
+  private def fillSers(secs: Array[Sec], quotes: Seq[Quote], doAdjust: Boolean, progress: Progress) {
+    val idToQuotes = groupBySec(secs, quotes)
+    var i = -1
+    while ({i += 1; i < secs.length}) {
+      val sec = secs(i)
+      fillSer(sec, idToQuotes(sec.id).toArray, doAdjust, progress)
+    }
+  }
+
+  /**
+   * @param allQuotes of sec, descending by time
+   */
+  private def fillSer(sec: Sec, allQuotes: Array[Quote], doAdjust: Boolean, progress: Progress) {
+    try {
+      // keep the same length as Quotes1d.quotesOf
+      val quotes = if (allQuotes.length > Quotes1d.MAX_DATA_LENGTH) allQuotes.take(Quotes1d.MAX_DATA_LENGTH) else allQuotes
+      quotes foreach {x => x.lastModify = x.time}
+
+      val ser = sec.serOf(TFreq.DAILY).get
+      ser ++= quotes
+      if (quotes.nonEmpty) {
+        ser.publish(TSerEvent.Refresh(ser, sec.uniSymbol, quotes.last.time, quotes.head.time))
+      }
+      ser.isLoaded = true // should be called to let adjust go and release a reaction later.
+      if (doAdjust) {
+        ser.adjust(true)
+      }
+      progress.loaded(sec, quotes.length)
+    } catch {
+      case ex: Throwable => log.log(Level.SEVERE, "Failed to load " + sec.uniSymbol + ": " + ex.getMessage, ex)
+    }
+  }
+}
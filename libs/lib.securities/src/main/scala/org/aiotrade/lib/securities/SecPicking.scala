@@ -8,6 +8,7 @@ import org.aiotrade.lib.math.timeseries.TFreq
 import org.aiotrade.lib.securities.model.Sec
 import org.aiotrade.lib.securities.model.SectorSec
 import org.aiotrade.lib.util.ValidTime
+import org.aiotrade.lib.util.ValidTimeIndex
 import org.aiotrade.lib.util.actors.Publisher
 import scala.collection.mutable
 import scala.collection.immutable
@@ -15,6 +16,11 @@ import scala.collection.immutable
 final case class SecPickingEvent(secValidTime: ValidTime[Sec], side: Side)
 
 /**
+ * Queries of secs/weights at time go to ValidTimeIndex, which are built lazily
+ * and dropped whenever valid times are added or removed via this SecPicking.
+ * 
+ * @Note Call invalidate after changing secToValidTimes/secToWeightValidTimes or 
+ *       the validFrom/validTo of their valid times directly.
  * 
  * @author Caoyuan Deng
  */
@@ -25,8 +31,44 @@ class SecPicking extends Publisher {
   val secToValidTimes = new mutable.HashMap[Sec, List[ValidTime[Sec]]]()
   val secToWeightValidTimes = new mutable.HashMap[Sec, List[ValidTime[Double]]]
   
+  @volatile private var _secIndex: ValidTimeIndex[Sec, Sec] = _
+  @volatile private var _weightIndex: ValidTimeIndex[Sec, Double] = _
+  
+  private def secIndex: ValidTimeIndex[Sec, Sec] = {
+    var index = _secIndex
+    if (index == null) synchronized {
+      index = _secIndex
+      if (index == null) {
+        index = new ValidTimeIndex(secToValidTimes)
+        _secIndex = index
+      }
+    }
+    index
+  }
+
+  private def weightIndex: ValidTimeIndex[Sec, Double] = {
+    var index = _weightIndex
+    if (index == null) synchronized {
+      index = _weightIndex
+      if (index == null) {
+        index = new ValidTimeIndex(secToWeightValidTimes)
+        _weightIndex = index
+      }
+    }
+    index
+  }
+  
+  /**
+   * Drop the indices, they will be rebuilt on next query.
+   */
+  def invalidate() {
+    _secIndex = null
+    _weightIndex = null
+  }
+  
   private def addToMap(secValidTime: ValidTime[Sec]) {
     secToValidTimes(secValidTime.ref) = secValidTime :: secToValidTimes.getOrElse(secValidTime.ref, Nil)
+    _secIndex = null
   }
 
   private def removeFromMap(secValidTime: ValidTime[Sec]) {
@@ -34,10 +76,12 @@ class SecPicking extends Publisher {
       case Nil => secToValidTimes -= secValidTime.ref
       case xs => secToValidTimes(secValidTime.ref) = xs
     }
+    _secIndex = null
   }
   
   private def addToMap(sec: Sec, weightValidTime: ValidTime[Double]) {
     secToWeightValidTimes(sec) = weightValidTime :: secToWeightValidTimes.getOrElse(sec, Nil)
+    _weightIndex = null
   }
 
   private def removeFromMap(sec: Sec, weightValidTime: ValidTime[Double]) {
@@ -45,23 +89,63 @@ class SecPicking extends Publisher {
       case Nil => secToWeightValidTimes -= sec
       case xs => secToWeightValidTimes(sec) = xs
     }
+    _weightIndex = null
   }
 
   def allSecs = secToValidTimes.keySet
+
+  /**
+   * @return a new SecPicking of the same valid times and weights, which has its
+   *         own listeners and going time, for backtests that run side by side.
+   */
+  def copy: SecPicking = {
+    val x = new SecPicking()
+    x.secToValidTimes ++= secToValidTimes
+    x.secToWeightValidTimes ++= secToWeightValidTimes
+    x
+  }
   
   def at(times: Long*): Array[Sec] = {
-    (for ((sec, validTimes) <- secToValidTimes if times.forall{time => validTimes.exists(_.isValid(time))}) yield sec) toArray
+    if (times.isEmpty) {
+      secToValidTimes.keySet.toArray
+    } else {
+      val index = secIndex
+      val secs = index.keysAt(times.head)
+      if (times.length == 1) {
+        secs.clone
+      } else {
+        val others = times.tail map {time => index.keysAt(time).toSet}
+        secs filter {sec => others.forall(_.contains(sec))}
+      }
+    }
   }
 
+  /**
+   * Publish the valid times entered/exited since prevTime. Nothing to do when 
+   * time is in the same segment of index as prevTime, otherwise only the valid 
+   * times of the two segments are compared.
+   */
   def go(time: Long) {
-    for {
-      (sec, validTimes) <- secToValidTimes
-      validTime <- validTimes
-    } {
-      if (validTime.isValid(time) && validTime.nonValid(prevTime)) {
-        publish(SecPickingEvent(validTime, Side.EnterPicking))
-      } else if (validTime.nonValid(time) && validTime.isValid(prevTime)) {
-        publish(SecPickingEvent(validTime, Side.ExitPicking))
+    val index = secIndex
+    if (!index.isSameSegment(prevTime, time)) {
+      val prevValidTimes = index.validAt(prevTime)
+      val validTimes = index.validAt(time)
+      val prevSet = prevValidTimes.toSet
+      val currSet = validTimes.toSet
+      
+      var i = -1
+      while ({i += 1; i < validTimes.length}) {
+        val validTime = validTimes(i)
+        if (!prevSet.contains(validTime)) {
+          publish(SecPickingEvent(validTime, Side.EnterPicking))
+        }
+      }
+      i = -1
+      while ({i += 1; i < prevValidTimes.length}) {
+        val validTime = prevValidTimes(i)
+        if (!currSet.contains(validTime)) {
+          publish(SecPickingEvent(validTime, Side.ExitPicking))
+        }
       }
     }
     prevTime = time
@@ -165,16 +249,16 @@ class SecPicking extends Publisher {
    * @return weight of sec at time, NaN if none
    */
   def weightAt(sec: Sec)(time: Long): Double = {
-    secToWeightValidTimes.getOrElse(sec, Nil) find (_.isValid(time)) map (_.ref) getOrElse(Double.NaN)
+    weightIndex.firstAt(time).get(sec) match {
+      case Some(weightValidTime) => weightValidTime.ref
+      case None => Double.NaN
+    }
   }
   
   def weightsAt(time: Long): mutable.HashMap[Sec, Double] = {
     val secToWeight = new mutable.HashMap[Sec, Double]()
-    for ((sec, weightValidTimes) <- secToWeightValidTimes) {
-      weightValidTimes find (_.isValid(time)) map (_.ref) match {
-        case Some(weight) => secToWeight(sec) = weight
-        case _ =>
-      }
+    for ((sec, weightValidTime) <- weightIndex.firstAt(time)) {
+      secToWeight(sec) = weightValidTime.ref
     }
     secToWeight
   }
@@ -2,7 +2,6 @@ package org.aiotrade.lib.securities.dataserver
 
 import java.util.TimeZone
 import org.aiotrade.lib.math.timeseries.TFreq
-import org.aiotrade.lib.math.timeseries.datasource.DataServer
 import org.aiotrade.lib.securities.model.Ticker
 import org.aiotrade.lib.util.Singleton
 
@@ -10,7 +9,9 @@ object NullQuoteServer extends QuoteServer with Singleton {
 
   def getSingleton = this
 
-  deafTo(DataServer) // disable HeartBeat
+  // disable refreshing
+  override 
+  def startRefresh {}
 
   protected def requestData(contracts: Iterable[QuoteContract]) {
     // should publish evt to enable evt chain
@@ -31,7 +32,9 @@ object NullTickerServer extends TickerServer with Singleton {
 
   def getSingleton = this
 
-  deafTo(DataServer) // disable HeartBeat
+  // disable refreshing
+  override 
+  def startRefresh {}
   
   // won't request tickers, tickers will be got passively via NodePubSub's ! sending 
   protected def requestData(contracts: Iterable[TickerContract]) {}
@@ -21,7 +21,9 @@ abstract class RichInfoHisDataServer extends DataServer[RichInfo] {
 
   private val updatedEvents = new ArrayList[TSerEvent]
 
-  deafTo(DataServer)
+  // deaf to heart beat, history only
+  override 
+  def startRefresh {}
 
   protected def processData(values: Array[RichInfo], contract: RichInfoHisContract): Long = {
     updatedEvents.clear
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2006-2007, AIOTrade Computing Co. and Contributors
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *    
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *    
+ *  o Neither the name of AIOTrade Computing Co. nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.aiotrade.lib.securities.dataserver
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import org.aiotrade.lib.securities.model.Exchange
+import org.aiotrade.lib.securities.model.Sec
+
+/**
+ * Interned uniSymbols with dense int ids, from 0 to size - 1, so per symbol states
+ * can be kept in arrays/bitsets instead of hash maps/sets.
+ *
+ * Backed by ConcurrentHashMap, which is lock striped, the lookup of an existed
+ * symbol won't lock, and the registering of a new one only locks its segment.
+ * Ids are never recycled.
+ *
+ * @author Caoyuan Deng
+ */
+class SymbolRegistry {
+  import SymbolRegistry._
+
+  private val symbolToSlot = new ConcurrentHashMap[String, Slot](8192)
+  private val idCounter = new AtomicInteger(0)
+
+  def size = idCounter.get
+
+  def slotOf(uniSymbol: String): Slot = {
+    val slot = symbolToSlot.get(uniSymbol)
+    if (slot ne null) {
+      slot
+    } else {
+      val newOne = new Slot(uniSymbol)
+      val existed = symbolToSlot.putIfAbsent(uniSymbol, newOne)
+      if (existed ne null) {
+        existed
+      } else {
+        // only the winner of putIfAbsent gets an id, so ids are dense
+        newOne._id = idCounter.getAndIncrement
+        newOne
+      }
+    }
+  }
+
+  def idOf(uniSymbol: String): Int = slotOf(uniSymbol).id
+}
+
+object SymbolRegistry {
+  final class Slot private[SymbolRegistry] (val uniSymbol: String) {
+    @volatile private[SymbolRegistry] var _id: Int = -1
+    @volatile private var _secEntry: SecEntry = NoSecEntry
+
+    /**
+     * Waits for the id being set by registering thread, which happens right after
+     * the slot is visible to others.
+     */
+    def id: Int = {
+      var i = _id
+      while (i < 0) {
+        Thread.`yield`
+        i = _id
+      }
+      i
+    }
+
+    /**
+     * The sec is cached with the Exchange.uniSymbolToSec table it was looked up
+     * from. That table is replaced as a whole when secs are reloaded or added
+     * (@see Exchange#resetSearchTables), then the sec is looked up again.
+     */
+    def sec: Option[Sec] = {
+      val table = Exchange.uniSymbolToSec
+      val entry = _secEntry
+      if (entry.table eq table) {
+        entry.sec
+      } else {
+        val found = Exchange.secOf(uniSymbol)
+        _secEntry = new SecEntry(table, found)
+        found
+      }
+    }
+  }
+
+  private final class SecEntry(val table: Map[String, Sec], val sec: Option[Sec])
+  private val NoSecEntry = new SecEntry(null, None)
+}
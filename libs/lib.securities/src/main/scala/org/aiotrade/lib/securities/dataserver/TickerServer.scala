@@ -30,24 +30,28 @@
  */
 package org.aiotrade.lib.securities.dataserver
 
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.logging.Level
 import java.util.logging.Logger
 import org.aiotrade.lib.math.timeseries.TFreq
 import org.aiotrade.lib.math.timeseries.datasource.DataServer
 import org.aiotrade.lib.securities.api
-import org.aiotrade.lib.securities.model.Tickers
 import org.aiotrade.lib.securities.model.Exchange
 import org.aiotrade.lib.securities.model.Execution
-import org.aiotrade.lib.securities.model.Executions
 import org.aiotrade.lib.securities.model.MarketDepth
 import org.aiotrade.lib.securities.model.Quote
 import org.aiotrade.lib.securities.model.MoneyFlow
 import org.aiotrade.lib.securities.model.SecSnap
 import org.aiotrade.lib.securities.model.Ticker
-import org.aiotrade.lib.securities.model.TickersLast
+import org.aiotrade.lib.util.LatencyHistogram
+import org.aiotrade.lib.util.RingEventBus
 import org.aiotrade.lib.util.actors.Publisher
 import org.aiotrade.lib.collection.ArrayList
-import ru.circumflex.orm._
 import scala.collection.mutable
 
 /**
@@ -65,28 +69,75 @@ abstract class TickerServer extends DataServer[Ticker] {
 
   private val log = Logger.getLogger(this.getClass.getName)
   
-  private lazy val uniSymbolToSnapTicker = mutable.Map[String, Ticker]()
-
-  def snapTickerOf(uniSymbol: String): Ticker = uniSymbolToSnapTicker synchronized {
-    uniSymbolToSnapTicker.get(uniSymbol).getOrElse{
+  /** snap tickers are per server instance, lookup of an existed one won't lock */
+  private val uniSymbolToSnapTicker = new ConcurrentHashMap[String, Ticker](1024)
+
+  def snapTickerOf(uniSymbol: String): Ticker = {
+    val ticker = uniSymbolToSnapTicker.get(uniSymbol)
+    if (ticker ne null) {
+      ticker
+    } else {
       val newOne = new Ticker
-      uniSymbolToSnapTicker += (uniSymbol -> newOne)
       newOne.uniSymbol = uniSymbol
-      newOne
+      val existed = uniSymbolToSnapTicker.putIfAbsent(uniSymbol, newOne)
+      if (existed ne null) existed else newOne
     }
   }
 
-  private val allTickers = new ArrayList[Ticker]
-  private val allExecutions = new ArrayList[Execution]
-  private val allUpdatedDailyQuotes = new ArrayList[Quote]
-  private val allUpdatedMinuteQuotes = new ArrayList[Quote]
-  private val allUpdatedDailyMoneyFlows = new ArrayList[MoneyFlow]
-  private val allUpdatedMinuteMoneyFlows = new ArrayList[MoneyFlow]
+  /** used to avoid duplicate symbols of each refreshing, indexed by symbol id */
+  private val processedSymbols = new java.util.BitSet(8192)
+
+  /**
+   * Collected results of processing secSnaps: one for serial processing, and one
+   * per shard plus a merged one for partitioned processing. They are reused among
+   * processData calls, which are always called one by one.
+   */
+  private final class Batch {
+    val tickers = new ArrayList[Ticker]
+    val executions = new ArrayList[Execution]
+    val dailyQuotes = new ArrayList[Quote]
+    val minuteQuotes = new ArrayList[Quote]
+    val dailyMoneyFlows = new ArrayList[MoneyFlow]
+    val minuteMoneyFlows = new ArrayList[MoneyFlow]
+    val exchangeToLastTime = mutable.Map[Exchange, Long]()
+    var lastTime = Long.MinValue
+
+    def clear() {
+      tickers.clear
+      executions.clear
+      dailyQuotes.clear
+      minuteQuotes.clear
+      dailyMoneyFlows.clear
+      minuteMoneyFlows.clear
+      exchangeToLastTime.clear
+      lastTime = Long.MinValue
+    }
+
+    /** Append other's results in order, exchange's last time keeps the max one */
+    def ++=(other: Batch) {
+      tickers ++= other.tickers
+      executions ++= other.executions
+      dailyQuotes ++= other.dailyQuotes
+      minuteQuotes ++= other.minuteQuotes
+      dailyMoneyFlows ++= other.dailyMoneyFlows
+      minuteMoneyFlows ++= other.minuteMoneyFlows
+      for ((exchange, time) <- other.exchangeToLastTime) {
+        exchangeToLastTime.get(exchange) match {
+          case Some(x) if x >= time =>
+          case _ => exchangeToLastTime.put(exchange, time)
+        }
+      }
+      lastTime = math.max(lastTime, other.lastTime)
+    }
+  }
 
-  private val exchangeToLastTime = mutable.Map[Exchange, Long]()
+  private val serialBatch = new Batch
+  private lazy val shardBatches = Array.fill(TickerServer.numWorkers)(new Batch)
+  private lazy val shardSecSnaps = Array.fill(TickerServer.numWorkers)(new ArrayList[SecSnap])
+  private lazy val mergedBatch = new Batch
 
   private def toSecSnaps(values: Array[Ticker]): (Seq[SecSnap], Seq[Ticker]) = {
-    val processedSymbols = mutable.Set[String]() // used to avoid duplicate symbols of each refreshing
+    processedSymbols.clear
 
     val length = values.length
     val secSnaps = new ArrayList[SecSnap](length)
@@ -95,11 +146,12 @@ abstract class TickerServer extends DataServer[Ticker] {
     while ({i += 1; i < length}) {
       val ticker = values(i)
       val symbol = ticker.uniSymbol
+      val slot = TickerServer.symbols.slotOf(symbol)
 
-      if (!processedSymbols.contains(symbol) && ticker.dayHigh != 0 && ticker.dayLow != 0) {
-        processedSymbols.add(symbol)
+      if (!processedSymbols.get(slot.id) && ticker.dayHigh != 0 && ticker.dayLow != 0) {
+        processedSymbols.set(slot.id)
         
-        Exchange.secOf(symbol) match {
+        slot.sec match {
           case Some(sec) =>
             ticker.sec = sec
 
@@ -126,193 +178,273 @@ abstract class TickerServer extends DataServer[Ticker] {
   }
 
   /**
-   * compose ser using data from Tickers
-   * @param Tickers
+   * Shard secSnaps by symbol onto TickerServer's workers. Secs are unique in one
+   * processData call, and we wait for all shards before return, so the tickers of
+   * each sec are still processed in sequence. Results are merged in shard order.
    */
-  protected def processData(tickers: Array[Ticker], Contract: TickerContract): Long = {
-    var lastTime = Long.MinValue
-
-    log.info("Composing quote from tickers: " + tickers.length)
-    if (tickers.length == 0) return lastTime
+  private def processInParallel(secSnaps: Seq[SecSnap]): Batch = {
+    val nShards = shardBatches.length
+    var i = 0
+    while (i < nShards) {
+      shardSecSnaps(i).clear
+      shardBatches(i).clear()
+      i += 1
+    }
 
-    if (TickerServer.isServer) Exchange.checkIfSomethingNew(tickers)
-    
-    val (secSnaps, tickersLast) = toSecSnaps(tickers)
-    log.info("Composing quote from secSnaps: " + secSnaps.length)
-    if (secSnaps.length == 0) return lastTime
+    i = -1
+    while ({i += 1; i < secSnaps.length}) {
+      val secSnap = secSnaps(i)
+      val shard = (secSnap.sec.uniSymbol.hashCode & Int.MaxValue) % nShards
+      shardSecSnaps(shard) += secSnap
+    }
 
-    allTickers.clear
-    allExecutions.clear
-    allUpdatedDailyQuotes.clear
-    allUpdatedMinuteQuotes.clear
-    allUpdatedDailyMoneyFlows.clear
-    allUpdatedMinuteMoneyFlows.clear
+    val futures = new ArrayList[Future[_]](nShards)
+    i = 0
+    while (i < nShards) {
+      val snaps = shardSecSnaps(i)
+      val batch = shardBatches(i)
+      if (snaps.length > 0) {
+        futures += TickerServer.workers.submit(new Runnable {
+            def run {
+              var j = -1
+              while ({j += 1; j < snaps.length}) {
+                processSecSnap(snaps(j), batch)
+              }
+            }
+          })
+      }
+      i += 1
+    }
 
-    exchangeToLastTime.clear
+    // join all shards before rethrowing, so no shard is still touching the batches
+    var failure: Throwable = null
+    i = -1
+    while ({i += 1; i < futures.length}) {
+      try {
+        futures(i).get
+      } catch {
+        case ex: ExecutionException =>
+          log.log(Level.SEVERE, ex.getCause.getMessage, ex.getCause)
+          if (failure == null) failure = ex.getCause
+      }
+    }
+    if (failure != null) {
+      throw failure
+    }
 
-    var i = -1
-    while ({i += 1; i < secSnaps.length}) {
-      val secSnap = secSnaps(i)
+    mergedBatch.clear()
+    i = 0
+    while (i < nShards) {
+      mergedBatch ++= shardBatches(i)
+      i += 1
+    }
+    mergedBatch
+  }
 
-      val sec = secSnap.sec
-      val ticker = secSnap.newTicker
-      val lastTicker = secSnap.lastTicker
-      val isDayFirst = ticker.isDayFirst
-      val dayQuote = secSnap.dayQuote
-      val minQuote = secSnap.minQuote
-      val dayMoneyFlow = secSnap.dayMoneyFlow
-      val minMoneyFlow = secSnap.minMoneyFlow
-
-      log.fine("Composing from ticker: " + ticker + ", lasticker: " + lastTicker)
-
-      var tickerValid = false
-      var execution: Execution = null
-      if (isDayFirst) {
-        log.fine("Got day's first ticker: " + ticker)
-        
-        /**
-         * this is today's first ticker we got when begin update data server,
-         * actually it should be, so maybe we should check this.
-         * As this is the first data of today:
-         * 1. set OHLC = Ticker.LAST_PRICE
-         * 2. to avoid too big volume that comparing to following dataSeries.
-         * so give it a small 0.0001 (if give it a 0, it will won't be calculated
-         * in calcMaxMin() of ChartView)
-         */
+  /**
+   * Compose quotes, executions and money flows of one secSnap, and collect the
+   * results to batch. Will be called concurrently for secSnaps of different secs
+   * under partitioned processing mode, so it should only touch this sec's data
+   * and the batch.
+   */
+  private def processSecSnap(secSnap: SecSnap, batch: Batch) {
+    val sec = secSnap.sec
+    val ticker = secSnap.newTicker
+    val lastTicker = secSnap.lastTicker
+    val isDayFirst = ticker.isDayFirst
+    val dayQuote = secSnap.dayQuote
+    val minQuote = secSnap.minQuote
+    val dayMoneyFlow = secSnap.dayMoneyFlow
+    val minMoneyFlow = secSnap.minMoneyFlow
+
+    log.fine("Composing from ticker: " + ticker + ", lasticker: " + lastTicker)
+
+    var tickerValid = false
+    var execution: Execution = null
+    if (isDayFirst) {
+      log.fine("Got day's first ticker: " + ticker)
+      
+      /**
+       * this is today's first ticker we got when begin update data server,
+       * actually it should be, so maybe we should check this.
+       * As this is the first data of today:
+       * 1. set OHLC = Ticker.LAST_PRICE
+       * 2. to avoid too big volume that comparing to following dataSeries.
+       * so give it a small 0.0001 (if give it a 0, it will won't be calculated
+       * in calcMaxMin() of ChartView)
+       */
+
+      tickerValid = true
+      
+      dayQuote.unjustOpen_!
+      dayMoneyFlow.unjustOpen_!
+      minMoneyFlow.unjustOpen_!
+
+      minQuote.unjustOpen_!
+      minQuote.open   = ticker.dayOpen
+      minQuote.high   = ticker.dayHigh
+      minQuote.low    = ticker.dayLow
+      minQuote.close  = ticker.lastPrice
+      minQuote.volume = ticker.dayVolume
+      minQuote.amount = ticker.dayAmount
+      minQuote.execCount += 1
+
+      execution = new Execution
+      execution.sec = sec
+      execution.time = ticker.time
+      execution.price  = ticker.lastPrice
+      execution.volume = ticker.dayVolume
+      execution.amount = ticker.dayAmount
+      
+      // re-init lastTime
+      batch.lastTime = ticker.time
+    } else {
+              
+      /**
+       *    ticker.time    prevTicker.time
+       *          |------------------|------------------->
+       *          |<----- 1000 ----->|
+       */
+      if (ticker.time + 1000 > lastTicker.time) { // 1000ms, @Note: we may add +1 to ticker.time later
+        // some datasources only count on second, but we may truly have a new ticker
+        if (ticker.time <= lastTicker.time) {
+          ticker.time = lastTicker.time + 1 // avoid duplicate key
+        }
 
         tickerValid = true
-        
-        dayQuote.unjustOpen_!
-        dayMoneyFlow.unjustOpen_!
-        minMoneyFlow.unjustOpen_!
-
-        minQuote.unjustOpen_!
-        minQuote.open   = ticker.dayOpen
-        minQuote.high   = ticker.dayHigh
-        minQuote.low    = ticker.dayLow
-        minQuote.close  = ticker.lastPrice
-        minQuote.volume = ticker.dayVolume
-        minQuote.amount = ticker.dayAmount
+
+        if (ticker.dayVolume > lastTicker.dayVolume) {
+          execution = new Execution
+          execution.sec = sec
+          execution.time = ticker.time
+          execution.price = ticker.lastPrice
+          execution.volume = ticker.dayVolume - lastTicker.dayVolume
+          execution.amount = ticker.dayAmount - lastTicker.dayAmount
+        } else {
+          log.fine("dayVolome curr: " + ticker.dayVolume + ", last: " + lastTicker.dayVolume)
+        }
+
+        if (minQuote.justOpen_?) {
+          minQuote.unjustOpen_!
+          
+          // init minQuote values:
+          minQuote.open = ticker.lastPrice
+          minQuote.high = ticker.lastPrice
+          minQuote.low  = ticker.lastPrice
+          minQuote.volume = 0
+          minQuote.amount = 0
+          minQuote.execCount = 0
+        }
+
         minQuote.execCount += 1
 
-        execution = new Execution
-        execution.sec = sec
-        execution.time = ticker.time
-        execution.price  = ticker.lastPrice
-        execution.volume = ticker.dayVolume
-        execution.amount = ticker.dayAmount
-        
-        // re-init lastTime
-        lastTime = ticker.time
-      } else {
-                
-        /**
-         *    ticker.time    prevTicker.time
-         *          |------------------|------------------->
-         *          |<----- 1000 ----->|
-         */
-        if (ticker.time + 1000 > lastTicker.time) { // 1000ms, @Note: we may add +1 to ticker.time later
-          // some datasources only count on second, but we may truly have a new ticker
-          if (ticker.time <= lastTicker.time) {
-            ticker.time = lastTicker.time + 1 // avoid duplicate key
+        if (lastTicker.dayHigh > 0 && ticker.dayHigh > 0) {
+          if (ticker.dayHigh > lastTicker.dayHigh) {
+            // this is a new day high happened during prevTicker to this ticker
+            minQuote.high = ticker.dayHigh
           }
+        }
+        if (ticker.lastPrice > 0) {
+          minQuote.high = math.max(minQuote.high, ticker.lastPrice)
+        }
 
-          tickerValid = true
-
-          if (ticker.dayVolume > lastTicker.dayVolume) {
-            execution = new Execution
-            execution.sec = sec
-            execution.time = ticker.time
-            execution.price = ticker.lastPrice
-            execution.volume = ticker.dayVolume - lastTicker.dayVolume
-            execution.amount = ticker.dayAmount - lastTicker.dayAmount
-          } else {
-            log.fine("dayVolome curr: " + ticker.dayVolume + ", last: " + lastTicker.dayVolume)
+        if (lastTicker.dayLow > 0 && ticker.dayLow > 0) {
+          if (ticker.dayLow < lastTicker.dayLow) {
+            // this is a new day low happened during prevTicker to this ticker
+            minQuote.low = ticker.dayLow
           }
-
-          if (minQuote.justOpen_?) {
-            minQuote.unjustOpen_!
+        }
+        if (ticker.lastPrice > 0) {
+          minQuote.low = math.min(minQuote.low, ticker.lastPrice)
+        }
+        
+        minQuote.close = ticker.lastPrice
+        if (execution != null && execution.volume > 0) {
+          minQuote.volume += execution.volume
+          minQuote.amount += execution.amount
+        }
+        else if (minMoneyFlow.isDataOnlyInited){
+          batch.minuteMoneyFlows += minMoneyFlow
+          minMoneyFlow.lastModify = ticker.time
             
-            // init minQuote values:
-            minQuote.open = ticker.lastPrice
-            minQuote.high = ticker.lastPrice
-            minQuote.low  = ticker.lastPrice
-            minQuote.volume = 0
-            minQuote.amount = 0
-            minQuote.execCount = 0
-          }
+          batch.dailyMoneyFlows += dayMoneyFlow
+          dayMoneyFlow.lastModify = ticker.time
+        }
 
-          minQuote.execCount += 1
+      } else {
+        log.warning("Discard ticker: " + ticker.uniSymbol + " -> time=" + ticker.time + ", but lastTicker.time=" + lastTicker.time)
+      }
+    }
 
-          if (lastTicker.dayHigh > 0 && ticker.dayHigh > 0) {
-            if (ticker.dayHigh > lastTicker.dayHigh) {
-              // this is a new day high happened during prevTicker to this ticker
-              minQuote.high = ticker.dayHigh
-            }
-          }
-          if (ticker.lastPrice > 0) {
-            minQuote.high = math.max(minQuote.high, ticker.lastPrice)
-          }
 
-          if (lastTicker.dayLow > 0 && ticker.dayLow > 0) {
-            if (ticker.dayLow < lastTicker.dayLow) {
-              // this is a new day low happened during prevTicker to this ticker
-              minQuote.low = ticker.dayLow
-            }
-          }
-          if (ticker.lastPrice > 0) {
-            minQuote.low = math.min(minQuote.low, ticker.lastPrice)
-          }
-          
-          minQuote.close = ticker.lastPrice
-          if (execution != null && execution.volume > 0) {
-            minQuote.volume += execution.volume
-            minQuote.amount += execution.amount
-          }
-          else if (minMoneyFlow.isDataOnlyInited){
-            allUpdatedMinuteMoneyFlows += minMoneyFlow
-            minMoneyFlow.lastModify = ticker.time
-              
-            allUpdatedDailyMoneyFlows += dayMoneyFlow
-            dayMoneyFlow.lastModify = ticker.time
-          }
+    if (tickerValid) {
+      sec.publish(api.TickerEvt(ticker))
+      batch.tickers += ticker
 
-        } else {
-          log.warning("Discard ticker: " + ticker.uniSymbol + " -> time=" + ticker.time + ", but lastTicker.time=" + lastTicker.time)
-        }
+      if (execution != null) {
+        val prevPrice = if (isDayFirst) ticker.prevClose else lastTicker.lastPrice
+        val prevDepth = if (isDayFirst) MarketDepth.Empty else MarketDepth(lastTicker.bidAsks, copy = true)
+        execution.setDirection(prevPrice, prevDepth)
+
+        sec.publish(api.ExecutionEvt(ticker.prevClose, execution))
+        batch.executions += execution
       }
 
+      // update daily quote and ser
+      dayQuote.updateDailyQuoteByTicker(ticker)
+//        minQuote.lastModify = ticker.time
 
-      if (tickerValid) {
-        sec.publish(api.TickerEvt(ticker))
-        allTickers += ticker
+      // updated quote ser
+      sec.updateQuoteSer(TFreq.DAILY, dayQuote)
+      sec.updateQuoteSer(TFreq.ONE_MIN, minQuote)
+      
+      batch.dailyQuotes += dayQuote
+      batch.minuteQuotes += minQuote
+      
+      batch.exchangeToLastTime.put(sec.exchange, ticker.time)
 
-        if (execution != null) {
-          val prevPrice = if (isDayFirst) ticker.prevClose else lastTicker.lastPrice
-          val prevDepth = if (isDayFirst) MarketDepth.Empty else MarketDepth(lastTicker.bidAsks, copy = true)
-          execution.setDirection(prevPrice, prevDepth)
+      lastTicker.copyFrom(ticker)
+      batch.lastTime = math.max(batch.lastTime, ticker.time)
+    }
+  }
 
-          sec.publish(api.ExecutionEvt(ticker.prevClose, execution))
-          allExecutions += execution
-        }
+  /**
+   * compose ser using data from Tickers
+   * @param Tickers
+   */
+  protected def processData(tickers: Array[Ticker], Contract: TickerContract): Long = {
+    var lastTime = Long.MinValue
 
-        // update daily quote and ser
-        dayQuote.updateDailyQuoteByTicker(ticker)
-//        minQuote.lastModify = ticker.time
+    log.info("Composing quote from tickers: " + tickers.length)
+    if (tickers.length == 0) return lastTime
 
-        // updated quote ser
-        sec.updateQuoteSer(TFreq.DAILY, dayQuote)
-        sec.updateQuoteSer(TFreq.ONE_MIN, minQuote)
-        
-        allUpdatedDailyQuotes += dayQuote
-        allUpdatedMinuteQuotes += minQuote
-        
-        exchangeToLastTime.put(sec.exchange, ticker.time)
+    if (TickerServer.isServer) Exchange.checkIfSomethingNew(tickers)
+    
+    val (secSnaps, tickersLast) = toSecSnaps(tickers)
+    log.info("Composing quote from secSnaps: " + secSnaps.length)
+    if (secSnaps.length == 0) return lastTime
 
-        lastTicker.copyFrom(ticker)
-        lastTime = math.max(lastTime, ticker.time)
+    val t0 = System.nanoTime
+    val batch = if (TickerServer.numWorkers > 1 && secSnaps.length >= TickerServer.minParallelSize) {
+      processInParallel(secSnaps)
+    } else {
+      serialBatch.clear()
+      var i = -1
+      while ({i += 1; i < secSnaps.length}) {
+        processSecSnap(secSnaps(i), serialBatch)
       }
+      serialBatch
     }
+    TickerServer.recordBatchLatency(System.nanoTime - t0)
+
+    lastTime = batch.lastTime
+    val allTickers = batch.tickers
+    val allExecutions = batch.executions
+    val allUpdatedDailyQuotes = batch.dailyQuotes
+    val allUpdatedMinuteQuotes = batch.minuteQuotes
+    val allUpdatedDailyMoneyFlows = batch.dailyMoneyFlows
+    val allUpdatedMinuteMoneyFlows = batch.minuteMoneyFlows
+    val exchangeToLastTime = batch.exchangeToLastTime
     
     /* else {
 
@@ -362,48 +494,20 @@ abstract class TickerServer extends DataServer[Ticker] {
       TickerServer.publish(("null", api.MoneyFlowsEvt(TFreq.DAILY.shortName, allUpdatedDailyMoneyFlows.toArray)))
     }
 
-    // batch save to db
+    // batch save to db via write-behind stage, so the processing won't wait for db.
+    // tickersLast are the shared instances that will be changed by next processData,
+    // so their snaps are submitted.
 
-    val (tickersLastToInsert, tickersLastToUpdate) = tickersLast.partition(_.isTransient)
-    log.info("Going to save to db ...")
-    try {
-      var willCommit = false
-      val t0 = System.currentTimeMillis
-      if (tickersLastToInsert.length > 0) {
-        TickersLast.insertBatch_!(tickersLastToInsert.toArray)
-        willCommit = true
-      }
-      if (tickersLastToUpdate.length > 0) {
-        TickersLast.updateBatch_!(tickersLastToUpdate.toArray)
-        willCommit = true
-      }
-      if (willCommit) {
-        log.info("Saved tickersLast in " + (System.currentTimeMillis - t0) + "ms: tickersLastToInsert=" + tickersLastToInsert.length + ", tickersLastToUpdate=" + tickersLastToUpdate.length)
-      }
-
-      if (TickerServer.isServer && TickerServer.isSaveTickers) {
-        val t1 = System.currentTimeMillis
-        if (allTickers.length > 0) {
-          Tickers.insertBatch_!(allTickers.toArray)
-          willCommit = true
-        }
-        if (allExecutions.length > 0) {
-          Executions.insertBatch_!(allExecutions.toArray)
-          willCommit = true
-        }
-        if (willCommit) {
-          log.info("Saved Tickers/Executions in " + (System.currentTimeMillis - t1) + "ms: tickers=" + allTickers.length + ", executions=" + allExecutions.length)
-        }
-      }
-
-      // @Note if there is no update/insert on db, do not call commit, which may cause deadlock
-      if (willCommit) {
-        COMMIT
-        log.info("Committed")
-      }
-    } catch {
-      case ex: Throwable => log.log(Level.SEVERE, ex.getMessage, ex)
+    val isSaveTickers = TickerServer.isServer && TickerServer.isSaveTickers
+    val tickersToSave = if (isSaveTickers) allTickers.toArray else Array[Ticker]()
+    val executionsToSave = if (isSaveTickers) allExecutions.toArray else Array[Execution]()
+    val tickersLastToSave = new Array[TickerWriteBehind.LastTickerSnap](tickersLast.length)
+    var i = -1
+    while ({i += 1; i < tickersLastToSave.length}) {
+      tickersLastToSave(i) = TickerWriteBehind.LastTickerSnap(tickersLast(i))
     }
+    log.info("Going to save to db ...")
+    TickerServer.writeBehind.submit(tickersLastToSave, tickersToSave, executionsToSave)
 
     // Update exchange status and try to close and save updated quotes, moneyflows etc
     for ((exchange, lastTime) <- exchangeToLastTime) {
@@ -423,9 +527,13 @@ abstract class TickerServer extends DataServer[Ticker] {
 }
 
 /**
- * To avoid singleton publisher's poor performance, we use more actors.
- * To listen to it, listenTo(publishers: _*)
- * To deaf to it, deafTo(publishers: _*)
+ * Events are published via a ring buffer event bus, which keeps events in order
+ * and memory bounded.
+ * To listen to it, subscribe(name)(reactions), the reactions are applied in the
+ * consumer's own thread.
+ * 
+ * The legacy publishers are still fed (round-robin, without ordering guarantee
+ * among them) by a consumer of the bus, to listen to them, listenTo(publishers: _*)
  */
 object TickerServer {
   private val log = Logger.getLogger(this.getClass.getName)
@@ -454,8 +562,79 @@ object TickerServer {
       head
   }
   
+  val eventBus = new RingEventBus[AnyRef]("TickerServer", config.getInt("dataserver.eventbus.capacity", 4096))
+
+  private val publishersFeeder = eventBus.subscribe("publishers"){e => nextPublisher.publish(e)}
+
   def publish(e: Any) {
-    nextPublisher.publish(e)
+    eventBus.publish(e.asInstanceOf[AnyRef])
+  }
+
+  /**
+   * @param blockOnFull false for slow consumers such as UI, which should not hold
+   *        the ticker processing, they skip events when lagged too much instead
+   * @param reactions will be applied to events that it is defined at
+   */
+  def subscribe(name: String, blockOnFull: Boolean = true)(reactions: PartialFunction[Any, Unit]): eventBus.Consumer = {
+    eventBus.subscribe(name, blockOnFull){e => if (reactions.isDefinedAt(e)) reactions(e)}
+  }
+
+  def unsubscribe(consumer: eventBus.Consumer) {
+    eventBus.unsubscribe(consumer)
+  }
+
+  /** registry of all uniSymbols that ever got tickers, shared by all ticker servers */
+  val symbols = new SymbolRegistry
+
+  /**
+   * Number of workers for partitioned processing of tickers, 1 means processing
+   * in the data server's thread serially.
+   */
+  val numWorkers = math.max(1, config.getInt("dataserver.tickerworkers", 1))
+  /** Less than this number of secSnaps will still be processed serially */
+  val minParallelSize = config.getInt("dataserver.tickerworkers.minbatch", 200)
+
+  private[dataserver] lazy val workers = Executors.newFixedThreadPool(numWorkers, new ThreadFactory {
+      private val count = new AtomicInteger(0)
+      def newThread(r: Runnable) = {
+        val t = new Thread(r, "ticker-worker-" + count.incrementAndGet)
+        t.setDaemon(true)
+        t
+      }
+    })
+
+  val batchLatencies = new LatencyHistogram("TickerServer batch")
+  private val latencyLogInterval = config.getInt("dataserver.tickerworkers.loginterval", 100)
+
+  /**
+   * Write-behind stage of tickersLast/tickers/executions
+   */
+  lazy val writeBehind: TickerWriteBehind = {
+    val x = new TickerWriteBehind(
+      "ticker-writebehind",
+      config.getInt("dataserver.writebehind.queuesize", 128),
+      config.getInt("dataserver.writebehind.batchsize", 20000),
+      config.getInt("dataserver.writebehind.flushinterval", 500)
+    )
+      
+    // be sure all submitted are saved before exit
+    Runtime.getRuntime.addShutdownHook(new Thread(){
+        override def run {
+          log.info("Received shutdown signal, draining ticker write-behind ...")
+          x.close()
+        }
+      })
+      
+    x
+  }
+
+  private[dataserver] def recordBatchLatency(nanos: Long) {
+    batchLatencies.recordNanos(nanos)
+    log.fine("Processed batch in " + nanos / 1000 + "us")
+    if (latencyLogInterval > 0 && batchLatencies.count % latencyLogInterval == 0) {
+      log.info(batchLatencies.toString)
+      log.info(eventBus.metrics)
+    }
   }
 }
 
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2006-2007, AIOTrade Computing Co. and Contributors
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  o Neither the name of AIOTrade Computing Co. nor the names of
+ *    its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.aiotrade.lib.securities.dataserver
+
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.logging.Level
+import java.util.logging.Logger
+import org.aiotrade.lib.collection.ArrayList
+import org.aiotrade.lib.securities.model.Execution
+import org.aiotrade.lib.securities.model.Executions
+import org.aiotrade.lib.securities.model.Secs
+import org.aiotrade.lib.securities.model.Ticker
+import org.aiotrade.lib.securities.model.Tickers
+import org.aiotrade.lib.securities.model.TickersLast
+import org.aiotrade.lib.util.LatencyHistogram
+import ru.circumflex.orm._
+import scala.collection.mutable
+
+/**
+ * Write-behind persistence of tickersLast, tickers and executions, so that the
+ * processing thread of TickerServer won't be stalled by a slow database.
+ *
+ * Submitted batches go into a bounded queue, and are written by a dedicated
+ * thread, which keeps collecting batches until there are batchSize records or
+ * flushInterval elapsed, then inserts/updates them and commits once. Only records
+ * that are never changed after submitted should go here, so the tickersLast,
+ * which are the shared instances of Exchange#gotLastTicker, are submitted as
+ * LastTickerSnaps. Repeated snaps of the same symbol are coalesced to the latest
+ * one. The rows of TickersLast are owned by the writer thread, one instance per
+ * symbol, since the ORM tracks ids by instance.
+ *
+ * When the queue is full, submit blocks the caller, the times and the nanos of
+ * blocking are counted as back-pressure metrics.
+ *
+ * close() drains all submitted batches before return, after that, submit
+ * persists in caller's thread.
+ *
+ * @author Caoyuan Deng
+ */
+class TickerWriteBehind(name: String, queueSize: Int, batchSize: Int, flushInterval: Long) {
+  private val log = Logger.getLogger(this.getClass.getName)
+
+  import TickerWriteBehind._
+
+  private final case class Pending(tickersLast: Array[LastTickerSnap], tickers: Array[Ticker], executions: Array[Execution]) {
+    def size = tickersLast.length + tickers.length + executions.length
+  }
+
+  private val queue = new ArrayBlockingQueue[Pending](queueSize)
+  @volatile private var isClosed = false
+
+  // --- back-pressure metrics
+  private val _submitted = new AtomicLong
+  private val _blocked = new AtomicLong
+  private val _blockedNanos = new AtomicLong
+  private val _coalesced = new AtomicLong
+  @volatile private var _maxQueueDepth = 0
+  val flushLatencies = new LatencyHistogram(name + " flush")
+
+  /** number of submitted batches */
+  def submitted = _submitted.get
+  /** number of submits that were blocked by a full queue */
+  def blocked = _blocked.get
+  def blockedNanos = _blockedNanos.get
+  /** number of tickersLast updates that were coalesced */
+  def coalesced = _coalesced.get
+  def queueDepth = queue.size
+  def maxQueueDepth = _maxQueueDepth
+
+  /** rows of TickersLast by uniSymbol, also the lock of persisting */
+  private val uniSymbolToLastRow = new mutable.HashMap[String, Ticker]()
+
+  private val writer = new Thread(new Runnable {
+      def run {
+        writeLoop
+      }
+    }, name)
+  writer.setDaemon(true)
+  writer.start
+
+  def submit(tickersLast: Array[LastTickerSnap], tickers: Array[Ticker], executions: Array[Execution]) {
+    val pending = Pending(tickersLast, tickers, executions)
+    if (pending.size == 0) return
+
+    _submitted.incrementAndGet
+    if (!queue.offer(pending)) {
+      _blocked.incrementAndGet
+      val t0 = System.nanoTime
+      var isQueued = false
+      while (!isQueued && !isClosed) {
+        isQueued = queue.offer(pending, flushInterval, TimeUnit.MILLISECONDS)
+      }
+      _blockedNanos.addAndGet(System.nanoTime - t0)
+      log.warning(name + " is full, blocked " + (System.nanoTime - t0) / 1000000 + "ms, " + metrics)
+      if (!isQueued) {
+        // closed, the writer won't take it any more
+        uniSymbolToLastRow synchronized {
+          drainInCallerThread
+          persist(tickersLast, tickers, executions)
+        }
+        return
+      }
+    }
+
+    val depth = queue.size
+    if (depth > _maxQueueDepth) _maxQueueDepth = depth
+
+    if (isClosed) {
+      // writer may have exited before we queued, drain it here
+      drainInCallerThread
+    }
+  }
+
+  /**
+   * Stop accepting and wait until all submitted batches are persisted.
+   */
+  def close() {
+    if (isClosed) return
+
+    isClosed = true
+    writer.join
+    drainInCallerThread
+    log.info(name + " is closed, " + metrics)
+  }
+
+  def metrics: String = {
+    "submitted=" + submitted + ", blocked=" + blocked + ", blockedTime=" + blockedNanos / 1000000 + "ms" +
+    ", coalesced=" + coalesced + ", queueDepth=" + queueDepth + ", maxQueueDepth=" + maxQueueDepth +
+    ", " + flushLatencies
+  }
+
+  private def drainInCallerThread {
+    uniSymbolToLastRow synchronized {
+      var pending = queue.poll
+      while (pending != null) {
+        persist(pending.tickersLast, pending.tickers, pending.executions)
+        pending = queue.poll
+      }
+    }
+  }
+
+  private def writeLoop {
+    val tickersLast = mutable.LinkedHashMap[String, LastTickerSnap]()
+    val tickers = new ArrayList[Ticker]
+    val executions = new ArrayList[Execution]
+
+    while (!isClosed || !queue.isEmpty) {
+      try {
+        var pending = queue.poll(flushInterval, TimeUnit.MILLISECONDS)
+        if (pending != null) {
+          val deadline = System.nanoTime + TimeUnit.MILLISECONDS.toNanos(flushInterval)
+          var nRecords = 0
+          while (pending != null) {
+            var i = -1
+            while ({i += 1; i < pending.tickersLast.length}) {
+              val snap = pending.tickersLast(i)
+              if (tickersLast.put(snap.uniSymbol, snap).isDefined) {
+                _coalesced.incrementAndGet
+              }
+            }
+            tickers ++= pending.tickers
+            executions ++= pending.executions
+            nRecords += pending.size
+
+            pending = if (nRecords < batchSize && !isClosed) {
+              queue.poll(math.max(0, deadline - System.nanoTime), TimeUnit.NANOSECONDS)
+            } else null
+          }
+
+          val t0 = System.nanoTime
+          uniSymbolToLastRow synchronized {
+            persist(tickersLast.values.toArray, tickers.toArray, executions.toArray)
+          }
+          flushLatencies.recordNanos(System.nanoTime - t0)
+
+          tickersLast.clear
+          tickers.clear
+          executions.clear
+        }
+      } catch {
+        case ex: InterruptedException => log.log(Level.WARNING, name + " is interrupted", ex)
+        case ex: Throwable => log.log(Level.SEVERE, ex.getMessage, ex)
+      }
+    }
+  }
+
+  /**
+   * Persist in the calling thread and commit, should be called under
+   * uniSymbolToLastRow's lock.
+   */
+  private def persist(tickersLast: Array[LastTickerSnap], tickers: Array[Ticker], executions: Array[Execution]) {
+    try {
+      val t0 = System.currentTimeMillis
+      val rows = tickersLast map lastRowOf
+      val (tickersLastToInsert, tickersLastToUpdate) = rows.partition(x => TickersLast.transient_?(x))
+      var willCommit = false
+      if (tickersLastToInsert.length > 0) {
+        TickersLast.insertBatch_!(tickersLastToInsert)
+        willCommit = true
+      }
+      if (tickersLastToUpdate.length > 0) {
+        TickersLast.updateBatch_!(tickersLastToUpdate)
+        willCommit = true
+      }
+      if (willCommit) {
+        log.info("Saved tickersLast in " + (System.currentTimeMillis - t0) + "ms: tickersLastToInsert=" + tickersLastToInsert.length + ", tickersLastToUpdate=" + tickersLastToUpdate.length)
+      }
+
+      val t1 = System.currentTimeMillis
+      if (tickers.length > 0) {
+        Tickers.insertBatch_!(tickers)
+        willCommit = true
+      }
+      if (executions.length > 0) {
+        Executions.insertBatch_!(executions)
+        willCommit = true
+      }
+      if (tickers.length > 0 || executions.length > 0) {
+        log.info("Saved Tickers/Executions in " + (System.currentTimeMillis - t1) + "ms: tickers=" + tickers.length + ", executions=" + executions.length)
+      }
+
+      // @Note if there is no update/insert on db, do not call commit, which may cause deadlock
+      if (willCommit) {
+        COMMIT
+        log.info("Committed")
+      }
+    } catch {
+      case ex: Throwable => log.log(Level.SEVERE, ex.getMessage, ex)
+    }
+  }
+
+  /**
+   * The row of snap's symbol with the snap's values. A symbol that was persisted
+   * before (snap.id is defined) but has no row here yet, e.g. loaded at startup,
+   * gets its row loaded from db, so it's updated instead of inserted again.
+   */
+  private def lastRowOf(snap: LastTickerSnap): Ticker = {
+    val row = uniSymbolToLastRow.get(snap.uniSymbol) match {
+      case Some(x) => x
+      case None =>
+        val x = snap.id match {
+          case Some(_) =>
+            SELECT (TickersLast.*) FROM (TickersLast) WHERE (TickersLast.sec.field EQ Secs.idOf(snap.ticker.sec)) unique() getOrElse (new Ticker)
+          case None => new Ticker
+        }
+        uniSymbolToLastRow.put(snap.uniSymbol, x)
+        x
+    }
+    row.copyFrom(snap.ticker)
+    row
+  }
+}
+
+object TickerWriteBehind {
+
+  /**
+   * An immutable copy of a last ticker, with the id of its row if it was persisted.
+   */
+  final class LastTickerSnap private (val uniSymbol: String, val ticker: Ticker, val id: Option[Long])
+
+  object LastTickerSnap {
+    /**
+     * Should be called by the thread that changes lastTicker.
+     */
+    def apply(lastTicker: Ticker): LastTickerSnap = {
+      val ticker = new Ticker
+      ticker.copyFrom(lastTicker)
+      new LastTickerSnap(lastTicker.uniSymbol, ticker, TickersLast.idOf(lastTicker))
+    }
+  }
+}
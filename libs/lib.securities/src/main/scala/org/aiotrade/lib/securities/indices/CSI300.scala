@@ -115,7 +115,9 @@ object CSI300 {
                         }
                       } else { // out
                         existedValidTimes.find(_.isValid(time)) match {
-                          case Some(validTime) => validTime.validTo = time - 1
+                          case Some(validTime) => 
+                            validTime.validTo = time - 1
+                            secPicking.invalidate
                           case None => secPicking += ValidTime(sec, 0, time - 1)
                         }
                       }
@@ -65,7 +65,7 @@ package object securities {
   }
 
   /**
-   * Load all sers of secs from persistence and return referSer
+   * Load all sers of secs from persistence in bulk, @see BulkSerLoader, and return referSer
    * 
    * @return referSer
    */
@@ -73,13 +73,7 @@ package object securities {
     val referSer = loadSer(referSec, freq, false)
 
     val t0 = System.currentTimeMillis
-    var i = 0
-    while (i < secs.length) {
-      val sec = secs(i)
-      loadSer(sec, freq, true)
-      i += 1
-      log.info("Loaded %s, %s of %s.".format(sec.uniSymbol, i, secs.length))
-    }
+    BulkSerLoader.load(secs, freq, true)
     log.info("Loaded sers in %s s".format((System.currentTimeMillis - t0) / 1000))
     
     referSer
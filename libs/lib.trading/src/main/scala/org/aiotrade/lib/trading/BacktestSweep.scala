@@ -0,0 +1,132 @@
+package org.aiotrade.lib.trading
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.logging.Level
+import java.util.logging.Logger
+import org.aiotrade.lib.math.indicator.FunctionScope
+
+/**
+ * Result of one backtest run of a sweep.
+ */
+final case class BacktestResult(param: Param, payoffRatio: Double, annualizedPayoffRatio: Double, maxDrawdownRatio: Double,
+                                rrr: Double, sharpeRatioOnWeek: Double, sharpeRatioOnMonth: Double, report: String, elapsed: Long, error: Throwable = null) {
+  def isFailed = error != null
+
+  override
+  def toString = {
+    if (isFailed) {
+      "%-20s \t failed: %s".format(param.shortDescription, error)
+    } else {
+      "%-20s \t %8.2f%% \t %8.2f%% \t %8.2f%% \t %8.3f \t %8.3f \t %8.3f \t %6ds".format(
+        param.shortDescription, payoffRatio * 100, annualizedPayoffRatio * 100, maxDrawdownRatio * 100, rrr, sharpeRatioOnWeek, sharpeRatioOnMonth, elapsed / 1000
+      )
+    }
+  }
+}
+
+/**
+ * Runs backtests of parameter combinations concurrently on a fixed pool of
+ * parallelism threads.
+ *
+ * A run computes its signal indicators in the pool thread, then the backtest
+ * loop runs in the reactor of its TradingService while the pool thread waits for
+ * it, so parallelism bounds the runs in flight, i.e. both the indicator computing
+ * and the backtest loops that run at the same time.
+ *
+ * Each run gets its own TradingService from newService, with a private
+ * FunctionScope, so the functions/indicators computed by runs are not shared
+ * and are released per run. The QuoteSers of secs and referSer are shared by all
+ * runs, the indicators of each run are attached to them and detached on release.
+ * They should be loaded before and must not be updated during the sweep: a run
+ * fails if any of its sers got new periods meanwhile. Services should not share 
+ * Broker, Account or SecPicking, @see SecPicking#copy
+ *
+ * @Note Signals are published via the global Signal publisher, each service picks
+ *       up signals of its own indicators only.
+ *
+ * @param parallelism number of runs at the same time, default the number of cores
+ * @author Caoyuan Deng
+ */
+class BacktestSweep(parallelism: Int = Runtime.getRuntime.availableProcessors) {
+  private val log = Logger.getLogger(this.getClass.getName)
+
+  /**
+   * @return results in the order of params
+   */
+  def run[P <: Param](params: Seq[P], fromTime: Long, toTime: Long)(newService: P => TradingService): Array[BacktestResult] = {
+    val pool = Executors.newFixedThreadPool(parallelism)
+    val nDone = new AtomicInteger
+    val total = params.length
+
+    val tasks = new java.util.ArrayList[Callable[BacktestResult]](total)
+    for (param <- params) {
+      tasks.add(new Callable[BacktestResult] {
+          def call = {
+            val result = runOne(param, fromTime, toTime)(newService)
+            log.info("Sweep done %s/%s: %s".format(nDone.incrementAndGet, total, result))
+            result
+          }
+        })
+    }
+
+    val t0 = System.currentTimeMillis
+    try {
+      val futures = pool.invokeAll(tasks)
+      val results = new Array[BacktestResult](total)
+      var i = -1
+      while ({i += 1; i < total}) {
+        results(i) = futures.get(i).get
+      }
+      log.info("Swept %s params in %ss with parallelism %s".format(total, (System.currentTimeMillis - t0) / 1000, parallelism))
+      results
+    } finally {
+      pool.shutdown
+    }
+  }
+
+  private def runOne[P <: Param](param: P, fromTime: Long, toTime: Long)(newService: P => TradingService): BacktestResult = {
+    val t0 = System.currentTimeMillis
+    var service: TradingService = null
+    try {
+      service = newService(param)
+      service.functionScope = new FunctionScope(param.shortDescription)
+      val sers = service.sers
+      val lastTimes = sers map (_.lastOccurredTime)
+      service.backtest(fromTime, toTime)
+      val updated = (sers zip lastTimes) filter {case (ser, lastTime) => ser.lastOccurredTime != lastTime}
+      if (updated.nonEmpty) {
+        throw new IllegalStateException("Sers were updated during backtest: " + updated.map(_._1.serProvider.uniSymbol).mkString(", "))
+      }
+
+      val benchmark = service.benchmark
+      val report = benchmark.report
+      BacktestResult(param, benchmark.payoffRatio, benchmark.annualizedPayoffRatio, benchmark.maxDrawdownRatio,
+                     benchmark.rrr, benchmark.sharpeRatioOnWeek, benchmark.sharpeRatioOnMonth, report, System.currentTimeMillis - t0)
+    } catch {
+      case ex: Throwable =>
+        log.log(Level.SEVERE, "Backtest of " + param + " failed: " + ex.getMessage, ex)
+        BacktestResult(param, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, "", System.currentTimeMillis - t0, ex)
+    } finally {
+      if (service != null) service.release
+    }
+  }
+}
+
+object BacktestSweep {
+
+  /**
+   * Summary table of results, sorted descending by metric, failed ones at the end.
+   */
+  def report(results: Seq[BacktestResult], metric: BacktestResult => Double = _.annualizedPayoffRatio): String = {
+    val (failed, succeeded) = results partition (_.isFailed)
+    val sorted = succeeded sortBy {x => val v = metric(x); if (v.isNaN) Double.MaxValue else -v}
+
+    val sb = new StringBuilder()
+    sb.append("%-20s \t %9s \t %9s \t %9s \t %8s \t %8s \t %8s \t %7s".format(
+        "param", "payoff", "annualized", "drawdown", "rrr", "sharpeW", "sharpeM", "elapsed")).append("\n")
+    (sorted ++ failed) foreach {x => sb.append(x).append("\n")}
+    sb.toString
+  }
+}
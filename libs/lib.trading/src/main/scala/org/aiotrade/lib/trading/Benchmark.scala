@@ -11,7 +11,10 @@ import org.aiotrade.lib.util.actors.Reactor
  * 
  * @author Caoyuan Deng
  */
-class Benchmark(tradingService: TradingService) extends Reactor {
+class Benchmark(accounts: List[Account], param: Param) extends Reactor {
+  
+  def this(tradingService: TradingService) = this(tradingService.accounts, tradingService.param)
+  
   final case class Payoff(time: Long, nav: Double, accRate: Double, periodRate: Double, riskFreeRate: Double, referNav: Double) {
     val periodRateForSharpe = periodRate - riskFreeRate
     
@@ -32,7 +35,7 @@ class Benchmark(tradingService: TradingService) extends Reactor {
     }
   }
   
-  var initialEquity = tradingService.accounts.foldLeft(0.0){(s, x) => s + x.initialEquity}
+  var initialEquity = accounts.foldLeft(0.0){(s, x) => s + x.initialEquity}
   var payoffRatio = 0.0
   var annualizedPayoffRatio = 0.0
   private var lastEquity = 0.0
@@ -83,7 +86,7 @@ class Benchmark(tradingService: TradingService) extends Reactor {
     lastEquity = equity
     payoffRatio = equity / initialEquity - 1
     
-    tradingService.accounts foreach {
+    accounts foreach {
       case x: FutureAccount if x.availableFunds < 0 =>
         marginCalls += MarginCall(time, x.availableFunds, x.equity, x.positionEquity, x.positionMargin)
       case _ =>
@@ -270,7 +273,7 @@ class Benchmark(tradingService: TradingService) extends Reactor {
     val secTransactions = new ArrayList[SecTransaction]()
     val expTransactions = new ArrayList[ExpensesTransaction]()
     for {
-      account <- tradingService.accounts
+      account <- accounts
       TradeTransaction(time, secTransaction, expensesTransaction, order) <- account.transactions
     } {
       secTransactions ++= secTransaction
@@ -321,7 +324,7 @@ date           avaliableFunds           equity  positionEquity positionMargin
 date \u0009 sec \u0009 quantity \u0009 price \u0009 amount
 %41$s
     """.format(
-      tradingService.param,
+      param,
       tradeFromTime, tradeToTime, tradePeriod, times.length,
       initialEquity,
       lastEquity,
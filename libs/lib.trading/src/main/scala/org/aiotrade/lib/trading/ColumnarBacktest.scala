@@ -0,0 +1,379 @@
+package org.aiotrade.lib.trading
+
+import java.util.Date
+import java.util.logging.Logger
+import org.aiotrade.lib.collection.ArrayList
+import org.aiotrade.lib.math.indicator.FunctionScope
+import org.aiotrade.lib.math.indicator.SignalIndicator
+import org.aiotrade.lib.math.signal.Side
+import org.aiotrade.lib.securities.QuoteSer
+import org.aiotrade.lib.securities.SecPicking
+import org.aiotrade.lib.securities.model.Sec
+import scala.collection.mutable
+
+/**
+ * A backtest engine that works on dense per-sec columns aligned to refer periods,
+ * instead of driving TradingService by doOpen/doClose, scheduler and actor events.
+ *
+ * Before running, the close prices of each sec and the trigger sides of signal
+ * indicators (as bit masks) are pulled into arrays indexed by refer period. Then
+ * each period is processed in plain loops: fill orders at open, mark positions
+ * to market, check stop rules, scan trigger masks and prepare orders of next
+ * period. Orders are prepared and adjusted by OrderPreparing, as PaperBroker and
+ * TradingService do, and filled via Account.processTransaction with the
+ * ExpenseScheme of the rule, so the equities fed to Benchmark are the same as
+ * TradingService's backtest with PaperBroker and the default atClose.
+ *
+ * @Note As TradingService gets all signals before backtest starts, signals of
+ *       exit sides are kept only for secs that have position when signals are
+ *       computed.
+ * @Note When a sec has more than one closing trigger at a period, the one with
+ *       quantity (CutLoss/TakeProfit) wins, TradingService leaves it to HashSet
+ *       order.
+ *
+ * @author Caoyuan Deng
+ */
+class ColumnarBacktest(val account: TradableAccount, val param: Param,
+                       protected val referSer: QuoteSer, protected val secPicking: SecPicking, protected val signalIndTemplates: SignalIndicator*
+) {
+  import ColumnarBacktest._
+  private val log = Logger.getLogger(this.getClass.getName)
+
+  val benchmark = new Benchmark(List(account), param)
+
+  /** scope of signal indicators' functions, @see BacktestSweep */
+  var functionScope = FunctionScope.global
+
+  protected val timestamps = referSer.timestamps
+  protected val freq = referSer.freq
+
+  protected var secs: Array[Sec] = Array()
+  protected var sers: Array[QuoteSer] = Array()
+  private val secToIdx = new mutable.HashMap[Sec, Int]()
+
+  /** first refer idx of columns */
+  protected var fromIdx = 0
+  /** last refer idx of columns */
+  protected var toIdx = -1
+  /** sec -> close at (referIdx - fromIdx), NaN if no quote at that time */
+  protected var closes: Array[Array[Double]] = Array()
+  /** sec -> trigger sides at (referIdx - fromIdx), bits of ENTER_LONG etc. */
+  protected var triggerMasks: Array[Array[Int]] = Array()
+
+  private val signalIndicators = new ArrayList[SignalIndicator]()
+
+  // orders to be prepared at close: sec -> quantity (NaN if not set)
+  private val openingSecs = new mutable.LinkedHashSet[Sec]()
+  private val closingSecs = new mutable.LinkedHashMap[Sec, Double]()
+  // orders to be submitted at next open
+  private var openingOrders = List[Order]()
+  private var closingOrders = List[Order]()
+  private val stopMasks = new mutable.HashMap[Sec, Int]()
+
+  protected var tradeStartIdx = -1
+  protected def isTradeStarted = tradeStartIdx >= 0
+
+  /**
+   * Run the backtest in caller's thread.
+   */
+  def backtest(fromTime: Long, toTime: Long): Benchmark = {
+    val t0 = System.currentTimeMillis
+    load(fromTime, toTime)
+    val t1 = System.currentTimeMillis
+
+    var i = fromIdx - 1
+    while ({i += 1; i <= toIdx}) {
+      doOpen(i)
+      doClose(i)
+    }
+
+    log.info("Backtest of %s secs, %s periods: loaded in %sms, run in %sms".format(
+        secs.length, toIdx - fromIdx + 1, t1 - t0, System.currentTimeMillis - t1))
+    benchmark
+  }
+
+  /**
+   * Pull closes and trigger masks of [fromTime, toTime] into columns
+   */
+  protected def load(fromTime: Long, toTime: Long) {
+    fromIdx = timestamps.indexOrNextIndexOfOccurredTime(fromTime)
+    toIdx = timestamps.indexOrPrevIndexOfOccurredTime(toTime)
+    log.info("Backtest from %s to %s, referIdx: from %s to %s, total referPeriods: %s".format(new Date(timestamps(fromIdx)), new Date(timestamps(toIdx)), fromIdx, toIdx, timestamps.length))
+
+    val nPeriods = math.max(toIdx - fromIdx + 1, 0)
+    val secSers = for {
+      sec <- secPicking.allSecs.toArray.sortBy(_.uniSymbol)
+      ser <- sec.serOf(freq)
+    } yield (sec, ser)
+
+    secs = secSers map (_._1)
+    sers = secSers map (_._2)
+    closes = new Array[Array[Double]](secs.length)
+    triggerMasks = new Array[Array[Int]](secs.length)
+
+    FunctionScope.using(functionScope) {
+      var s = -1
+      while ({s += 1; s < secs.length}) {
+        secToIdx(secs(s)) = s
+        val serToRefer = alignToRefer(s, nPeriods)
+        loadTriggers(s, serToRefer, nPeriods)
+      }
+    }
+  }
+
+  /**
+   * Fill closes of sec by walking its timestamps along refer timestamps.
+   * @return ser idx -> refer idx at or next to its time, -1 if after last refer period
+   */
+  private def alignToRefer(s: Int, nPeriods: Int): Array[Int] = {
+    val ser = sers(s)
+    val serTimestamps = ser.timestamps
+    val close = Array.fill(nPeriods)(Double.NaN)
+    val serToRefer = new Array[Int](ser.size)
+
+    val nRefer = timestamps.length
+    var k = 0
+    var j = -1
+    while ({j += 1; j < serToRefer.length}) {
+      val time = serTimestamps(j)
+      while (k < nRefer && timestamps(k) < time) k += 1
+      if (k < nRefer) {
+        serToRefer(j) = k
+        if (timestamps(k) == time && k >= fromIdx && k <= toIdx) {
+          close(k - fromIdx) = ser.close(j)
+        }
+      } else {
+        serToRefer(j) = -1
+      }
+    }
+
+    closes(s) = close
+    serToRefer
+  }
+
+  private def loadTriggers(s: Int, serToRefer: Array[Int], nPeriods: Int) {
+    val sec = secs(s)
+    val ser = sers(s)
+    val serTimestamps = ser.timestamps
+    val masks = new Array[Int](nPeriods)
+    val hasPosition = account.positions.contains(sec)
+
+    for (indTemplate <- signalIndTemplates) {
+      // for each sec, need a new instance of indicator
+      val ind = indTemplate.getClass.newInstance.asInstanceOf[SignalIndicator]
+      signalIndicators += ind
+      ind.factors = indTemplate.factors
+      // sers may be shared by services that run side by side, @see BacktestSweep
+      ser synchronized {ind.set(ser)}
+      ind.computeFrom(0)
+
+      val signalVar = ind.signalVar
+      var j = -1
+      while ({j += 1; j < serToRefer.length}) {
+        val signals = signalVar(j)
+        if (signals != null) {
+          for (signal <- signals if signal.isSign) {
+            val referIdx = if (signal.time == serTimestamps(j)) serToRefer(j) else timestamps.indexOrNextIndexOfOccurredTime(signal.time)
+            if (referIdx >= fromIdx && referIdx <= toIdx) {
+              masks(referIdx - fromIdx) |= (signal.kind match {
+                  case Side.EnterLong => ENTER_LONG
+                  case Side.ExitLong if hasPosition => EXIT_LONG
+                  case Side.CutLoss if hasPosition => CUT_LOSS
+                  case Side.TakeProfit if hasPosition => TAKE_PROFIT
+                  case _ => 0
+                })
+            }
+          }
+        }
+      }
+    }
+
+    triggerMasks(s) = masks
+  }
+
+  protected def doOpen(referIdx: Int) {
+    executeOrders(referIdx)
+  }
+
+  protected def doClose(referIdx: Int) {
+    val time = timestamps(referIdx)
+    updatePositionsPrice(referIdx)
+
+    if (isTradeStarted) {
+      benchmark.at(time, account.equity, referSer.close(referIdx))
+    }
+
+    checkStopCondition
+    atClose(referIdx)
+    processPendingOrders(referIdx)
+  }
+
+  protected def executeOrders(referIdx: Int) {
+    val toSubmit = (openingOrders ::: closingOrders) filter (_.status == OrderStatus.New)
+    openingOrders = Nil
+    closingOrders = Nil
+    if (toSubmit.isEmpty) return
+
+    if (!isTradeStarted) {
+      tradeStartIdx = referIdx
+    }
+
+    // sell first?. If so, how about the returning funds?
+    val time = timestamps(referIdx)
+    for (order <- toSubmit) {
+      order.time = time
+      order.status = OrderStatus.PendingNew
+      // paper work: market orders are filled at order's price and quantity
+      account.processTransaction(order, PaperExecution(order, time, order.price, order.quantity))
+    }
+  }
+
+  protected def updatePositionsPrice(referIdx: Int) {
+    val k = referIdx - fromIdx
+    for ((sec, position) <- account.positions) {
+      secToIdx.get(sec) match {
+        case Some(s) => position.update(closes(s)(k))
+        case None =>
+          for (ser <- sec.serOf(freq); idx = ser.indexOfOccurredTime(timestamps(referIdx)) if idx >= 0) {
+            position.update(ser.close(idx))
+          }
+      }
+    }
+  }
+
+  protected def checkStopCondition {
+    stopMasks.clear
+    for ((sec, position) <- account.positions) {
+      var mask = 0
+      if (account.tradingRule.cutLossRule(position)) mask |= CUT_LOSS
+      if (account.tradingRule.takeProfitRule(position)) mask |= TAKE_PROFIT
+      if (mask != 0) stopMasks(sec) = mask
+    }
+  }
+
+  /**
+   * Scan trigger masks of all secs at referIdx, the sec should be valid in
+   * secPicking at that time.
+   */
+  protected def atClose(referIdx: Int) {
+    val time = timestamps(referIdx)
+    val k = referIdx - fromIdx
+    var s = -1
+    while ({s += 1; s < secs.length}) {
+      var mask = triggerMasks(s)(k)
+      val sec = secs(s)
+      if (stopMasks.nonEmpty) {
+        mask |= stopMasks.getOrElse(sec, 0)
+      }
+      if (mask != 0 && secPicking.isValid(sec, time)) {
+        onTriggers(sec, mask)
+      }
+    }
+
+    // positions of secs that are not in secPicking.allSecs
+    for ((sec, mask) <- stopMasks if !secToIdx.contains(sec) && secPicking.isValid(sec, time)) {
+      onTriggers(sec, mask)
+    }
+  }
+
+  /**
+   * Decide orders of next period by trigger sides. Override it for your action,
+   * as TradingService#atClose.
+   */
+  protected def onTriggers(sec: Sec, mask: Int) {
+    val position = account.positions.getOrElse(sec, null)
+    if ((mask & ENTER_LONG) != 0) {
+      buy(sec)
+    }
+    if ((mask & EXIT_LONG) != 0) {
+      sell(sec)
+    }
+    if ((mask & (CUT_LOSS | TAKE_PROFIT)) != 0 && position != null) {
+      sell(sec, position.quantity)
+    }
+  }
+
+  /** buy sec at next period with funds shared among buys */
+  protected def buy(sec: Sec) {
+    openingSecs += sec
+  }
+
+  /** sell sec at next period, quantity is decided by sellQuantityRule if NaN */
+  protected def sell(sec: Sec, quantity: Double = Double.NaN) {
+    closingSecs.get(sec) match {
+      case Some(x) if !x.isNaN && quantity.isNaN =>
+      case _ => closingSecs(sec) = quantity
+    }
+  }
+
+  /**
+   * Prepare orders of referIdx + 1, as TradingService#processPendingOrders with
+   * PaperBroker#toOrder, @see OrderPreparing
+   */
+  protected def processPendingOrders(referIdx: Int) {
+    val orderIdx = referIdx + 1
+    if (orderIdx >= timestamps.length) {
+      // it's future time, paper work will stop here.
+      openingSecs.clear
+      closingSecs.clear
+      return
+    }
+    val orderTime = timestamps(orderIdx)
+
+    // opening
+    if (account.availableFunds <= 0) {
+      openingSecs.clear
+    }
+    if (openingSecs.nonEmpty) {
+      val fundsPerSec = account.availableFunds / openingSecs.size
+      var orders = List[Order]()
+      for (sec <- openingSecs; ser <- serOf(sec); quote <- ser.valueOf(orderTime)) {
+        orders :::= OrderPreparing.toOrder(account, sec, OrderSide.Buy, OrderType.Market, quote, funds = fundsPerSec).toList
+      }
+      openingOrders = OrderPreparing.adjustOpeningOrders(account, orders)
+      openingSecs.clear
+    }
+
+    // closing, will try next period if there is no quote at this one
+    if (closingSecs.nonEmpty) {
+      var orders = List[Order]()
+      val done = new ArrayList[Sec]()
+      for ((sec, quantityToSell) <- closingSecs; ser <- serOf(sec); quote <- ser.valueOf(orderTime)) {
+        done += sec
+        orders :::= OrderPreparing.toOrder(account, sec, OrderSide.Sell, OrderType.Market, quote, quantity = quantityToSell).toList
+      }
+      closingSecs --= done
+      closingOrders = orders
+    }
+  }
+
+  private def serOf(sec: Sec): Option[QuoteSer] = secToIdx.get(sec) match {
+    case Some(s) => Some(sers(s))
+    case None => sec.serOf(freq)
+  }
+
+  /**
+   * Release columns, detach signal indicators from sers and release their functions
+   */
+  def release {
+    closes = Array()
+    triggerMasks = Array()
+    signalIndicators foreach {ind =>
+      val ser = ind.baseSer
+      if (ser != null) ser synchronized {ind.deafTo(ser)}
+    }
+    signalIndicators.clear
+    if (functionScope.isGlobal) {
+      org.aiotrade.lib.math.indicator.Function.releaseAll
+    } else {
+      functionScope.release
+    }
+  }
+}
+
+object ColumnarBacktest {
+  val ENTER_LONG  = 1
+  val EXIT_LONG   = 1 << 1
+  val CUT_LOSS    = 1 << 2
+  val TAKE_PROFIT = 1 << 3
+}
@@ -0,0 +1,118 @@
+package org.aiotrade.lib.trading
+
+import org.aiotrade.lib.securities.model.Quote
+import org.aiotrade.lib.securities.model.Sec
+
+/**
+ * Preparing of orders by account's TradingRule, shared by PaperBroker/TradingService
+ * and ColumnarBacktest, so both backtests trade the same orders.
+ *
+ * @author Caoyuan Deng
+ */
+object OrderPreparing {
+
+  /**
+   * Decide price and quantity of order on quote by account's TradingRule.
+   *
+   * @param price    price of order, decided by buy/sellPriceRule if NaN
+   * @param quantity quantity of order, decided by buy/sellQuantityRule if NaN
+   * @param funds    funds to open, limited by maxFundsPerOrder
+   * @return None if quantity <= 0
+   */
+  def toOrder(account: TradableAccount, sec: Sec, side: OrderSide, tpe: OrderType, quote: Quote,
+              price: Double = Double.NaN, quantity: Double = Double.NaN, funds: Double = Double.NaN
+  ): Option[Order] = {
+    val rule = account.tradingRule
+
+    var price1 = price
+    var quantity1 = quantity
+    if (side.isOpening) {
+
+      if (account.availableFunds > 0) {
+        if (price1.isNaN) {
+          price1 = rule.buyPriceRule(quote)
+        }
+        if (quantity1.isNaN) {
+          val funds1 = if (funds.isNaN) funds else math.min(rule.maxFundsPerOrder, funds)
+          quantity1 = rule.buyQuantityRule(quote, price1, funds1)
+        }
+      } else {
+        quantity1 = 0.0
+      }
+
+    } else { // closing
+
+      if (price1.isNaN) {
+        price1 = rule.sellPriceRule(quote)
+      }
+      if (quantity1.isNaN) {
+        quantity1 = account.positions.get(sec) match {
+          case Some(position) =>
+            // @Note quantity of position may be negative because of sellShort etc.
+            rule.sellQuantityRule(quote, price1, math.abs(position.quantity))
+          case None => 0
+        }
+      }
+
+    }
+
+    quantity1 = math.abs(quantity1)
+
+    if (quantity1 > 0) {
+      Some(Order(account, sec, price1, quantity1, side, tpe))
+    } else {
+      None
+    }
+  }
+
+  /**
+   * Adjust orders for expenses etc, by reducing quantities (or number of orders @todo).
+   * Each round reduces one lot of each order, from the cheapest one, until the
+   * orders fit in available funds or none of them can be reduced any more.
+   *
+   * @return orders that still have quantity (or funds) to open
+   * @Note Iterable has no method of sortBy, that's why use List here instead of Set
+   */
+  def adjustOpeningOrders(account: TradableAccount, openingOrders: List[Order]): List[Order] = {
+    if (account.availableFunds > 0 && openingOrders.nonEmpty) {
+      val lot = account.tradingRule.quantityPerLot
+      val sorted = openingOrders.sortBy(_.price)
+      var orders = sorted
+      var isReduced = false
+      var isDone = false
+      while (!isDone && calcTotalFundsToOpen(account, openingOrders) > account.availableFunds) {
+        orders match {
+          case order :: tail =>
+            if (order.funds.isNaN) {
+              if (lot > 0 && order.quantity > 0) {
+                order.quantity = math.max(order.quantity - lot, 0)
+                isReduced = true
+              }
+            } else {
+              // @todo estimate price of order.sec
+              val price = 1.0
+              val lotFunds = account.calcFundsToOpen(price, lot, order.sec)
+              if (lotFunds > 0 && order.funds > 0) {
+                order.funds = math.max(order.funds - lotFunds, 0)
+                isReduced = true
+              }
+            }
+            orders = tail
+          case Nil =>
+            // loop again, unless nothing was reduced in this round
+            isDone = !isReduced
+            isReduced = false
+            orders = sorted
+        }
+      }
+
+      openingOrders filter {x => if (x.funds.isNaN) x.quantity > 0 else x.funds > 0}
+    } else {
+      openingOrders
+    }
+  }
+
+  def calcTotalFundsToOpen(account: TradableAccount, orders: List[Order]) = {
+    orders.foldLeft(0.0){(s, x) => s + {if (x.funds.isNaN) account.calcFundsToOpen(x.price, x.quantity, x.sec) else x.funds}}
+  }
+}
@@ -110,52 +110,21 @@ class PaperBroker(val name: String) extends Broker {
       val time = timestamps(referIdx)
       ser.valueOf(time) match {
         case Some(quote) =>
-          if (side.isOpening) {
-          
-            if (funds.isSet) {
-              funds(math.min(account.tradingRule.maxFundsPerOrder, funds))
-            }
+          if (side.isOpening && funds.isSet) {
+            funds(math.min(account.tradingRule.maxFundsPerOrder, funds))
+          }
 
-            if (account.availableFunds > 0) {
-              if (price.notSet) {
-                price(account.tradingRule.buyPriceRule(quote))
-              }
-              if (quantity.notSet) {
-                quantity(account.tradingRule.buyQuantityRule(quote, price, funds))
-              }
-            } else {
-              quantity(0.0)
-            }
-          
-          } else { // closing
-            
-            if (price.notSet) {
-              price(account.tradingRule.sellPriceRule(quote))
-            }
-            if (quantity.notSet) {
-              quantity(
-                positionOf(sec) match {
-                  case Some(position) => 
-                    // @Note quantity of position may be negative because of sellShort etc.
-                    account.tradingRule.sellQuantityRule(quote, price, math.abs(position.quantity))
-                  case None => 0
-                }
+          OrderPreparing.toOrder(account, sec, side, tpe, quote, price, quantity, funds) match {
+            case Some(order) =>
+              price(order.price)
+              quantity(order.quantity)
+              println("Prepared %s".format(order))
+              Some(order)
+            case None =>
+              println("No order, since quantity <= 0, something should be wrong! : %s. Quote: volume=%5.2f, average=%5.2f, expenses=%5.2f".format(
+                  oc, quote.volume, quote.average, quote.average * account.tradingRule.multiplier * account.tradingRule.marginRate)
               )
-            }
-            
-          }
-          
-          quantity(math.abs(quantity))
-          
-          if (quantity > 0) {
-            val order = Order(account, sec, price, quantity, side, tpe)
-            println("Prepared %s".format(order))
-            Some(order)
-          } else {
-            println("No order, since quantity <= 0, something should be wrong! : %s. quantity=%5.2f Quote: volume=%5.2f, average=%5.2f, expenses=%5.2f".format(
-                oc, quantity, quote.volume, quote.average, quote.average * account.tradingRule.multiplier * account.tradingRule.marginRate)
-            )
-            None
+              None
           }
           
         case None => 
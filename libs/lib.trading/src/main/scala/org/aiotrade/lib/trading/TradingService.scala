@@ -8,6 +8,7 @@ import java.util.concurrent.TimeUnit
 import java.util.concurrent.ScheduledThreadPoolExecutor
 import java.util.logging.Level
 import java.util.logging.Logger
+import org.aiotrade.lib.math.indicator.FunctionScope
 import org.aiotrade.lib.math.indicator.SignalIndicator
 import org.aiotrade.lib.math.signal.Side
 import org.aiotrade.lib.math.signal.Signal
@@ -45,7 +46,7 @@ class TradingService(val broker: Broker, val accounts: List[Account], val param:
   protected val freq = referSer.freq
   
   protected val signalIndicators = new mutable.HashSet[SignalIndicator]()
-  protected val triggers = new mutable.HashSet[Trigger]()
+  protected val triggers = new TriggerIndex(timestamps)
   protected val openingOrders = new mutable.HashMap[TradableAccount, List[Order]]() // orders to open position
   protected val closingOrders = new mutable.HashMap[TradableAccount, List[Order]]() // orders to close position
   protected val pendingOrders = new mutable.HashSet[OrderCompose]()
@@ -64,6 +65,12 @@ class TradingService(val broker: Broker, val accounts: List[Account], val param:
   private case class GoBacktest(fromTime: Long, toTime: Long)
   private val backtestDone = new SyncVar[Boolean]()
 
+  /** 
+   * Scope of functions/indicators computed by this service, set a private one 
+   * before backtest to run side by side with other services, @see BacktestSweep
+   */
+  var functionScope = FunctionScope.global
+
   reactions += {
     case SecPickingEvent(secValidTime, side) =>
       val position = positionOf(secValidTime.ref).getOrElse(null)
@@ -84,7 +91,13 @@ class TradingService(val broker: Broker, val accounts: List[Account], val param:
       }
       
     case GoBacktest(fromTime, toTime) => 
-      goBacktest(fromTime, toTime)
+      try {
+        FunctionScope.using(functionScope) {
+          goBacktest(fromTime, toTime)
+        }
+      } catch {
+        case ex: Throwable => log.log(Level.SEVERE, ex.getMessage, ex)
+      }
       
       backtestDone.set(true)
 
@@ -163,7 +176,8 @@ class TradingService(val broker: Broker, val accounts: List[Account], val param:
         // @Note should add to signalIndicators before compute, otherwise, the published signal may be dropped in reactions 
         signalIndicators += ind 
         ind.factors = indFactor
-        ind.set(ser)
+        // sers may be shared by services that run side by side, @see BacktestSweep
+        ser synchronized {ind.set(ser)}
         ind.computeFrom(0)
       }
     }
@@ -204,7 +218,9 @@ class TradingService(val broker: Broker, val accounts: List[Account], val param:
    *       were published (during initSignalIndicators).
    */ 
   def backtest(fromTime: Long, toTime: Long) {
-    initSignalIndicators
+    FunctionScope.using(functionScope) {
+      initSignalIndicators
+    }
     publish(GoBacktest(fromTime, toTime))
     // We should make this backtest(...) calling synchronized, so block here untill done
     backtestDone.get
@@ -217,6 +233,8 @@ class TradingService(val broker: Broker, val accounts: List[Account], val param:
     val toIdx = timestamps.indexOrPrevIndexOfOccurredTime(toTime)
     println("Backtest from %s to %s, referIdx: from %s to %s, total referPeriods: %s".format(new Date(timestamps(fromIdx)), new Date(timestamps(toIdx)), fromIdx, toIdx, timestamps.length))
     
+    // periods are scanned forward, triggers before current period can be dropped
+    triggers.isDraining = true
     var i = fromIdx
     while (i <= toIdx) {
       doOpen(i)
@@ -230,12 +248,23 @@ class TradingService(val broker: Broker, val accounts: List[Account], val param:
    * Release resources. Call only when necessary
    * 
    * @Todo any better way? We cannot guarrantee that only backtesing is using Function.idToFunctions
+   *       when functionScope is the global one.
    */
   def release {
     deafTo(Signal)
     deafTo(referSer)
     deafTo(secPicking)
-    org.aiotrade.lib.math.indicator.Function.releaseAll
+    signalIndicators foreach {ind =>
+      val ser = ind.baseSer
+      if (ser != null) ser synchronized {ind.deafTo(ser)}
+    }
+    if (functionScope.isGlobal) {
+      org.aiotrade.lib.math.indicator.Function.releaseAll
+    } else {
+      functionScope.release
+    }
+    signalIndicators.clear
+    triggers.clear
   }  
   
   protected def positionOf(sec: Sec): Option[Position] = {
@@ -504,7 +533,7 @@ class TradingService(val broker: Broker, val accounts: List[Account], val param:
             case None => (orders, successOrderComposes, x :: failedOrderComposes)
           }
         } 
-        adjustOpeningOrders(account, openingOrdersx)
+        val adjustedOpeningOrdersx = adjustOpeningOrders(account, openingOrdersx)
         
         // closing
         val (closingOrdersx, successClosingOrderComposesx, failedClosingOrderComposes) = closingx.foldLeft(
@@ -521,7 +550,7 @@ class TradingService(val broker: Broker, val accounts: List[Account], val param:
         // we won't remove openingx and closingx ones here, since they could be removed till next period due to expired
         pendingOrdersToRemove ++= expired 
         
-        account -> (openingOrdersx, closingOrdersx)
+        account -> (adjustedOpeningOrdersx, closingOrdersx)
     }
       
     // @Note newOpenCloseOrders may be empty, thus we should iterate through each account in tradableAccounts 
@@ -537,43 +566,41 @@ class TradingService(val broker: Broker, val accounts: List[Account], val param:
   }
   
   /** 
-   * Adjust orders for expenses etc, by reducing quantities (or number of orders @todo)
-   * @Note Iterable has no method of sortBy, that's why use List here instead of Set
+   * Adjust orders for expenses etc, @see OrderPreparing#adjustOpeningOrders
+   * @return orders that still have something to open
    */
-  protected def adjustOpeningOrders(account: TradableAccount, openingOrders: List[Order]) {
-    if (account.availableFunds > 0 && openingOrders.nonEmpty) {
-      var orders = openingOrders.sortBy(_.price) 
-      var amount = 0.0
-      while ({amount = calcTotalFundsToOpen(account, openingOrders); amount > account.availableFunds}) {
-        orders match {
-          case order :: tail =>
-            if (order.funds.isNaN) {
-              order.quantity -= account.tradingRule.quantityPerLot
-            } else {
-              // @todo estimate price of order.sec
-              val price = 1.0
-              order.funds -= account.calcFundsToOpen(price, account.tradingRule.quantityPerLot, order.sec) 
-            }
-            orders = tail
-          case Nil => 
-            orders = openingOrders // loop again
-        }
-      }
-    }
+  protected def adjustOpeningOrders(account: TradableAccount, openingOrders: List[Order]): List[Order] = {
+    OrderPreparing.adjustOpeningOrders(account, openingOrders)
   }
   
   protected def calcTotalFundsToOpen(account: TradableAccount, orders: List[Order]) = {
-    orders.foldLeft(0.0){(s, x) => s + {if (x.funds.isNaN) account.calcFundsToOpen(x.price, x.quantity, x.sec) else x.funds}}
+    OrderPreparing.calcTotalFundsToOpen(account, orders)
   }
 
+  /**
+   * @return triggers of refer periods [fromIdx, toIdx] whose sec is valid at toIdx.
+   * @Note A trigger at time between two refer periods goes to the later one.
+   * @Note In backtest, fromIdx should never go backward, @see TriggerIndex
+   */
   protected def scanTriggers(fromIdx: Int, toIdx: Int = -1): mutable.HashSet[Trigger] = {
-    val toIdx1 = if (toIdx == -1) fromIdx else toIdx
-    scanTriggers(timestamps(math.max(fromIdx, 0)), timestamps(math.max(toIdx1, 0)))
+    val fromIdx1 = math.max(fromIdx, 0)
+    val toIdx1 = math.max(if (toIdx == -1) fromIdx else toIdx, 0)
+    val toTime = timestamps(toIdx1)
+    triggers.scan(fromIdx1, toIdx1) filter {x => secPicking.isValid(x.sec, toTime)}
   }
   
+  /**
+   * Sers that are read by this service, referSer and the sers of picked secs
+   */
+  def sers: Seq[QuoteSer] = referSer :: (secPicking.allSecs flatMap {_.serOf(freq)}).toList
+
   protected def scanTriggers(fromTime: Long, toTime: Long): mutable.HashSet[Trigger] = {
-    triggers filter {x => 
-      x.time >= fromTime && x.time <= toTime && secPicking.isValid(x.sec, toTime)
+    val fromIdx = timestamps.indexOrNextIndexOfOccurredTime(fromTime)
+    val toIdx = timestamps.indexOrPrevIndexOfOccurredTime(toTime)
+    if (fromIdx >= 0 && toIdx >= fromIdx) {
+      triggers.scan(fromIdx, toIdx) filter {x => secPicking.isValid(x.sec, toTime)}
+    } else {
+      new mutable.HashSet[Trigger]()
     }
   }
   
@@ -592,6 +619,7 @@ class TradingService(val broker: Broker, val accounts: List[Account], val param:
  * @author Caoyuan Deng
  */
 object TradingService {
+  private val log = Logger.getLogger(this.getClass.getName)
 
   def createIndicator[T <: SignalIndicator](signalClass: Class[T], factors: Array[Double]): T = {
     val ind = signalClass.newInstance.asInstanceOf[T]
@@ -606,7 +634,7 @@ object TradingService {
     val referSec = Exchange.secOf("000001.SS").get
     val referSer = securities.loadSers(secs, referSec, TFreq.DAILY)
     val goodSecs = secs filter {_.serOf(TFreq.DAILY).get.size > 0}
-    println("Number of good secs: " + goodSecs.length)
+    log.info("Number of good secs: " + goodSecs.length)
     (goodSecs, referSer)
   }
 
@@ -632,19 +660,22 @@ object TradingService {
     val secPicking = new SecPicking()
     secPicking ++= secs map (ValidTime(_, 0, 0))
     
-    for {
+    val params = for {
       fasterPeriod <- List(5, 8, 12)
       slowPeriod <- List(26, 30, 55) if slowPeriod > fasterPeriod
       signalPeriod <- List(5, 9)
-      param = TestParam(fasterPeriod, slowPeriod, signalPeriod)
-    } {
+    } yield TestParam(fasterPeriod, slowPeriod, signalPeriod)
+    
+    // runs of the sweep are charted as one round, a tab for each param
+    chartReport.roundStarted(params)
+    val results = new BacktestSweep().run(params, fromTime, toTime) {param =>
       val broker = new PaperBroker("Backtest")
       val tradingRule = new TradingRule()
       val account = new StockAccount("Backtest", 10000000.0, tradingRule)
     
-      val indTemplate = createIndicator(classOf[MACDSignal], Array(fasterPeriod, slowPeriod, signalPeriod))
+      val indTemplate = createIndicator(classOf[MACDSignal], Array(param.faster, param.slow, param.signal))
     
-      val tradingService = new TradingService(broker, List(account), param, referSer, secPicking, indTemplate) {
+      new TradingService(broker, List(account), param, referSer, secPicking.copy, indTemplate) {
         override 
         def atClose(idx: Int) {
           val triggers = scanTriggers(idx)
@@ -667,15 +698,12 @@ object TradingService {
           }
         }
       }
-    
-      chartReport.roundStarted(List(param))
-      tradingService.backtest(fromTime, toTime)
-      tradingService.release
-      chartReport.roundFinished
-      System.gc
     }
     
-    println("Done!")
+    chartReport.roundFinished
+    
+    log.info("\n" + BacktestSweep.report(results))
+    log.info("Done!")
   }
 }
 
@@ -0,0 +1,103 @@
+package org.aiotrade.lib.trading
+
+import org.aiotrade.lib.collection.ArrayList
+import org.aiotrade.lib.math.timeseries.TStamps
+import scala.collection.mutable
+
+/**
+ * Triggers bucketed by the index of refer timestamps, so that scanning a period
+ * costs only the triggers of that period instead of all triggers ever got.
+ *
+ * A trigger goes to the bucket of the refer period at or next to its time. A
+ * trigger whose time is later than the last refer period is kept unresolved,
+ * until the refer timestamps grow to cover it (real trading).
+ *
+ * When isDraining (backtest), a scan from fromIdx drops all buckets before
+ * fromIdx, so the index only holds triggers that may still fire. This requires
+ * the scans to go forward: fromIdx of a scan should never be less than fromIdx
+ * of any previous scan, i.e. a strategy that looks back should always scan
+ * from the earliest period it may look at, otherwise the scan fails instead of
+ * silently missing the dropped triggers.
+ *
+ * @author Caoyuan Deng
+ */
+class TriggerIndex(timestamps: TStamps) {
+  private val idxToTriggers = new mutable.HashMap[Int, mutable.HashSet[Trigger]]()
+  private val unresolved = new ArrayList[Trigger]()
+  /** buckets before this idx have been dropped */
+  private var drainedIdx = 0
+
+  var isDraining = false
+
+  def +=(trigger: Trigger): TriggerIndex = synchronized {
+    val idx = timestamps.indexOrNextIndexOfOccurredTime(trigger.time)
+    if (idx >= 0) {
+      addToBucket(idx, trigger)
+    } else {
+      unresolved += trigger
+    }
+    this
+  }
+
+  private def addToBucket(idx: Int, trigger: Trigger) {
+    if (!isDraining || idx >= drainedIdx) {
+      idxToTriggers.getOrElseUpdate(idx, new mutable.HashSet[Trigger]()) += trigger
+    }
+  }
+
+  /**
+   * @return triggers of refer periods [fromIdx, toIdx]
+   * @throws IllegalArgumentException if isDraining and fromIdx is before the 
+   *         fromIdx of a previous scan
+   */
+  def scan(fromIdx: Int, toIdx: Int): mutable.HashSet[Trigger] = synchronized {
+    require(!isDraining || fromIdx >= drainedIdx, 
+            "Scan from " + fromIdx + ", but triggers before " + drainedIdx + " have been drained")
+    resolve
+
+    if (isDraining && fromIdx > drainedIdx) {
+      var i = drainedIdx - 1
+      while ({i += 1; i < fromIdx}) {
+        idxToTriggers -= i
+      }
+      drainedIdx = fromIdx
+    }
+
+    val result = new mutable.HashSet[Trigger]()
+    var i = fromIdx - 1
+    while ({i += 1; i <= toIdx}) {
+      idxToTriggers.get(i) match {
+        case Some(triggers) => result ++= triggers
+        case None =>
+      }
+    }
+    result
+  }
+
+  def size: Int = synchronized {
+    idxToTriggers.valuesIterator.foldLeft(unresolved.length){(s, x) => s + x.size}
+  }
+
+  def clear = synchronized {
+    idxToTriggers.clear
+    unresolved.clear
+    drainedIdx = 0
+  }
+
+  private def resolve {
+    if (unresolved.isEmpty) return
+
+    val lastTime = timestamps.lastOccurredTime
+    var i = unresolved.length
+    while ({i -= 1; i >= 0}) {
+      val trigger = unresolved(i)
+      if (trigger.time <= lastTime) {
+        val idx = timestamps.indexOrNextIndexOfOccurredTime(trigger.time)
+        if (idx >= 0) {
+          unresolved.remove(i)
+          addToBucket(idx, trigger)
+        }
+      }
+    }
+  }
+}
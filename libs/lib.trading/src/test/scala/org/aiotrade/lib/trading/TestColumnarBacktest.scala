@@ -0,0 +1,92 @@
+package org.aiotrade.lib.trading
+
+import java.util.Random
+import junit.framework.TestCase
+import junit.framework.Assert._
+import org.aiotrade.lib.indicator.basic.signal.MACDSignal
+import org.aiotrade.lib.math.timeseries.TFreq
+import org.aiotrade.lib.securities.QuoteSer
+import org.aiotrade.lib.securities.SecPicking
+import org.aiotrade.lib.securities.model.Quote
+import org.aiotrade.lib.securities.model.Sec
+import org.aiotrade.lib.util.ValidTime
+
+/**
+ * Runs the same fixed series by TradingService with PaperBroker and by
+ * ColumnarBacktest, the Benchmark payoffs should be the same.
+ *
+ * Secs and sers are built in memory, Exchange (and its database) is never touched.
+ */
+class TestColumnarBacktest extends TestCase {
+  private val ONE_DAY = 24 * 60 * 60 * 1000L
+  private val BASE_TIME = 1262304000000L
+  private val N_PERIODS = 300
+  private val N_SECS = 5
+
+  /** a sec whose ser is a random walk of daily quotes */
+  private def secOf(symbol: String, seed: Long): Sec = {
+    val sec = new Sec
+    // id of sec is crc32 of crckey, secs with the same id are equal
+    sec.crckey = symbol
+    val ser = new QuoteSer(sec, TFreq.DAILY)
+    val random = new Random(seed)
+    var prevClose = 10.0
+    var i = -1
+    while ({i += 1; i < N_PERIODS}) {
+      val open = prevClose * (1 + (random.nextDouble - 0.5) * 0.02)
+      val close = open * (1 + (random.nextDouble - 0.5) * 0.06)
+      val high = math.max(open, close) * (1 + random.nextDouble * 0.01)
+      val low = math.min(open, close) * (1 - random.nextDouble * 0.01)
+      val volume = 100000 + random.nextInt(900000)
+
+      val quote = new Quote
+      quote.time = BASE_TIME + i * ONE_DAY
+      quote.open = open
+      quote.high = high
+      quote.low = low
+      quote.close = close
+      quote.volume = volume
+      quote.amount = volume * (high + low) / 2
+      quote.prevClose = prevClose
+      ser.updateFrom(quote)
+
+      prevClose = close
+    }
+    sec.setSer(ser)
+    sec
+  }
+
+  private def newAccount = {
+    val tradingRule = new TradingRule {
+      // ChinaStocksExpenseScheme looks up Exchange
+      override def expenseScheme = ExpenseScheme.LimitedProportional2Scheme
+    }
+    new StockAccount("Backtest", 10000000.0, tradingRule)
+  }
+
+  def testSamePayoffsAsTradingService {
+    val referSer = secOf("REFER", 0L).serOf(TFreq.DAILY).get
+    val secs = (1 to N_SECS) map {i => secOf("SEC" + i, i)}
+    val secPicking = new SecPicking()
+    secPicking ++= secs map (ValidTime(_, 0, 0))
+
+    val fromTime = BASE_TIME + 60 * ONE_DAY
+    val toTime = BASE_TIME + (N_PERIODS - 1) * ONE_DAY
+    val indTemplate = TradingService.createIndicator(classOf[MACDSignal], Array(12.0, 26.0, 9.0))
+
+    val service = new TradingService(new PaperBroker("Backtest"), List(newAccount), NoParam, referSer, secPicking.copy, indTemplate)
+    service.backtest(fromTime, toTime)
+    service.release
+    val expected = service.benchmark
+
+    val columnar = new ColumnarBacktest(newAccount, NoParam, referSer, secPicking.copy, indTemplate)
+    val actual = columnar.backtest(fromTime, toTime)
+    columnar.release
+
+    assertTrue("should trade", columnar.account.transactions.length > 0)
+    assertEquals("trades", service.tradableAccounts.head.transactions.length, columnar.account.transactions.length)
+    assertEquals("periods", expected.times.length, actual.times.length)
+    assertEquals("payoffRatio", expected.payoffRatio, actual.payoffRatio, 1e-9)
+    assertEquals("maxDrawdownRatio", expected.maxDrawdownRatio, actual.maxDrawdownRatio, 1e-9)
+  }
+}
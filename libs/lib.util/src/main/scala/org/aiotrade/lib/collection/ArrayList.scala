@@ -361,6 +361,29 @@ abstract class AbstractArrayList[A](
     res
   }
 
+  /**
+   * A read-only window of all elements, without copying the backing array.
+   * @see ArrayWindow
+   */
+  def window: ArrayWindow[A] = new ArrayWindow(array, 0, size0)
+
+  /**
+   * A read-only window of elements in [from, until), without copying the backing array.
+   * @see ArrayWindow
+   */
+  def window(from: Int, until: Int): ArrayWindow[A] = {
+    if (from < 0 || until > size0 || from > until) throw new IndexOutOfBoundsException("[" + from + ", " + until + ")")
+    new ArrayWindow(array, from, until - from)
+  }
+
+  /**
+   * The backing array itself, only elements in [0, size) are valid. This is for
+   * the non-boxing fast path of lib internal, typed as Array[Double] etc, when A
+   * is known at compile time. Never keep it, since it may be re-allocated on
+   * inserting/appending, and never modify it directly.
+   */
+  private[aiotrade] def backingArray: Array[A] = array
+
   // --- overrided methods for performance
 
   override 
@@ -0,0 +1,66 @@
+package org.aiotrade.lib.collection
+
+import scala.reflect.ClassTag
+
+/**
+ * A read-only, bounds-checked window over the backing array of an AbstractArrayList.
+ * No element is copied when a window is created, so windows are cheap enough
+ * to be got on every spot of an indicator computing.
+ *
+ * The window keeps the reference of backing array at the time it was created,
+ * values updated in place afterwards are visible to it, but elements appended
+ * after that (which may cause the backing array to be re-allocated) are not.
+ * So, always get a fresh window instead of holding it.
+ *
+ * The idx of window is relative, i.e. window(0) is array(offset)
+ *
+ * @author Caoyuan Deng
+ */
+final class ArrayWindow[A] private[collection] (
+  private[aiotrade] val array: Array[A],
+  val offset: Int,
+  val length: Int
+) {
+
+  /**
+   * The backing array as AnyRef, to test its element class. Since A is erased
+   * here, no checkcast is done on it, whereas `array` is cast to Array[A] at the
+   * call site, which fails with ClassCastException on a boxed Array[AnyRef].
+   */
+  private[aiotrade] def arrayRef: AnyRef = array
+
+  def size = length
+  def isEmpty = length == 0
+
+  def apply(idx: Int): A = {
+    if (idx < 0 || idx >= length) throw new IndexOutOfBoundsException(idx.toString)
+    array(offset + idx)
+  }
+
+  /**
+   * @param from  inclusive
+   * @param until exclusive
+   */
+  def window(from: Int, until: Int): ArrayWindow[A] = {
+    if (from < 0 || until > length || from > until) throw new IndexOutOfBoundsException("[" + from + ", " + until + ")")
+    new ArrayWindow(array, offset + from, until - from)
+  }
+
+  /**
+   * Copy elements one by one instead of arraycopy, since the backing array may
+   * be an Array[AnyRef] of boxed values when the ArrayList was created with an
+   * elementClass given at runtime.
+   */
+  def toArray(implicit m: ClassTag[A]): Array[A] = {
+    val res = new Array[A](length)
+    var i = 0
+    while (i < length) {
+      res(i) = array(offset + i)
+      i += 1
+    }
+    res
+  }
+
+  override
+  def toString = "ArrayWindow(offset=" + offset + ", length=" + length + ")"
+}
@@ -0,0 +1,81 @@
+package org.aiotrade.lib.util
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * A lightweight latency histogram with log2 buckets on microseconds, i.e. bucket
+ * i counts the latencies in [2^(i-1), 2^i) us, bucket 0 counts those less than 1us.
+ * Percentiles are reported as the upper bound of the bucket, which is good enough
+ * to tell where the time goes without keeping every sample.
+ *
+ * Recording is synchronized, it's supposed to be called once per batch instead of
+ * once per element.
+ *
+ * @author Caoyuan Deng
+ */
+class LatencyHistogram(val name: String) {
+  private val N_BUCKETS = 40
+
+  private val buckets = new Array[Long](N_BUCKETS)
+  private var _count = 0L
+  private var _total = 0L
+  private var _min = Long.MaxValue
+  private var _max = Long.MinValue
+
+  def recordNanos(nanos: Long): Unit = synchronized {
+    val us = TimeUnit.NANOSECONDS.toMicros(math.max(nanos, 0))
+    buckets(bucketOf(us)) += 1
+    _count += 1
+    _total += us
+    if (us < _min) _min = us
+    if (us > _max) _max = us
+  }
+
+  def count: Long = synchronized {_count}
+
+  /** in microseconds */
+  def mean: Long = synchronized {if (_count == 0) 0 else _total / _count}
+  def min: Long = synchronized {if (_count == 0) 0 else _min}
+  def max: Long = synchronized {if (_count == 0) 0 else _max}
+
+  /**
+   * @param p in (0, 1]
+   * @return upper bound of the bucket where p-th percentile falls, in microseconds
+   */
+  def percentile(p: Double): Long = synchronized {
+    if (_count == 0) return 0
+
+    val threshold = math.ceil(_count * p).toLong
+    var acc = 0L
+    var i = 0
+    while (i < N_BUCKETS) {
+      acc += buckets(i)
+      if (acc >= threshold) {
+        return math.min(upperBoundOf(i), _max)
+      }
+      i += 1
+    }
+    _max
+  }
+
+  def reset(): Unit = synchronized {
+    java.util.Arrays.fill(buckets, 0L)
+    _count = 0
+    _total = 0
+    _min = Long.MaxValue
+    _max = Long.MinValue
+  }
+
+  private def bucketOf(us: Long): Int = {
+    val i = 64 - java.lang.Long.numberOfLeadingZeros(us)
+    if (i < N_BUCKETS) i else N_BUCKETS - 1
+  }
+
+  private def upperBoundOf(bucket: Int): Long = (1L << bucket) - 1
+
+  override
+  def toString = synchronized {
+    name + ": count=" + _count + ", mean=" + mean + "us, min=" + min + "us, p50=" + percentile(0.5) +
+    "us, p90=" + percentile(0.9) + "us, p99=" + percentile(0.99) + "us, max=" + max + "us"
+  }
+}
@@ -0,0 +1,260 @@
+package org.aiotrade.lib.util
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.locks.LockSupport
+import java.util.concurrent.locks.ReentrantLock
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * A pre-allocated ring buffer event bus: one producer sequence, many consumers,
+ * each consumer runs in its own thread and has its own sequence cursor.
+ *
+ * o Memory is bounded by capacity, no mailbox grows.
+ * o Every consumer sees events in exactly the published order, so if the events
+ *   of a symbol are published in order, they are consumed in order.
+ * o When the slowest blocking consumer lags capacity events behind, the producer
+ *   waits for it. Lossy consumers (blockOnFull = false, for instance UI ones)
+ *   never hold the producer, when lagged they skip the overwritten events and
+ *   count them as overruns.
+ * o A slot is cleared once all consumers have passed it, so consumed events are
+ *   not kept reachable by the ring.
+ *
+ * Publishing is under a lock, it's cheap when there is actually one producer
+ * thread, and keeps correct if some events are occasionally published by others.
+ *
+ * A consumer may publish to its own bus (for instance TickerServer.publish called
+ * in a reaction), but it can't wait for a full ring, which waits for itself. So
+ * events published in consumer threads of this bus are handed off instead: they
+ * are put to the ring as soon as there is room, by the next producer publishing
+ * or by the consumers' loops, and they never block. The handoffs queue is not
+ * bounded by capacity, consumers should not republish more than they consume.
+ * A consumer of one bus publishing to another blocking bus, whose consumers
+ * publish back to the first one, may still deadlock, don't do that.
+ *
+ * @param capacity will be rounded up to power of 2
+ * @param blockOnFull default mode of consumers
+ * @author Caoyuan Deng
+ */
+class RingEventBus[T <: AnyRef](val name: String, _capacity: Int, blockOnFull: Boolean = true) {
+  import RingEventBus._
+  private val log = Logger.getLogger(this.getClass.getName)
+
+  val capacity = {
+    var n = 1
+    while (n < _capacity) n <<= 1
+    n
+  }
+  private val mask = capacity - 1
+  private val entries = new AtomicReferenceArray[AnyRef](capacity)
+
+  /** sequence of the last published event */
+  private val cursor = new AtomicLong(-1)
+  private val consumers = new CopyOnWriteArrayList[Consumer]()
+  private val publishLock = new ReentrantLock
+  /** events published in consumer threads, waiting for room in ring */
+  private val handoffs = new ConcurrentLinkedQueue[T]()
+  private val _producerWaits = new AtomicLong
+  private val _handoffs = new AtomicLong
+
+  /** times that the producer had to wait for slow consumers */
+  def producerWaits = _producerWaits.get
+  /** number of events published in consumer threads, which were handed off */
+  def handedOff = _handoffs.get
+  def published: Long = cursor.get + 1
+
+  /**
+   * Waits for the slowest blocking consumer when ring is full, unless called in
+   * a consumer thread of this bus, then the event is handed off and never waits.
+   */
+  def publish(event: T) {
+    if (isInConsumerThread) {
+      _handoffs.incrementAndGet
+      handoffs.offer(event)
+      tryPutHandoffs
+    } else {
+      publishLock.lock
+      try {
+        // handed off ones were published before this one
+        var handoff = handoffs.poll
+        while (handoff != null) {
+          put(handoff)
+          handoff = handoffs.poll
+        }
+        put(event)
+      } finally {
+        publishLock.unlock
+      }
+    }
+  }
+
+  /** should be called under publishLock, waits if ring is full */
+  private def put(event: T) {
+    val next = cursor.get + 1
+    if (!hasRoomFor(next)) {
+      _producerWaits.incrementAndGet
+      while (!hasRoomFor(next)) {
+        LockSupport.parkNanos(PARK_NANOS)
+      }
+    }
+    entries.set((next & mask).toInt, event)
+    cursor.set(next)
+
+    val itr = consumers.iterator
+    while (itr.hasNext) {
+      itr.next.signal
+    }
+  }
+
+  private def hasRoomFor(next: Long) = minConsumerSequence(true) >= next - capacity
+
+  /**
+   * Puts handoffs as many as there is room, never waits, neither for the lock:
+   * if the lock is held, the holder or a later loop of consumers will do it.
+   */
+  private def tryPutHandoffs {
+    if (!handoffs.isEmpty && publishLock.tryLock) {
+      try {
+        while (!handoffs.isEmpty && hasRoomFor(cursor.get + 1)) {
+          put(handoffs.poll)
+        }
+      } finally {
+        publishLock.unlock
+      }
+    }
+  }
+
+  private def isInConsumerThread: Boolean = {
+    val current = Thread.currentThread
+    val itr = consumers.iterator
+    while (itr.hasNext) {
+      if (itr.next.isThread(current)) return true
+    }
+    false
+  }
+
+  /**
+   * Add a consumer that starts from the next published event. Should be
+   * unsubscribed when not used any more, which stops its thread.
+   * 
+   * @param blockOnFull if false, the producer won't wait for this consumer
+   */
+  def subscribe(name: String, blockOnFull: Boolean = RingEventBus.this.blockOnFull)(handler: T => Unit): Consumer = {
+    val consumer = new Consumer(name, blockOnFull, handler)
+    consumers.add(consumer)
+    consumer.start
+    consumer
+  }
+
+  def unsubscribe(consumer: Consumer) {
+    consumer.stop
+    consumers.remove(consumer)
+  }
+
+  /**
+   * @param blockingOnly only counts the consumers that the producer waits for
+   */
+  private def minConsumerSequence(blockingOnly: Boolean): Long = {
+    var min = Long.MaxValue
+    val itr = consumers.iterator
+    while (itr.hasNext) {
+      val c = itr.next
+      if (!blockingOnly || c.blockOnFull) {
+        val seq = c.sequence
+        if (seq < min) min = seq
+      }
+    }
+    if (min == Long.MaxValue) cursor.get else min
+  }
+
+  def metrics: String = {
+    val sb = new StringBuilder
+    sb.append(name).append(": published=").append(published).append(", producerWaits=").append(producerWaits)
+    sb.append(", handedOff=").append(handedOff).append(", pendingHandoffs=").append(handoffs.size)
+    val itr = consumers.iterator
+    while (itr.hasNext) {
+      val c = itr.next
+      sb.append(", ").append(c.name).append("(lag=").append(c.lag).append(", overruns=").append(c.overruns).append(")")
+    }
+    sb.toString
+  }
+
+  final class Consumer private[RingEventBus] (val name: String, val blockOnFull: Boolean, handler: T => Unit) {
+    private val _sequence = new AtomicLong(cursor.get)
+    private val _overruns = new AtomicLong
+    @volatile private var isRunning = true
+    @volatile private var isWaiting = false
+
+    private val thread = new Thread(new Runnable {def run = loop}, RingEventBus.this.name + "-" + name)
+    thread.setDaemon(true)
+
+    /** sequence of the last consumed event */
+    def sequence = _sequence.get
+    /** number of published events that are not consumed yet */
+    def lag: Long = cursor.get - _sequence.get
+    /** number of events skipped since they were overwritten before consuming */
+    def overruns = _overruns.get
+
+    private[RingEventBus] def start = thread.start
+    private[RingEventBus] def isThread(t: Thread) = t eq thread
+
+    private[RingEventBus] def stop {
+      isRunning = false
+      LockSupport.unpark(thread)
+    }
+
+    private[RingEventBus] def signal {
+      if (isWaiting) LockSupport.unpark(thread)
+    }
+
+    private def loop {
+      while (isRunning) {
+        var next = _sequence.get + 1
+        val available = cursor.get
+        tryPutHandoffs
+        if (next > available) {
+          isWaiting = true
+          if (cursor.get < next) { // check again after announced waiting
+            LockSupport.parkNanos(PARK_NANOS * 100)
+          }
+          isWaiting = false
+        } else {
+          while (next <= available && isRunning) {
+            if (!blockOnFull && cursor.get - next >= capacity) {
+              val skipTo = cursor.get - capacity + 1
+              _overruns.addAndGet(skipTo - next)
+              _sequence.lazySet(skipTo - 1)
+              next = skipTo
+            }
+            val slot = (next & mask).toInt
+            val event = entries.get(slot).asInstanceOf[T]
+            if (!blockOnFull && cursor.get - next >= capacity) {
+              // overwritten while reading, will be skipped by next round
+            } else {
+              if (event ne null) {
+                try {
+                  handler(event)
+                } catch {
+                  case ex: Throwable => log.log(Level.WARNING, ex.getMessage, ex)
+                }
+              }
+              _sequence.set(next)
+              // the last one passing this slot clears it, unless it has been overwritten by a newer event
+              if (minConsumerSequence(false) >= next) {
+                entries.compareAndSet(slot, event, null)
+              }
+              next += 1
+            }
+          }
+        }
+      }
+    }
+  }
+}
+
+object RingEventBus {
+  private val PARK_NANOS = 10000L
+}
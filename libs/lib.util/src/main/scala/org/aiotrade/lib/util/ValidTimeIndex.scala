@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2006-2011, AIOTrade Computing Co. and Contributors
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  o Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer. 
+ *    
+ *  o Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution. 
+ *    
+ *  o Neither the name of AIOTrade Computing Co. nor the names of 
+ *    its contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.aiotrade.lib.util
+
+import scala.collection.mutable
+import scala.reflect.ClassTag
+
+/**
+ * A sorted-event index of valid times grouped by key, for querying which valid
+ * times are valid at a time in O(log n) instead of scanning all of them.
+ *
+ * The boundaries of valid times (validFrom, and validTo + 1 if validTo != 0) cut
+ * the timeline into segments, inside a segment the set of valid times does not
+ * change. The index is built by one sweep over the sorted boundaries, and keeps
+ * a snapshot of valid times per segment.
+ *
+ * Valid times of a key are ranked by their order in the key's list, firstAt(time)
+ * gives the first valid one of each key, as 'validTimes find (_.isValid(time))'
+ * does.
+ *
+ * @Note The index does not see later changes of the valid times (including the 
+ *       vars validFrom/validTo), build a new one after that.
+ * 
+ * @author Caoyuan Deng
+ */
+final class ValidTimeIndex[K: ClassTag, T](keyToValidTimes: Iterable[(K, List[ValidTime[T]])]) {
+  import ValidTimeIndex._
+
+  /** start time of each segment, ascending */
+  private var boundaries: Array[Long] = _
+  private var segmentToEntries: Array[Array[Entry[K, T]]] = _
+  private var segmentToKeys: Array[Array[K]] = _
+  /** built lazily for segments that are queried by firstAt */
+  private var segmentToFirsts: Array[scala.collection.Map[K, ValidTime[T]]] = _
+
+  build
+
+  private def build {
+    val events = new mutable.ArrayBuffer[Event[K, T]]()
+    for ((key, validTimes) <- keyToValidTimes) {
+      var rank = 0
+      for (validTime <- validTimes) {
+        // a valid time with validTo before validFrom is never valid
+        if (validTime.validTo == 0 || validTime.validTo >= validTime.validFrom) {
+          val entry = new Entry(key, validTime, rank)
+          events += Event(validTime.validFrom, entry, true)
+          if (validTime.validTo != 0 && validTime.validTo != Long.MaxValue) {
+            events += Event(validTime.validTo + 1, entry, false)
+          }
+        }
+        rank += 1
+      }
+    }
+    val sorted = events.sortBy(_.time)
+
+    val times = new mutable.ArrayBuffer[Long]()
+    val snapshots = new mutable.ArrayBuffer[Array[Entry[K, T]]]()
+    val active = new mutable.LinkedHashSet[Entry[K, T]]()
+    var i = 0
+    while (i < sorted.length) {
+      val time = sorted(i).time
+      while (i < sorted.length && sorted(i).time == time) {
+        val event = sorted(i)
+        if (event.isStart) active += event.entry else active -= event.entry
+        i += 1
+      }
+      times += time
+      snapshots += active.toArray
+    }
+
+    boundaries = times.toArray
+    segmentToEntries = snapshots.toArray
+    segmentToKeys = segmentToEntries map {entries => 
+      val keys = new mutable.LinkedHashSet[K]()
+      var j = -1
+      while ({j += 1; j < entries.length}) {
+        keys += entries(j).key
+      }
+      keys.toArray
+    }
+    segmentToFirsts = new Array[scala.collection.Map[K, ValidTime[T]]](boundaries.length)
+  }
+
+  def numSegments = boundaries.length
+
+  /**
+   * @return index of the segment that time is in, -1 if before all valid times
+   */
+  def segmentOf(time: Long): Int = {
+    var lo = 0
+    var hi = boundaries.length - 1
+    var found = -1
+    while (lo <= hi) {
+      val mid = (lo + hi) >>> 1
+      if (boundaries(mid) <= time) {
+        found = mid
+        lo = mid + 1
+      } else {
+        hi = mid - 1
+      }
+    }
+    found
+  }
+
+  def isSameSegment(time1: Long, time2: Long) = segmentOf(time1) == segmentOf(time2)
+
+  /**
+   * @return valid times that are valid at time, should not be modified
+   */
+  def validAt(time: Long): Array[ValidTime[T]] = {
+    val segment = segmentOf(time)
+    if (segment < 0) {
+      Array()
+    } else {
+      val entries = segmentToEntries(segment)
+      val validTimes = new Array[ValidTime[T]](entries.length)
+      var i = -1
+      while ({i += 1; i < entries.length}) {
+        validTimes(i) = entries(i).validTime
+      }
+      validTimes
+    }
+  }
+
+  /**
+   * @return distinct keys that have valid time at time, should not be modified
+   */
+  def keysAt(time: Long): Array[K] = {
+    val segment = segmentOf(time)
+    if (segment < 0) new Array[K](0) else segmentToKeys(segment)
+  }
+
+  /**
+   * @return key -> its first valid time (by order in its list) that is valid at time
+   */
+  def firstAt(time: Long): scala.collection.Map[K, ValidTime[T]] = {
+    val segment = segmentOf(time)
+    if (segment < 0) {
+      Map()
+    } else {
+      var firsts = segmentToFirsts(segment)
+      if (firsts == null) {
+        val keyToEntry = new mutable.HashMap[K, Entry[K, T]]()
+        val entries = segmentToEntries(segment)
+        var i = -1
+        while ({i += 1; i < entries.length}) {
+          val entry = entries(i)
+          keyToEntry.get(entry.key) match {
+            case Some(x) if x.rank <= entry.rank =>
+            case _ => keyToEntry(entry.key) = entry
+          }
+        }
+        firsts = keyToEntry map {case (key, entry) => key -> entry.validTime}
+        segmentToFirsts(segment) = firsts
+      }
+      firsts
+    }
+  }
+}
+
+object ValidTimeIndex {
+  /** identity of a valid time in the index, since valid times of different keys may be equal */
+  private[util] final class Entry[K, T](val key: K, val validTime: ValidTime[T], val rank: Int)
+  private[util] final case class Event[K, T](time: Long, entry: Entry[K, T], isStart: Boolean)
+}
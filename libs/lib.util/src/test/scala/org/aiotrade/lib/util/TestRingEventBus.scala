@@ -0,0 +1,85 @@
+package org.aiotrade.lib.util
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import junit.framework.TestCase
+import junit.framework.Assert._
+
+class TestRingEventBus extends TestCase {
+  private val CAPACITY = 8
+  private val N_EVENTS = 1000
+
+  /** a slow blocking consumer fills the ring, the producer waits, nothing lost and in order */
+  def testFullRingWaitsForBlockingConsumer {
+    val bus = new RingEventBus[Integer]("test", CAPACITY)
+    val done = new CountDownLatch(N_EVENTS)
+    val outOfOrders = new AtomicInteger
+    var last = -1
+    val consumer = bus.subscribe("slow"){e =>
+      if (e.intValue != last + 1) outOfOrders.incrementAndGet
+      last = e.intValue
+      if (e.intValue % 100 == 0) Thread.sleep(5)
+      done.countDown
+    }
+
+    var i = -1
+    while ({i += 1; i < N_EVENTS}) {
+      bus.publish(i)
+    }
+
+    assertTrue("all consumed", done.await(10, TimeUnit.SECONDS))
+    assertTrue("producer waited", bus.producerWaits > 0)
+    assertEquals("in order", 0, outOfOrders.get)
+    bus.unsubscribe(consumer)
+  }
+
+  /** a consumer that republishes to its own full bus should not deadlock with the producer */
+  def testRepublishInConsumerOnFullRing {
+    val bus = new RingEventBus[AnyRef]("test", CAPACITY)
+    val originals = new CountDownLatch(N_EVENTS)
+    val republished = new CountDownLatch(N_EVENTS)
+    val consumer = bus.subscribe("republisher"){
+      case x: Integer =>
+        bus.publish("re-" + x)
+        originals.countDown
+      case x: String =>
+        republished.countDown
+      case _ =>
+    }
+
+    var i = -1
+    while ({i += 1; i < N_EVENTS}) {
+      bus.publish(Integer.valueOf(i))
+    }
+
+    assertTrue("all originals consumed", originals.await(10, TimeUnit.SECONDS))
+    assertTrue("all republished consumed", republished.await(10, TimeUnit.SECONDS))
+    assertEquals("handed off", N_EVENTS, bus.handedOff)
+    bus.unsubscribe(consumer)
+  }
+
+  /** a lossy consumer never holds the producer, it counts skipped events as overruns */
+  def testLossyConsumerOverruns {
+    val bus = new RingEventBus[Integer]("test", CAPACITY)
+    val consumed = new AtomicInteger
+    val consumer = bus.subscribe("lossy", false){e =>
+      Thread.sleep(1)
+      consumed.incrementAndGet
+    }
+
+    var i = -1
+    while ({i += 1; i < N_EVENTS}) {
+      bus.publish(i)
+    }
+
+    assertEquals("producer never waits", 0, bus.producerWaits)
+    val deadline = System.currentTimeMillis + 10000
+    while (consumer.lag > 0 && System.currentTimeMillis < deadline) {
+      Thread.sleep(10)
+    }
+    assertEquals("consumed or overrun", N_EVENTS, consumed.get + consumer.overruns)
+    assertTrue("overrun", consumer.overruns > 0)
+    bus.unsubscribe(consumer)
+  }
+}
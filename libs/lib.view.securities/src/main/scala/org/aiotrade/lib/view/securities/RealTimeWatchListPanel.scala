@@ -141,7 +141,29 @@ class RealTimeWatchListPanel extends JPanel with Reactor {
     case api.TickersEvt(tickers) => updateByTickers(tickers)
   }
 
-  listenTo(TickerServer.publishers: _*)
+  private var tickerConsumer: TickerServer.eventBus.Consumer = _
+
+  /**
+   * Subscribe to TickerServer only when displayable, as lossy consumer, so a slow
+   * EDT won't hold the ticker processing.
+   */
+  override def addNotify {
+    super.addNotify
+    if (tickerConsumer == null) {
+      tickerConsumer = TickerServer.subscribe("RealTimeWatchListPanel", false)(reactions)
+    }
+  }
+
+  /**
+   * Unsubscribe when removed, which stops the consumer thread.
+   */
+  override def removeNotify {
+    if (tickerConsumer != null) {
+      TickerServer.unsubscribe(tickerConsumer)
+      tickerConsumer = null
+    }
+    super.removeNotify
+  }
 
   /** forward focus to scrollPane, so it can response UP/DOWN key event etc */
   override def requestFocusInWindow: Boolean = {